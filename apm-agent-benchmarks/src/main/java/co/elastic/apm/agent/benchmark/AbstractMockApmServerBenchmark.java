@@ -76,25 +76,42 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
         server.start();
         int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfigurationImpl.SERVICE_NAME, "benchmark")
+            .add(CoreConfigurationImpl.INSTRUMENT, Boolean.toString(apmEnabled))
+            .add("active", Boolean.toString(apmEnabled))
+            .add("api_request_size", "10mb")
+            .add("capture_headers", "false")
+//             .add("profiling_inferred_spans", "true")
+//             .add("profiling_interval", "10s")
+            .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+            .add("server_url", "http://localhost:" + port);
+        addConfigOptions(configSource);
         tracer = new ElasticApmTracerBuilder()
             .configurationRegistry(ConfigurationRegistry.builder()
-                .addConfigSource(new SimpleSource()
-                    .add(CoreConfigurationImpl.SERVICE_NAME, "benchmark")
-                    .add(CoreConfigurationImpl.INSTRUMENT, Boolean.toString(apmEnabled))
-                    .add("active", Boolean.toString(apmEnabled))
-                    .add("api_request_size", "10mb")
-                    .add("capture_headers", "false")
-//                     .add("profiling_inferred_spans", "true")
-//                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
-                    .add("server_url", "http://localhost:" + port))
+                .addConfigSource(configSource)
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
             .buildAndStart();
+        beforeInstrumentation();
         ElasticApmAgent.initInstrumentation(tracer, ByteBuddyAgent.install());
 
     }
 
+    /**
+     * Allows benchmarks to add or override configuration options of the tracer
+     *
+     * @param configSource the configuration source the tracer is created with
+     */
+    protected void addConfigOptions(SimpleSource configSource) {
+    }
+
+    /**
+     * Invoked after the tracer has been started and before the instrumentation is installed
+     */
+    protected void beforeInstrumentation() {
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
@@ -0,0 +1,149 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses a batch of intake API events with each {@link CompressionCodec} setting.
+ * <p>
+ * The score is the time it takes to compress a single event.
+ * After each iteration, the benchmark prints the compressed bytes per event and the CPU time per event,
+ * as measured by {@link ThreadMXBean#getCurrentThreadCpuTime()}.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompressionCodecBenchmark extends AbstractBenchmark {
+
+    private static final int EVENTS_PER_REQUEST = 1000;
+
+    @Param({"deflate", "gzip"})
+    public String algorithm;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final CountingNullOutputStream out = new CountingNullOutputStream();
+    private CompressionCodec codec;
+    private byte[][] events;
+    private long iterationStartCpuNanos;
+    private long eventsAtIterationStart;
+    private long bytesAtIterationStart;
+    private long compressedEvents;
+
+    public static void main(String[] args) throws RunnerException {
+        run(CompressionCodecBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        codec = "gzip".equals(algorithm) ? DeflateCodec.gzip(level) : DeflateCodec.deflate(level);
+        Random random = new Random(42);
+        events = new byte[EVENTS_PER_REQUEST][];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = createEvent(random).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Creates a span event which resembles the ones the agent sends to the APM Server,
+     * with random IDs and timings which reduce the compression ratio.
+     */
+    private static String createEvent(Random random) {
+        return "{\"span\":{" +
+            "\"timestamp\":" + (1700000000000000L + random.nextInt(1_000_000)) + "," +
+            "\"name\":\"SELECT FROM users\"," +
+            "\"id\":\"" + Long.toHexString(random.nextLong()) + "\"," +
+            "\"transaction_id\":\"" + Long.toHexString(random.nextLong()) + "\"," +
+            "\"trace_id\":\"" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()) + "\"," +
+            "\"parent_id\":\"" + Long.toHexString(random.nextLong()) + "\"," +
+            "\"duration\":" + random.nextInt(10_000) / 1000.0 + "," +
+            "\"type\":\"db\",\"subtype\":\"postgresql\",\"action\":\"query\"," +
+            "\"context\":{\"db\":{\"instance\":\"users\",\"statement\":\"SELECT * FROM users WHERE id = ?\",\"type\":\"sql\"}," +
+            "\"destination\":{\"address\":\"localhost\",\"port\":5432},\"service\":{\"target\":{\"type\":\"postgresql\",\"name\":\"users\"}}}," +
+            "\"outcome\":\"success\",\"sample_rate\":1.0}}\n";
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        eventsAtIterationStart = compressedEvents;
+        bytesAtIterationStart = out.count;
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - iterationStartCpuNanos;
+        long events = compressedEvents - eventsAtIterationStart;
+        long bytes = out.count - bytesAtIterationStart;
+        System.out.printf("%n%s level=%d compressed bytes/event=%.1f cpu ns/event=%.0f%n",
+            algorithm, level, (double) bytes / events, (double) cpuNanos / events);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_REQUEST)
+    public long compressRequest() throws IOException {
+        long countBefore = out.count;
+        try (OutputStream os = codec.compress(out)) {
+            for (byte[] event : events) {
+                os.write(event);
+            }
+        }
+        compressedEvents += events.length;
+        return out.count - countBefore;
+    }
+
+    private static class CountingNullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
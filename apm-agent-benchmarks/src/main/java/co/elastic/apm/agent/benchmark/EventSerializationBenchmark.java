@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes a transaction with a few spans to NDJSON, like the reporter does for every event.
+ * <p>
+ * After each iteration, the benchmark prints the serialized bytes per second of CPU time,
+ * as measured by {@link ThreadMXBean#getCurrentThreadCpuTime()}, which is the throughput a single reporter core can achieve.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventSerializationBenchmark extends AbstractBenchmark {
+
+    private static final int SPANS_PER_TRANSACTION = 4;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer.Writer writer;
+    private TransactionImpl transaction;
+    private SpanImpl[] spans;
+    private long serializedBytes;
+    private long iterationStartCpuNanos;
+    private long bytesAtIterationStart;
+
+    public static void main(String[] args) throws RunnerException {
+        run(EventSerializationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add("service_name", "benchmark")
+                .add("service_version", "1.0.0")
+                .add("span_stack_trace_min_duration", "-1ms"))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        tracer = new ElasticApmTracerBuilder().configurationRegistry(config).buildAndStart();
+        writer = new DslJsonSerializer(config, new ApmServerClient(config), tracer.getMetaDataFuture()).newWriter();
+
+        transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is expected to be active");
+        }
+        transaction.withName("GET /users/{id}").withType("request").withResult("HTTP 2xx");
+        transaction.setFrameworkName("Spring Web MVC");
+        transaction.setFrameworkVersion("5.3.30");
+        transaction.getContext().getRequest().withMethod("GET").getUrl().withPathname("/users/42").withHostname("localhost").withPort(8080).withProtocol("http");
+        transaction.getContext().getResponse().withStatusCode(200);
+        spans = new SpanImpl[SPANS_PER_TRANSACTION];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = transaction.createSpan().withName("SELECT FROM users").withType("db").withSubtype("postgresql").withAction("query");
+            spans[i].getContext().getDb().withInstance("users").withStatement("SELECT * FROM users WHERE id = ?").withType("sql");
+            spans[i].getContext().getServiceTarget().withType("postgresql").withName("users");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        bytesAtIterationStart = serializedBytes;
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double cpuSeconds = (threadMXBean.getCurrentThreadCpuTime() - iterationStartCpuNanos) / 1_000_000_000.0;
+        System.out.printf("%nserialized mb per cpu second=%.1f%n", (serializedBytes - bytesAtIterationStart) / cpuSeconds / (1024 * 1024));
+    }
+
+    @Benchmark
+    public int serializeTransactionWithSpans() {
+        JsonWriter jw = writer.getJsonWriter();
+        jw.reset();
+        writer.serializeTransactionNdJson(transaction);
+        for (SpanImpl span : spans) {
+            writer.serializeSpanNdJson(span);
+        }
+        int size = jw.size();
+        serializedBytes += size;
+        return size;
+    }
+}
@@ -24,21 +24,46 @@ import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
+import org.stagemonitor.configuration.source.SimpleSource;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Measures how long it takes to process the activation events and stack traces of a profiling session.
+ * <p>
+ * With {@code threads=0}, a recorded session is processed and {@code samplesPerThread} has no effect.
+ * Otherwise, a {@link SyntheticProfilingSession} with the given number of threads and samples per thread is generated,
+ * which shows how the processing time scales with the number of samples and threads,
+ * depending on the number of {@code processingThreads}.
+ * </p>
+ */
 @BenchmarkMode(Mode.SampleTime)
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
 @State(Scope.Benchmark)
 public class ProfilerBenchmark extends AbstractMockApmServerBenchmark {
 
+    @Param({"0", "8", "64"})
+    public int threads;
+
+    @Param({"1000", "10000"})
+    public int samplesPerThread;
+
+    @Param({"1", "4"})
+    public int processingThreads;
+
     private SamplingProfiler samplingProfiler;
+    @Nullable
+    private File activationEventsFile;
+    @Nullable
+    private File jfrFile;
 
     public ProfilerBenchmark() {
         super(true);
@@ -48,17 +73,37 @@ public class ProfilerBenchmark extends AbstractMockApmServerBenchmark {
         run(ProfilerBenchmark.class);
     }
 
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource.add("profiling_inferred_spans_processing_threads", Integer.toString(processingThreads));
+    }
+
     @Setup
     public void setUp() throws Exception {
-        samplingProfiler = new SamplingProfiler(tracer,
-            new SystemNanoClock(),
-            new File(getClass().getClassLoader().getResource("apm-activation-events.bin").toURI()),
-            new File(getClass().getClassLoader().getResource("apm-traces.jfr").toURI()));
+        if (threads == 0) {
+            samplingProfiler = new SamplingProfiler(tracer,
+                new SystemNanoClock(),
+                new File(getClass().getClassLoader().getResource("apm-activation-events.bin").toURI()),
+                new File(getClass().getClassLoader().getResource("apm-traces.jfr").toURI()));
+        } else {
+            activationEventsFile = File.createTempFile("apm-synthetic-activation-events-", ".bin");
+            jfrFile = File.createTempFile("apm-synthetic-traces-", ".jfr");
+            SyntheticProfilingSession session = new SyntheticProfilingSession(threads, samplesPerThread);
+            session.writeActivationEvents(tracer, activationEventsFile);
+            session.writeJfr(jfrFile);
+            samplingProfiler = new SamplingProfiler(tracer, new SystemNanoClock(), activationEventsFile, jfrFile);
+        }
     }
 
     @TearDown
     public void tearDownProfilerBenchmark() throws Exception {
         samplingProfiler.stop();
+        if (activationEventsFile != null) {
+            activationEventsFile.delete();
+        }
+        if (jfrFile != null) {
+            jfrFile.delete();
+        }
     }
 
     @Benchmark
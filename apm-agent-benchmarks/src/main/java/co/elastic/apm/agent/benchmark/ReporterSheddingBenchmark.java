@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.ApmServerReporter;
+import co.elastic.apm.agent.report.ReportingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overloads the reporter with transactions, spans and errors to compare the {@code queue_shedding_policy}s.
+ * <p>
+ * The benchmark threads create events at a rate the reporter can't keep up with, so that the queue is full most of the time.
+ * After each iteration, the number of events per second which have been created and which have been dropped
+ * is printed for each event type.
+ * With {@code tail_drop}, transactions and errors are dropped at about the same rate as spans.
+ * With {@code priority}, spans are dropped instead.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReporterSheddingBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final ReportingEvent.ReportingEventType[] PAYLOAD_TYPES = {
+        ReportingEvent.ReportingEventType.TRANSACTION,
+        ReportingEvent.ReportingEventType.SPAN,
+        ReportingEvent.ReportingEventType.ERROR
+    };
+
+    private static final Exception EXCEPTION = new IllegalStateException("ReporterSheddingBenchmark");
+
+    @Param({"tail_drop", "priority"})
+    public String sheddingPolicy;
+
+    private final Map<ReportingEvent.ReportingEventType, AtomicLong> created = new EnumMap<>(ReportingEvent.ReportingEventType.class);
+    private final Map<ReportingEvent.ReportingEventType, Long> droppedAtIterationStart = new EnumMap<>(ReportingEvent.ReportingEventType.class);
+    private long iterationStartNanos;
+
+    public ReporterSheddingBenchmark() {
+        super(true);
+        for (ReportingEvent.ReportingEventType type : PAYLOAD_TYPES) {
+            created.put(type, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterSheddingBenchmark.class);
+    }
+
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource
+            .add("queue_shedding_policy", sheddingPolicy)
+            .add("queue_reserved_capacity", "0.25")
+            .add("max_queue_size", "512");
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartNanos = System.nanoTime();
+        for (ReportingEvent.ReportingEventType type : PAYLOAD_TYPES) {
+            created.get(type).set(0);
+            droppedAtIterationStart.put(type, getReporter().getDropped(type));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double seconds = (System.nanoTime() - iterationStartNanos) / 1_000_000_000.0;
+        System.out.printf("%nqueue_shedding_policy=%s%n", sheddingPolicy);
+        for (ReportingEvent.ReportingEventType type : PAYLOAD_TYPES) {
+            long createdEvents = created.get(type).get();
+            long droppedEvents = getReporter().getDropped(type) - droppedAtIterationStart.get(type);
+            System.out.printf("%-12s created/s=%.0f dropped/s=%.0f dropped=%.1f%%%n", type, createdEvents / seconds, droppedEvents / seconds,
+                createdEvents > 0 ? 100.0 * droppedEvents / createdEvents : 0);
+        }
+    }
+
+    private ApmServerReporter getReporter() {
+        return (ApmServerReporter) tracer.getReporter();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public TransactionImpl reportTransactionWithSpansAndError() {
+        TransactionImpl transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is expected to be active");
+        }
+        transaction.withName("ReporterSheddingBenchmark").activate();
+        try {
+            for (int i = 0; i < 8; i++) {
+                SpanImpl span = transaction.createSpan().withName("span");
+                span.end();
+            }
+            created.get(ReportingEvent.ReportingEventType.SPAN).addAndGet(8);
+            tracer.captureAndReportException(System.currentTimeMillis() * 1000, EXCEPTION, transaction);
+            created.get(ReportingEvent.ReportingEventType.ERROR).incrementAndGet();
+        } finally {
+            transaction.deactivate().end();
+            created.get(ReportingEvent.ReportingEventType.TRANSACTION).incrementAndGet();
+        }
+        return transaction;
+    }
+}
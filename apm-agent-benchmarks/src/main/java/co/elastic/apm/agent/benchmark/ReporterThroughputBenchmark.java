@@ -0,0 +1,108 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many events the reporter is able to ship to a mock APM Server depending on the number of
+ * {@code intake_workers}.
+ * <p>
+ * The benchmark threads create transactions and spans at a rate the reporter can't keep up with.
+ * Therefore, the interesting metric is not the throughput of the benchmark method itself,
+ * but the number of reported events per second, which is printed after each iteration.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReporterThroughputBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int intakeWorkers;
+
+    private long iterationStartNanos;
+    private long reportedAtIterationStart;
+    private long droppedAtIterationStart;
+
+    public ReporterThroughputBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterThroughputBenchmark.class);
+    }
+
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource
+            .add("intake_workers", Integer.toString(intakeWorkers))
+            .add("max_queue_size", "8192");
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartNanos = System.nanoTime();
+        reportedAtIterationStart = tracer.getReporter().getReported();
+        droppedAtIterationStart = tracer.getReporter().getDropped();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double seconds = (System.nanoTime() - iterationStartNanos) / 1_000_000_000.0;
+        long reported = tracer.getReporter().getReported() - reportedAtIterationStart;
+        long dropped = tracer.getReporter().getDropped() - droppedAtIterationStart;
+        System.out.printf("%nintake_workers=%d reported events/s=%.0f dropped events/s=%.0f%n", intakeWorkers, reported / seconds, dropped / seconds);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public TransactionImpl reportTransactionWithSpans() {
+        TransactionImpl transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is expected to be active");
+        }
+        transaction.withName("ReporterThroughputBenchmark").activate();
+        try {
+            for (int i = 0; i < 4; i++) {
+                SpanImpl span = transaction.createSpan().withName("span");
+                span.end();
+            }
+        } finally {
+            transaction.deactivate().end();
+        }
+        return transaction;
+    }
+}
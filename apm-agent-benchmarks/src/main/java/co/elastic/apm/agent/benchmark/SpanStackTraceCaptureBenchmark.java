@@ -0,0 +1,97 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.stacktrace.StackTraceCapture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of capturing a span stack trace with {@link StackTraceCapture}, which uses {@code StackWalker},
+ * to the cost of creating a {@link Throwable} and materializing its stack trace, for different stack depths.
+ * <p>
+ * The stack trace is captured with the default {@code stack_trace_limit} of 50 frames.
+ * As the top-most agent frames are skipped, the stack trace is captured from within a {@link FutureTask} so that
+ * the frames of this benchmark below it are treated as application frames.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpanStackTraceCaptureBenchmark extends AbstractBenchmark {
+
+    private static final int STACK_TRACE_LIMIT = 50;
+
+    @Param({"50", "200", "500"})
+    public int depth;
+
+    public static void main(String[] args) throws RunnerException {
+        run(SpanStackTraceCaptureBenchmark.class);
+    }
+
+    @Benchmark
+    public Object createThrowable() throws Exception {
+        return recurse(depth, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new Throwable();
+            }
+        });
+    }
+
+    @Benchmark
+    public Object createThrowableAndGetStackTrace() throws Exception {
+        return recurse(depth, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new Throwable().getStackTrace();
+            }
+        });
+    }
+
+    @Benchmark
+    public Object captureWithStackWalker() throws Exception {
+        return recurse(depth, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return StackTraceCapture.capture(STACK_TRACE_LIMIT);
+            }
+        });
+    }
+
+    private static Object recurse(int depth, Callable<Object> capture) throws ExecutionException, InterruptedException {
+        if (depth > 0) {
+            return recurse(depth - 1, capture);
+        }
+        FutureTask<Object> task = new FutureTask<>(capture);
+        task.run();
+        return task.get();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes errors and spans whose stack traces recur, with and without the cache of serialized stack traces and frames.
+ * <p>
+ * The stack traces are created by recursing through one of two methods per level,
+ * so that there are {@code 2^pathBits} distinct stack traces which share most of their frames.
+ * The score is the time it takes to serialize a single event.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StackTraceSerializationBenchmark extends AbstractBenchmark {
+
+    @Param({"0b", "2mb"})
+    public String stackTraceCacheSize;
+
+    @Param({"4", "12"})
+    public int pathBits;
+
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer.Writer writer;
+    private ErrorCaptureImpl[] errors;
+    private SpanImpl[] spans;
+    private TransactionImpl transaction;
+    private int index;
+
+    public static void main(String[] args) throws RunnerException {
+        run(StackTraceSerializationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add("service_name", "benchmark")
+                .add("stack_trace_cache_size", stackTraceCacheSize))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        tracer = new ElasticApmTracerBuilder().configurationRegistry(config).buildAndStart();
+        writer = new DslJsonSerializer(config, new ApmServerClient(config), tracer.getMetaDataFuture()).newWriter();
+
+        transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is expected to be active");
+        }
+        int paths = 1 << pathBits;
+        errors = new ErrorCaptureImpl[paths];
+        spans = new SpanImpl[paths];
+        for (int i = 0; i < paths; i++) {
+            Throwable throwable = createThrowable(i, pathBits);
+            errors[i] = new ErrorCaptureImpl(tracer).asChildOf(transaction);
+            errors[i].setException(throwable);
+            spans[i] = transaction.createSpan().withName("span").withType("db").withStacktrace(throwable);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int serializeError() {
+        writer.getJsonWriter().reset();
+        writer.serializeErrorNdJson(errors[index++ & (errors.length - 1)]);
+        return writer.getJsonWriter().size();
+    }
+
+    @Benchmark
+    public int serializeSpan() {
+        writer.getJsonWriter().reset();
+        writer.serializeSpanNdJson(spans[index++ & (spans.length - 1)]);
+        return writer.getJsonWriter().size();
+    }
+
+    private static Throwable createThrowable(int path, int remainingBits) {
+        if (remainingBits == 0) {
+            return new Throwable();
+        }
+        return (path & 1) == 0 ? left(path >>> 1, remainingBits - 1) : right(path >>> 1, remainingBits - 1);
+    }
+
+    private static Throwable left(int path, int remainingBits) {
+        return createThrowable(path, remainingBits);
+    }
+
+    private static Throwable right(int path, int remainingBits) {
+        return createThrowable(path, remainingBits);
+    }
+}
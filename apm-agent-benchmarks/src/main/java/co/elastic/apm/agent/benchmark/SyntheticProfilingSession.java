@@ -0,0 +1,261 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Generates the activation events file and the JFR file of a profiling session with a configurable number of threads and samples,
+ * so that the processing time of the {@link co.elastic.apm.agent.profiler.SamplingProfiler} can be measured independently of the
+ * recorded files.
+ * <p>
+ * The activation events mirror the binary format of {@code SamplingProfiler.ActivationEvent#serialize}
+ * and the JFR file mirrors the subset of the async-profiler JFR 0.9 format that is read by
+ * {@link co.elastic.apm.agent.profiler.asyncprofiler.JfrParser}.
+ * </p>
+ * <p>
+ * Each thread activates a transaction, then creates a sample every millisecond and activates a child span every 50 samples.
+ * The stack traces change every 10 samples and share their bottom frames, which resembles the call trees of a typical request.
+ * </p>
+ */
+class SyntheticProfilingSession {
+
+    private static final int ACTIVATION_EVENT_SIZE = 8 + 2 + 2 + TraceContextImpl.SERIALIZED_LENGTH * 2 + 1 + 8 + 1;
+    private static final int DISTINCT_STACK_TRACES = 64;
+    private static final int SHARED_FRAMES = 10;
+    private static final int STACK_DEPTH = 20;
+    private static final long SAMPLE_INTERVAL_NS = 1_000_000;
+    private static final int SAMPLES_PER_CHILD_SPAN = 50;
+
+    private static final int EVENT_METADATA = 0;
+    private static final int EVENT_CHECKPOINT = 1;
+    private static final int EVENT_RECORDING = 10;
+    private static final int EVENT_EXECUTION_SAMPLE = 20;
+    private static final int CONTENT_JAVA_THREAD = 8;
+    private static final int CONTENT_STACKTRACE = 9;
+    private static final int CONTENT_CLASS = 10;
+    private static final int CONTENT_METHOD = 32;
+    private static final int CONTENT_SYMBOL = 33;
+    private static final int CONTENT_FRAME_TYPE = 47;
+    private static final byte FRAME_TYPE_JIT_COMPILED = 1;
+
+    private final int threads;
+    private final int samplesPerThread;
+
+    SyntheticProfilingSession(int threads, int samplesPerThread) {
+        this.threads = threads;
+        this.samplesPerThread = samplesPerThread;
+    }
+
+    void writeActivationEvents(ElasticApmTracer tracer, File file) throws IOException {
+        int childSpansPerThread = samplesPerThread / SAMPLES_PER_CHILD_SPAN;
+        ByteBuffer buffer = ByteBuffer.allocate(threads * (2 + 2 * childSpansPerThread) * ACTIVATION_EVENT_SIZE);
+        TransactionImpl[] transactions = new TransactionImpl[threads];
+        TraceContextImpl[] roots = new TraceContextImpl[threads];
+        for (int thread = 0; thread < threads; thread++) {
+            TransactionImpl transaction = tracer.startRootTransaction(null);
+            if (transaction == null) {
+                throw new IllegalStateException("tracer is expected to be active");
+            }
+            transactions[thread] = transaction.withName("SyntheticProfilingSession");
+            roots[thread] = transaction.getTraceContext();
+            writeActivationEvent(buffer, 0, roots[thread], null, javaThreadId(thread), true);
+        }
+        // the events of all threads are ordered by timestamp, like in a real recording
+        for (int span = 0; span < childSpansPerThread; span++) {
+            long activation = (span * SAMPLES_PER_CHILD_SPAN + 5) * SAMPLE_INTERVAL_NS;
+            TraceContextImpl[] childSpans = new TraceContextImpl[threads];
+            for (int thread = 0; thread < threads; thread++) {
+                childSpans[thread] = transactions[thread].createSpan().getTraceContext();
+                writeActivationEvent(buffer, activation, childSpans[thread], roots[thread], javaThreadId(thread), true);
+            }
+            for (int thread = 0; thread < threads; thread++) {
+                writeActivationEvent(buffer, activation + 20 * SAMPLE_INTERVAL_NS, childSpans[thread], roots[thread], javaThreadId(thread), false);
+            }
+        }
+        for (int thread = 0; thread < threads; thread++) {
+            writeActivationEvent(buffer, (samplesPerThread + 1) * SAMPLE_INTERVAL_NS, roots[thread], null, javaThreadId(thread), false);
+        }
+        write(buffer, file);
+    }
+
+    private static void writeActivationEvent(ByteBuffer buffer, long timestamp, TraceContextImpl context, TraceContextImpl previous, long threadId, boolean activation) {
+        buffer.putLong(timestamp);
+        // service name and version index
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.put(context.serialize());
+        buffer.put(previous != null ? previous.serialize() : new byte[TraceContextImpl.SERIALIZED_LENGTH]);
+        buffer.put(previous == null ? (byte) 1 : (byte) 0);
+        buffer.putLong(threadId);
+        buffer.put(activation ? (byte) 1 : (byte) 0);
+    }
+
+    void writeJfr(File file) throws IOException {
+        int methods = SHARED_FRAMES + DISTINCT_STACK_TRACES * (STACK_DEPTH - SHARED_FRAMES);
+        int samples = threads * samplesPerThread;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024 + samples * 30 + methods * 128
+            + DISTINCT_STACK_TRACES * (13 + STACK_DEPTH * 13) + threads * 16);
+        buffer.put(new byte[]{'F', 'L', 'R', '\0'});
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 9);
+        int metadataOffsetPosition = buffer.position();
+        buffer.putLong(0);
+
+        // the samples of all threads are interleaved, like in a real recording
+        for (int sample = 0; sample < samplesPerThread; sample++) {
+            for (int thread = 0; thread < threads; thread++) {
+                buffer.putInt(30);
+                buffer.putInt(EVENT_EXECUTION_SAMPLE);
+                buffer.putLong((sample + 1) * SAMPLE_INTERVAL_NS);
+                buffer.putInt(nativeThreadId(thread));
+                buffer.putLong(stackTraceId(thread, sample));
+                buffer.putShort((short) 0);
+            }
+        }
+        buffer.putInt(30);
+        buffer.putInt(EVENT_RECORDING);
+        buffer.put(new byte[22]);
+
+        int checkpointOffset = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(EVENT_CHECKPOINT);
+        buffer.putLong(0);
+        buffer.putLong(0);
+
+        buffer.putInt(CONTENT_FRAME_TYPE);
+        buffer.putInt(1);
+        buffer.put(FRAME_TYPE_JIT_COMPILED);
+        putString(buffer, "JIT compiled");
+
+        buffer.putInt(CONTENT_JAVA_THREAD);
+        buffer.putInt(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            buffer.putLong(javaThreadId(thread));
+            buffer.putInt(nativeThreadId(thread));
+            buffer.putInt(0);
+        }
+
+        buffer.putInt(CONTENT_STACKTRACE);
+        buffer.putInt(DISTINCT_STACK_TRACES);
+        for (int stackTrace = 1; stackTrace <= DISTINCT_STACK_TRACES; stackTrace++) {
+            buffer.putLong(stackTrace);
+            buffer.put((byte) 0);
+            buffer.putInt(STACK_DEPTH);
+            // the first frame is the top of the stack
+            for (int depth = STACK_DEPTH - 1; depth >= 0; depth--) {
+                buffer.putLong(methodId(stackTrace, depth));
+                buffer.putInt(0);
+                buffer.put(FRAME_TYPE_JIT_COMPILED);
+            }
+        }
+
+        // one class, method name symbol and class name symbol per method
+        buffer.putInt(CONTENT_CLASS);
+        buffer.putInt(methods);
+        for (int method = 1; method <= methods; method++) {
+            buffer.putLong(method);
+            buffer.putLong(0);
+            buffer.putLong(classNameSymbolId(method));
+            buffer.putShort((short) 0);
+        }
+
+        buffer.putInt(CONTENT_METHOD);
+        buffer.putInt(methods);
+        for (int method = 1; method <= methods; method++) {
+            buffer.putLong(method);
+            buffer.putLong(method);
+            buffer.putLong(methodNameSymbolId(method));
+            buffer.putLong(0);
+            buffer.putShort((short) 0);
+            buffer.put((byte) 0);
+        }
+
+        buffer.putInt(CONTENT_SYMBOL);
+        buffer.putInt(methods * 2);
+        for (int method = 1; method <= methods; method++) {
+            buffer.putLong(classNameSymbolId(method));
+            putString(buffer, "com/example/Synthetic" + method);
+            buffer.putLong(methodNameSymbolId(method));
+            putString(buffer, "method" + method);
+        }
+        buffer.putInt(checkpointOffset, buffer.position() - checkpointOffset);
+
+        buffer.putLong(metadataOffsetPosition, buffer.position());
+        buffer.putInt(16);
+        buffer.putInt(EVENT_METADATA);
+        buffer.putLong(checkpointOffset);
+        write(buffer, file);
+    }
+
+    private static long javaThreadId(int thread) {
+        return 1_000 + thread;
+    }
+
+    private static int nativeThreadId(int thread) {
+        return 100_000 + thread;
+    }
+
+    private static long stackTraceId(int thread, int sample) {
+        return 1 + (thread + sample / 10) % DISTINCT_STACK_TRACES;
+    }
+
+    /**
+     * Ids start at 1, like in recordings of async-profiler.
+     * The bottom frames are shared by all stack traces, the others are specific to a stack trace
+     */
+    private static int methodId(int stackTrace, int depth) {
+        if (depth < SHARED_FRAMES) {
+            return 1 + depth;
+        }
+        return 1 + SHARED_FRAMES + (stackTrace - 1) * (STACK_DEPTH - SHARED_FRAMES) + depth - SHARED_FRAMES;
+    }
+
+    private static long classNameSymbolId(int method) {
+        return method * 2L;
+    }
+
+    private static long methodNameSymbolId(int method) {
+        return method * 2L + 1;
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void write(ByteBuffer buffer, File file) throws IOException {
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.bci.InstrumentationStats;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Measures the time the agent spends on type matching while an application loads a large number of classes,
+ * with and without the {@code enable_type_matching_pre_filter_index}.
+ * <p>
+ * A synthetic jar with 50k classes is generated on setup.
+ * The class names are a mix of typical application packages and class name suffixes,
+ * some of which resemble the name patterns the instrumentations are looking for.
+ * Each benchmark invocation loads all classes of the jar with a new class loader.
+ * </p>
+ * <p>
+ * Apart from the class loading time, the time spent in type matchers, as recorded by {@link InstrumentationStats},
+ * is printed after each iteration.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TypeMatchingStartupBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final int NUMBER_OF_CLASSES = 50_000;
+    private static final String[] PACKAGES = {
+        "com.example.shop.web", "com.example.shop.service", "com.example.shop.repository", "com.example.shop.domain",
+        "com.example.billing.api", "com.example.billing.internal", "org.acme.inventory.core", "org.acme.inventory.util",
+        "io.acme.platform.messaging", "io.acme.platform.config"
+    };
+    private static final String[] NAME_PREFIXES = {
+        "Order", "Customer", "Invoice", "Payment", "Product", "Inventory", "Shipping", "Account", "User", "Report",
+        "Cart", "Price", "Discount", "Warehouse", "Supplier", "Notification"
+    };
+    private static final String[] NAME_SUFFIXES = {
+        "Service", "ServiceImpl", "Controller", "Repository", "Dto", "Mapper", "Validator", "Factory", "Handler",
+        "Config", "Filter", "Listener", "Executor", "Client", "Request", "Query", "Entity", "Exception", "Builder", ""
+    };
+
+    @Param({"false", "true"})
+    public boolean typeMatchingPreFilterIndex;
+
+    private final List<String> classNames = new ArrayList<>(NUMBER_OF_CLASSES);
+    private File syntheticJar;
+    private long typeMatchingTimeAtIterationStart;
+
+    public TypeMatchingStartupBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(TypeMatchingStartupBenchmark.class);
+    }
+
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource.add("enable_type_matching_pre_filter_index", Boolean.toString(typeMatchingPreFilterIndex));
+    }
+
+    @Override
+    protected void beforeInstrumentation() {
+        ElasticApmAgent.getInstrumentationStats().setMeasureMatching(true);
+    }
+
+    @Setup(Level.Trial)
+    public void createSyntheticJar() throws IOException {
+        syntheticJar = File.createTempFile("synthetic-classes", ".jar");
+        syntheticJar.deleteOnExit();
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(syntheticJar))) {
+            for (int i = 0; i < NUMBER_OF_CLASSES; i++) {
+                String className = PACKAGES[i % PACKAGES.length] + ".module" + (i % 97) + "."
+                    + NAME_PREFIXES[i % NAME_PREFIXES.length] + NAME_SUFFIXES[i % NAME_SUFFIXES.length] + i;
+                classNames.add(className);
+                String internalName = className.replace('.', '/');
+                jar.putNextEntry(new JarEntry(internalName + ".class"));
+                jar.write(createEmptyClass(internalName));
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] createEmptyClass(String internalName) {
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", null);
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        typeMatchingTimeAtIterationStart = ElasticApmAgent.getInstrumentationStats().getTotalTypeMatchingTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        long typeMatchingNanos = ElasticApmAgent.getInstrumentationStats().getTotalTypeMatchingTime() - typeMatchingTimeAtIterationStart;
+        System.out.printf("%nenable_type_matching_pre_filter_index=%b type matching time=%,d ms for %,d classes%n",
+            typeMatchingPreFilterIndex, TimeUnit.NANOSECONDS.toMillis(typeMatchingNanos), classNames.size());
+    }
+
+    @Benchmark
+    public int loadSyntheticClasses() throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{syntheticJar.toURI().toURL()}, TypeMatchingStartupBenchmark.class.getClassLoader())) {
+            int loaded = 0;
+            for (String className : classNames) {
+                classLoader.loadClass(className);
+                loaded++;
+            }
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches the header names of typical HTTP requests and responses against the {@code sanitize_field_names} option,
+ * once with the matchers tried in turn and once with the {@linkplain WildcardMatcher#compile(List) compiled} list.
+ * <p>
+ * The score is the time it takes to match a single header name.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WildcardMatcherBenchmark extends AbstractBenchmark {
+
+    /**
+     * The default value of {@code sanitize_field_names}
+     */
+    private static final String[] DEFAULT_SANITIZE_FIELD_NAMES = {
+        "password", "passwd", "pwd", "secret", "*key", "*token*", "*session*", "*credit*", "*card*", "*auth*", "*principal*", "set-cookie"
+    };
+
+    /**
+     * Additional entries, as they are typically added to sanitize application specific headers and form fields
+     */
+    private static final String[] CUSTOM_SANITIZE_FIELD_NAMES = {
+        "x-api-*", "x-amz-security-token", "x-csrf-*", "x-xsrf-*", "*-signature", "x-hub-signature*", "*ssn*", "*iban*",
+        "*pin", "otp", "*otp-code", "*private*", "*passphrase*", "*credential*", "(?-i)X-Internal-*", "x-forwarded-client-cert",
+        "x-ms-client-principal-*", "x-goog-iap-jwt-assertion", "cf-access-jwt-assertion", "*bearer*", "*cvv*", "*cvc*",
+        "account_number", "routing_number", "*dob", "birth*", "x-user-email", "*phone*"
+    };
+
+    private static final String[] HEADERS = {
+        // browser request
+        "Host", "Connection", "Cache-Control", "sec-ch-ua", "sec-ch-ua-mobile", "sec-ch-ua-platform", "Upgrade-Insecure-Requests",
+        "User-Agent", "Accept", "Sec-Fetch-Site", "Sec-Fetch-Mode", "Sec-Fetch-User", "Sec-Fetch-Dest", "Referer", "Accept-Encoding",
+        "Accept-Language", "Cookie",
+        // API request behind a load balancer
+        "Authorization", "Content-Type", "Content-Length", "X-Forwarded-For", "X-Forwarded-Proto", "X-Forwarded-Port",
+        "X-Amzn-Trace-Id", "X-Request-Id", "traceparent", "tracestate", "elastic-apm-traceparent", "Idempotency-Key",
+        // response
+        "Date", "Server", "Vary", "ETag", "Last-Modified", "Set-Cookie", "Strict-Transport-Security", "X-Content-Type-Options",
+        "X-Frame-Options", "Content-Security-Policy", "Transfer-Encoding"
+    };
+
+    @Param({"default", "extended"})
+    public String sanitizeFieldNames;
+
+    private List<WildcardMatcher> matchers;
+    private List<WildcardMatcher> compiledMatchers;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WildcardMatcherBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        matchers = new ArrayList<>();
+        for (String matcher : DEFAULT_SANITIZE_FIELD_NAMES) {
+            matchers.add(WildcardMatcher.valueOf(matcher));
+        }
+        if ("extended".equals(sanitizeFieldNames)) {
+            for (String matcher : CUSTOM_SANITIZE_FIELD_NAMES) {
+                matchers.add(WildcardMatcher.valueOf(matcher));
+            }
+        }
+        compiledMatchers = WildcardMatcher.compile(matchers);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public int matchEach() {
+        return countMatches(matchers);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public int matchCompiled() {
+        return countMatches(compiledMatchers);
+    }
+
+    private static int countMatches(List<WildcardMatcher> matchers) {
+        int matches = 0;
+        for (int i = 0; i < HEADERS.length; i++) {
+            if (WildcardMatcher.isAnyMatch(matchers, HEADERS[i])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -23,6 +23,7 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.objectpool.ObservableObjectPool;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
@@ -30,6 +31,8 @@ import org.jctools.queues.MpmcArrayQueue;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
@@ -37,6 +40,8 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.runner.RunnerException;
 
+import javax.annotation.Nullable;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -50,6 +55,10 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObservableObjectPool<TransactionImpl> threadLocalObjectPool;
     private ObservableObjectPool<TransactionImpl> jctoolsQueueObjectPool;
     private ObservableObjectPool<TransactionImpl> jctoolsAtomicQueueObjectPool;
+    private ObservableObjectPool<TransactionImpl> magazineObjectPool;
+    // transactions are typically recycled on the reporter thread, after they have been serialized
+    private Queue<TransactionImpl> jctoolsAtomicQueueHandOver;
+    private Queue<TransactionImpl> magazineHandOver;
 
     public static void main(String[] args) throws RunnerException {
         run(ObjectPoolBenchmark.class);
@@ -63,11 +72,16 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new TransactionImpl(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new TransactionImpl(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new TransactionImpl(tracer));
+        magazineObjectPool = MagazineObjectPool.ofRecyclable(256, () -> new TransactionImpl(tracer));
+        jctoolsAtomicQueueHandOver = new MpmcArrayQueue<>(1024);
+        magazineHandOver = new MpmcArrayQueue<>(1024);
     }
 
     @TearDown
     public void tearDown() {
         System.out.println("Objects created by agronaQueueObjectPool: " + agronaQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects discarded by jctoolsAtomicQueueObjectPool: " + jctoolsAtomicQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects discarded by magazineObjectPool: " + magazineObjectPool.getGarbageCreated());
     }
 
     //    @Benchmark
@@ -116,4 +130,60 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public TransactionImpl testMagazineObjectPool() {
+        TransactionImpl transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueHandOver")
+    @GroupThreads(4)
+    public TransactionImpl testJctoolsAtomicQueueObjectPoolAcquire() {
+        return acquire(jctoolsAtomicQueueObjectPool, jctoolsAtomicQueueHandOver);
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueHandOver")
+    @GroupThreads(4)
+    @Nullable
+    public TransactionImpl testJctoolsAtomicQueueObjectPoolRecycle() {
+        return recycle(jctoolsAtomicQueueObjectPool, jctoolsAtomicQueueHandOver);
+    }
+
+    @Benchmark
+    @Group("magazineHandOver")
+    @GroupThreads(4)
+    public TransactionImpl testMagazineObjectPoolAcquire() {
+        return acquire(magazineObjectPool, magazineHandOver);
+    }
+
+    @Benchmark
+    @Group("magazineHandOver")
+    @GroupThreads(4)
+    @Nullable
+    public TransactionImpl testMagazineObjectPoolRecycle() {
+        return recycle(magazineObjectPool, magazineHandOver);
+    }
+
+    private static TransactionImpl acquire(ObservableObjectPool<TransactionImpl> pool, Queue<TransactionImpl> handOver) {
+        TransactionImpl transaction = pool.createInstance();
+        if (!handOver.offer(transaction)) {
+            // the recycling threads can't keep up
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
+    @Nullable
+    private static TransactionImpl recycle(ObservableObjectPool<TransactionImpl> pool, Queue<TransactionImpl> handOver) {
+        TransactionImpl transaction = handOver.poll();
+        if (transaction != null) {
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
 }
@@ -24,6 +24,7 @@ import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -37,8 +38,17 @@ import java.util.concurrent.TimeUnit;
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class SignatureParserBenchmark extends AbstractBenchmark {
 
+    /**
+     * The number of distinct literal values each of the literal-heavy benchmarks cycles through.
+     * This is higher than what the cache could hold if it was keyed by the raw query.
+     */
+    private static final int DISTINCT_LITERALS = 4096;
+
     private SignatureParser signatureParser;
     private StringBuilder stringBuilder;
+    private String[] literalQueries;
+    private String[] inListQueries;
+    private int index;
 
     public static void main(String[] args) throws RunnerException {
         run(SignatureParserBenchmark.class);
@@ -48,6 +58,20 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
     public void setUp() {
         stringBuilder = new StringBuilder();
         signatureParser = new SignatureParser();
+        literalQueries = new String[DISTINCT_LITERALS];
+        inListQueries = new String[DISTINCT_LITERALS];
+        for (int i = 0; i < DISTINCT_LITERALS; i++) {
+            literalQueries[i] = "SELECT * FROM orders WHERE customer_id = " + i + " AND status = 'status-" + i + "' AND total > " + i + ".5";
+            StringBuilder inList = new StringBuilder("SELECT * FROM orders WHERE id IN (");
+            // vary both the values and the number of elements
+            for (int j = 0; j <= i % 32; j++) {
+                if (j > 0) {
+                    inList.append(", ");
+                }
+                inList.append(i + j);
+            }
+            inListQueries[i] = inList.append(')').toString();
+        }
     }
 
     @Benchmark
@@ -64,6 +88,70 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
         return stringBuilder;
     }
 
+    @Benchmark
+    public StringBuilder parseLiteralHeavyQuery() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(literalQueries[nextIndex()], stringBuilder, false);
+        return stringBuilder;
+    }
+
+    @Benchmark
+    public StringBuilder parseInListQuery() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(inListQueries[nextIndex()], stringBuilder, false);
+        return stringBuilder;
+    }
+
+    private int nextIndex() {
+        index = (index + 1) % DISTINCT_LITERALS;
+        return index;
+    }
+
+    @Benchmark
+    public StringBuilder parseLargeSelect(LargeQueries queries) {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(queries.select, stringBuilder, false);
+        return stringBuilder;
+    }
+
+    @Benchmark
+    public StringBuilder parseLargeInsert(LargeQueries queries) {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(queries.insert, stringBuilder, false);
+        return stringBuilder;
+    }
+
+    /**
+     * Queries like the ones generated by ORMs.
+     * The signature of the select is only determined at the end of the query, after a long list of columns,
+     * whereas the signature of the insert is determined after the first few tokens.
+     */
+    @State(Scope.Thread)
+    public static class LargeQueries {
+
+        @Param({"10240", "102400"})
+        public int querySize;
+
+        private String select;
+        private String insert;
+
+        @Setup
+        public void setUp() {
+            StringBuilder sb = new StringBuilder("SELECT ");
+            for (int i = 0; sb.length() < querySize; i++) {
+                sb.append("order0_.column_").append(i).append(" AS column_").append(i).append("_0_, ");
+            }
+            select = sb.append("order0_.id AS id1_0_ FROM orders order0_ WHERE order0_.customer_id = ?").toString();
+
+            sb.setLength(0);
+            sb.append("INSERT INTO orders (id, customer_id, comment) VALUES ");
+            for (int i = 0; sb.length() < querySize; i++) {
+                sb.append("(").append(i).append(", ").append(i % 100).append(", 'comment /* ").append(i).append(" */'), ");
+            }
+            insert = sb.append("(-1, -1, NULL)").toString();
+        }
+    }
+
     @Benchmark
     public void consumeCpu() {
         // to get a feel for the jitter of this machine (most notable in higher percentiles)
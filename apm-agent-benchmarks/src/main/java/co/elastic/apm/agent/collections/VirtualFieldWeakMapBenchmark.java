@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.bci.VirtualFieldInstaller;
+import co.elastic.apm.agent.bci.bytebuddy.LruTypePoolCache;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.pool.TypePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of tracking the SQL of short-lived JDBC statements, like the JDBC plugin does,
+ * in a regular weak map with storing it in a virtual field of the statements.
+ * <p>
+ * Each operation creates a statement, maps it to its SQL, looks the SQL up twice and removes it when the statement is closed.
+ * Run with {@code -prof gc} to compare the allocation rate, as the weak map allocates a weak reference and a map entry per statement.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualFieldWeakMapBenchmark extends AbstractBenchmark {
+
+    private static final String VIRTUAL_FIELD = "benchmark-statement-sql";
+    private static final String SQL = "SELECT * FROM ELASTIC_APM WHERE foo=$1";
+
+    @Param({"WEAK_MAP", "VIRTUAL_FIELD"})
+    public String storage;
+
+    private WeakMap<Object, String> statementSqlMap;
+    private MethodHandle statementConstructor;
+
+    public static void main(String[] args) throws RunnerException {
+        run(VirtualFieldWeakMapBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, Collection<String>> virtualFields = new HashMap<>();
+        virtualFields.put(VIRTUAL_FIELD, Collections.singletonList(Statement.class.getName()));
+        VirtualFieldInstaller.install(ByteBuddyAgent.install(), virtualFields, new LruTypePoolCache(TypePool.Default.ReaderMode.FAST));
+        // defined after the installation so that the virtual field is added,
+        // outside of the co.elastic.apm package as the agent's own classes are ignored
+        Class<?> statementType = new ByteBuddy()
+            .subclass(Object.class)
+            .implement(Statement.class)
+            .name("com.example.jdbc.BenchmarkStatement")
+            .make()
+            .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+            .getLoaded();
+        statementConstructor = MethodHandles.publicLookup()
+            .findConstructor(statementType, MethodType.methodType(void.class))
+            .asType(MethodType.methodType(Object.class));
+        WeakConcurrent.WeakMapBuilder<Object, String> builder = WeakConcurrent.weakMapBuilder();
+        if ("VIRTUAL_FIELD".equals(storage)) {
+            builder.withVirtualField(VIRTUAL_FIELD);
+        }
+        statementSqlMap = builder.build();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void statementChurn_01_threads(Blackhole blackhole) throws Throwable {
+        statementChurn(blackhole);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void statementChurn_04_threads(Blackhole blackhole) throws Throwable {
+        statementChurn(blackhole);
+    }
+
+    private void statementChurn(Blackhole blackhole) throws Throwable {
+        Object statement = statementConstructor.invokeExact();
+        // Connection#prepareStatement
+        statementSqlMap.putIfAbsent(statement, SQL);
+        // PreparedStatement#execute and PreparedStatement#getUpdateCount
+        blackhole.consume(statementSqlMap.get(statement));
+        blackhole.consume(statementSqlMap.get(statement));
+        // Statement#close
+        statementSqlMap.remove(statement);
+    }
+}
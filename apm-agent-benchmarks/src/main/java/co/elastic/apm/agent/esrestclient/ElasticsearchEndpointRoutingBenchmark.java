@@ -0,0 +1,192 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.esrestclient;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.tracer.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the path parameters of typical Elasticsearch requests, once with the {@link ElasticsearchRouteTrie}
+ * and once with the previous implementation, which matched the routes of the endpoint in turn against regular expressions.
+ * <p>
+ * The score is the time it takes to add the path part attributes of a single request to a span.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ElasticsearchEndpointRoutingBenchmark extends AbstractBenchmark {
+
+    /**
+     * Pairs of endpoint ids and URL paths
+     */
+    private static final String[][] REQUESTS = {
+        {"search", "/logs-2024.06.01/_search"},
+        {"search", "/logs-*,metrics-*/_search"},
+        {"search", "/_search"},
+        {"msearch", "/products/_msearch"},
+        {"count", "/orders/_count"},
+        {"bulk", "/_bulk"},
+        {"bulk", "/events-000042/_bulk"},
+        {"index", "/products/_doc/8a1f3c52-4b1e-4d8e-9c1a-2f6c7e0b9d31"},
+        {"index", "/products/_doc"},
+        {"get", "/products/_doc/42"},
+        {"update", "/orders/_update/42"},
+        {"delete", "/orders/_doc/42"},
+        {"mget", "/products/_mget"},
+        {"delete_by_query", "/sessions/_delete_by_query"},
+        {"indices.create", "/logs-2024.06.02"},
+        {"indices.refresh", "/products/_refresh"},
+        {"indices.put_mapping", "/products/_mapping"},
+        {"cluster.health", "/_cluster/health/products"},
+        {"cat.indices", "/_cat/indices/logs-*"},
+        {"search_mvt", "/locations/_mvt/geometry/12/2048/1361"},
+    };
+
+    private ElasticApmTracer tracer;
+    private TransactionImpl transaction;
+    private SpanImpl span;
+    private ElasticsearchEndpointDefinition[] endpoints;
+    private String[] urlPaths;
+    private RegexRoutes[] regexRoutes;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ElasticsearchEndpointRoutingBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource().add("service_name", "benchmark"))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        tracer = new ElasticApmTracerBuilder().configurationRegistry(config).buildAndStart();
+        transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            throw new IllegalStateException("tracer is expected to be active");
+        }
+        span = transaction.createSpan().withName("Elasticsearch").withType("db").withSubtype("elasticsearch");
+
+        endpoints = new ElasticsearchEndpointDefinition[REQUESTS.length];
+        urlPaths = new String[REQUESTS.length];
+        regexRoutes = new RegexRoutes[REQUESTS.length];
+        for (int i = 0; i < REQUESTS.length; i++) {
+            endpoints[i] = ElasticsearchEndpointMap.get(REQUESTS[i][0]);
+            if (endpoints[i] == null) {
+                throw new IllegalStateException("unknown endpoint " + REQUESTS[i][0]);
+            }
+            urlPaths[i] = REQUESTS[i][1];
+            regexRoutes[i] = new RegexRoutes(endpoints[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        span.end();
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(20)
+    public Span<?> routeTrie() {
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i].addPathPartAttributes(urlPaths[i], span);
+        }
+        return span;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(20)
+    public Span<?> regularExpressions() {
+        for (int i = 0; i < regexRoutes.length; i++) {
+            regexRoutes[i].addPathPartAttributes(urlPaths[i], span);
+        }
+        return span;
+    }
+
+    /**
+     * The routes of an endpoint as regular expressions with a named capture group per path parameter
+     */
+    private static class RegexRoutes {
+
+        private static final Pattern PATH_PART_NAMES_PATTERN = Pattern.compile("\\{([^}]+)}");
+
+        private final List<Pattern> patterns = new ArrayList<>();
+        private final List<Map<String, String>> groupNamesToAttributeNames = new ArrayList<>();
+
+        private RegexRoutes(ElasticsearchEndpointDefinition endpoint) {
+            for (ElasticsearchEndpointDefinition.Route route : endpoint.getRoutes()) {
+                if (!route.hasParameters()) {
+                    continue;
+                }
+                Map<String, String> attributeNames = new HashMap<>();
+                StringBuffer regex = new StringBuffer("^");
+                Matcher matcher = PATH_PART_NAMES_PATTERN.matcher(route.getName());
+                while (matcher.find()) {
+                    String groupName = matcher.group(1).replace("_", "0");
+                    attributeNames.put(groupName, "db.elasticsearch.path_parts." + matcher.group(1));
+                    matcher.appendReplacement(regex, "(?<" + groupName + ">[^/]+)");
+                }
+                matcher.appendTail(regex);
+                regex.append('$');
+                patterns.add(Pattern.compile(regex.toString()));
+                groupNamesToAttributeNames.add(attributeNames);
+            }
+        }
+
+        private void addPathPartAttributes(String urlPath, Span<?> spanToEnrich) {
+            for (int i = 0; i < patterns.size(); i++) {
+                Matcher matcher = patterns.get(i).matcher(urlPath);
+                if (matcher.find()) {
+                    for (Map.Entry<String, String> entry : groupNamesToAttributeNames.get(i).entrySet()) {
+                        spanToEnrich.withOtelAttribute(entry.getValue(), matcher.group(entry.getKey()));
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
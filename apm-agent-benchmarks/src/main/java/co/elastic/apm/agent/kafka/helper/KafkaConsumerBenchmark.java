@@ -0,0 +1,107 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of tracing the records of a high-throughput Kafka consumer with the different
+ * {@code kafka_record_tracing_strategy} options.
+ * <p>
+ * Instead of a consumer connected to a broker, the benchmark iterates over a batch of records which is created up-front,
+ * the same way the instrumented {@code ConsumerRecords} would be iterated.
+ * A fifth of the records carries a sampled {@code traceparent} header, a fifth an unsampled one and the others have no header.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KafkaConsumerBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+    private static final String SAMPLED_TRACEPARENT = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01";
+    private static final String UNSAMPLED_TRACEPARENT = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-00";
+
+    @Param({"ALL", "SAMPLED"})
+    public String strategy;
+
+    private List<ConsumerRecord<?, ?>> batch;
+
+    public KafkaConsumerBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(KafkaConsumerBenchmark.class);
+    }
+
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource
+            .add("kafka_record_tracing_strategy", strategy)
+            .add("transaction_sample_rate", "0.1");
+    }
+
+    @Setup(Level.Trial)
+    public void createBatch() {
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            RecordHeaders headers = new RecordHeaders();
+            if (i % 5 == 0) {
+                headers.add("traceparent", SAMPLED_TRACEPARENT.getBytes(StandardCharsets.UTF_8));
+            } else if (i % 5 == 1) {
+                headers.add("traceparent", UNSAMPLED_TRACEPARENT.getBytes(StandardCharsets.UTF_8));
+            }
+            batch.add(new ConsumerRecord<>("benchmark-topic-" + (i % 4), i % 16, i, System.currentTimeMillis(), TimestampType.CREATE_TIME,
+                8, 64, "key-" + i, "value-" + i, headers, Optional.<Integer>empty()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void consumeBatch(Blackhole blackhole) {
+        ConsumerRecordsIteratorWrapper iterator = new ConsumerRecordsIteratorWrapper(batch.iterator(), tracer);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+        iterator.endCurrentTransaction();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.HdrHistogram.WriterReaderPhaser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link MetricRegistry#updateTimer(String, Labels, long)}, which is backed by a {@link MetricSetTable},
+ * with the previous implementation, which looked up metric sets and timers in {@link ConcurrentHashMap}s.
+ * <p>
+ * Each benchmark thread simulates breakdown metrics: it cycles through 16 transaction names and 4 span types,
+ * resulting in 64 metric sets with a single {@code span.self_time} timer each.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricRegistryBenchmark extends AbstractBenchmark {
+
+    private static final String[] TRANSACTION_NAMES = new String[16];
+    private static final String[] SPAN_TYPES = {"app", "db", "external", "template"};
+
+    static {
+        for (int i = 0; i < TRANSACTION_NAMES.length; i++) {
+            TRANSACTION_NAMES[i] = "GET /api/resource/" + i;
+        }
+    }
+
+    private MetricRegistry metricRegistry;
+    private ConcurrentHashMapMetricRegistry concurrentHashMapMetricRegistry;
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricRegistryBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addOptionProvider(new ReporterConfigurationImpl())
+            .addOptionProvider(new MetricsConfigurationImpl())
+            .build();
+        metricRegistry = new MetricRegistry(config.getConfig(ReporterConfigurationImpl.class), config.getConfig(MetricsConfigurationImpl.class));
+        concurrentHashMapMetricRegistry = new ConcurrentHashMapMetricRegistry();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final Labels.Mutable labels = Labels.Mutable.of();
+        private final StringBuilder transactionName = new StringBuilder();
+        private int i;
+
+        Labels next() {
+            int index = i++;
+            transactionName.setLength(0);
+            transactionName.append(TRANSACTION_NAMES[index % TRANSACTION_NAMES.length]);
+            labels.resetState();
+            labels.serviceName("benchmark")
+                .transactionName(transactionName)
+                .transactionType("request")
+                .spanType(SPAN_TYPES[(index / TRANSACTION_NAMES.length) % SPAN_TYPES.length]);
+            return labels;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void metricSetTable_01_threads(ThreadState state) {
+        metricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void metricSetTable_04_threads(ThreadState state) {
+        metricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void metricSetTable_16_threads(ThreadState state) {
+        metricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void metricSetTable_64_threads(ThreadState state) {
+        metricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void concurrentHashMap_01_threads(ThreadState state) {
+        concurrentHashMapMetricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void concurrentHashMap_04_threads(ThreadState state) {
+        concurrentHashMapMetricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void concurrentHashMap_16_threads(ThreadState state) {
+        concurrentHashMapMetricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void concurrentHashMap_64_threads(ThreadState state) {
+        concurrentHashMapMetricRegistry.updateTimer("span.self_time", state.next(), 42);
+    }
+
+    /**
+     * The previous lookup path of {@link MetricRegistry#updateTimer(String, Labels, long)}:
+     * metric sets are grouped by their labels in a {@link ConcurrentHashMap} and timers are looked up by name in another one.
+     */
+    private static class ConcurrentHashMapMetricRegistry {
+        private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+        private final ConcurrentMap<Labels.Immutable, ConcurrentMap<String, Timer>> metricSets = new ConcurrentHashMap<>();
+
+        void updateTimer(String timerName, Labels labels, long durationUs) {
+            long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+            try {
+                ConcurrentMap<String, Timer> timers = metricSets.get(labels);
+                if (timers == null) {
+                    metricSets.putIfAbsent(labels.immutableCopy(), new ConcurrentHashMap<String, Timer>(32, 0.5f, Runtime.getRuntime().availableProcessors()));
+                    timers = metricSets.get(labels);
+                }
+                Timer timer = timers.get(timerName);
+                if (timer == null) {
+                    timers.putIfAbsent(timerName, new Timer());
+                    timer = timers.get(timerName);
+                }
+                timer.update(durationUs, 1);
+            } finally {
+                phaser.writerCriticalSectionExit(criticalValueAtEnter);
+            }
+        }
+    }
+}
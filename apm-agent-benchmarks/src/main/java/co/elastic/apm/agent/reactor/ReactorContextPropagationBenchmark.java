@@ -0,0 +1,141 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.reactor;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the overhead of the {@code reactor_context_propagation} options for a pipeline of 20 operators which is
+ * subscribed to while a transaction is active.
+ * <p>
+ * The results are in nanoseconds per {@code onNext} signal emitted by the source.
+ * Run with {@code -prof gc} to compare the allocations per signal.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReactorContextPropagationBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final int SIGNALS = 1000;
+
+    @Param({"ALL_OPERATORS", "THREAD_HOPS"})
+    public String propagation;
+
+    private Scheduler scheduler;
+
+    private TransactionImpl transaction;
+
+    public ReactorContextPropagationBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReactorContextPropagationBenchmark.class);
+    }
+
+    @Override
+    protected void addConfigOptions(SimpleSource configSource) {
+        configSource.add("reactor_context_propagation", propagation);
+    }
+
+    @Setup(Level.Trial)
+    public void startTransaction() {
+        scheduler = Schedulers.newSingle("benchmark");
+        transaction = tracer.startRootTransaction(null).withName("transaction");
+    }
+
+    @TearDown(Level.Trial)
+    public void endTransaction() {
+        transaction.end();
+        scheduler.dispose();
+    }
+
+    /**
+     * The source and its 19 operators signal on the subscribing thread.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIGNALS)
+    public Integer sameThread() {
+        transaction.activate();
+        try {
+            return pipeline(Flux.range(0, SIGNALS)).blockLast();
+        } finally {
+            transaction.deactivate();
+        }
+    }
+
+    /**
+     * Adds a {@code publishOn} after the source, so that the 19 operators downstream of it signal on another thread.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIGNALS)
+    public Integer publishOn() {
+        transaction.activate();
+        try {
+            return pipeline(Flux.range(0, SIGNALS).publishOn(scheduler)).blockLast();
+        } finally {
+            transaction.deactivate();
+        }
+    }
+
+    private static Flux<Integer> pipeline(Flux<Integer> source) {
+        return source
+            .map(i -> i + 1)
+            .filter(i -> i > 0)
+            .map(i -> i * 2)
+            .filter(i -> i % 2 == 0)
+            .map(i -> i / 2)
+            .doOnNext(i -> {
+            })
+            .map(i -> i - 1)
+            .filter(i -> i >= 0)
+            .map(i -> i + 1)
+            .filter(i -> i != 0)
+            .map(i -> i - 1)
+            .filter(i -> i < Integer.MAX_VALUE)
+            .map(i -> i + 1)
+            .filter(i -> i > 0)
+            .map(i -> i - 1)
+            .doOnNext(i -> {
+            })
+            .map(i -> i + 1)
+            .filter(i -> i > 0)
+            .map(i -> i - 1);
+    }
+}
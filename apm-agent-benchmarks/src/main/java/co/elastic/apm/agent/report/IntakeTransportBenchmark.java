@@ -0,0 +1,157 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import io.undertow.Undertow;
+import io.undertow.server.ServerConnection;
+import io.undertow.server.handlers.BlockingHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the {@link IntakeTransport} implementations by sending requests with a fixed size body to a mock APM Server.
+ * <p>
+ * Besides the requests per second, the benchmark prints the throughput in bytes per second
+ * and the number of connections the server has accepted after each iteration.
+ * As every new connection to a HTTPS endpoint implies a TLS handshake, the connection count is a proxy for the handshake overhead.
+ * </p>
+ * <p>
+ * This benchmark is located in the {@code co.elastic.apm.agent.report} package as the transports are package-private.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IntakeTransportBenchmark extends AbstractBenchmark {
+
+    @Param({"url_connection", "nio"})
+    public String transport;
+
+    @Param({"16", "256"})
+    public int requestSizeKb;
+
+    private final Set<ServerConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<ServerConnection, Boolean>());
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private Undertow server;
+    private IntakeTransport intakeTransport;
+    private byte[] line;
+    private int linesPerRequest;
+    private long iterationStartNanos;
+
+    public static void main(String[] args) throws RunnerException {
+        run(IntakeTransportBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                connections.add(exchange.getConnection());
+                byte[] buffer = new byte[32 * 1024];
+                try (InputStream is = exchange.getInputStream()) {
+                    for (int n = 0; -1 != n; n = is.read(buffer)) {
+                        receivedBytes.addAndGet(n);
+                    }
+                }
+                exchange.setStatusCode(202).endExchange();
+            })).build();
+        server.start();
+        int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add("service_name", "benchmark")
+                .add("server_url", "http://127.0.0.1:" + port))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        intakeTransport = "nio".equals(transport) ? new NioIntakeTransport(apmServerClient) : new UrlConnectionIntakeTransport(apmServerClient);
+
+        char[] chars = new char[1023];
+        Arrays.fill(chars, 'x');
+        line = (new String(chars) + "\n").getBytes(StandardCharsets.UTF_8);
+        linesPerRequest = requestSizeKb;
+    }
+
+    @TearDown
+    public void tearDown() {
+        intakeTransport.close();
+        server.stop();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartNanos = System.nanoTime();
+        receivedBytes.set(0);
+        connections.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double seconds = (System.nanoTime() - iterationStartNanos) / 1_000_000_000.0;
+        System.out.printf("%ntransport=%s bytes/s=%.0f connections=%d%n", transport, receivedBytes.get() / seconds, connections.size());
+    }
+
+    @Benchmark
+    public int sendRequest() throws IOException {
+        IntakeRequest request = intakeTransport.startRequest(IntakeV2ReportingEventHandler.INTAKE_V2_URL);
+        if (request == null) {
+            throw new IllegalStateException("no APM Server URL");
+        }
+        try {
+            request.setHeader("Content-Type", "application/x-ndjson");
+            try (OutputStream os = request.getOutputStream()) {
+                for (int i = 0; i < linesPerRequest; i++) {
+                    os.write(line);
+                }
+            }
+            return request.finish();
+        } finally {
+            request.close();
+        }
+    }
+}
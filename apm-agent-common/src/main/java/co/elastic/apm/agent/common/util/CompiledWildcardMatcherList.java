@@ -0,0 +1,254 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A list of {@link WildcardMatcher}s which finds the first matcher that matches a string by scanning the string only once,
+ * instead of trying each matcher in turn.
+ * <p>
+ * Every string that matches a {@link WildcardMatcher} contains the longest literal part of the matcher,
+ * compared case insensitively.
+ * The lower-cased literal parts of all matchers are compiled into an Aho-Corasick automaton,
+ * which reports each matcher whose literal part occurs in the string.
+ * Only these candidates are checked with {@link WildcardMatcher#matches(CharSequence, CharSequence)},
+ * so that the result is the same as the one of {@link WildcardMatcher#anyMatch(List, CharSequence, CharSequence)}
+ * on a plain list, including anchoring and case sensitivity.
+ * </p>
+ * <p>
+ * Just like {@link WildcardMatcher#matches(CharSequence)}, matching is allocation free.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+final class CompiledWildcardMatcherList extends AbstractList<WildcardMatcher> implements RandomAccess {
+
+    private static final int ROOT = 0;
+    private static final int ASCII = 128;
+
+    private final WildcardMatcher[] matchers;
+    /**
+     * The indices of the matchers without a literal part, like {@code *} or an empty matcher, in ascending order.
+     * These have to be checked for any string.
+     */
+    private final int[] unconditional;
+    /**
+     * Whether the occurrence of the literal part of a matcher proves that it matches, which is the case for {@code *foo*}
+     */
+    private final boolean[] occurrenceIsMatch;
+
+    // the automaton, the transitions of node n are at the indices edgeOffsets[n] until edgeOffsets[n + 1], sorted by char
+    private final int[] edgeOffsets;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] rootAsciiTargets;
+    private final int[] failure;
+    // the matchers whose literal part ends at node n are at the indices outputOffsets[n] until outputOffsets[n + 1], in ascending order
+    private final int[] outputOffsets;
+    private final int[] outputs;
+
+    CompiledWildcardMatcherList(List<WildcardMatcher> matchers) {
+        this.matchers = matchers.toArray(new WildcardMatcher[0]);
+        this.occurrenceIsMatch = new boolean[this.matchers.length];
+
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<TreeSet<Integer>> trieOutputs = new ArrayList<>();
+        trie.add(new TreeMap<Character, Integer>());
+        trieOutputs.add(new TreeSet<Integer>());
+        List<Integer> unconditional = new ArrayList<>();
+        for (int i = 0; i < this.matchers.length; i++) {
+            WildcardMatcher matcher = this.matchers[i];
+            String literal = getLongestLiteral(matcher);
+            if (literal.isEmpty()) {
+                unconditional.add(i);
+                continue;
+            }
+            int node = ROOT;
+            for (int j = 0; j < literal.length(); j++) {
+                char c = Character.toLowerCase(literal.charAt(j));
+                Integer next = trie.get(node).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    trieOutputs.add(new TreeSet<Integer>());
+                    trie.get(node).put(c, next);
+                }
+                node = next;
+            }
+            trieOutputs.get(node).add(i);
+            if (matcher instanceof WildcardMatcher.SimpleWildcardMatcher) {
+                WildcardMatcher.SimpleWildcardMatcher simpleMatcher = (WildcardMatcher.SimpleWildcardMatcher) matcher;
+                occurrenceIsMatch[i] = simpleMatcher.isIgnoreCase() && simpleMatcher.isWildcardAtBeginning() && simpleMatcher.isWildcardAtEnd();
+            }
+        }
+        this.unconditional = new int[unconditional.size()];
+        for (int i = 0; i < this.unconditional.length; i++) {
+            this.unconditional[i] = unconditional.get(i);
+        }
+
+        int nodes = trie.size();
+        edgeOffsets = new int[nodes + 1];
+        int edges = 0;
+        for (int n = 0; n < nodes; n++) {
+            edgeOffsets[n] = edges;
+            edges += trie.get(n).size();
+        }
+        edgeOffsets[nodes] = edges;
+        edgeChars = new char[edges];
+        edgeTargets = new int[edges];
+        rootAsciiTargets = new int[ASCII];
+        for (int n = 0; n < nodes; n++) {
+            int e = edgeOffsets[n];
+            for (Map.Entry<Character, Integer> edge : trie.get(n).entrySet()) {
+                edgeChars[e] = edge.getKey();
+                edgeTargets[e] = edge.getValue();
+                e++;
+            }
+        }
+        for (char c = 0; c < ASCII; c++) {
+            Integer target = trie.get(ROOT).get(c);
+            rootAsciiTargets[c] = target != null ? target : ROOT;
+        }
+
+        // breadth first, so that the failure link of a node's parent is known when visiting the node
+        failure = new int[nodes];
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        for (Integer child : trie.get(ROOT).values()) {
+            failure[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (Map.Entry<Character, Integer> edge : trie.get(node).entrySet()) {
+                int child = edge.getValue();
+                failure[child] = next(failure[node], edge.getKey());
+                // the literals which end at the failure node are suffixes of the literal of the child
+                trieOutputs.get(child).addAll(trieOutputs.get(failure[child]));
+                queue[tail++] = child;
+            }
+        }
+
+        outputOffsets = new int[nodes + 1];
+        int outputCount = 0;
+        for (int n = 0; n < nodes; n++) {
+            outputOffsets[n] = outputCount;
+            outputCount += trieOutputs.get(n).size();
+        }
+        outputOffsets[nodes] = outputCount;
+        outputs = new int[outputCount];
+        for (int n = 0; n < nodes; n++) {
+            int o = outputOffsets[n];
+            for (Integer index : trieOutputs.get(n)) {
+                outputs[o++] = index;
+            }
+        }
+    }
+
+    /**
+     * Returns the longest part of the matcher which does not contain a wildcard, or an empty string if it only consists of wildcards.
+     */
+    private static String getLongestLiteral(WildcardMatcher matcher) {
+        if (matcher instanceof WildcardMatcher.CompoundWildcardMatcher) {
+            String longest = "";
+            List<WildcardMatcher.SimpleWildcardMatcher> parts = ((WildcardMatcher.CompoundWildcardMatcher) matcher).getWildcardMatchers();
+            for (int i = 0; i < parts.size(); i++) {
+                String part = parts.get(i).getMatcher();
+                if (part.length() > longest.length()) {
+                    longest = part;
+                }
+            }
+            return longest;
+        }
+        return matcher.getMatcher();
+    }
+
+    @Nullable
+    WildcardMatcher firstMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        int best = matchers.length;
+        for (int i = 0; i < unconditional.length; i++) {
+            if (matchers[unconditional[i]].matches(firstPart, secondPart)) {
+                best = unconditional[i];
+                break;
+            }
+        }
+        int firstPartLength = firstPart.length();
+        int length = firstPartLength + secondPart.length();
+        int node = ROOT;
+        for (int i = 0; i < length && best > 0; i++) {
+            node = next(node, Character.toLowerCase(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength)));
+            for (int o = outputOffsets[node], end = outputOffsets[node + 1]; o < end; o++) {
+                int index = outputs[o];
+                if (index >= best) {
+                    break;
+                }
+                if (occurrenceIsMatch[index] || matchers[index].matches(firstPart, secondPart)) {
+                    best = index;
+                    break;
+                }
+            }
+        }
+        return best < matchers.length ? matchers[best] : null;
+    }
+
+    private int next(int node, char c) {
+        while (true) {
+            if (node == ROOT) {
+                if (c < ASCII) {
+                    return rootAsciiTargets[c];
+                }
+                int target = findEdge(ROOT, c);
+                return target != -1 ? target : ROOT;
+            }
+            int target = findEdge(node, c);
+            if (target != -1) {
+                return target;
+            }
+            node = failure[node];
+        }
+    }
+
+    private int findEdge(int node, char c) {
+        int index = Arrays.binarySearch(edgeChars, edgeOffsets[node], edgeOffsets[node + 1], c);
+        return index >= 0 ? edgeTargets[index] : -1;
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers[index];
+    }
+
+    @Override
+    public int size() {
+        return matchers.length;
+    }
+}
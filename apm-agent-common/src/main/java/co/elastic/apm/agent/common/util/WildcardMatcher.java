@@ -74,6 +74,7 @@ public abstract class WildcardMatcher {
     private static final String WILDCARD = "*";
     private static final WildcardMatcher MATCH_ALL = valueOf(WILDCARD);
     private static final List<WildcardMatcher> MATCH_ALL_LIST = Collections.singletonList(MATCH_ALL);
+    static final int MIN_COMPILED_SIZE = 5;
 
     public static WildcardMatcher caseSensitiveMatcher(String matcher) {
         return valueOf(CASE_SENSITIVE_PREFIX + matcher);
@@ -131,6 +132,25 @@ public abstract class WildcardMatcher {
         return new CompoundWildcardMatcher(wildcardString, matcher, matchers);
     }
 
+    /**
+     * Compiles a list of matchers so that {@link #anyMatch(List, CharSequence)} and {@link #isAnyMatch(List, CharSequence)}
+     * scan the provided string once instead of trying each matcher in turn.
+     * <p>
+     * The returned list is unmodifiable and finds the same matcher as the provided list.
+     * Lists with less than {@value #MIN_COMPILED_SIZE} matchers are returned as is,
+     * as trying each of them is just as fast.
+     * </p>
+     *
+     * @param matchers the matchers to compile
+     * @return a list containing the provided matchers
+     */
+    public static List<WildcardMatcher> compile(List<WildcardMatcher> matchers) {
+        if (matchers.size() < MIN_COMPILED_SIZE || matchers instanceof CompiledWildcardMatcherList) {
+            return matchers;
+        }
+        return new CompiledWildcardMatcherList(matchers);
+    }
+
     /**
      * Returns {@code true}, if any of the matchers match the provided string.
      *
@@ -179,6 +199,9 @@ public abstract class WildcardMatcher {
      */
     @Nullable
     public static WildcardMatcher anyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (matchers instanceof CompiledWildcardMatcherList) {
+            return ((CompiledWildcardMatcherList) matchers).firstMatch(firstPart, secondPart);
+        }
         for (int i = 0; i < matchers.size(); i++) {
             if (matchers.get(i).matches(firstPart, secondPart)) {
                 return matchers.get(i);
@@ -318,6 +341,10 @@ public abstract class WildcardMatcher {
             return true;
         }
 
+        List<SimpleWildcardMatcher> getWildcardMatchers() {
+            return wildcardMatchers;
+        }
+
         @Override
         public String toString() {
             return wildcardString;
@@ -394,5 +421,17 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        boolean isWildcardAtBeginning() {
+            return wildcardAtBeginning;
+        }
+
+        boolean isWildcardAtEnd() {
+            return wildcardAtEnd;
+        }
+
+        boolean isIgnoreCase() {
+            return ignoreCase;
+        }
     }
 }
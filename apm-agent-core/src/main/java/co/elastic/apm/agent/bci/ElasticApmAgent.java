@@ -29,6 +29,7 @@ import co.elastic.apm.agent.bci.bytebuddy.MinimumClassFileVersionValidator;
 import co.elastic.apm.agent.bci.bytebuddy.NonInstrumented;
 import co.elastic.apm.agent.bci.bytebuddy.PatchBytecodeVersionTo51Transformer;
 import co.elastic.apm.agent.bci.bytebuddy.RootPackageCustomLocator;
+import co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilterIndex;
 import co.elastic.apm.agent.sdk.bytebuddy.SimpleMethodSignatureOffsetMappingFactory;
 import co.elastic.apm.agent.bci.classloading.ExternalPluginClassLoader;
 import co.elastic.apm.agent.bci.modules.ModuleOpener;
@@ -48,6 +49,7 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.tracemethods.TraceMethodInstrumentation;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -70,6 +72,7 @@ import net.bytebuddy.matcher.ElementMatchers;
 import net.bytebuddy.pool.TypePool;
 import net.bytebuddy.utility.JavaModule;
 import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.configuration.source.ConfigurationSource;
 
 import javax.annotation.Nonnull;
@@ -127,6 +130,14 @@ public class ElasticApmAgent {
     @Nullable
     private static ResettableClassFileTransformer resettableClassFileTransformer;
     private static final List<ResettableClassFileTransformer> dynamicClassFileTransformers = new ArrayList<>();
+    @Nullable
+    private static NoMatchCacheFilter noMatchCacheFilter;
+    /**
+     * Shared by all agent builders and the {@link VirtualFieldInstaller}, so that types are only parsed once
+     */
+    @Nullable
+    private static LruTypePoolCache typePoolCache;
+    private static boolean classFileHashRecorderInstalled;
     private static final WeakMap<Class<?>, Set<Collection<Class<? extends ElasticApmInstrumentation>>>> dynamicallyInstrumentedClasses = WeakConcurrent.buildMap();
     @Nullable
     private static File agentJarFile;
@@ -286,6 +297,11 @@ public class ElasticApmAgent {
             logger.warn("Instrumentation has already been initialized");
             return;
         }
+        if (premain && coreConfig.isVirtualFields()) {
+            // has to be installed before the classes which get virtual fields are loaded
+            VirtualFieldInstaller.install(instrumentation, VirtualFieldInstaller.loadVirtualFields(getAgentClassLoader()),
+                getPoolStrategy(coreConfig.isTypePoolCacheEnabled()));
+        }
         // POOL_ONLY because we don't want to cause eager linking on startup as the class path may not be complete yet
         AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain);
 
@@ -354,16 +370,13 @@ public class ElasticApmAgent {
         final ByteBuddy byteBuddy = new ByteBuddy()
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
-        AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled()
-        );
-        int numberOfAdvices = 0;
+        List<ElasticApmInstrumentation> includedInstrumentations = new ArrayList<>();
+        List<ElementMatcher<? super NamedElement>> typeMatcherPreFilters = new ArrayList<>();
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
-                instrumentationStats.addInstrumentation(advice);
                 try {
-                    agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher());
-                    numberOfAdvices++;
+                    typeMatcherPreFilters.add(advice.getTypeMatcherPreFilter());
+                    includedInstrumentations.add(advice);
                 } catch (Exception e) {
                     logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
                     // this should fail tests but skip the instrumentations in prod
@@ -373,10 +386,74 @@ public class ElasticApmAgent {
                 logger.debug("Not applying excluded instrumentation {}", advice.getClass().getName());
             }
         }
+        AgentBuilder.RawMatcher noMatchCacheIgnoreMatcher = AgentBuilder.RawMatcher.Trivial.NON_MATCHING;
+        NoMatchCacheFilter noMatchCacheFilter = initNoMatchCacheFilter(tracer.getConfigurationRegistry(), includedInstrumentations, instrumentation, logger);
+        if (noMatchCacheFilter != null) {
+            noMatchCacheIgnoreMatcher = noMatchCacheFilter;
+        }
+        AgentBuilder agentBuilder = getAgentBuilder(
+            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled(), noMatchCacheIgnoreMatcher
+        );
+        if (noMatchCacheFilter != null) {
+            agentBuilder = agentBuilder.with((AgentBuilder.Listener) noMatchCacheFilter);
+        }
+        TypeNamePreFilterIndex typeMatcherPreFilterIndex = null;
+        if (coreConfiguration.isTypeMatchingWithNamePreFilter() && coreConfiguration.isTypeMatchingPreFilterIndex()) {
+            typeMatcherPreFilterIndex = TypeNamePreFilterIndex.of(typeMatcherPreFilters);
+        }
+        int numberOfAdvices = 0;
+        for (int i = 0; i < includedInstrumentations.size(); i++) {
+            ElasticApmInstrumentation advice = includedInstrumentations.get(i);
+            instrumentationStats.addInstrumentation(advice);
+            try {
+                ElementMatcher<? super NamedElement> typeMatcherPreFilter = typeMatcherPreFilters.get(i);
+                if (typeMatcherPreFilterIndex != null) {
+                    typeMatcherPreFilter = typeMatcherPreFilterIndex.getPreFilter(i);
+                }
+                agentBuilder = applyAdvice(tracer, agentBuilder, advice, typeMatcherPreFilter, advice.getTypeMatcher());
+                numberOfAdvices++;
+            } catch (Exception e) {
+                logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
+                // this should fail tests but skip the instrumentations in prod
+                assert false;
+            }
+        }
         logger.debug("Applied {} advices", numberOfAdvices);
         return agentBuilder;
     }
 
+    /**
+     * Opens the persistent no-match cache if {@code type_matching_cache_dir} is set and closes the one of a previous initialization.
+     * The cache is specific to the set of enabled instrumentations, so a re-initialization may switch to a different cache file.
+     */
+    @Nullable
+    private static NoMatchCacheFilter initNoMatchCacheFilter(ConfigurationRegistry configurationRegistry, List<ElasticApmInstrumentation> instrumentations,
+                                                             Instrumentation instrumentation, Logger logger) {
+        if (noMatchCacheFilter != null) {
+            noMatchCacheFilter.close();
+            noMatchCacheFilter = null;
+        }
+        String typeMatchingCacheDir = configurationRegistry.getConfig(CoreConfigurationImpl.class).getTypeMatchingCacheDir();
+        if (typeMatchingCacheDir == null || typeMatchingCacheDir.isEmpty()) {
+            return null;
+        }
+        try {
+            long fingerprint = NoMatchCacheFilter.fingerprint(VersionUtils.getAgentVersion(), instrumentations, configurationRegistry);
+            NoMatchCache cache = NoMatchCache.open(new File(typeMatchingCacheDir), fingerprint, NoMatchCache.DEFAULT_SLOTS);
+            logger.debug("Using no-match cache {}", cache.getFile());
+            noMatchCacheFilter = new NoMatchCacheFilter(cache, instrumentationStats);
+            if (!classFileHashRecorderInstalled) {
+                // has to be registered before the agent's transformer in order to be invoked first
+                instrumentation.addTransformer(NoMatchCacheFilter.ClassFileHashRecorder.INSTANCE, true);
+                classFileHashRecorderInstalled = true;
+            }
+            return noMatchCacheFilter;
+        } catch (IOException e) {
+            logger.warn("Failed to open the no-match cache in {}", typeMatchingCacheDir, e);
+            return null;
+        }
+    }
+
     private static boolean isIncluded(ElasticApmInstrumentation advice, CoreConfigurationImpl coreConfiguration) {
         return isInstrumentationEnabled(advice, coreConfiguration) && coreConfiguration.isInstrumentationEnabled(advice.getInstrumentationGroupNames());
     }
@@ -386,13 +463,14 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation,
+                                            final ElementMatcher<? super NamedElement> typeMatcherPreFilter,
+                                            final ElementMatcher<? super TypeDescription> typeMatcher) {
         final Logger logger = getLogger();
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfigurationImpl.class).isClassLoadingMatchingPreFilter();
         final boolean typeMatchingWithNamePreFilter = tracer.getConfig(CoreConfigurationImpl.class).isTypeMatchingWithNamePreFilter();
         final ElementMatcher.Junction<ClassLoader> classLoaderMatcher = instrumentation.getClassLoaderMatcher();
-        final ElementMatcher<? super NamedElement> typeMatcherPreFilter = instrumentation.getTypeMatcherPreFilter();
         final ElementMatcher.Junction<ProtectionDomain> versionPostFilter = instrumentation.getProtectionDomainPostFilter();
         final ElementMatcher<? super MethodDescription> methodMatcher = new ElementMatcher.Junction.Conjunction<>(instrumentation.getMethodMatcher(), not(isAbstract()));
         final AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher() {
@@ -671,6 +749,14 @@ public class ElasticApmAgent {
             }
         }
         dynamicClassFileTransformers.clear();
+        if (classFileHashRecorderInstalled) {
+            instrumentation.removeTransformer(NoMatchCacheFilter.ClassFileHashRecorder.INSTANCE);
+            classFileHashRecorderInstalled = false;
+        }
+        if (noMatchCacheFilter != null) {
+            noMatchCacheFilter.close();
+            noMatchCacheFilter = null;
+        }
         instrumentation = null;
         IndyPluginClassLoaderFactory.clear();
         adviceClassName2instrumentationClassLoader.clear();
@@ -679,7 +765,7 @@ public class ElasticApmAgent {
 
     private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfigurationImpl coreConfiguration, final Logger logger,
                                                 final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
-                                                final boolean useTypePoolCache) {
+                                                final boolean useTypePoolCache, final AgentBuilder.RawMatcher additionalIgnoreMatcher) {
         AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
         if (agentJarFile != null) {
             try {
@@ -698,6 +784,11 @@ public class ElasticApmAgent {
                 logger.warn("Failed to add ClassFileLocator for the agent jar. Some instrumentations may not work", e);
             }
         }
+        ClassFileLocator virtualFieldHolderLocator = VirtualFieldInstaller.getHolderClassFileLocator();
+        if (virtualFieldHolderLocator != null) {
+            // classes with virtual fields implement the holder interface, which is not a resource of the bootstrap class loader
+            locationStrategy = new AgentBuilder.LocationStrategy.Compound(new AgentBuilder.LocationStrategy.Simple(virtualFieldHolderLocator), locationStrategy);
+        }
         return new AgentBuilder.Default(byteBuddy)
             .with(RedefinitionStrategy.RETRANSFORMATION)
             // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
@@ -714,10 +805,7 @@ public class ElasticApmAgent {
             .with(descriptionStrategy)
             .with(locationStrategy)
             .with(new ErrorLoggingListener())
-            // ReaderMode.FAST as we don't need to read method parameter names
-            .with(useTypePoolCache
-                ? new LruTypePoolCache(TypePool.Default.ReaderMode.FAST).scheduleEntryEviction()
-                : AgentBuilder.PoolStrategy.Default.FAST)
+            .with(getPoolStrategy(useTypePoolCache))
             .ignore(any(), isReflectionClassLoader())
             .or(any(), classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader"))
             .or(nameStartsWith("org.aspectj."))
@@ -750,9 +838,21 @@ public class ElasticApmAgent {
             .or(nameContains(".asm."))
             .or(anyMatch(coreConfiguration.getDefaultClassesExcludedFromInstrumentation()))
             .or(anyMatch(coreConfiguration.getClassesExcludedFromInstrumentation()))
+            .or(additionalIgnoreMatcher)
             .disableClassFormatChanges();
     }
 
+    private static synchronized AgentBuilder.PoolStrategy getPoolStrategy(boolean useTypePoolCache) {
+        if (!useTypePoolCache) {
+            return AgentBuilder.PoolStrategy.Default.FAST;
+        }
+        if (typePoolCache == null) {
+            // ReaderMode.FAST as we don't need to read method parameter names
+            typePoolCache = new LruTypePoolCache(TypePool.Default.ReaderMode.FAST).scheduleEntryEviction();
+        }
+        return typePoolCache;
+    }
+
     /**
      * Returns the directory the agent jar resides in.
      * <p>
@@ -831,7 +931,7 @@ public class ElasticApmAgent {
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
         AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false
+            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false, AgentBuilder.RawMatcher.Trivial.NON_MATCHING
         );
         for (Class<? extends ElasticApmInstrumentation> instrumentationClass : instrumentationClasses) {
             ElasticApmInstrumentation apmInstrumentation = instantiate(instrumentationClass);
@@ -840,7 +940,7 @@ public class ElasticApmAgent {
                 PrivilegedActionUtils.getClassLoader(instrumentationClass));
             ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
             if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, apmInstrumentation.getTypeMatcherPreFilter(), typeMatcher.and(apmInstrumentation.getTypeMatcher()));
             }
         }
         dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
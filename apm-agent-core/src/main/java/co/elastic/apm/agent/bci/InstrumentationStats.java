@@ -31,6 +31,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class InstrumentationStats {
 
@@ -40,12 +41,21 @@ public final class InstrumentationStats {
 
     private final ConcurrentMap<String, MatcherTimer> matcherTimers = new ConcurrentHashMap<>();
 
+    private final AtomicLong noMatchCacheHits = new AtomicLong();
+
+    private final AtomicLong noMatchCacheMisses = new AtomicLong();
+
+    private final AtomicLong noMatchCacheMissDuration = new AtomicLong();
+
     private boolean measureMatching = false;
 
     void reset() {
         allInstrumentations.clear();
         usedInstrumentations.clear();
         matcherTimers.clear();
+        noMatchCacheHits.set(0);
+        noMatchCacheMisses.set(0);
+        noMatchCacheMissDuration.set(0);
         measureMatching = false;
     }
 
@@ -136,10 +146,59 @@ public final class InstrumentationStats {
         return totalTime;
     }
 
+    /**
+     * @return the total time in nanoseconds all instrumentations spent on matching types,
+     * only recorded if {@link #shouldMeasureMatching()}
+     */
+    public long getTotalTypeMatchingTime() {
+        long totalTime = 0;
+        for (MatcherTimer value : matcherTimers.values()) {
+            totalTime += value.getTotalTypeMatchingDuration();
+        }
+        return totalTime;
+    }
+
     Collection<MatcherTimer> getMatcherTimers() {
         return matcherTimers.values();
     }
 
+    void addNoMatchCacheHit() {
+        noMatchCacheHits.incrementAndGet();
+    }
+
+    void addNoMatchCacheMiss(long durationNanos) {
+        noMatchCacheMisses.incrementAndGet();
+        noMatchCacheMissDuration.addAndGet(durationNanos);
+    }
+
+    /**
+     * @return the number of classes which have been skipped because they didn't match any instrumentation in a previous run
+     */
+    public long getNoMatchCacheHits() {
+        return noMatchCacheHits.get();
+    }
+
+    /**
+     * @return the number of classes which didn't match any instrumentation and have been added to the no-match cache
+     */
+    public long getNoMatchCacheMisses() {
+        return noMatchCacheMisses.get();
+    }
+
+    /**
+     * Estimates the time in nanoseconds the no-match cache has saved,
+     * based on the average time it took to determine that a class doesn't match any instrumentation.
+     *
+     * @return the estimated time saved in nanoseconds
+     */
+    public long getEstimatedNoMatchCacheTimeSaved() {
+        long misses = noMatchCacheMisses.get();
+        if (misses == 0) {
+            return 0;
+        }
+        return noMatchCacheHits.get() * (noMatchCacheMissDuration.get() / misses);
+    }
+
     public void setMeasureMatching(boolean measureMatching) {
         this.measureMatching = measureMatching;
     }
@@ -26,6 +26,7 @@ import co.elastic.apm.agent.tracer.Tracer;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class InstrumentationStatsLifecycleListener extends AbstractLifecycleListener {
     private static final Logger logger = LoggerFactory.getLogger(InstrumentationStatsLifecycleListener.class);
@@ -41,6 +42,12 @@ public class InstrumentationStatsLifecycleListener extends AbstractLifecycleList
     public void stop() {
         InstrumentationStats instrumentationStats = ElasticApmAgent.getInstrumentationStats();
         logger.info("Used instrumentation groups: {}", instrumentationStats.getUsedInstrumentationGroups());
+        if (instrumentationStats.getNoMatchCacheHits() > 0 || instrumentationStats.getNoMatchCacheMisses() > 0) {
+            logger.info("No-match cache: {} classes skipped, {} classes added, estimated time saved: {}ms",
+                instrumentationStats.getNoMatchCacheHits(),
+                instrumentationStats.getNoMatchCacheMisses(),
+                TimeUnit.NANOSECONDS.toMillis(instrumentationStats.getEstimatedNoMatchCacheTimeSaved()));
+        }
         if (instrumentationStats.shouldMeasureMatching()) {
             final ArrayList<MatcherTimer> matcherTimers = new ArrayList<>(instrumentationStats.getMatcherTimers());
             Collections.sort(matcherTimers);
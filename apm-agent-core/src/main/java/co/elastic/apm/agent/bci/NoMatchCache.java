@@ -0,0 +1,381 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent set of 64 bit keys, identifying class files which have not matched any instrumentation.
+ * <p>
+ * The set is a memory-mapped, open-addressing hash table with linear probing.
+ * The file starts with a header consisting of a magic number, the fingerprint of the agent version and configuration
+ * the entries are valid for, and the number of slots.
+ * As new files are filled with zeros, a key of {@code 0} marks an empty slot.
+ * Files with a different header are discarded.
+ * </p>
+ * <p>
+ * Lookups read the mapped file directly and don't require any locks, so that they can be performed by the threads that load classes.
+ * New keys are queued and written to the file by a single background thread.
+ * Lookups may therefore miss keys that have been added recently.
+ * Entries are never removed, the table just stops growing once it reaches its maximum load factor.
+ * </p>
+ */
+class NoMatchCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(NoMatchCache.class);
+
+    private static final int MAGIC = 0x454e4d31;
+    private static final int FINGERPRINT_POSITION = 8;
+    private static final int SLOTS_POSITION = 16;
+    static final int HEADER_SIZE = 24;
+    static final int DEFAULT_SLOTS = 1 << 19;
+    private static final int MAX_PROBES = 64;
+    private static final int MAX_PENDING_KEYS = 16 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private final File file;
+    private final MappedByteBuffer table;
+    /**
+     * Holds a shared lock on the lock file of the cache file while it's in use,
+     * so that other JVMs sharing the directory don't delete it.
+     */
+    @Nullable
+    private final FileChannel lockChannel;
+    private final int mask;
+    private final int maxSize;
+    private final Queue<Long> pendingKeys = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingKeyCount = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor writer;
+    /**
+     * Guarded by {@code this}
+     */
+    private int size = -1;
+    private volatile boolean closed;
+
+    private NoMatchCache(File file, MappedByteBuffer table, @Nullable FileChannel lockChannel, int slots) {
+        this.file = file;
+        this.table = table;
+        this.lockChannel = lockChannel;
+        this.mask = slots - 1;
+        this.maxSize = slots / 4 * 3;
+        writer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("no-match-cache");
+        writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the cache file for the given fingerprint, or creates it if it doesn't exist yet or is not valid.
+     * Cache files of other fingerprints, for example from a previous version of the agent, are deleted,
+     * unless they are still in use by another JVM which shares the directory.
+     *
+     * @param directory   the directory to store the cache file in
+     * @param fingerprint the fingerprint of the agent version and configuration
+     * @param slots       the number of slots of the hash table, must be a power of two
+     * @return the cache
+     * @throws IOException if the file can't be created or mapped
+     */
+    static NoMatchCache open(File directory, long fingerprint, int slots) throws IOException {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("The number of slots must be a power of two: " + slots);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        String fileName = String.format("no-match-cache-%016x.bin", fingerprint);
+        FileChannel lockChannel = lockShared(getLockFile(new File(directory, fileName)));
+        deleteOtherCacheFiles(directory, fileName);
+        File file = new File(directory, fileName);
+        int fileSize = HEADER_SIZE + slots * 8;
+        MappedByteBuffer table;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(fileSize);
+            // the mapping stays valid after the channel has been closed
+            table = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+        if (table.getInt(0) != MAGIC || table.getLong(FINGERPRINT_POSITION) != fingerprint || table.getInt(SLOTS_POSITION) != slots) {
+            logger.debug("Initializing no-match cache {}", file);
+            for (int offset = HEADER_SIZE; offset < fileSize; offset += 8) {
+                table.putLong(offset, 0);
+            }
+            table.putLong(FINGERPRINT_POSITION, fingerprint);
+            table.putInt(SLOTS_POSITION, slots);
+            // the magic number is written last so that a partially initialized file is never considered valid
+            table.putInt(0, MAGIC);
+        }
+        return new NoMatchCache(file, table, lockChannel, slots);
+    }
+
+    private static File getLockFile(File cacheFile) {
+        return new File(cacheFile.getPath() + ".lock");
+    }
+
+    /**
+     * Acquires a shared lock which is held until the cache is closed.
+     *
+     * @return the channel holding the lock, or {@code null} if the file system doesn't support locking
+     */
+    @Nullable
+    private static FileChannel lockShared(File lockFile) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            if (channel.tryLock(0, Long.MAX_VALUE, true) != null) {
+                return channel;
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            logger.debug("Could not lock {}", lockFile, e);
+        }
+        closeQuietly(channel);
+        return null;
+    }
+
+    private static void deleteOtherCacheFiles(File directory, String fileName) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File other : files) {
+            String otherName = other.getName();
+            if (otherName.startsWith("no-match-cache-") && otherName.endsWith(".bin") && !otherName.equals(fileName)) {
+                deleteIfUnused(other);
+            }
+        }
+    }
+
+    /**
+     * Deletes a cache file only if no other JVM holds a lock on its lock file.
+     * Cache files which can't be locked, for example because the file system doesn't support it, are left alone.
+     */
+    private static void deleteIfUnused(File cacheFile) {
+        File lockFile = getLockFile(cacheFile);
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                logger.debug("Not deleting no-match cache {} as it's in use", cacheFile);
+                return;
+            }
+            try {
+                if (!cacheFile.delete()) {
+                    logger.debug("Could not delete outdated no-match cache {}", cacheFile);
+                } else if (!lockFile.delete()) {
+                    logger.debug("Could not delete lock file {}", lockFile);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            logger.debug("Not deleting no-match cache {} as it can't be locked", cacheFile, e);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Returns whether the key has been added to the cache, either by a previous run or by this one.
+     * This method is lock-free and may be called concurrently from any thread.
+     *
+     * @param key the key, see {@link #key(long, long)}
+     * @return {@code true} if the key is contained in the cache
+     */
+    boolean contains(long key) {
+        if (closed) {
+            return false;
+        }
+        int index = (int) mix(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long slot = table.getLong(offset(index));
+            if (slot == key) {
+                return true;
+            }
+            if (slot == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Queues a key to be written to the cache by the background thread.
+     * If too many keys are pending, the key is dropped.
+     *
+     * @param key the key, see {@link #key(long, long)}
+     */
+    void add(long key) {
+        if (closed) {
+            return;
+        }
+        if (pendingKeyCount.incrementAndGet() > MAX_PENDING_KEYS) {
+            pendingKeyCount.decrementAndGet();
+            return;
+        }
+        pendingKeys.offer(key);
+    }
+
+    /**
+     * Writes all pending keys to the file.
+     */
+    synchronized void flush() {
+        if (size < 0) {
+            size = countEntries();
+        }
+        for (Long key = pendingKeys.poll(); key != null; key = pendingKeys.poll()) {
+            pendingKeyCount.decrementAndGet();
+            if (size < maxSize && insert(key)) {
+                size++;
+            }
+        }
+    }
+
+    private boolean insert(long key) {
+        int index = (int) mix(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int offset = offset(index);
+            long slot = table.getLong(offset);
+            if (slot == key) {
+                return false;
+            }
+            if (slot == 0) {
+                table.putLong(offset, key);
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    private int countEntries() {
+        int count = 0;
+        for (int index = 0; index <= mask; index++) {
+            if (table.getLong(offset(index)) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the pending keys and stops the background thread.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        ExecutorUtils.shutdownAndWaitTermination(writer);
+        flush();
+        closed = true;
+        table.force();
+        // releases the lock
+        closeQuietly(lockChannel);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Combines two hashes into a key.
+     * As {@code 0} denotes an empty slot, it's never returned.
+     */
+    static long key(long hash1, long hash2) {
+        long key = mix(hash1 * 31 + mix(hash2));
+        return key != 0 ? key : 1;
+    }
+
+    /**
+     * @return a 64 bit hash of the given string
+     */
+    static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return a 64 bit hash of the given bytes, processing eight bytes at a time
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L ^ bytes.length;
+        int i = 0;
+        for (int limit = bytes.length - 7; i < limit; i += 8) {
+            long word = (bytes[i] & 0xFFL)
+                | (bytes[i + 1] & 0xFFL) << 8
+                | (bytes[i + 2] & 0xFFL) << 16
+                | (bytes[i + 3] & 0xFFL) << 24
+                | (bytes[i + 4] & 0xFFL) << 32
+                | (bytes[i + 5] & 0xFFL) << 40
+                | (bytes[i + 6] & 0xFFL) << 48
+                | (bytes[i + 7] & 0xFFL) << 56;
+            hash = Long.rotateLeft(hash ^ word * 0x9e3779b97f4a7c15L, 27) * 0xc2b2ae3d27d4eb4fL;
+        }
+        for (; i < bytes.length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which makes sure that all bits of the input affect the lower bits used to select a slot
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * 8;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.utility.JavaModule;
+import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import javax.annotation.Nullable;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Skips the type matching of classes which haven't matched any instrumentation in a previous run of the application,
+ * based on a persistent {@link NoMatchCache}.
+ * <p>
+ * A class is identified by its name, a hash of its class file and the type of its class loader.
+ * The agent version, the enabled instrumentations and the instrumentation related configuration are part of the
+ * {@linkplain #fingerprint fingerprint} of the cache file, so that the cache is discarded whenever they change.
+ * </p>
+ * <p>
+ * Byte Buddy doesn't expose the class file to matchers.
+ * Therefore, the {@link ClassFileHashRecorder} is registered as a class file transformer before the agent's transformer.
+ * It records the key of the class that is about to be transformed on the current thread.
+ * This filter acts as an ignore matcher, which skips cached classes,
+ * and as a listener, which adds the classes that haven't matched any instrumentation to the cache.
+ * </p>
+ */
+class NoMatchCacheFilter extends AgentBuilder.Listener.Adapter implements AgentBuilder.RawMatcher {
+
+    private static final String BOOTSTRAP_CLASS_LOADER = "bootstrap";
+    /**
+     * The keys of the options, apart from the core instrumentation options, which are read by type matchers of instrumentations.
+     * Add the key of an option here when a type matcher starts to depend on it,
+     * otherwise classes that don't match with the old value are skipped after the value has been changed.
+     */
+    static final List<String> TYPE_MATCHER_OPTIONS = Arrays.asList(
+        "application_packages",
+        "jms_listener_packages",
+        "aws_lambda_handler"
+    );
+
+    private final NoMatchCache cache;
+    private final InstrumentationStats instrumentationStats;
+
+    NoMatchCacheFilter(NoMatchCache cache, InstrumentationStats instrumentationStats) {
+        this.cache = cache;
+        this.instrumentationStats = instrumentationStats;
+    }
+
+    /**
+     * Computes the fingerprint of everything the matching result of a class depends on, apart from the class itself.
+     *
+     * @param agentVersion          the version of the agent
+     * @param instrumentations      the enabled instrumentations
+     * @param configurationRegistry the configuration
+     * @return the fingerprint
+     */
+    static long fingerprint(String agentVersion, List<? extends ElasticApmInstrumentation> instrumentations, ConfigurationRegistry configurationRegistry) {
+        CoreConfigurationImpl coreConfiguration = configurationRegistry.getConfig(CoreConfigurationImpl.class);
+        List<String> instrumentationNames = new ArrayList<>(instrumentations.size());
+        for (ElasticApmInstrumentation instrumentation : instrumentations) {
+            instrumentationNames.add(instrumentation.getClass().getName());
+        }
+        Collections.sort(instrumentationNames);
+        StringBuilder sb = new StringBuilder(agentVersion);
+        for (String instrumentationName : instrumentationNames) {
+            sb.append('\n').append(instrumentationName);
+        }
+        for (ConfigurationOption<?> option : coreConfiguration.getInstrumentationOptions()) {
+            sb.append('\n').append(option.getKey()).append('=').append(option.getValueAsString());
+        }
+        for (String key : TYPE_MATCHER_OPTIONS) {
+            ConfigurationOption<?> option = configurationRegistry.getConfigurationOptionByKey(key);
+            // the option is not registered if the providing plugin is not on the class path, for example in tests
+            sb.append('\n').append(key).append('=').append(option != null ? option.getValueAsString() : null);
+        }
+        sb.append('\n').append(coreConfiguration.getDefaultClassesExcludedFromInstrumentation())
+            .append('\n').append(coreConfiguration.getClassesExcludedFromInstrumentation())
+            .append('\n').append(coreConfiguration.isTypeMatchingWithNamePreFilter())
+            .append('\n').append(coreConfiguration.isClassLoadingMatchingPreFilter());
+        return NoMatchCache.hash(sb.toString());
+    }
+
+    static long key(String className, @Nullable ClassLoader classLoader, byte[] classFile) {
+        return NoMatchCache.key(NoMatchCache.key(NoMatchCache.hash(classFile), NoMatchCache.hash(className)), NoMatchCache.hash(getClassLoaderName(classLoader)));
+    }
+
+    private static String getClassLoaderName(@Nullable ClassLoader classLoader) {
+        return classLoader == null ? BOOTSTRAP_CLASS_LOADER : classLoader.getClass().getName();
+    }
+
+    @Override
+    public boolean matches(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module,
+                           @Nullable Class<?> classBeingRedefined, @Nullable ProtectionDomain protectionDomain) {
+        CurrentClassFile current = CurrentClassFile.get(typeDescription.getName(), classLoader);
+        if (current != null && cache.contains(current.key)) {
+            current.cacheHit = true;
+            instrumentationStats.addNoMatchCacheHit();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onDiscovery(String typeName, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        CurrentClassFile current = CurrentClassFile.get(typeName, classLoader);
+        if (current != null) {
+            current.discoveryNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onIgnored(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        CurrentClassFile current = CurrentClassFile.get(typeDescription.getName(), classLoader);
+        if (current != null && !current.cacheHit && current.discoveryNanos != 0) {
+            cache.add(current.key);
+            instrumentationStats.addNoMatchCacheMiss(System.nanoTime() - current.discoveryNanos);
+        }
+    }
+
+    @Override
+    public void onComplete(String typeName, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        CurrentClassFile current = CurrentClassFile.get(typeName, classLoader);
+        if (current != null) {
+            current.clear();
+        }
+    }
+
+    void close() {
+        cache.close();
+    }
+
+    /**
+     * Records the key of the class file that is about to be transformed on the current thread.
+     * Must be registered before the transformer of the agent, so that it's invoked with the same class file.
+     * Never modifies the class file.
+     */
+    static class ClassFileHashRecorder implements ClassFileTransformer {
+
+        static final ClassFileHashRecorder INSTANCE = new ClassFileHashRecorder();
+
+        private ClassFileHashRecorder() {
+        }
+
+        @Nullable
+        @Override
+        public byte[] transform(@Nullable ClassLoader loader, @Nullable String className, @Nullable Class<?> classBeingRedefined,
+                                @Nullable ProtectionDomain protectionDomain, @Nullable byte[] classfileBuffer) {
+            if (className != null && classfileBuffer != null) {
+                String typeName = className.replace('/', '.');
+                CurrentClassFile.set(typeName, getClassLoaderName(loader), key(typeName, loader, classfileBuffer));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The class file that is currently being transformed on this thread.
+     * In order to not hold a reference to the class loader, it's identified by the name of the type and the type of its class loader.
+     */
+    private static class CurrentClassFile {
+
+        private static final ThreadLocal<CurrentClassFile> current = new ThreadLocal<CurrentClassFile>() {
+            @Override
+            protected CurrentClassFile initialValue() {
+                return new CurrentClassFile();
+            }
+        };
+
+        @Nullable
+        private String typeName;
+        @Nullable
+        private String classLoaderName;
+        private long key;
+        private long discoveryNanos;
+        private boolean cacheHit;
+
+        static void set(String typeName, String classLoaderName, long key) {
+            CurrentClassFile currentClassFile = current.get();
+            currentClassFile.typeName = typeName;
+            currentClassFile.classLoaderName = classLoaderName;
+            currentClassFile.key = key;
+            currentClassFile.discoveryNanos = 0;
+            currentClassFile.cacheHit = false;
+        }
+
+        /**
+         * @return the class file that is currently being transformed on this thread,
+         * or {@code null} if it's not the given type, for example because no key has been recorded for the type
+         */
+        @Nullable
+        static CurrentClassFile get(String typeName, @Nullable ClassLoader classLoader) {
+            CurrentClassFile currentClassFile = current.get();
+            if (typeName.equals(currentClassFile.typeName) && getClassLoaderName(classLoader).equals(currentClassFile.classLoaderName)) {
+                return currentClassFile;
+            }
+            return null;
+        }
+
+        void clear() {
+            typeName = null;
+            classLoaderName = null;
+        }
+    }
+}
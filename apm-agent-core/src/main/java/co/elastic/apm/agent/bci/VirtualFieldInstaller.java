@@ -0,0 +1,240 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.bytebuddy.ErrorLoggingListener;
+import co.elastic.apm.agent.collections.VirtualFields;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.VirtualFieldProvider;
+import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.modifier.FieldManifestation;
+import net.bytebuddy.description.modifier.FieldPersistence;
+import net.bytebuddy.description.modifier.SyntheticState;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.loading.ClassInjector;
+import net.bytebuddy.dynamic.scaffold.TypeValidation;
+import net.bytebuddy.implementation.FieldAccessor;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static co.elastic.apm.agent.bci.bytebuddy.ClassLoaderNameMatcher.isReflectionClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.hasSuperType;
+import static net.bytebuddy.matcher.ElementMatchers.isAnnotation;
+import static net.bytebuddy.matcher.ElementMatchers.isBootstrapClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.isInterface;
+import static net.bytebuddy.matcher.ElementMatchers.isSubTypeOf;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+
+/**
+ * Adds the virtual fields declared by the {@link VirtualFieldProvider}s to the classes which are defined after the agent has started,
+ * see {@link VirtualFields}.
+ * <p>
+ * Adding a field changes the class format, which is not possible when retransforming classes that have already been loaded.
+ * That's why the fields are added by a transformer which is not capable of retransformation, and only in premain mode.
+ * The JVM invokes such transformers before the retransformation capable transformer of the instrumentations,
+ * and their result is the class file that is used when the instrumentations are retransformed later on,
+ * so that the fields are preserved.
+ * </p>
+ * <p>
+ * Serializable classes don't get virtual fields, as that could change their default {@code serialVersionUID}.
+ * </p>
+ */
+public class VirtualFieldInstaller {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualFieldInstaller.class);
+
+    /**
+     * Allows the instrumentations to resolve the holder interface, which is implemented by the classes with virtual fields,
+     * but can't be located as a resource of the bootstrap class loader.
+     */
+    @Nullable
+    private static volatile ClassFileLocator holderClassFileLocator;
+
+    private VirtualFieldInstaller() {
+    }
+
+    /**
+     * @param classLoader the class loader of the plugins
+     * @return the names of the declared virtual fields, mapped to the names of the types which should get them
+     */
+    public static Map<String, Collection<String>> loadVirtualFields(ClassLoader classLoader) {
+        Map<String, Collection<String>> virtualFields = new HashMap<>();
+        for (VirtualFieldProvider provider : DependencyInjectingServiceLoader.load(VirtualFieldProvider.class, Collections.singletonList(classLoader))) {
+            for (Map.Entry<String, Collection<String>> virtualField : provider.getVirtualFields().entrySet()) {
+                Collection<String> typeNames = virtualFields.get(virtualField.getKey());
+                if (typeNames == null) {
+                    typeNames = new LinkedHashSet<>();
+                    virtualFields.put(virtualField.getKey(), typeNames);
+                }
+                typeNames.addAll(virtualField.getValue());
+            }
+        }
+        return virtualFields;
+    }
+
+    /**
+     * Injects the holder interface into the bootstrap class loader and installs the transformer which adds the virtual fields.
+     *
+     * @param instrumentation the instrumentation instance
+     * @param virtualFields   the names of the virtual fields, mapped to the names of the types which should get them
+     * @param poolStrategy    the pool strategy of the agent, so that the type descriptions resolved when matching the super types are shared
+     * @return the transformer, or {@code null} if there are no virtual fields or they can't be installed,
+     * in which case the plugins store their state in weak maps
+     */
+    @Nullable
+    public static synchronized ResettableClassFileTransformer install(Instrumentation instrumentation, Map<String, Collection<String>> virtualFields,
+                                                                     AgentBuilder.PoolStrategy poolStrategy) {
+        if (virtualFields.isEmpty()) {
+            return null;
+        }
+        TypeDescription holderType;
+        try {
+            holderType = TypeDescription.ForLoadedType.of(injectHolder());
+        } catch (Exception e) {
+            logger.warn("Failed to inject the virtual field holder, falling back to weak maps", e);
+            return null;
+        }
+        if (!VirtualFields.init(virtualFields.keySet())) {
+            logger.warn("Virtual fields have already been installed");
+            return null;
+        }
+        logger.debug("Installing virtual fields {}", virtualFields);
+
+        ElementMatcher.Junction<NamedElement> targetTypeNames = none();
+        for (Collection<String> typeNames : virtualFields.values()) {
+            for (String typeName : typeNames) {
+                targetTypeNames = targetTypeNames.or(named(typeName));
+            }
+        }
+        final ElementMatcher<TypeDescription> typeMatcher = not(isInterface())
+            .and(not(isAnnotation()))
+            .and(hasSuperType(targetTypeNames))
+            .and(not(isSubTypeOf(Serializable.class)));
+        final TypeDescription holder = holderType;
+        return new AgentBuilder.Default(new ByteBuddy())
+            // only transforms classes when they are defined
+            .with(AgentBuilder.RedefinitionStrategy.DISABLED)
+            .with(AgentBuilder.TypeStrategy.Default.REDEFINE)
+            .with(AgentBuilder.DescriptionStrategy.Default.POOL_ONLY)
+            .with(poolStrategy)
+            .with(new ErrorLoggingListener())
+            .ignore(any(), isBootstrapClassLoader())
+            .or(any(), isReflectionClassLoader())
+            .or(nameStartsWith("co.elastic.apm."))
+            .or(nameStartsWith("net.bytebuddy."))
+            .type(new AgentBuilder.RawMatcher() {
+                @Override
+                public boolean matches(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module,
+                                       @Nullable Class<?> classBeingRedefined, @Nullable ProtectionDomain protectionDomain) {
+                    if (classBeingRedefined != null) {
+                        // fields can't be added when classes are redefined
+                        return false;
+                    }
+                    try {
+                        return mayHaveSuperType(typeDescription) && typeMatcher.matches(typeDescription);
+                    } catch (Exception ignored) {
+                        // could be because of a missing type
+                        return false;
+                    }
+                }
+            })
+            .transform(new AgentBuilder.Transformer() {
+                @Override
+                public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription,
+                                                        ClassLoader classLoader, JavaModule module, ProtectionDomain protectionDomain) {
+                    // sub classes of classes with virtual fields get their own field, which is not an issue as the accessors are overridden as well
+                    return builder
+                        .defineField(VirtualFields.FIELD_NAME, Object.class, Visibility.PRIVATE, FieldManifestation.VOLATILE,
+                            FieldPersistence.TRANSIENT, SyntheticState.SYNTHETIC)
+                        .implement(holder)
+                        .intercept(FieldAccessor.ofField(VirtualFields.FIELD_NAME));
+                }
+            })
+            .installOn(instrumentation);
+    }
+
+    /**
+     * Most classes directly extend {@link Object} and don't implement any interface, so they can't have one of the target types as a super type.
+     * As opposed to walking the type hierarchy, this doesn't require resolving any type other than {@link Object}.
+     */
+    private static boolean mayHaveSuperType(TypeDescription typeDescription) {
+        if (!typeDescription.getInterfaces().isEmpty()) {
+            return true;
+        }
+        TypeDescription.Generic superClass = typeDescription.getSuperClass();
+        return superClass != null && !superClass.asErasure().represents(Object.class);
+    }
+
+    /**
+     * @return the class file locator of the holder interface, or {@code null} if it has not been injected
+     */
+    @Nullable
+    public static ClassFileLocator getHolderClassFileLocator() {
+        return holderClassFileLocator;
+    }
+
+    private static Class<?> injectHolder() throws ClassNotFoundException {
+        byte[] holderBytes = new ByteBuddy(ClassFileVersion.JAVA_V7)
+            // Byte Buddy doesn't allow to define types in java.* packages otherwise
+            .with(TypeValidation.DISABLED)
+            .makeInterface()
+            .name(VirtualFields.HOLDER_CLASS_NAME)
+            .defineMethod(VirtualFields.GETTER_NAME, Object.class, Visibility.PUBLIC)
+            .withoutCode()
+            .defineMethod(VirtualFields.SETTER_NAME, void.class, Visibility.PUBLIC)
+            .withParameters(Object.class)
+            .withoutCode()
+            .make()
+            .getBytes();
+        holderClassFileLocator = ClassFileLocator.Simple.of(VirtualFields.HOLDER_CLASS_NAME, holderBytes);
+        try {
+            // already injected by a previous installation
+            return Class.forName(VirtualFields.HOLDER_CLASS_NAME, false, null);
+        } catch (ClassNotFoundException ignore) {
+            if (!ClassInjector.UsingUnsafe.isAvailable()) {
+                throw new IllegalStateException("Classes can't be injected into the bootstrap class loader");
+            }
+            ClassInjector.UsingUnsafe.ofBootLoader().injectRaw(Collections.singletonMap(VirtualFields.HOLDER_CLASS_NAME, holderBytes));
+            return Class.forName(VirtualFields.HOLDER_CLASS_NAME, false, null);
+        }
+    }
+}
@@ -48,6 +48,10 @@ public class MatcherTimer implements Comparable<MatcherTimer> {
         return totalTypeMatchingDuration.get() + totalMethodMatchingDuration.get();
     }
 
+    public long getTotalTypeMatchingDuration() {
+        return totalTypeMatchingDuration.get();
+    }
+
     public static String getTableHeader() {
         return String.format("| %-50s | %-15s | %-15s |", "Advice name", "Type ns", "Method ns");
     }
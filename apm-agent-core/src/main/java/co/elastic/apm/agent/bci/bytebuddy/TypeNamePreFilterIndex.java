@@ -0,0 +1,517 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+import net.bytebuddy.matcher.StringSetMatcher;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * A compiled index over the {@linkplain ElasticApmInstrumentation#getTypeMatcherPreFilter() name pre-filters} of all instrumentations.
+ * <p>
+ * Instead of evaluating the pre-filter chain of every instrumentation for every type that is loaded,
+ * the exact names, prefixes, suffixes and substrings the pre-filters are composed of are compiled into a hash map,
+ * a prefix trie, a suffix trie and an Aho-Corasick automaton.
+ * A single lookup per type name yields the set of instrumentations whose pre-filter may match the type.
+ * Only these candidates evaluate their actual pre-filter, all other instrumentations reject the type right away.
+ * </p>
+ * <p>
+ * Parts of a pre-filter that can't be decomposed, like negations or custom matchers, are evaluated as-is during the lookup.
+ * Conjunctions are indexed by their most selective operand only.
+ * Therefore, the index may yield false positives but no false negatives.
+ * The false positives are eliminated by the actual pre-filter.
+ * </p>
+ * <p>
+ * The result of the last lookup is cached per thread,
+ * as the matchers of all instrumentations are applied to a type one after another on the thread that loads the type.
+ * </p>
+ */
+public class TypeNamePreFilterIndex {
+
+    private final List<ElementMatcher<? super NamedElement>> preFilters;
+    private final long[] alwaysCandidates;
+    private final Map<String, int[]> exactNames;
+    private final TrieNode prefixes;
+    private final TrieNode suffixes;
+    private final TrieNode substrings;
+    private final List<ResidualMatcher> residualMatchers;
+    private final ThreadLocal<Candidates> lastLookup = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates(alwaysCandidates.length);
+        }
+    };
+
+    private TypeNamePreFilterIndex(List<ElementMatcher<? super NamedElement>> preFilters) {
+        this.preFilters = preFilters;
+        alwaysCandidates = new long[(preFilters.size() + 63) / 64];
+        Map<String, List<Integer>> exactNameSlots = new HashMap<>();
+        prefixes = new TrieNode();
+        suffixes = new TrieNode();
+        substrings = new TrieNode();
+        residualMatchers = new ArrayList<>();
+        for (int slot = 0; slot < preFilters.size(); slot++) {
+            List<Pattern> patterns = analyze(preFilters.get(slot));
+            if (patterns == null) {
+                setBit(alwaysCandidates, slot);
+                continue;
+            }
+            for (Pattern pattern : patterns) {
+                if (pattern.kind != PatternKind.EXACT && pattern.kind != PatternKind.RESIDUAL && pattern.value.isEmpty()) {
+                    // every name starts with, ends with and contains the empty string
+                    setBit(alwaysCandidates, slot);
+                    continue;
+                }
+                switch (pattern.kind) {
+                    case EXACT:
+                        List<Integer> slots = exactNameSlots.get(pattern.value);
+                        if (slots == null) {
+                            slots = new ArrayList<>();
+                            exactNameSlots.put(pattern.value, slots);
+                        }
+                        slots.add(slot);
+                        break;
+                    case PREFIX:
+                        prefixes.insert(pattern.value, false).addOutput(slot);
+                        break;
+                    case SUFFIX:
+                        suffixes.insert(pattern.value, true).addOutput(slot);
+                        break;
+                    case CONTAINS:
+                        substrings.insert(pattern.value, false).addOutput(slot);
+                        break;
+                    default:
+                        residualMatchers.add(new ResidualMatcher(slot, pattern.residual));
+                }
+            }
+        }
+        exactNames = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : exactNameSlots.entrySet()) {
+            exactNames.put(entry.getKey(), toIntArray(entry.getValue()));
+        }
+        substrings.buildFailureLinks();
+    }
+
+    /**
+     * Creates an index over the provided pre-filters.
+     * The position of a pre-filter in the list is its slot that can be used for {@link #getPreFilter(int)}.
+     *
+     * @param preFilters the pre-filters of all instrumentations
+     * @return the index
+     */
+    public static TypeNamePreFilterIndex of(List<? extends ElementMatcher<? super NamedElement>> preFilters) {
+        return new TypeNamePreFilterIndex(new ArrayList<ElementMatcher<? super NamedElement>>(preFilters));
+    }
+
+    /**
+     * Returns a matcher that is equivalent to the pre-filter at the given slot,
+     * but which only evaluates it if the type is a candidate according to the index.
+     *
+     * @param slot the position of the pre-filter in the list the index was created with
+     * @return the indexed pre-filter
+     */
+    public ElementMatcher.Junction<NamedElement> getPreFilter(final int slot) {
+        final ElementMatcher<? super NamedElement> preFilter = preFilters.get(slot);
+        return new ElementMatcher.Junction.AbstractBase<NamedElement>() {
+            @Override
+            public boolean matches(NamedElement target) {
+                return isCandidate(target, slot) && preFilter.matches(target);
+            }
+
+            @Override
+            public String toString() {
+                return "indexed(" + preFilter + ")";
+            }
+        };
+    }
+
+    /**
+     * @param target the type to check
+     * @param slot   the position of the pre-filter in the list the index was created with
+     * @return {@code false} if the pre-filter at the given slot is guaranteed to not match the type,
+     * {@code true} if it may match
+     */
+    public boolean isCandidate(NamedElement target, int slot) {
+        String name = target.getActualName();
+        Candidates candidates = lastLookup.get();
+        if (candidates.lookupInProgress) {
+            // a residual matcher has triggered the matching of another type on this thread
+            Candidates nested = new Candidates(alwaysCandidates.length);
+            lookup(target, name, nested.bits);
+            return isSet(nested.bits, slot);
+        }
+        if (!name.equals(candidates.typeName)) {
+            candidates.typeName = null;
+            candidates.lookupInProgress = true;
+            try {
+                lookup(target, name, candidates.bits);
+            } finally {
+                candidates.lookupInProgress = false;
+            }
+            candidates.typeName = name;
+        }
+        return isSet(candidates.bits, slot);
+    }
+
+    private void lookup(NamedElement target, String name, long[] bits) {
+        System.arraycopy(alwaysCandidates, 0, bits, 0, bits.length);
+        int[] exactSlots = exactNames.get(name);
+        if (exactSlots != null) {
+            setBits(bits, exactSlots);
+        }
+        int length = name.length();
+        TrieNode node = prefixes;
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(name.charAt(i));
+            if (node != null) {
+                setBits(bits, node.outputs);
+            }
+        }
+        node = suffixes;
+        for (int i = length - 1; i >= 0 && node != null; i--) {
+            node = node.child(name.charAt(i));
+            if (node != null) {
+                setBits(bits, node.outputs);
+            }
+        }
+        node = substrings;
+        for (int i = 0; i < length; i++) {
+            node = substrings.next(node, name.charAt(i));
+            setBits(bits, node.outputs);
+        }
+        for (int i = 0, size = residualMatchers.size(); i < size; i++) {
+            ResidualMatcher residualMatcher = residualMatchers.get(i);
+            if (!isSet(bits, residualMatcher.slot) && residualMatcher.matcher.matches(target)) {
+                setBit(bits, residualMatcher.slot);
+            }
+        }
+    }
+
+    /**
+     * Decomposes a pre-filter into patterns, at least one of which matches whenever the pre-filter matches.
+     *
+     * @return the patterns, an empty list if the pre-filter never matches,
+     * or {@code null} if the pre-filter matches every type
+     */
+    @Nullable
+    static List<Pattern> analyze(ElementMatcher<?> matcher) {
+        try {
+            if (matcher instanceof BooleanMatcher) {
+                @SuppressWarnings("unchecked")
+                boolean matches = ((BooleanMatcher<Object>) matcher).matches(null);
+                return matches ? null : Collections.<Pattern>emptyList();
+            }
+            if (matcher instanceof NameMatcher) {
+                List<Pattern> patterns = analyzeName(readField(matcher, ElementMatcher.class));
+                if (patterns != null) {
+                    return patterns;
+                }
+            } else if (matcher instanceof ElementMatcher.Junction.Disjunction) {
+                List<?> operands = readField(matcher, List.class);
+                if (operands != null) {
+                    List<Pattern> patterns = new ArrayList<>();
+                    for (Object operand : operands) {
+                        List<Pattern> operandPatterns = analyze((ElementMatcher<?>) operand);
+                        if (operandPatterns == null) {
+                            return null;
+                        }
+                        patterns.addAll(operandPatterns);
+                    }
+                    return patterns;
+                }
+            } else if (matcher instanceof ElementMatcher.Junction.Conjunction) {
+                List<?> operands = readField(matcher, List.class);
+                if (operands != null) {
+                    // each operand has to match, so the most selective one is a sufficient filter
+                    List<Pattern> best = null;
+                    int bestCost = Integer.MAX_VALUE;
+                    for (Object operand : operands) {
+                        List<Pattern> operandPatterns = analyze((ElementMatcher<?>) operand);
+                        int cost = cost(operandPatterns);
+                        if (cost < bestCost) {
+                            best = operandPatterns;
+                            bestCost = cost;
+                        }
+                    }
+                    return best;
+                }
+            }
+        } catch (Exception ignore) {
+            // fall back to evaluating the matcher as-is
+        }
+        return Collections.singletonList(Pattern.residual(matcher));
+    }
+
+    @Nullable
+    private static List<Pattern> analyzeName(@Nullable ElementMatcher<?> nameMatcher) throws IllegalAccessException {
+        if (nameMatcher instanceof StringMatcher) {
+            String value = readField(nameMatcher, String.class);
+            StringMatcher.Mode mode = readField(nameMatcher, StringMatcher.Mode.class);
+            if (value == null || mode == null) {
+                return null;
+            }
+            switch (mode) {
+                case EQUALS_FULLY:
+                    return Collections.singletonList(new Pattern(PatternKind.EXACT, value));
+                case STARTS_WITH:
+                    return Collections.singletonList(new Pattern(PatternKind.PREFIX, value));
+                case ENDS_WITH:
+                    return Collections.singletonList(new Pattern(PatternKind.SUFFIX, value));
+                case CONTAINS:
+                    return Collections.singletonList(new Pattern(PatternKind.CONTAINS, value));
+                default:
+                    // case insensitive modes and regular expressions
+                    return null;
+            }
+        } else if (nameMatcher instanceof StringSetMatcher) {
+            Set<?> values = readField(nameMatcher, Set.class);
+            if (values == null) {
+                return null;
+            }
+            List<Pattern> patterns = new ArrayList<>(values.size());
+            for (Object value : values) {
+                patterns.add(new Pattern(PatternKind.EXACT, (String) value));
+            }
+            return patterns;
+        }
+        return null;
+    }
+
+    private static int cost(@Nullable List<Pattern> patterns) {
+        if (patterns == null) {
+            return Integer.MAX_VALUE;
+        }
+        int cost = 0;
+        for (Pattern pattern : patterns) {
+            // residual matchers are evaluated for each type, all other patterns are a part of the single lookup
+            cost += pattern.kind == PatternKind.RESIDUAL ? 1000 : 1;
+        }
+        return cost;
+    }
+
+    /**
+     * Reads the first instance field of the given type.
+     * Looking up fields by type rather than by name is less susceptible to changes in Byte Buddy's internals.
+     * If the structure has changed nevertheless, the matcher is not decomposed but evaluated as-is.
+     */
+    @Nullable
+    private static <T> T readField(Object target, Class<T> fieldType) throws IllegalAccessException {
+        for (Class<?> type = target.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && fieldType.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    return fieldType.cast(field.get(target));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] toIntArray(Collection<Integer> values) {
+        int[] result = new int[values.size()];
+        int i = 0;
+        for (Integer value : values) {
+            result[i++] = value;
+        }
+        return result;
+    }
+
+    private static void setBits(long[] bits, int[] slots) {
+        for (int slot : slots) {
+            setBit(bits, slot);
+        }
+    }
+
+    private static void setBit(long[] bits, int slot) {
+        bits[slot >>> 6] |= 1L << slot;
+    }
+
+    private static boolean isSet(long[] bits, int slot) {
+        return (bits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    enum PatternKind {
+        EXACT, PREFIX, SUFFIX, CONTAINS, RESIDUAL
+    }
+
+    static class Pattern {
+        final PatternKind kind;
+        final String value;
+        @Nullable
+        final ElementMatcher<?> residual;
+
+        Pattern(PatternKind kind, String value) {
+            this(kind, value, null);
+        }
+
+        private Pattern(PatternKind kind, String value, @Nullable ElementMatcher<?> residual) {
+            this.kind = kind;
+            this.value = value;
+            this.residual = residual;
+        }
+
+        static Pattern residual(ElementMatcher<?> matcher) {
+            return new Pattern(PatternKind.RESIDUAL, matcher.toString(), matcher);
+        }
+
+        @Override
+        public String toString() {
+            return kind + "(" + value + ")";
+        }
+    }
+
+    private static class ResidualMatcher {
+        private final int slot;
+        private final ElementMatcher<? super NamedElement> matcher;
+
+        @SuppressWarnings("unchecked")
+        private ResidualMatcher(int slot, @Nullable ElementMatcher<?> matcher) {
+            this.slot = slot;
+            this.matcher = (ElementMatcher<? super NamedElement>) matcher;
+        }
+    }
+
+    private static class Candidates {
+        private final long[] bits;
+        @Nullable
+        private String typeName;
+        private boolean lookupInProgress;
+
+        private Candidates(int words) {
+            bits = new long[words];
+        }
+    }
+
+    /**
+     * A node of a character trie.
+     * The children are kept in a sorted array, which is compact and fast to search for the small alphabets of type names.
+     * For the substring trie, the nodes additionally hold the failure links of an Aho-Corasick automaton.
+     */
+    private static class TrieNode {
+        private static final int[] NO_OUTPUTS = new int[0];
+
+        private char[] labels = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private int[] outputs = NO_OUTPUTS;
+        @Nullable
+        private TrieNode failure;
+
+        TrieNode insert(String value, boolean reverse) {
+            TrieNode node = this;
+            for (int i = 0, length = value.length(); i < length; i++) {
+                node = node.getOrCreateChild(value.charAt(reverse ? length - 1 - i : i));
+            }
+            return node;
+        }
+
+        void addOutput(int slot) {
+            outputs = Arrays.copyOf(outputs, outputs.length + 1);
+            outputs[outputs.length - 1] = slot;
+        }
+
+        @Nullable
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private TrieNode getOrCreateChild(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertionPoint = -index - 1;
+            TrieNode child = new TrieNode();
+            char[] newLabels = new char[labels.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            newLabels[insertionPoint] = c;
+            newChildren[insertionPoint] = child;
+            System.arraycopy(labels, insertionPoint, newLabels, insertionPoint + 1, labels.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+
+        /**
+         * Computes the failure links in breadth-first order and merges the outputs of each node's failure chain into the node,
+         * so that the automaton reports all substrings that end at a given position with a single output array.
+         * Must only be called on the root node.
+         */
+        void buildFailureLinks() {
+            Queue<TrieNode> queue = new ArrayDeque<>();
+            for (TrieNode child : children) {
+                child.failure = this;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                TrieNode node = queue.remove();
+                for (int i = 0; i < node.labels.length; i++) {
+                    TrieNode child = node.children[i];
+                    child.failure = next(node.failure, node.labels[i]);
+                    child.mergeOutputs(child.failure.outputs);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * Advances the automaton by one character.
+         * Must only be called on the root node.
+         */
+        TrieNode next(@Nullable TrieNode node, char c) {
+            while (node != null) {
+                TrieNode child = node.child(c);
+                if (child != null) {
+                    return child;
+                }
+                node = node.failure;
+            }
+            return this;
+        }
+
+        private void mergeOutputs(int[] additionalOutputs) {
+            if (additionalOutputs.length > 0) {
+                int[] merged = Arrays.copyOf(outputs, outputs.length + additionalOutputs.length);
+                System.arraycopy(additionalOutputs, 0, merged, outputs.length, additionalOutputs.length);
+                outputs = merged;
+            }
+        }
+    }
+}
@@ -18,9 +18,13 @@
  */
 package co.elastic.apm.agent.collections;
 
+import co.elastic.apm.agent.sdk.internal.collections.LRUCache;
 import co.elastic.apm.agent.sdk.internal.collections.LRUCacheFactory;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 
 public class LRUCacheFactoryImpl implements LRUCacheFactory {
@@ -31,4 +35,27 @@ public class LRUCacheFactoryImpl implements LRUCacheFactory {
             .maximumWeightedCapacity(capacity)
             .build();
     }
+
+    @Override
+    public <K, V> Map<K, V> createWeightedCache(long maxWeight, final LRUCache.Weigher<? super K, ? super V> weigher,
+                                               @Nullable final LRUCache.EvictionListener<? super K, ? super V> evictionListener) {
+        ConcurrentLinkedHashMap.Builder<K, V> builder = new ConcurrentLinkedHashMap.Builder<K, V>()
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .maximumWeightedCapacity(maxWeight)
+            .weigher(new EntryWeigher<K, V>() {
+                @Override
+                public int weightOf(K key, V value) {
+                    return weigher.weightOf(key, value);
+                }
+            });
+        if (evictionListener != null) {
+            builder.listener(new EvictionListener<K, V>() {
+                @Override
+                public void onEviction(K key, V value) {
+                    evictionListener.onEviction(key, value);
+                }
+            });
+        }
+        return builder.build();
+    }
 }
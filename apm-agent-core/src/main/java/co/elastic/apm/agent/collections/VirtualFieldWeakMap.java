@@ -0,0 +1,262 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static co.elastic.apm.agent.collections.NullCheck.isNullKey;
+import static co.elastic.apm.agent.collections.NullCheck.isNullValue;
+
+/**
+ * A {@link WeakMap} which stores the values in a virtual field of the keys, see {@link VirtualFields}.
+ * The values of keys whose class doesn't have the virtual field are stored in a regular weak map.
+ * <p>
+ * Reading a value is a single interface call and an array access, there is no hashing involved and no weak reference is created.
+ * The array of virtual fields is created when the first value is stored for a key.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class VirtualFieldWeakMap<K, V> implements WeakMap<K, V> {
+
+    /**
+     * Only used to create the array of virtual fields, which happens once per key
+     */
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    private final int index;
+    private final WeakMap<K, V> fallback;
+    @Nullable
+    private final DefaultValueSupplier<K, V> defaultValueSupplier;
+
+    VirtualFieldWeakMap(int index, WeakMap<K, V> fallback, @Nullable DefaultValueSupplier<K, V> defaultValueSupplier) {
+        this.index = index;
+        this.fallback = fallback;
+        this.defaultValueSupplier = defaultValueSupplier;
+    }
+
+    @Nullable
+    @Override
+    public V get(K key) {
+        if (isNullKey(key)) {
+            return null;
+        }
+        if (!Accessor.hasVirtualFields(key)) {
+            return fallback.get(key);
+        }
+        V value = getValue(key);
+        if (value == null && defaultValueSupplier != null) {
+            value = defaultValueSupplier.getDefaultValue(key);
+            if (value != null) {
+                V previous = putIfAbsent(key, value);
+                if (previous != null) {
+                    value = previous;
+                }
+            }
+        }
+        return value;
+    }
+
+    @Nullable
+    @Override
+    public V put(K key, V value) {
+        if (isNullKey(key) || isNullValue(value)) {
+            return null;
+        }
+        if (!Accessor.hasVirtualFields(key)) {
+            return fallback.put(key, value);
+        }
+        @SuppressWarnings("unchecked")
+        V previous = (V) getOrCreateFields(key).getAndSet(index, value);
+        return previous;
+    }
+
+    @Nullable
+    @Override
+    public V putIfAbsent(K key, V value) {
+        if (isNullKey(key) || isNullValue(value)) {
+            return null;
+        }
+        if (!Accessor.hasVirtualFields(key)) {
+            return fallback.putIfAbsent(key, value);
+        }
+        AtomicReferenceArray<Object> fields = getOrCreateFields(key);
+        while (true) {
+            if (fields.compareAndSet(index, null, value)) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            V existing = (V) fields.get(index);
+            if (existing != null) {
+                return existing;
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public V remove(K key) {
+        if (isNullKey(key)) {
+            return null;
+        }
+        if (!Accessor.hasVirtualFields(key)) {
+            return fallback.remove(key);
+        }
+        AtomicReferenceArray<Object> fields = Accessor.getFields(key);
+        if (fields == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V previous = (V) fields.getAndSet(index, null);
+        return previous;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        if (isNullKey(key)) {
+            return false;
+        }
+        if (!Accessor.hasVirtualFields(key)) {
+            return fallback.containsKey(key);
+        }
+        return getValue(key) != null;
+    }
+
+    /**
+     * Only clears the values of the keys without virtual fields
+     */
+    @Override
+    public void clear() {
+        fallback.clear();
+    }
+
+    /**
+     * @return the number of keys without virtual fields
+     */
+    @Override
+    public int approximateSize() {
+        return fallback.approximateSize();
+    }
+
+    /**
+     * @return an iterator over the entries of the keys without virtual fields
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return fallback.iterator();
+    }
+
+    @Nullable
+    private V getValue(K key) {
+        AtomicReferenceArray<Object> fields = Accessor.getFields(key);
+        if (fields == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V value = (V) fields.get(index);
+        return value;
+    }
+
+    private static AtomicReferenceArray<Object> getOrCreateFields(Object key) {
+        AtomicReferenceArray<Object> fields = Accessor.getFields(key);
+        if (fields != null) {
+            return fields;
+        }
+        synchronized (LOCKS[System.identityHashCode(key) & (LOCKS.length - 1)]) {
+            fields = Accessor.getFields(key);
+            if (fields == null) {
+                fields = new AtomicReferenceArray<>(VirtualFields.size());
+                Accessor.setFields(key, fields);
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Calls the accessors of the virtual field through method handles, as the holder interface is defined at runtime.
+     * The method handles are constants, so that the JIT compiler can inline them.
+     * This class is initialized with the first virtual field map, which is only created after the holder interface has been injected.
+     */
+    private static class Accessor {
+
+        @Nullable
+        private static final Class<?> HOLDER;
+        @Nullable
+        private static final MethodHandle GETTER;
+        @Nullable
+        private static final MethodHandle SETTER;
+
+        static {
+            Class<?> holder = null;
+            MethodHandle getter = null;
+            MethodHandle setter = null;
+            try {
+                holder = Class.forName(VirtualFields.HOLDER_CLASS_NAME, false, null);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                getter = lookup.findVirtual(holder, VirtualFields.GETTER_NAME, MethodType.methodType(Object.class))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+                setter = lookup.findVirtual(holder, VirtualFields.SETTER_NAME, MethodType.methodType(void.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (Exception ignore) {
+                // all values are stored in the fallback maps
+                holder = null;
+            }
+            HOLDER = holder;
+            GETTER = getter;
+            SETTER = setter;
+        }
+
+        static boolean hasVirtualFields(Object key) {
+            return HOLDER != null && HOLDER.isInstance(key);
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        static AtomicReferenceArray<Object> getFields(Object key) {
+            try {
+                return (AtomicReferenceArray<Object>) (Object) GETTER.invokeExact(key);
+            } catch (Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+        }
+
+        static void setFields(Object key, AtomicReferenceArray<Object> fields) {
+            try {
+                SETTER.invokeExact(key, (Object) fields);
+            } catch (Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+        }
+    }
+}
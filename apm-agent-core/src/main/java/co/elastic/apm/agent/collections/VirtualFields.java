@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registry of the virtual fields, which back the weak maps built with {@link WeakConcurrent.WeakMapBuilder#withVirtualField(String)}.
+ * <p>
+ * All virtual fields share a single synthetic field, {@link #FIELD_NAME}, which the agent adds to the classes of the keys.
+ * It holds an array with one element per virtual field, the index of a virtual field is assigned when the registry is initialized.
+ * The field is accessed through the {@link #HOLDER_CLASS_NAME} interface, which is injected into the bootstrap class loader,
+ * so that classes of any class loader can implement it.
+ * </p>
+ */
+public class VirtualFields {
+
+    /**
+     * The interface is in {@code java.lang}, as the other class loaders, like OSGi ones, may only delegate {@code java.*} to the bootstrap class loader.
+     */
+    public static final String HOLDER_CLASS_NAME = "java.lang.ElasticApmVirtualFieldHolder";
+    public static final String FIELD_NAME = "elasticApmVirtualFields$";
+    public static final String GETTER_NAME = "getElasticApmVirtualFields";
+    public static final String SETTER_NAME = "setElasticApmVirtualFields";
+
+    private static volatile Map<String, Integer> indices = Collections.emptyMap();
+
+    private VirtualFields() {
+    }
+
+    /**
+     * Assigns the indices of the virtual fields.
+     * The registry can only be initialized once, as the arrays of the instances which already have virtual fields can't be resized.
+     *
+     * @param fieldNames the names of all virtual fields
+     * @return {@literal true} if the registry has been initialized, {@literal false} if it has already been initialized before
+     */
+    public static synchronized boolean init(Collection<String> fieldNames) {
+        if (!indices.isEmpty()) {
+            return false;
+        }
+        Map<String, Integer> newIndices = new HashMap<>();
+        for (String fieldName : fieldNames) {
+            if (!newIndices.containsKey(fieldName)) {
+                newIndices.put(fieldName, newIndices.size());
+            }
+        }
+        indices = newIndices;
+        return true;
+    }
+
+    /**
+     * @param fieldName the name of a virtual field
+     * @return the index of the virtual field, or {@code -1} if the virtual field is not registered
+     */
+    static int indexOf(String fieldName) {
+        Integer index = indices.get(fieldName);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return the number of registered virtual fields
+     */
+    static int size() {
+        return indices.size();
+    }
+}
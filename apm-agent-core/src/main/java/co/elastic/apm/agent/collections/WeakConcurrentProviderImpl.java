@@ -50,6 +50,8 @@ public class WeakConcurrentProviderImpl implements WeakConcurrent.WeakConcurrent
             @Nullable
             private WeakMap.DefaultValueSupplier<K, V> defaultValueSupplier;
             private int initialCapacity = 16;
+            @Nullable
+            private String virtualFieldName;
             @Override
             public WeakConcurrent.WeakMapBuilder<K, V> withInitialCapacity(int initialCapacity) {
                 this.initialCapacity = initialCapacity;
@@ -62,10 +64,20 @@ public class WeakConcurrentProviderImpl implements WeakConcurrent.WeakConcurrent
                 return this;
             }
 
+            @Override
+            public WeakConcurrent.WeakMapBuilder<K, V> withVirtualField(String fieldName) {
+                this.virtualFieldName = fieldName;
+                return this;
+            }
+
             @Override
             public WeakMap<K, V> build() {
                 NullSafeWeakConcurrentMap<K, V> map = new NullSafeWeakConcurrentMap<K, V>(new ConcurrentHashMap<AbstractWeakConcurrentMap.WeakKey<K>, V>(initialCapacity), defaultValueSupplier);
                 registeredMaps.add(map);
+                int virtualFieldIndex = virtualFieldName != null ? VirtualFields.indexOf(virtualFieldName) : -1;
+                if (virtualFieldIndex >= 0) {
+                    return new VirtualFieldWeakMap<K, V>(virtualFieldIndex, map, defaultValueSupplier);
+                }
                 return map;
             }
         };
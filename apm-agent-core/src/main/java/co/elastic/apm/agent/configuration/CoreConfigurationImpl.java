@@ -31,6 +31,7 @@ import co.elastic.apm.agent.tracer.configuration.RegexValidator;
 import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
@@ -269,7 +270,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .buildWithDefault(DEFAULT_LONG_FIELD_MAX_LENGTH);
 
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -297,7 +298,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -311,7 +312,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             WildcardMatcher.valueOf("*principal*"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> enabledInstrumentations = ConfigurationOption.stringsOption()
         .key("enable_instrumentations")
@@ -505,6 +506,16 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "for example when a javax.servlet.Servlet does not contain the word 'Servlet' in the class name.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> typeMatchingPreFilterIndex = ConfigurationOption.booleanOption()
+        .key("enable_type_matching_pre_filter_index")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("internal")
+        .description("When enabled, compiles the name-based pre-filters of all instrumentations into a single index.\n" +
+            "Instead of evaluating the pre-filters of every instrumentation for each loaded type,\n" +
+            "one lookup per type determines which instrumentations may match.\n" +
+            "Only has an effect if 'enable_type_matching_name_pre_filtering' is enabled.")
+        .buildWithDefault(true);
+
     private final ConfigurationOption<Boolean> classLoadingMatchingPreFilter = ConfigurationOption.booleanOption()
         .key("enable_class_loading_pre_filtering")
         .configurationCategory(CORE_CATEGORY)
@@ -891,6 +902,53 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .tags("internal")
         .buildWithDefault(false);
 
+    private final ConfigurationOption<Boolean> adaptiveObjectPools = ConfigurationOption.booleanOption()
+        .key("adaptive_object_pools")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Whether to use adaptive object pools for transactions, spans and errors.\n" +
+            "\n" +
+            "Adaptive pools cache recycled objects per thread, which reduces the contention on the pools in highly concurrent applications.\n" +
+            "The number of pooled objects grows and shrinks with the allocation rate, and shrinks if the JVM spends a significant share of time in GC.\n" +
+            "The pool sizes are reported as part of the `agent_background_overhead_metrics`.\n" +
+            "\n" +
+            "In addition to the shared pool, each thread which creates or recycles these objects keeps up to 32 of each type,\n" +
+            "so the heap footprint of the pools grows with the number of threads, for example the request threads of a servlet container.")
+        .dynamic(false)
+        .tags("added[1.56.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<String> typeMatchingCacheDir = ConfigurationOption.stringOption()
+        .key("type_matching_cache_dir")
+        .configurationCategory(CORE_CATEGORY)
+        .description("A directory to remember the classes which don't match any instrumentation across restarts of the application.\n" +
+            "\n" +
+            "Most classes an application loads are not instrumented by the agent.\n" +
+            "If this option is set, these classes are stored in a memory-mapped file in this directory,\n" +
+            "so that the agent can skip their type matching after the next start.\n" +
+            "A class is identified by its name, a hash of its class file and the type of its class loader.\n" +
+            "The file is discarded when the agent version or the instrumentation related configuration,\n" +
+            "such as `disable_instrumentations`, changes.\n" +
+            "\n" +
+            "Changes to the super types of a class are not detected if the class file itself doesn't change.\n" +
+            "Delete the directory after updating libraries whose types the application's classes extend.")
+        .dynamic(false)
+        .tags("added[1.56.0]", "experimental")
+        .build();
+
+    private final ConfigurationOption<Boolean> virtualFields = ConfigurationOption.booleanOption()
+        .key("virtual_fields")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Whether to store the state the agent keeps for objects of instrumented libraries, like the SQL of JDBC statements,\n" +
+            "in fields which are added to the library classes when they are loaded.\n" +
+            "\n" +
+            "Otherwise, this state is stored in weak maps, which hash the objects, allocate a weak reference per object and have to be cleaned up periodically.\n" +
+            "Fields can only be added to classes which are loaded after the agent, so this option only has an effect\n" +
+            "when the agent is started with the `-javaagent` flag and not when it is attached at runtime.\n" +
+            "The state of objects whose classes are loaded before the agent, or are serializable, is still stored in weak maps.")
+        .dynamic(false)
+        .tags("added[1.56.0]", "experimental")
+        .buildWithDefault(false);
+
     public boolean isEnabled() {
         return enabled.get();
     }
@@ -1042,6 +1100,15 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         return typeMatchingWithNamePreFilter.get();
     }
 
+    public boolean isTypeMatchingPreFilterIndex() {
+        return typeMatchingPreFilterIndex.get();
+    }
+
+    @Nullable
+    public String getTypeMatchingCacheDir() {
+        return typeMatchingCacheDir.get();
+    }
+
     public boolean isClassLoadingMatchingPreFilter() {
         return classLoadingMatchingPreFilter.get();
     }
@@ -1229,4 +1296,12 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
     public boolean isCaptureThreadOnStart() {
         return captureThreadOnStart.get();
     }
+
+    public boolean isAdaptiveObjectPools() {
+        return adaptiveObjectPools.get();
+    }
+
+    public boolean isVirtualFields() {
+        return virtualFields.get();
+    }
 }
@@ -100,11 +100,25 @@ public class MetricsConfigurationImpl extends ConfigurationOptionProvider implem
     private final ConfigurationOption<Boolean> overheadMetricsEnabled = ConfigurationOption.booleanOption()
         .key("agent_background_overhead_metrics")
         .configurationCategory(METRICS_CATEGORY)
-        .description("Enables metrics which capture the resource consumption of agent background tasks.")
+        .description("Enables metrics which capture the resource consumption of agent background tasks\n" +
+            "and the effectiveness of the agent's internal caches, such as the SQL signature cache.")
         .tags("added[1.35.0]")
         .dynamic(false)
         .buildWithDefault(false);
 
+    private final ConfigurationOption<Boolean> durationHistograms = ConfigurationOption.booleanOption()
+        .key("duration_histograms")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("Enables the `transaction.duration.histogram` and `span.duration.histogram` metrics.\n" +
+            "\n" +
+            "The histograms record the duration of every transaction and span, including the ones which are not sampled.\n" +
+            "This allows to compute accurate latency percentiles even with a low `transaction_sample_rate`.\n" +
+            "The histograms are grouped by service, transaction name and type, and for spans additionally by span type and subtype.\n" +
+            "They use log-linear buckets with a relative error of at most 6.25%.")
+        .tags("added[1.56.0]", "experimental")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     @Override
     public boolean isDedotCustomMetrics() {
         return dedotCustomMetrics.get();
@@ -122,6 +136,10 @@ public class MetricsConfigurationImpl extends ConfigurationOptionProvider implem
         return overheadMetricsEnabled.get();
     }
 
+    public boolean isDurationHistogramsEnabled() {
+        return durationHistograms.get();
+    }
+
     @Override
     public List<Double> getCustomMetricsHistogramBoundaries() {
         return customMetricsHistogramBoundaries.get();
@@ -48,6 +48,8 @@ import co.elastic.apm.agent.tracer.LifecycleListener;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
 import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.sampling.PresampledSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
@@ -89,6 +91,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -152,6 +155,7 @@ public class ElasticApmTracer implements Tracer {
     private final ScheduledThreadPoolExecutor sharedPool;
     private final int approximateContextSize;
     private Sampler sampler;
+    private Sampler presampledSampler;
     boolean assertionsEnabled = false;
 
     /**
@@ -256,10 +260,12 @@ public class ElasticApmTracer implements Tracer {
         });
 
         sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
+        presampledSampler = PresampledSampler.of(sampler);
         coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
                 sampler = ProbabilitySampler.of(newValue);
+                presampledSampler = PresampledSampler.of(sampler);
             }
         });
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
@@ -328,6 +334,49 @@ public class ElasticApmTracer implements Tracer {
         return startChildTransaction(headerCarrier, headersGetter, sampler, epochMicros, initiatingClassLoader);
     }
 
+    @Override
+    @Nullable
+    public <T, C> TransactionImpl startSampledChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter, @Nullable ClassLoader initiatingClassLoader) {
+        if (!isRunning()) {
+            return null;
+        }
+        Sampler presampledSampler = this.presampledSampler;
+        Boolean parentSampled = headerCarrier != null ? TraceContextImpl.isParentSampled(headerCarrier, headerGetter) : null;
+        if (parentSampled == null) {
+            // equivalent to the ProbabilitySampler's decision, which relies on the trace id being random
+            double sampleRate = presampledSampler.getSampleRate();
+            if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                return startNonRecordingChildTransaction(headerCarrier, headerGetter, initiatingClassLoader);
+            }
+        } else if (!parentSampled) {
+            return startNonRecordingChildTransaction(headerCarrier, headerGetter, initiatingClassLoader);
+        }
+        return startChildTransaction(headerCarrier, headerGetter, presampledSampler, -1, initiatingClassLoader);
+    }
+
+    /**
+     * Starts an unsampled transaction which is not reported, so that the trace context and baggage of the upstream service
+     * are propagated to downstream services, instead of those starting new traces.
+     *
+     * @return the non-recording transaction, or {@code null} if the carrier doesn't contain context headers to propagate
+     */
+    @Nullable
+    private <T, C> TransactionImpl startNonRecordingChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter,
+                                                                     @Nullable ClassLoader initiatingClassLoader) {
+        if (headerCarrier == null
+            || (headerGetter.getFirstHeader(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, headerCarrier) == null
+            && headerGetter.getFirstHeader(TraceContextImpl.ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, headerCarrier) == null
+            && headerGetter.getFirstHeader(W3CBaggagePropagation.BAGGAGE_HEADER_NAME, headerCarrier) == null)) {
+            return null;
+        }
+        // the sampler is only used if there is no valid parent
+        TransactionImpl transaction = startChildTransaction(headerCarrier, headerGetter, ConstantSampler.of(false), -1, initiatingClassLoader);
+        if (transaction != null) {
+            transaction.ignoreTransaction();
+        }
+        return transaction;
+    }
+
     /**
      * Starts a transaction as a child of the context headers obtained through the provided {@link HeaderGetter}.
      * If the created transaction cannot be started as a child transaction (for example - if no parent context header is
@@ -1099,6 +1148,16 @@ public class ElasticApmTracer implements Tracer {
         metricRegistry.add(name, labels, supplier);
     }
 
+    @Override
+    public void addToCounter(String name, Labels.Immutable labels, long count) {
+        metricRegistry.addToCounter(name, labels, count);
+    }
+
+    @Override
+    public void updateHistogram(String name, Labels.Immutable labels, long value) {
+        metricRegistry.updateHistogram(name, labels, value);
+    }
+
     @Override
     public void submit(Runnable job) {
         sharedPool.submit(job);
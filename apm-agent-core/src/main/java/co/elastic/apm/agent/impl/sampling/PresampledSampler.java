@@ -0,0 +1,61 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.IdImpl;
+
+/**
+ * A {@link Sampler} which samples every transaction, but reports the sample rate of another {@link Sampler}.
+ * <p>
+ * It is used if it has already been decided to sample a transaction, with the probability of the other sampler's sample rate,
+ * before the transaction is started. This keeps the sample rate which is propagated and used to extrapolate metrics accurate.
+ * </p>
+ */
+public class PresampledSampler implements Sampler {
+
+    private final double sampleRate;
+    private final String traceStateHeader;
+
+    private PresampledSampler(Sampler sampler) {
+        this.sampleRate = sampler.getSampleRate();
+        this.traceStateHeader = sampler.getTraceStateHeader();
+    }
+
+    public static Sampler of(Sampler sampler) {
+        if (sampler instanceof ConstantSampler) {
+            return sampler;
+        }
+        return new PresampledSampler(sampler);
+    }
+
+    @Override
+    public boolean isSampled(IdImpl traceId) {
+        return true;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return traceStateHeader;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Captures the stack trace of the current thread with {@code java.lang.StackWalker}, which is available as of Java 9.
+ * <p>
+ * In contrast to {@link Throwable#getStackTrace()}, which materializes all frames of the stack,
+ * the walk stops as soon as the max number of frames has been collected.
+ * Frames of the agent, reflection frames and frames which would not be serialized anyway are skipped during the walk.
+ * </p>
+ * <p>
+ * As the agent is compiled for Java 7, {@code StackWalker} is invoked via method handles
+ * and the {@code java.util.function.Function} which consumes the stack frames is a {@link Proxy}.
+ * </p>
+ */
+public class StackTraceCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackTraceCapture.class);
+
+    private static final List<String> excludedStackFramesPrefixes = Arrays.asList("java.lang.reflect.", "com.sun.", "sun.", "jdk.internal.");
+    private static final StackTraceElement[] EMPTY = new StackTraceElement[0];
+
+    @Nullable
+    private static final Object stackWalker;
+    @Nullable
+    private static final Class<?> functionClass;
+    @Nullable
+    private static final MethodHandle walk;
+    @Nullable
+    private static final MethodHandle streamIterator;
+    @Nullable
+    private static final MethodHandle getClassName;
+    @Nullable
+    private static final MethodHandle getFileName;
+    @Nullable
+    private static final MethodHandle toStackTraceElement;
+
+    /**
+     * The function for the last used max depth, it's very likely that it's the same for the next capture
+     */
+    @Nullable
+    private static volatile CollectStackFrames collectStackFrames;
+
+    static {
+        Object walker = null;
+        Class<?> function = null;
+        MethodHandle walkHandle = null;
+        MethodHandle iteratorHandle = null;
+        MethodHandle classNameHandle = null;
+        MethodHandle fileNameHandle = null;
+        MethodHandle stackTraceElementHandle = null;
+        try {
+            Class<?> stackWalkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> stackFrameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            Class<?> streamClass = Class.forName("java.util.stream.Stream");
+            function = Class.forName("java.util.function.Function");
+            // StackWalker#walk is caller-sensitive, it can't be looked up with the public lookup
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            // without the SHOW_REFLECT_FRAMES and SHOW_HIDDEN_FRAMES options, reflection frames are skipped
+            walker = lookup.findStatic(stackWalkerClass, "getInstance", MethodType.methodType(stackWalkerClass)).invoke();
+            walkHandle = lookup.findVirtual(stackWalkerClass, "walk", MethodType.methodType(Object.class, function))
+                .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            iteratorHandle = lookup.findVirtual(streamClass, "iterator", MethodType.methodType(Iterator.class))
+                .asType(MethodType.methodType(Iterator.class, Object.class));
+            classNameHandle = lookup.findVirtual(stackFrameClass, "getClassName", MethodType.methodType(String.class))
+                .asType(MethodType.methodType(String.class, Object.class));
+            fileNameHandle = lookup.findVirtual(stackFrameClass, "getFileName", MethodType.methodType(String.class))
+                .asType(MethodType.methodType(String.class, Object.class));
+            stackTraceElementHandle = lookup.findVirtual(stackFrameClass, "toStackTraceElement", MethodType.methodType(StackTraceElement.class))
+                .asType(MethodType.methodType(StackTraceElement.class, Object.class));
+        } catch (ClassNotFoundException e) {
+            // Java 7 and 8
+            walker = null;
+        } catch (Throwable e) {
+            logger.warn("Failed to look up StackWalker, falling back to capturing span stack traces with a Throwable", e);
+            walker = null;
+        }
+        stackWalker = walker;
+        functionClass = function;
+        walk = walkHandle;
+        streamIterator = iteratorHandle;
+        getClassName = classNameHandle;
+        getFileName = fileNameHandle;
+        toStackTraceElement = stackTraceElementHandle;
+    }
+
+    private StackTraceCapture() {
+    }
+
+    public static boolean isStackWalkerAvailable() {
+        return stackWalker != null;
+    }
+
+    /**
+     * Captures the stack trace of the current thread, without the top-most frames of the agent and without
+     * {@linkplain #isExcluded(String, String) excluded frames}.
+     *
+     * @param maxDepth the max number of frames to capture, a negative value means all frames
+     * @return the stack trace, or {@code null} if {@code StackWalker} is not available
+     */
+    @Nullable
+    public static StackTraceElement[] capture(int maxDepth) {
+        Object stackWalker = StackTraceCapture.stackWalker;
+        if (stackWalker == null) {
+            return null;
+        }
+        if (maxDepth == 0) {
+            return EMPTY;
+        }
+        CollectStackFrames collectStackFrames = StackTraceCapture.collectStackFrames;
+        if (collectStackFrames == null || collectStackFrames.maxDepth != maxDepth) {
+            collectStackFrames = new CollectStackFrames(maxDepth);
+            StackTraceCapture.collectStackFrames = collectStackFrames;
+        }
+        try {
+            Object stackTrace = walk.invokeExact(stackWalker, collectStackFrames.function);
+            return (StackTraceElement[]) stackTrace;
+        } catch (Throwable e) {
+            logger.debug("Failed to capture stack trace", e);
+            return null;
+        }
+    }
+
+    public static boolean isExcluded(String className, @Nullable String fileName) {
+        // file name is a required field
+        if (fileName == null) {
+            return true;
+        }
+        for (int i = 0, size = excludedStackFramesPrefixes.size(); i < size; i++) {
+            if (className.startsWith(excludedStackFramesPrefixes.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StackTraceElement[] collect(Object stackFrames, int maxDepth) throws Throwable {
+        Iterator<?> iterator = (Iterator<?>) streamIterator.invokeExact(stackFrames);
+        List<StackTraceElement> stackTrace = new ArrayList<>(maxDepth > 0 ? maxDepth : 16);
+        boolean topMostElasticApmPackagesSkipped = false;
+        while (iterator.hasNext() && (maxDepth < 0 || stackTrace.size() < maxDepth)) {
+            Object stackFrame = iterator.next();
+            String className = (String) getClassName.invokeExact(stackFrame);
+            // only skip the top most apm stack frames
+            if (!topMostElasticApmPackagesSkipped && className.startsWith("co.elastic.apm")) {
+                continue;
+            }
+            topMostElasticApmPackagesSkipped = true;
+            if (!isExcluded(className, (String) getFileName.invokeExact(stackFrame))) {
+                stackTrace.add((StackTraceElement) toStackTraceElement.invokeExact(stackFrame));
+            }
+        }
+        return stackTrace.toArray(EMPTY);
+    }
+
+    /**
+     * Implements {@code java.util.function.Function<Stream<StackFrame>, StackTraceElement[]>} via a {@link Proxy}.
+     */
+    private static class CollectStackFrames implements InvocationHandler {
+
+        private final int maxDepth;
+        private final Object function;
+
+        private CollectStackFrames(int maxDepth) {
+            this.maxDepth = maxDepth;
+            this.function = Proxy.newProxyInstance(functionClass.getClassLoader(), new Class<?>[]{functionClass}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "apply":
+                    return collect(args[0], maxDepth);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CollectStackFrames(maxDepth=" + maxDepth + ")";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
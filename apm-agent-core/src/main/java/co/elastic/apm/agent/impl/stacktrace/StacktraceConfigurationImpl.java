@@ -18,6 +18,8 @@
  */
 package co.elastic.apm.agent.impl.stacktrace;
 
+import co.elastic.apm.agent.tracer.configuration.ByteValue;
+import co.elastic.apm.agent.tracer.configuration.ByteValueConverter;
 import co.elastic.apm.agent.tracer.configuration.StacktraceConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
@@ -99,6 +101,17 @@ public class StacktraceConfigurationImpl extends ConfigurationOptionProvider imp
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("5ms"));
 
+    private final ConfigurationOption<ByteValue> stackTraceCacheSize = ByteValueConverter.byteOption()
+        .key("stack_trace_cache_size")
+        .tags("internal")
+        .configurationCategory(STACKTRACE_CATEGORY)
+        .description("The maximum memory used to cache the serialized JSON of recurring stack frames and stack traces.\n" +
+            "Setting it to `0b` disables the cache.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("2mb"));
+
     @Override
     public Collection<String> getApplicationPackages() {
         return applicationPackages.get();
@@ -121,4 +134,8 @@ public class StacktraceConfigurationImpl extends ConfigurationOptionProvider imp
         }
         return spanStackTraceMinDurationMs.getValue().getMillis();
     }
+
+    public long getStackTraceCacheSizeBytes() {
+        return stackTraceCacheSize.get().getBytes();
+    }
 }
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.context.AbstractContextImpl;
@@ -199,6 +200,16 @@ public abstract class AbstractSpanImpl<T extends AbstractSpanImpl<T>> extends Ab
         collectBreakdownMetrics = selfTimeCollectionEnabled && breakdownMetricsEnabled;
     }
 
+    /**
+     * @param tracer     the tracer
+     * @param metricName the name of the histogram metric, as it is reported, for example {@code transaction.duration.histogram}
+     * @return {@code true} if {@code duration_histograms} is enabled and the metric is not disabled via {@code disable_metrics}
+     */
+    static boolean isDurationHistogramEnabled(ElasticApmTracer tracer, String metricName) {
+        return tracer.getConfig(MetricsConfigurationImpl.class).isDurationHistogramsEnabled()
+            && !WildcardMatcher.isAnyMatch(tracer.getConfig(ReporterConfigurationImpl.class).getDisableMetrics(), metricName);
+    }
+
     @Override
     public boolean isFinished() {
         return finished;
@@ -604,7 +615,7 @@ public abstract class AbstractSpanImpl<T extends AbstractSpanImpl<T>> extends Ab
     /**
      * @return true if an exception has been captured
      */
-    protected boolean hasCapturedExceptions() {
+    public boolean hasCapturedExceptions() {
         return hasCapturedExceptions;
     }
 
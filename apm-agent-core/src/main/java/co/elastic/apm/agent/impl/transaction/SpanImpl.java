@@ -26,12 +26,14 @@ import co.elastic.apm.agent.impl.context.MessageImpl;
 import co.elastic.apm.agent.impl.context.ServiceTargetImpl;
 import co.elastic.apm.agent.impl.context.SpanContextImpl;
 import co.elastic.apm.agent.impl.context.UrlImpl;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceCapture;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.Outcome;
 import co.elastic.apm.agent.tracer.Span;
 import co.elastic.apm.agent.tracer.SpanEndListener;
+import co.elastic.apm.agent.tracer.metrics.Labels;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 import co.elastic.apm.agent.tracer.util.ResultUtil;
 import co.elastic.apm.agent.util.CharSequenceUtils;
@@ -55,6 +57,11 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     public static final long MAX_LOG_INTERVAL_MICRO_SECS = TimeUnit.MINUTES.toMicros(5);
     private static long lastSpanMaxWarningTimestamp;
     private final StacktraceConfigurationImpl stacktraceConfiguration;
+    private final boolean collectDurationHistogram;
+    /**
+     * Mutable labels instance used when reporting the span duration histogram.
+     */
+    private final Labels.Mutable histogramLabels = Labels.Mutable.of();
 
     /**
      * A subtype describing this span (eg 'mysql', 'elasticsearch', 'jsf' etc)
@@ -77,6 +84,12 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     private final Composite composite = new Composite();
     @Nullable
     private Throwable stacktrace;
+    /**
+     * The already filtered and depth-limited stack trace captured via {@link StackTraceCapture} when the span ended.
+     * Set instead of {@link #stacktrace} on JVMs which support {@code java.lang.StackWalker}.
+     */
+    @Nullable
+    private StackTraceElement[] stackTraceElements;
     @Nullable
     private AbstractSpanImpl<?> parent;
     @Nullable
@@ -102,6 +115,7 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     public SpanImpl(ElasticApmTracer tracer) {
         super(tracer);
         this.stacktraceConfiguration = tracer.getConfig(StacktraceConfigurationImpl.class);
+        this.collectDurationHistogram = isDurationHistogramEnabled(tracer, "span.duration.histogram");
     }
 
     public <T> SpanImpl start(TraceContextImpl.ChildContextCreator<T> childContextCreator, T parentContext, BaggageImpl parentBaggage, long epochMicros) {
@@ -233,9 +247,24 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
         withAction(action);
     }
 
+    /**
+     * Returns the stack trace captured when this span ended.
+     * <p>
+     * Note that when falling back to a {@link Throwable}, the stack trace elements are only materialized when calling this method,
+     * which is typically done on the reporter thread.
+     * </p>
+     *
+     * @return the stack trace of this span, or {@code null} if no stack trace has been captured
+     */
     @Nullable
-    public Throwable getStacktrace() {
-        return stacktrace;
+    public StackTraceElement[] getStackTraceElements() {
+        if (stackTraceElements != null) {
+            return stackTraceElements;
+        }
+        if (stacktrace != null) {
+            return stacktrace.getStackTrace();
+        }
+        return null;
     }
 
     @Override
@@ -294,18 +323,39 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
         if (transaction != null) {
             transaction.incrementTimer(type, subtype, getSelfDuration());
         }
+        if (collectDurationHistogram) {
+            trackDurationHistogram();
+        }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
         }
     }
 
+    private void trackDurationHistogram() {
+        histogramLabels.resetState();
+        histogramLabels.serviceName(traceContext.getServiceName())
+            .serviceVersion(traceContext.getServiceVersion())
+            .spanType(type)
+            .spanSubType(subtype);
+        if (transaction != null) {
+            histogramLabels.transactionName(transaction.name)
+                .transactionType(transaction.getType());
+        }
+        tracer.getMetricRegistry().updateHistogram("span.duration", histogramLabels, getDuration());
+    }
+
     @Override
     protected void afterEnd() {
         // capture stack trace when the span ends, relies on this method being called synchronously from the instrumentation
         long spanStackTraceMinDurationMs = stacktraceConfiguration.getSpanStackTraceMinDurationMs();
         if (spanStackTraceMinDurationMs >= 0 && isSampled() && stackFrames == null) {
             if (getDurationMs() >= spanStackTraceMinDurationMs) {
-                this.stacktrace = new Throwable();
+                StackTraceElement[] stackTrace = StackTraceCapture.capture(stacktraceConfiguration.getStackTraceLimit());
+                if (stackTrace != null) {
+                    this.stackTraceElements = stackTrace;
+                } else {
+                    this.stacktrace = new Throwable();
+                }
             }
         }
 
@@ -512,6 +562,7 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
         composite.resetState();
         endListeners.clear();
         stacktrace = null;
+        stackTraceElements = null;
         subtype = null;
         action = null;
         parent = null;
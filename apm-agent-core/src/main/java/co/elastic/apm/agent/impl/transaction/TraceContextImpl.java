@@ -159,6 +159,50 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         return isValid;
     }
 
+    /**
+     * Reads the sampled flag of the {@code traceparent} header, without parsing the trace and parent id.
+     *
+     * @return whether the parent is sampled, or {@code null} if the carrier doesn't contain a {@code traceparent} header with a flags field
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static <T, C> Boolean isParentSampled(C carrier, HeaderGetter<T, C> headerGetter) {
+        CharAccessor<T> headerValueAccessor;
+        if (headerGetter instanceof TextHeaderGetter) {
+            headerValueAccessor = (CharAccessor<T>) CharAccessor.forCharSequence();
+        } else if (headerGetter instanceof UTF8ByteHeaderGetter) {
+            headerValueAccessor = (CharAccessor<T>) CharAccessor.forAsciiBytes();
+        } else {
+            throw new IllegalArgumentException("HeaderGetter must be either a TextHeaderGetter or UTF8ByteHeaderGetter: " + headerGetter.getClass().getName());
+        }
+        Boolean sampled = null;
+        T traceparent = headerGetter.getFirstHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, carrier);
+        if (traceparent != null) {
+            sampled = readSampledFlag(traceparent, headerValueAccessor);
+        }
+        if (sampled == null) {
+            traceparent = headerGetter.getFirstHeader(ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, carrier);
+            if (traceparent != null) {
+                sampled = readSampledFlag(traceparent, headerValueAccessor);
+            }
+        }
+        return sampled;
+    }
+
+    @Nullable
+    private static <T> Boolean readSampledFlag(T traceParentHeader, CharAccessor<T> charAccessor) {
+        int leadingWs = charAccessor.getLeadingWhitespaceCount(traceParentHeader);
+        if (charAccessor.length(traceParentHeader) - leadingWs < TEXT_HEADER_EXPECTED_LENGTH
+            || charAccessor.charAt(traceParentHeader, leadingWs + TEXT_HEADER_FLAGS_OFFSET - 1) != '-') {
+            return null;
+        }
+        try {
+            return (charAccessor.readHexByte(traceParentHeader, leadingWs + TEXT_HEADER_FLAGS_OFFSET) & FLAG_RECORDED) == FLAG_RECORDED;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     public static <C> boolean containsTraceContextTextHeaders(C carrier, TextHeaderGetter<C> headerGetter) {
         // We assume that this header is always present if we found any of the other headers.
         return headerGetter.getFirstHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, carrier) != null;
@@ -31,6 +31,7 @@ import co.elastic.apm.agent.tracer.Transaction;
 import co.elastic.apm.agent.tracer.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.Timer;
+import co.elastic.apm.agent.report.TailSamplingReporter;
 import co.elastic.apm.agent.tracer.Outcome;
 import co.elastic.apm.agent.tracer.dispatch.HeaderGetter;
 import co.elastic.apm.agent.tracer.util.ResultUtil;
@@ -41,6 +42,7 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static co.elastic.apm.agent.configuration.CoreConfigurationImpl.TraceContinuationStrategy.RESTART;
 import static co.elastic.apm.agent.configuration.CoreConfigurationImpl.TraceContinuationStrategy.RESTART_EXTERNAL;
@@ -77,6 +79,7 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final CoreConfigurationImpl coreConfig;
     private final SpanConfiguration spanConfig;
+    private final boolean collectDurationHistogram;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -120,6 +123,19 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
 
     private final AtomicBoolean wasActivated = new AtomicBoolean();
 
+    /**
+     * Holds the spans of this transaction until {@link TailSamplingReporter} has decided whether to report them.
+     * The spans keep a reference to their transaction,
+     * so that this is not reset until the spans which end after the decision has been made are released as well.
+     */
+    private final AtomicReference<TailSamplingReporter.PendingTrace> pendingTrace = new AtomicReference<>();
+
+    /**
+     * The probability with which {@link TailSamplingReporter} has kept this transaction,
+     * {@code 1} unless the transaction has been kept randomly, based on {@code tail_sampling_keep_rate}
+     */
+    private double tailSamplingKeepRate = 1d;
+
     @Override
     public TransactionImpl getParentTransaction() {
         return this;
@@ -129,6 +145,7 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
         super(tracer);
         coreConfig = tracer.getConfig(CoreConfigurationImpl.class);
         spanConfig = tracer.getConfig(SpanConfiguration.class);
+        collectDurationHistogram = isDurationHistogramEnabled(tracer, "transaction.duration.histogram");
     }
 
     public <T> TransactionImpl startRoot(long epochMicros, Sampler sampler, BaggageImpl baggage) {
@@ -296,6 +313,18 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
         return spanCount;
     }
 
+    public AtomicReference<TailSamplingReporter.PendingTrace> getPendingTrace() {
+        return pendingTrace;
+    }
+
+    public double getTailSamplingKeepRate() {
+        return tailSamplingKeepRate;
+    }
+
+    public void setTailSamplingKeepRate(double tailSamplingKeepRate) {
+        this.tailSamplingKeepRate = tailSamplingKeepRate;
+    }
+
     public void captureDroppedSpan(SpanImpl span) {
         if (span.isSampled()) {
             spanCount.getDropped().incrementAndGet();
@@ -344,6 +373,8 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
         frameworkVersion = null;
         faas.resetState();
         wasActivated.set(false);
+        pendingTrace.set(null);
+        tailSamplingKeepRate = 1d;
         pendingException = null;
         recycleProfilingCorrelationStackTraceIds();
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
@@ -530,6 +561,9 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
             final MetricRegistry metricRegistry = tracer.getMetricRegistry();
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
+                if (collectDurationHistogram) {
+                    metricRegistry.updateHistogram("transaction.duration", labelsMutable, getDuration());
+                }
                 if (collectBreakdownMetrics) {
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
                     for (int i = 0; i < types.size(); i++) {
@@ -0,0 +1,122 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with log-linear buckets, similar to HdrHistogram.
+ * <p>
+ * Values below {@link #SUB_BUCKET_COUNT} get their own bucket.
+ * Each power of two above that is divided into {@link #SUB_BUCKET_COUNT} linear sub-buckets,
+ * which bounds the relative error of the {@link #getBucketValue(int) bucket value} to about 6%,
+ * regardless of the magnitude of the recorded value.
+ * Values greater than {@link #getHighestTrackableValue()} are recorded in the last bucket.
+ * </p>
+ * <p>
+ * Recording a value is lock-free and does not allocate.
+ * Consistent snapshots are provided by the {@link MetricRegistry} which records values in a
+ * {@link org.HdrHistogram.WriterReaderPhaser} critical section and only reads histograms of inactive metric sets.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+
+    public void recordValue(long value) {
+        counts.incrementAndGet(getBucketIndex(value));
+        totalCount.incrementAndGet();
+    }
+
+    public static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return subBucket << getBucketShift(index);
+    }
+
+    private static int getBucketShift(int index) {
+        // the exponent of bucket index is index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1
+        return index < SUB_BUCKET_COUNT ? 0 : index / SUB_BUCKET_COUNT - 1;
+    }
+
+    /**
+     * Returns the value which represents all values recorded in a bucket, which is the middle of the bucket's range.
+     *
+     * @param index the index of the bucket, ranging from {@code 0} to {@link #getBucketCount()} (exclusive)
+     * @return the value which represents the bucket
+     */
+    public static double getBucketValue(int index) {
+        long width = 1L << getBucketShift(index);
+        return getBucketLowerBound(index) + (width - 1) / 2.0;
+    }
+
+    public static long getHighestTrackableValue() {
+        return (1L << (MAX_EXPONENT + 1)) - 1;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount(int bucketIndex) {
+        return counts.get(bucketIndex);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public boolean hasContent() {
+        return totalCount.get() > 0;
+    }
+
+    @Override
+    public void resetState() {
+        if (totalCount.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, lock-free cache of metrics within a {@link MetricSet} which is keyed by the identity of the metric name.
+ * <p>
+ * Metric names are almost always string constants, such as {@code span.self_time}.
+ * Comparing them by identity avoids computing the hash code of the name and the map lookup for each update.
+ * If a name is not found, for example because it is not interned or because all slots are taken,
+ * callers fall back to the regular map which remains the source of truth.
+ * </p>
+ *
+ * @param <T> the metric type
+ */
+class MetricNameSlots<T> {
+
+    private static final int SLOT_COUNT = 4;
+
+    private final AtomicReferenceArray<Slot<T>> slots = new AtomicReferenceArray<>(SLOT_COUNT);
+
+    @Nullable
+    T get(String name) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            Slot<T> slot = slots.get(i);
+            if (slot == null) {
+                return null;
+            }
+            if (slot.name == name) {
+                return slot.metric;
+            }
+        }
+        return null;
+    }
+
+    void put(String name, T metric) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            Slot<T> slot = slots.get(i);
+            if (slot == null) {
+                if (slots.compareAndSet(i, null, new Slot<>(name, metric))) {
+                    return;
+                }
+                slot = slots.get(i);
+            }
+            if (slot.name == name) {
+                return;
+            }
+        }
+    }
+
+    private static class Slot<T> {
+        private final String name;
+        private final T metric;
+
+        private Slot(String name, T metric) {
+            this.name = name;
+            this.metric = metric;
+        }
+    }
+}
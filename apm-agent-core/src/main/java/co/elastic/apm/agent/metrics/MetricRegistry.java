@@ -27,19 +27,16 @@ import co.elastic.apm.agent.tracer.metrics.DoubleSupplier;
 import co.elastic.apm.agent.tracer.metrics.Labels;
 import org.HdrHistogram.WriterReaderPhaser;
 
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and histograms.
  * </p>
  */
 public class MetricRegistry {
@@ -54,13 +51,13 @@ public class MetricRegistry {
     /**
      * Groups {@link MetricSet}s by their unique labels.
      */
-    private volatile ConcurrentMap<Labels.Immutable, MetricSet> activeMetricSets = new ConcurrentHashMap<>();
-    private ConcurrentMap<Labels.Immutable, MetricSet> inactiveMetricSets = new ConcurrentHashMap<>();
+    private volatile MetricSetTable activeMetricSets;
+    private MetricSetTable inactiveMetricSets;
     /**
      * Final and thus stable references to the two different metric sets.
      * See {@link #getOrCreateMetricSet(Labels)}
      */
-    private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets1 = activeMetricSets, metricSets2 = inactiveMetricSets;
+    private final MetricSetTable metricSets1, metricSets2;
 
     private final MetricCollector metricCollector = new MetricCollector() {
         @Override
@@ -75,6 +72,8 @@ public class MetricRegistry {
     public MetricRegistry(ReporterConfigurationImpl reporterConfiguration, MetricsConfigurationImpl metricsConfiguration) {
         this.reporterConfiguration = reporterConfiguration;
         this.metricSetLimit = metricsConfiguration.getMetricSetLimit();
+        this.metricSets1 = this.activeMetricSets = new MetricSetTable(metricSetLimit);
+        this.metricSets2 = this.inactiveMetricSets = new MetricSetTable(metricSetLimit);
     }
 
     public void addMetricsProvider(MetricsProvider provider) {
@@ -195,7 +194,7 @@ public class MetricRegistry {
                 provider.collectAndReset(metricCollector);
             }
 
-            ConcurrentMap<Labels.Immutable, MetricSet> temp = inactiveMetricSets;
+            MetricSetTable temp = inactiveMetricSets;
             inactiveMetricSets = activeMetricSets;
             activeMetricSets = temp;
             phaser.flipPhase();
@@ -226,41 +225,60 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a value in a {@link Histogram}, for example the duration of a transaction in microseconds.
+     *
+     * @param histogramName the name of the histogram, the serialized metric name has the {@code .histogram} suffix
+     * @param labels        labels for the metric
+     * @param value         the value to record
+     */
+    public void updateHistogram(String histogramName, Labels labels, long value) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).recordValue(value);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
      */
     @Nullable
     private MetricSet getOrCreateMetricSet(Labels labels) {
-        MetricSet metricSet = activeMetricSets.get(labels);
+        final MetricSetTable metricSets = activeMetricSets;
+        MetricSet metricSet = metricSets.get(labels, MetricSetTable.fingerprint(labels));
         if (metricSet != null) {
             return metricSet;
         }
-        if (activeMetricSets.size() < metricSetLimit) {
+        if (metricSets.size() < metricSetLimit) {
             return createMetricSet(labels.immutableCopy());
         }
         return null;
     }
 
-    @Nonnull
+    @Nullable
     private MetricSet createMetricSet(Labels.Immutable labelsCopy) {
         // Gauges are the only metric types which are not reset after each report (as opposed to counters and timers)
         // that's why both metric sets have to contain the exact same gauges.
         // we can't access inactiveMetricSets as it might be swapped as this method is executed
         // inactiveMetricSets is only stable after flipping the phase (phaser.flipPhase)
-        MetricSet metricSet = new MetricSet(labelsCopy);
-        final MetricSet racyMetricSet = metricSets1.putIfAbsent(labelsCopy, metricSet);
-        if (racyMetricSet != null) {
-            metricSet = racyMetricSet;
+        MetricSet metricSet = metricSets1.putIfAbsent(new MetricSet(labelsCopy));
+        if (metricSet == null) {
+            return null;
         }
-        // even if the map already contains this metric set, the gauges reference will be the same
-        metricSets2.putIfAbsent(labelsCopy, new MetricSet(labelsCopy, metricSet.getGauges()));
+        // even if the table already contains this metric set, the gauges reference will be the same
+        metricSets2.putIfAbsent(new MetricSet(labelsCopy, metricSet.getGauges()));
         if (metricSets1.size() >= metricSetLimit) {
             logger.warn("The limit of {} timers has been reached, no new timers will be created. " +
                 "Try to name your transactions so that there are fewer distinct transaction names. " +
                 "You may use the unsupported configuration 'metric_set_limit' to increase the limit.", metricSetLimit);
         }
-        return activeMetricSets.get(labelsCopy);
+        return activeMetricSets.get(labelsCopy, metricSet.getLabelsFingerprint());
     }
 
     public void addToCounter(String name, Labels labels, long count) {
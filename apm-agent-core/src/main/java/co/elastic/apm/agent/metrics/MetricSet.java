@@ -45,13 +45,19 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class MetricSet implements Recyclable {
     private final Labels.Immutable labels;
+    private final long labelsFingerprint;
     private final ConcurrentMap<String, DoubleSupplier> gauges;
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, Double> rawValues = new ConcurrentHashMap<>();
+    private final MetricNameSlots<Timer> timerSlots = new MetricNameSlots<>();
+    private final MetricNameSlots<Histogram> histogramSlots = new MetricNameSlots<>();
+    private final MetricNameSlots<AtomicLong> counterSlots = new MetricNameSlots<>();
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -59,6 +65,7 @@ public class MetricSet implements Recyclable {
 
     MetricSet(Labels.Immutable labels, ConcurrentMap<String, DoubleSupplier> gauges) {
         this.labels = labels;
+        this.labelsFingerprint = MetricSetTable.fingerprint(labels);
         this.gauges = gauges;
     }
 
@@ -71,10 +78,14 @@ public class MetricSet implements Recyclable {
         return gauges.get(name);
     }
 
-    public Labels getLabels() {
+    public Labels.Immutable getLabels() {
         return labels;
     }
 
+    long getLabelsFingerprint() {
+        return labelsFingerprint;
+    }
+
     public ConcurrentMap<String, DoubleSupplier> getGauges() {
         return gauges;
     }
@@ -84,21 +95,50 @@ public class MetricSet implements Recyclable {
     }
 
     public Timer timer(String timerName) {
-        hasNonEmptyTimer = true;
-        Timer timer = timers.get(timerName);
+        // avoids contended writes to the volatile field's cache line on the hot path
+        if (!hasNonEmptyTimer) {
+            hasNonEmptyTimer = true;
+        }
+        Timer timer = timerSlots.get(timerName);
         if (timer == null) {
-            timers.putIfAbsent(timerName, new Timer());
             timer = timers.get(timerName);
+            if (timer == null) {
+                timers.putIfAbsent(timerName, new Timer());
+                timer = timers.get(timerName);
+            }
+            timerSlots.put(timerName, timer);
         }
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        if (!hasNonEmptyHistogram) {
+            hasNonEmptyHistogram = true;
+        }
+        Histogram histogram = histogramSlots.get(histogramName);
+        if (histogram == null) {
+            histogram = histograms.get(histogramName);
+            if (histogram == null) {
+                histograms.putIfAbsent(histogramName, new Histogram());
+                histogram = histograms.get(histogramName);
+            }
+            histogramSlots.put(histogramName, histogram);
+        }
+        return histogram;
+    }
+
     public void addToCounter(String name, long count) {
-        hasNonEmptyCounter = true;
-        AtomicLong counter = counters.get(name);
+        if (!hasNonEmptyCounter) {
+            hasNonEmptyCounter = true;
+        }
+        AtomicLong counter = counterSlots.get(name);
         if (counter == null) {
-            counters.putIfAbsent(name, new AtomicLong());
             counter = counters.get(name);
+            if (counter == null) {
+                counters.putIfAbsent(name, new AtomicLong());
+                counter = counters.get(name);
+            }
+            counterSlots.put(name, counter);
         }
         counter.addAndGet(count);
     }
@@ -107,8 +147,12 @@ public class MetricSet implements Recyclable {
         return timers;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || !rawValues.isEmpty();
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram || !rawValues.isEmpty();
     }
 
     /**
@@ -118,12 +162,16 @@ public class MetricSet implements Recyclable {
         for (Timer timer : timers.values()) {
             timer.resetState();
         }
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
+        }
         for (AtomicLong counter : counters.values()) {
             counter.set(0);
         }
         rawValues.clear();
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
     public Map<String, AtomicLong> getCounters() {
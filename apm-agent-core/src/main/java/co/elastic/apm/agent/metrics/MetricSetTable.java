@@ -0,0 +1,230 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free, append-only hash table of {@link MetricSet}s which is keyed by a 64-bit fingerprint of their {@link Labels}.
+ * <p>
+ * The table uses open addressing with linear probing.
+ * As metric sets are never removed and the number of metric sets is bounded by {@code metric_set_limit},
+ * the table can be sized upfront so that it never needs to be resized and so that the load factor never exceeds 0.5.
+ * That makes it possible to insert entries with a single CAS without having to deal with tombstones or rehashing.
+ * </p>
+ * <p>
+ * In contrast to a {@link java.util.concurrent.ConcurrentHashMap}, looking up a metric set does not call {@link Labels#hashCode()}
+ * and does not traverse any intermediate nodes.
+ * The fingerprint of the labels is compared before the labels themselves are compared for equality,
+ * which makes probing over non-matching slots cheap.
+ * </p>
+ * <p>
+ * This class implements {@link Map} so that it can be handed to {@link MetricRegistry.MetricsReporter}s.
+ * The {@link Map} view is read-only.
+ * </p>
+ */
+class MetricSetTable extends AbstractMap<Labels.Immutable, MetricSet> {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * Mixed into the fingerprint for {@code null} values, so that {@code null} and empty values have different fingerprints.
+     */
+    private static final long NULL_MARKER = 0x9e3779b97f4a7c15L;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final AtomicReferenceArray<MetricSet> slots;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param expectedMaxSize the maximum number of metric sets this table is expected to hold.
+     *                        The capacity is at least twice that number,
+     *                        which also tolerates racy checks against the limit.
+     */
+    MetricSetTable(int expectedMaxSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.min(Math.max(expectedMaxSize, 1), 1 << 28) * 2 - 1) << 1);
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Computes a 64-bit fingerprint over all labels without allocating.
+     * <p>
+     * Uses FNV-1a over the characters of all label keys and values, followed by a final avalanche step.
+     * </p>
+     */
+    static long fingerprint(Labels labels) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < labels.size(); i++) {
+            h = hash(h, labels.getKey(i));
+            h = hash(h, labels.getValue(i));
+        }
+        h = hash(h, labels.getServiceName());
+        h = hash(h, labels.getServiceVersion());
+        h = hash(h, labels.getTransactionName());
+        h = hash(h, labels.getTransactionType());
+        h = hash(h, labels.getSpanType());
+        h = hash(h, labels.getSpanSubType());
+        // avalanche, see MurmurHash3's fmix64
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hash(long h, @Nullable CharSequence cs) {
+        if (cs == null) {
+            return (h ^ NULL_MARKER) * FNV_PRIME;
+        }
+        final int length = cs.length();
+        for (int i = 0; i < length; i++) {
+            h = (h ^ cs.charAt(i)) * FNV_PRIME;
+        }
+        // terminate the value so that ("ab", "c") and ("a", "bc") have different fingerprints
+        return (h ^ length) * FNV_PRIME;
+    }
+
+    @Nullable
+    MetricSet get(Labels labels, long fingerprint) {
+        for (int i = (int) fingerprint & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            MetricSet metricSet = slots.get(i);
+            if (metricSet == null) {
+                return null;
+            }
+            if (metricSet.getLabelsFingerprint() == fingerprint && metricSet.getLabels().equals(labels)) {
+                return metricSet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a metric set to this table, unless there's already a metric set with the same labels.
+     *
+     * @param metricSet the metric set to add
+     * @return the metric set which is associated with the labels after this call,
+     * or {@code null} if the table is full
+     */
+    @Nullable
+    MetricSet putIfAbsent(MetricSet metricSet) {
+        final long fingerprint = metricSet.getLabelsFingerprint();
+        final Labels labels = metricSet.getLabels();
+        for (int i = (int) fingerprint & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            MetricSet existing = slots.get(i);
+            if (existing == null) {
+                if (slots.compareAndSet(i, null, metricSet)) {
+                    size.incrementAndGet();
+                    return metricSet;
+                }
+                // another thread has claimed the slot in the meantime, check whether it has added the same labels
+                existing = slots.get(i);
+            }
+            if (existing.getLabelsFingerprint() == fingerprint && existing.getLabels().equals(labels)) {
+                return existing;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public MetricSet get(Object key) {
+        if (!(key instanceof Labels)) {
+            return null;
+        }
+        Labels labels = (Labels) key;
+        return get(labels, fingerprint(labels));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public Set<Entry<Labels.Immutable, MetricSet>> entrySet() {
+        return new AbstractSet<Entry<Labels.Immutable, MetricSet>>() {
+            @Override
+            public Iterator<Entry<Labels.Immutable, MetricSet>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return MetricSetTable.this.size();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<Labels.Immutable, MetricSet>> {
+        private int index;
+        @Nullable
+        private MetricSet next = advance();
+
+        @Nullable
+        private MetricSet advance() {
+            while (index < slots.length()) {
+                MetricSet metricSet = slots.get(index++);
+                if (metricSet != null) {
+                    return metricSet;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<Labels.Immutable, MetricSet> next() {
+            MetricSet current = next;
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            next = advance();
+            return new SimpleImmutableEntry<>(current.getLabels(), current);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
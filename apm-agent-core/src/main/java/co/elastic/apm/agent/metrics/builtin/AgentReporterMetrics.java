@@ -59,7 +59,10 @@ public class AgentReporterMetrics implements ReporterMonitor {
 
 
     private static final Labels QUEUE_REASON_LABEL = Labels.Mutable.of("reason", "queue").immutableCopy();
+    private static final Labels LOGS_QUEUE_REASON_LABEL = Labels.Mutable.of("reason", "queue").add("queue_name", "logs").immutableCopy();
     private static final Labels ERROR_REASON_LABEL = Labels.Mutable.of("reason", "error").immutableCopy();
+    private static final Labels SHED_SPAN_LABEL = Labels.Mutable.of("reason", "shed").add("event_type", "span").immutableCopy();
+    private static final Labels SHED_LOG_LABEL = Labels.Mutable.of("reason", "shed").add("event_type", "log").immutableCopy();
 
     private static final Labels TRANSACTION_LABEL = Labels.Mutable.of("event_type", "transaction").immutableCopy();
     private static final Labels SPAN_LABEL = Labels.Mutable.of("event_type", "span").immutableCopy();
@@ -71,11 +74,15 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private static final Labels FAILURE_LABEL = Labels.Mutable.of("success", "false").immutableCopy();
 
     private static final Labels GENERIC_QUEUE_LABEL = Labels.Mutable.of("queue_name", "generic").immutableCopy();
+    private static final Labels LOGS_QUEUE_LABEL = Labels.Mutable.of("queue_name", "logs").immutableCopy();
 
 
-    private volatile double currentQueueUtilization = 0;
-    private final AtomicDouble maxQueueSize = new AtomicDouble(0.0);
-    private final AtomicDouble minQueueSize = new AtomicDouble(0.0);
+    private final QueueUtilization genericQueue = new QueueUtilization();
+    /**
+     * Only reported once the dedicated log queue is used, see {@code log_sending_queue_size}
+     */
+    private final QueueUtilization logsQueue = new QueueUtilization();
+    private volatile boolean logsQueueUsed = false;
 
     public AgentReporterMetrics(final MetricRegistry registry, MetricsConfigurationImpl configuration) {
         this.metricRegistry = registry;
@@ -91,15 +98,20 @@ public class AgentReporterMetrics implements ReporterMonitor {
             registry.addMetricsProvider(new MetricsProvider() {
                 @Override
                 public void collectAndReset(MetricCollector collector) {
+                    collectAndReset(collector, genericQueue, GENERIC_QUEUE_LABEL);
+                    if (logsQueueUsed) {
+                        collectAndReset(collector, logsQueue, LOGS_QUEUE_LABEL);
+                    }
+                }
+
+                private void collectAndReset(MetricCollector collector, QueueUtilization queue, Labels labels) {
                     if (minQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, minQueueSize.get());
+                        collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, labels, queue.min.get());
                     }
                     if (maxQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, maxQueueSize.get());
+                        collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, labels, queue.max.get());
                     }
-                    double currentUtilization = currentQueueUtilization;
-                    minQueueSize.set(currentUtilization);
-                    maxQueueSize.set(currentUtilization);
+                    queue.reset();
                 }
             });
         }
@@ -113,21 +125,18 @@ public class AgentReporterMetrics implements ReporterMonitor {
                 metricRegistry.incrementCounter(TOTAL_EVENTS_METRIC, label);
             }
         }
-        updateQueueMetric(queueCapacity, queueSizeAfter);
+        updateQueueMetric(genericQueue, queueCapacity, queueSizeAfter);
     }
 
-    private void updateQueueMetric(long queueCapacity, long queueSize) {
+    private void updateQueueMetric(QueueUtilization queue, long queueCapacity, long queueSize) {
         if (anyQueueSizeMetricEnabled()) {
-            double queueUtilization = ((double) queueSize) / queueCapacity;
-            currentQueueUtilization = queueUtilization;
-            maxQueueSize.setWeakMax(queueUtilization);
-            minQueueSize.setWeakMin(queueUtilization);
+            queue.update(((double) queueSize) / queueCapacity);
         }
     }
 
     @Override
     public void eventDequeued(ReportingEvent.ReportingEventType eventType, long queueCapacity, long queueSizeAfter) {
-        updateQueueMetric(queueCapacity, queueSizeAfter);
+        updateQueueMetric(genericQueue, queueCapacity, queueSizeAfter);
     }
 
     @Override
@@ -138,7 +147,7 @@ public class AgentReporterMetrics implements ReporterMonitor {
                 metricRegistry.incrementCounter(DROPPED_EVENTS_METRIC, QUEUE_REASON_LABEL);
             }
         }
-        updateQueueMetric(queueCapacity, queueCapacity);
+        updateQueueMetric(genericQueue, queueCapacity, queueCapacity);
     }
 
     @Override
@@ -151,6 +160,13 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    @Override
+    public void eventShed(ReportingEvent.ReportingEventType eventType, long queueCapacity) {
+        if (droppedEventsMetricEnabled) {
+            // only spans and logs are shed
+            metricRegistry.incrementCounter(DROPPED_EVENTS_METRIC, eventType == ReportingEvent.ReportingEventType.SPAN ? SHED_SPAN_LABEL : SHED_LOG_LABEL);
+        }
+    }
 
     @Override
     public void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success) {
@@ -171,6 +187,28 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    @Override
+    public void logEventCreated(long queueCapacity, long queueSize) {
+        if (totalEventsMetricEnabled) {
+            metricRegistry.incrementCounter(TOTAL_EVENTS_METRIC, LOG_LABEL);
+        }
+        logsQueueUsed = true;
+        updateQueueMetric(logsQueue, queueCapacity, queueSize);
+    }
+
+    @Override
+    public void logEventDequeued(long queueCapacity, long queueSize) {
+        updateQueueMetric(logsQueue, queueCapacity, queueSize);
+    }
+
+    @Override
+    public void logEventDroppedBeforeQueue(long queueCapacity) {
+        if (droppedEventsMetricEnabled) {
+            metricRegistry.incrementCounter(DROPPED_EVENTS_METRIC, LOGS_QUEUE_REASON_LABEL);
+        }
+        updateQueueMetric(logsQueue, queueCapacity, queueCapacity);
+    }
+
     // package-protected for tests
     @Nullable
     static Labels getLabelFor(ReportingEvent.ReportingEventType type) {
@@ -198,5 +236,24 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private boolean anyQueueSizeMetricEnabled() {
         return maxQueueSizeMetricEnabled || minQueueSizeMetricEnabled;
     }
+
+    private static class QueueUtilization {
+
+        private volatile double current = 0;
+        private final AtomicDouble max = new AtomicDouble(0.0);
+        private final AtomicDouble min = new AtomicDouble(0.0);
+
+        private void update(double utilization) {
+            current = utilization;
+            max.setWeakMax(utilization);
+            min.setWeakMin(utilization);
+        }
+
+        private void reset() {
+            double currentUtilization = current;
+            min.set(currentUtilization);
+            max.set(currentUtilization);
+        }
+    }
 }
 
@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.objectpool.ObservableObjectPool;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the state of the pools for transactions, spans, errors and span links.
+ * A high number of discarded objects indicates that the pools are too small for the workload.
+ * For adaptive pools (see {@code adaptive_object_pools}), the current capacity and the number of allocations are reported as well.
+ */
+public class ObjectPoolMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    static final String OBJECTS_METRIC = "agent.objectpool.objects";
+    static final String DISCARDED_METRIC = "agent.objectpool.discarded";
+    static final String CAPACITY_METRIC = "agent.objectpool.capacity";
+    static final String ALLOCATIONS_METRIC = "agent.objectpool.allocations";
+
+    private final Map<String, PoolState> poolStates = new HashMap<>();
+
+    private boolean objectsMetricEnabled;
+    private boolean discardedMetricEnabled;
+    private boolean capacityMetricEnabled;
+    private boolean allocationsMetricEnabled;
+
+    @Override
+    public void start(Tracer tracer) throws Exception {
+        ElasticApmTracer apmTracer = tracer.require(ElasticApmTracer.class);
+        MetricsConfigurationImpl config = tracer.getConfig(MetricsConfigurationImpl.class);
+        bindTo(apmTracer.getMetricRegistry(), config, apmTracer.getObjectPoolFactory());
+    }
+
+    void bindTo(MetricRegistry metricRegistry, MetricsConfigurationImpl config, ObjectPoolFactoryImpl objectPoolFactory) {
+        boolean overheadMetricsEnabled = config.isOverheadMetricsEnabled();
+
+        objectsMetricEnabled = !metricRegistry.isDisabled(OBJECTS_METRIC) && overheadMetricsEnabled;
+        discardedMetricEnabled = !metricRegistry.isDisabled(DISCARDED_METRIC) && overheadMetricsEnabled;
+        capacityMetricEnabled = !metricRegistry.isDisabled(CAPACITY_METRIC) && overheadMetricsEnabled;
+        allocationsMetricEnabled = !metricRegistry.isDisabled(ALLOCATIONS_METRIC) && overheadMetricsEnabled;
+
+        if (objectsMetricEnabled || discardedMetricEnabled || capacityMetricEnabled || allocationsMetricEnabled) {
+            for (Map.Entry<String, ObservableObjectPool<?>> entry : objectPoolFactory.getNamedPools().entrySet()) {
+                poolStates.put(entry.getKey(), new PoolState(entry.getKey(), entry.getValue()));
+            }
+            metricRegistry.addMetricsProvider(this);
+        }
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        for (PoolState state : poolStates.values()) {
+            ObservableObjectPool<?> pool = state.pool;
+            if (objectsMetricEnabled) {
+                collector.addMetricValue(OBJECTS_METRIC, state.labels, pool.getObjectsInPool());
+            }
+            long garbageCreated = pool.getGarbageCreated();
+            if (discardedMetricEnabled) {
+                collector.addMetricValue(DISCARDED_METRIC, state.labels, garbageCreated - state.lastReportedGarbage);
+            }
+            state.lastReportedGarbage = garbageCreated;
+            if (pool instanceof MagazineObjectPool) {
+                MagazineObjectPool<?> adaptivePool = (MagazineObjectPool<?>) pool;
+                if (capacityMetricEnabled) {
+                    collector.addMetricValue(CAPACITY_METRIC, state.labels, adaptivePool.getCapacity());
+                }
+                long allocations = adaptivePool.getAllocations();
+                if (allocationsMetricEnabled) {
+                    collector.addMetricValue(ALLOCATIONS_METRIC, state.labels, allocations - state.lastReportedAllocations);
+                }
+                state.lastReportedAllocations = allocations;
+            }
+        }
+    }
+
+    private static class PoolState {
+        private final Labels labels;
+        private final ObservableObjectPool<?> pool;
+        private long lastReportedGarbage;
+        private long lastReportedAllocations;
+
+        private PoolState(String name, ObservableObjectPool<?> pool) {
+            this.labels = Labels.Mutable.of("pool", name).immutableCopy();
+            this.pool = pool;
+            this.lastReportedGarbage = pool.getGarbageCreated();
+            if (pool instanceof MagazineObjectPool) {
+                this.lastReportedAllocations = ((MagazineObjectPool<?>) pool).getAllocations();
+            }
+        }
+    }
+}
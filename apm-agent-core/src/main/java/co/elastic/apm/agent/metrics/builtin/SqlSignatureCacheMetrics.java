@@ -0,0 +1,90 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.sdk.internal.db.signature.SignatureCacheStatistics;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+/**
+ * Reports the effectiveness of the caches which hold the signatures of SQL and CQL queries.
+ * A high miss rate indicates that the application issues many distinct queries, or that the cache is too small.
+ */
+public class SqlSignatureCacheMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    static final String HITS_METRIC = "agent.sql.signature_cache.hits";
+    static final String MISSES_METRIC = "agent.sql.signature_cache.misses";
+    static final String EVICTIONS_METRIC = "agent.sql.signature_cache.evictions";
+
+    private boolean hitsMetricEnabled;
+    private boolean missesMetricEnabled;
+    private boolean evictionsMetricEnabled;
+
+    private long lastReportedHits;
+    private long lastReportedMisses;
+    private long lastReportedEvictions;
+
+    @Override
+    public void start(Tracer tracer) throws Exception {
+        MetricRegistry metricRegistry = tracer.require(ElasticApmTracer.class).getMetricRegistry();
+        MetricsConfigurationImpl config = tracer.getConfig(MetricsConfigurationImpl.class);
+        bindTo(metricRegistry, config);
+    }
+
+    void bindTo(MetricRegistry metricRegistry, MetricsConfigurationImpl config) {
+        boolean overheadMetricsEnabled = config.isOverheadMetricsEnabled();
+
+        hitsMetricEnabled = !metricRegistry.isDisabled(HITS_METRIC) && overheadMetricsEnabled;
+        missesMetricEnabled = !metricRegistry.isDisabled(MISSES_METRIC) && overheadMetricsEnabled;
+        evictionsMetricEnabled = !metricRegistry.isDisabled(EVICTIONS_METRIC) && overheadMetricsEnabled;
+
+        if (hitsMetricEnabled || missesMetricEnabled || evictionsMetricEnabled) {
+            SignatureCacheStatistics.enable();
+            lastReportedHits = SignatureCacheStatistics.getHits();
+            lastReportedMisses = SignatureCacheStatistics.getMisses();
+            lastReportedEvictions = SignatureCacheStatistics.getEvictions();
+            metricRegistry.addMetricsProvider(this);
+        }
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        long hits = SignatureCacheStatistics.getHits();
+        long misses = SignatureCacheStatistics.getMisses();
+        long evictions = SignatureCacheStatistics.getEvictions();
+        if (hitsMetricEnabled) {
+            collector.addMetricValue(HITS_METRIC, Labels.EMPTY, hits - lastReportedHits);
+        }
+        if (missesMetricEnabled) {
+            collector.addMetricValue(MISSES_METRIC, Labels.EMPTY, misses - lastReportedMisses);
+        }
+        if (evictionsMetricEnabled) {
+            collector.addMetricValue(EVICTIONS_METRIC, Labels.EMPTY, evictions - lastReportedEvictions);
+        }
+        lastReportedHits = hits;
+        lastReportedMisses = misses;
+        lastReportedEvictions = evictions;
+    }
+}
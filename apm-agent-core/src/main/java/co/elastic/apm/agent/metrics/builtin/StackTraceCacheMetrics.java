@@ -0,0 +1,103 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.report.serialize.StackTraceCacheStatistics;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+/**
+ * Reports the effectiveness of the cache which holds the serialized JSON of recurring stack traces and stack frames.
+ * Stack frames are only looked up if the whole stack trace is not cached.
+ */
+public class StackTraceCacheMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    static final String HITS_METRIC = "agent.stacktrace_cache.hits";
+    static final String MISSES_METRIC = "agent.stacktrace_cache.misses";
+    static final String EVICTIONS_METRIC = "agent.stacktrace_cache.evictions";
+
+    private static final Labels STACK_TRACE_LABEL = Labels.Mutable.of("entry", "stacktrace").immutableCopy();
+    private static final Labels FRAME_LABEL = Labels.Mutable.of("entry", "frame").immutableCopy();
+
+    private boolean hitsMetricEnabled;
+    private boolean missesMetricEnabled;
+    private boolean evictionsMetricEnabled;
+
+    private long lastReportedStackTraceHits;
+    private long lastReportedStackTraceMisses;
+    private long lastReportedFrameHits;
+    private long lastReportedFrameMisses;
+    private long lastReportedEvictions;
+
+    @Override
+    public void start(Tracer tracer) throws Exception {
+        MetricRegistry metricRegistry = tracer.require(ElasticApmTracer.class).getMetricRegistry();
+        MetricsConfigurationImpl config = tracer.getConfig(MetricsConfigurationImpl.class);
+        bindTo(metricRegistry, config);
+    }
+
+    void bindTo(MetricRegistry metricRegistry, MetricsConfigurationImpl config) {
+        boolean overheadMetricsEnabled = config.isOverheadMetricsEnabled();
+
+        hitsMetricEnabled = !metricRegistry.isDisabled(HITS_METRIC) && overheadMetricsEnabled;
+        missesMetricEnabled = !metricRegistry.isDisabled(MISSES_METRIC) && overheadMetricsEnabled;
+        evictionsMetricEnabled = !metricRegistry.isDisabled(EVICTIONS_METRIC) && overheadMetricsEnabled;
+
+        if (hitsMetricEnabled || missesMetricEnabled || evictionsMetricEnabled) {
+            StackTraceCacheStatistics.enable();
+            lastReportedStackTraceHits = StackTraceCacheStatistics.getStackTraceHits();
+            lastReportedStackTraceMisses = StackTraceCacheStatistics.getStackTraceMisses();
+            lastReportedFrameHits = StackTraceCacheStatistics.getFrameHits();
+            lastReportedFrameMisses = StackTraceCacheStatistics.getFrameMisses();
+            lastReportedEvictions = StackTraceCacheStatistics.getEvictions();
+            metricRegistry.addMetricsProvider(this);
+        }
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        long stackTraceHits = StackTraceCacheStatistics.getStackTraceHits();
+        long stackTraceMisses = StackTraceCacheStatistics.getStackTraceMisses();
+        long frameHits = StackTraceCacheStatistics.getFrameHits();
+        long frameMisses = StackTraceCacheStatistics.getFrameMisses();
+        long evictions = StackTraceCacheStatistics.getEvictions();
+        if (hitsMetricEnabled) {
+            collector.addMetricValue(HITS_METRIC, STACK_TRACE_LABEL, stackTraceHits - lastReportedStackTraceHits);
+            collector.addMetricValue(HITS_METRIC, FRAME_LABEL, frameHits - lastReportedFrameHits);
+        }
+        if (missesMetricEnabled) {
+            collector.addMetricValue(MISSES_METRIC, STACK_TRACE_LABEL, stackTraceMisses - lastReportedStackTraceMisses);
+            collector.addMetricValue(MISSES_METRIC, FRAME_LABEL, frameMisses - lastReportedFrameMisses);
+        }
+        if (evictionsMetricEnabled) {
+            collector.addMetricValue(EVICTIONS_METRIC, Labels.EMPTY, evictions - lastReportedEvictions);
+        }
+        lastReportedStackTraceHits = stackTraceHits;
+        lastReportedStackTraceMisses = stackTraceMisses;
+        lastReportedFrameHits = frameHits;
+        lastReportedFrameMisses = frameMisses;
+        lastReportedEvictions = evictions;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.TailSamplingReporter;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+/**
+ * Reports the memory used by the spans which are held back by the {@link TailSamplingReporter},
+ * how long the decisions take and how many transactions are kept.
+ */
+public class TailSamplingMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    static final String BUFFER_SIZE_METRIC = "agent.tail_sampling.buffer.bytes";
+    static final String BUFFER_LIMIT_METRIC = "agent.tail_sampling.buffer.limit.bytes";
+    static final String DECISIONS_METRIC = "agent.tail_sampling.decisions";
+    static final String DECISION_TIME_METRIC = "agent.tail_sampling.decision.time.sum.us";
+    static final String KEEP_RATE_METRIC = "agent.tail_sampling.keep_rate";
+    static final String DROPPED_SPANS_METRIC = "agent.tail_sampling.spans.dropped";
+
+    private static final Labels KEEP_LABEL = Labels.Mutable.of("decision", "keep").immutableCopy();
+    private static final Labels DISCARD_LABEL = Labels.Mutable.of("decision", "discard").immutableCopy();
+
+    private TailSamplingReporter reporter;
+
+    private boolean bufferSizeMetricEnabled;
+    private boolean bufferLimitMetricEnabled;
+    private boolean decisionsMetricEnabled;
+    private boolean decisionTimeMetricEnabled;
+    private boolean keepRateMetricEnabled;
+    private boolean droppedSpansMetricEnabled;
+
+    private long lastReportedKept;
+    private long lastReportedDiscarded;
+    private long lastReportedDecisionNanos;
+    private long lastReportedDroppedSpans;
+
+    @Override
+    public void start(Tracer tracer) throws Exception {
+        ElasticApmTracer apmTracer = tracer.require(ElasticApmTracer.class);
+        Reporter reporter = apmTracer.getReporter();
+        if (reporter instanceof TailSamplingReporter) {
+            bindTo(apmTracer.getMetricRegistry(), (TailSamplingReporter) reporter);
+        }
+    }
+
+    void bindTo(MetricRegistry metricRegistry, TailSamplingReporter reporter) {
+        this.reporter = reporter;
+        bufferSizeMetricEnabled = !metricRegistry.isDisabled(BUFFER_SIZE_METRIC);
+        bufferLimitMetricEnabled = !metricRegistry.isDisabled(BUFFER_LIMIT_METRIC);
+        decisionsMetricEnabled = !metricRegistry.isDisabled(DECISIONS_METRIC);
+        decisionTimeMetricEnabled = !metricRegistry.isDisabled(DECISION_TIME_METRIC);
+        keepRateMetricEnabled = !metricRegistry.isDisabled(KEEP_RATE_METRIC);
+        droppedSpansMetricEnabled = !metricRegistry.isDisabled(DROPPED_SPANS_METRIC);
+
+        lastReportedKept = reporter.getKeptTransactions();
+        lastReportedDiscarded = reporter.getDiscardedTransactions();
+        lastReportedDecisionNanos = reporter.getDecisionNanos();
+        lastReportedDroppedSpans = reporter.getDroppedSpans();
+        metricRegistry.addMetricsProvider(this);
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        long kept = reporter.getKeptTransactions();
+        long discarded = reporter.getDiscardedTransactions();
+        long decisionNanos = reporter.getDecisionNanos();
+        long droppedSpans = reporter.getDroppedSpans();
+        long keptDelta = kept - lastReportedKept;
+        long discardedDelta = discarded - lastReportedDiscarded;
+        if (bufferSizeMetricEnabled) {
+            collector.addMetricValue(BUFFER_SIZE_METRIC, Labels.EMPTY, reporter.getBufferSize());
+        }
+        if (bufferLimitMetricEnabled) {
+            collector.addMetricValue(BUFFER_LIMIT_METRIC, Labels.EMPTY, reporter.getMaxBufferSize());
+        }
+        if (decisionsMetricEnabled) {
+            collector.addMetricValue(DECISIONS_METRIC, KEEP_LABEL, keptDelta);
+            collector.addMetricValue(DECISIONS_METRIC, DISCARD_LABEL, discardedDelta);
+        }
+        if (decisionTimeMetricEnabled) {
+            collector.addMetricValue(DECISION_TIME_METRIC, Labels.EMPTY, (decisionNanos - lastReportedDecisionNanos) / 1000);
+        }
+        if (keepRateMetricEnabled && keptDelta + discardedDelta > 0) {
+            collector.addMetricValue(KEEP_RATE_METRIC, Labels.EMPTY, keptDelta / (double) (keptDelta + discardedDelta));
+        }
+        if (droppedSpansMetricEnabled) {
+            collector.addMetricValue(DROPPED_SPANS_METRIC, Labels.EMPTY, droppedSpans - lastReportedDroppedSpans);
+        }
+        lastReportedKept = kept;
+        lastReportedDiscarded = discarded;
+        lastReportedDecisionNanos = decisionNanos;
+        lastReportedDroppedSpans = droppedSpans;
+    }
+}
@@ -18,18 +18,23 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static co.elastic.apm.agent.objectpool.ObjectHandleImpl.NOOP_RESETTER;
 
@@ -37,12 +42,24 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
 
     private static final int DEFAULT_RESOURCE_POOL_SIZE = Math.max(16, Runtime.getRuntime().availableProcessors() * 2);
 
+    private final Map<String, ObservableObjectPool<?>> namedPools = new ConcurrentHashMap<>();
 
     @Override
     public <T extends Recyclable> ObservableObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
         return QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<T>((maxCapacity)), false, allocator);
     }
 
+    /**
+     * Creates a pool which caches objects per thread and adapts its capacity to the allocation rate and GC pressure.
+     *
+     * @param maxCapacity the maximum number of objects the shared part of the pool retains
+     * @param allocator   a factory used to create new instances if the pool is empty
+     * @see MagazineObjectPool
+     */
+    public <T extends Recyclable> ObservableObjectPool<T> createAdaptiveRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return MagazineObjectPool.ofRecyclable(maxCapacity, allocator);
+    }
+
     @Override
     public <T> ObservableObjectPool<ObjectHandleImpl<T>> createHandlePool(Allocator<T> allocator) {
         ObjectHandleImpl.Allocator<T> handleAlloc = new ObjectHandleImpl.Allocator<T>(allocator);
@@ -66,39 +83,58 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
     }
 
     public ObservableObjectPool<TransactionImpl> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TransactionImpl>() {
+        return register("transaction", createEventPool(maxCapacity, tracer, new Allocator<TransactionImpl>() {
             @Override
             public TransactionImpl createInstance() {
                 return new TransactionImpl(tracer);
             }
-        });
+        }));
     }
 
     public ObservableObjectPool<SpanImpl> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<SpanImpl>() {
+        return register("span", createEventPool(maxCapacity, tracer, new Allocator<SpanImpl>() {
             @Override
             public SpanImpl createInstance() {
                 return new SpanImpl(tracer);
             }
-        });
+        }));
     }
 
     public ObservableObjectPool<ErrorCaptureImpl> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<ErrorCaptureImpl>() {
+        return register("error", createEventPool(maxCapacity, tracer, new Allocator<ErrorCaptureImpl>() {
             @Override
             public ErrorCaptureImpl createInstance() {
                 return new ErrorCaptureImpl(tracer);
             }
-        });
+        }));
     }
 
     public ObservableObjectPool<TraceContextImpl> createSpanLinkPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TraceContextImpl>() {
+        return register("span_link", createRecyclableObjectPool(maxCapacity, new Allocator<TraceContextImpl>() {
             @Override
             public TraceContextImpl createInstance() {
                 return TraceContextImpl.with64BitId(tracer);
             }
-        });
+        }));
+    }
+
+    private <T extends Recyclable> ObservableObjectPool<T> createEventPool(int maxCapacity, ElasticApmTracer tracer, Allocator<T> allocator) {
+        if (tracer.getConfig(CoreConfigurationImpl.class).isAdaptiveObjectPools()) {
+            return createAdaptiveRecyclableObjectPool(maxCapacity, allocator);
+        }
+        return createRecyclableObjectPool(maxCapacity, allocator);
+    }
+
+    private <T> ObservableObjectPool<T> register(String name, ObservableObjectPool<T> pool) {
+        namedPools.put(name, pool);
+        return pool;
+    }
+
+    /**
+     * @return the pools for transactions, spans, errors and span links, by name
+     */
+    public Map<String, ObservableObjectPool<?>> getNamedPools() {
+        return Collections.unmodifiableMap(namedPools);
     }
 
 }
@@ -0,0 +1,404 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.tracer.pooling.Allocator;
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An object pool where each thread caches pooled objects in two magazines (fixed-size stacks).
+ * <p>
+ * Acquiring and recycling objects only touches the magazines of the current thread.
+ * Only when both magazines are empty (or full), a whole magazine is exchanged with a shared depot.
+ * Thus, the shared queue is only accessed once every {@code magazineSize} operations.
+ * This also works well when objects are recycled on a different thread than the one which acquired them,
+ * for example when transactions are recycled on the reporter thread after they have been serialized:
+ * the recycling thread hands over full magazines to the depot, the acquiring threads take them from there.
+ * </p>
+ * <p>
+ * The number of magazines the depot retains adapts to the workload:
+ * if recycled objects had to be discarded because the depot was full while, at the same time,
+ * new objects had to be allocated because the pool was empty, the capacity is increased.
+ * If some magazines have not been needed during a whole interval, the capacity is decreased and those magazines are released.
+ * When the JVM spends a significant share of time in GC, the capacity is not increased
+ * and idle magazines are released right away to reduce the heap footprint of the pool.
+ * </p>
+ * <p>
+ * Note that in addition to the depot capacity, each thread which uses the pool caches up to two magazines,
+ * so the pool retains up to {@code 2 * magazineSize} objects per thread on top of the depot capacity.
+ * These objects are included in {@link #getObjectsInPool()} and are released by {@link #clear()}.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class MagazineObjectPool<T> extends AbstractObjectPool<T> {
+
+    public static final int DEFAULT_MAGAZINE_SIZE = 16;
+    private static final long RESIZE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * If the JVM spends more than this share of time in GC, the depot capacity does not grow.
+     */
+    static final double GC_PRESSURE_THRESHOLD = 0.1;
+
+    private final int magazineSize;
+    private final int minMagazines;
+    private final int maxMagazines;
+    private final Queue<Magazine> fullMagazines;
+    private final Queue<Magazine> emptyMagazines;
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            ThreadCache cache = new ThreadCache(Thread.currentThread(), new Magazine(magazineSize), new Magazine(magazineSize), generation.get());
+            register(cache);
+            return cache;
+        }
+    };
+    /**
+     * The caches of all threads which have used this pool.
+     * They are referenced weakly, so that they can be collected together with their thread.
+     */
+    private final Queue<WeakReference<ThreadCache>> threadCaches = new ConcurrentLinkedQueue<WeakReference<ThreadCache>>();
+    /**
+     * Incremented by {@link #clear()}.
+     * Threads discard their cached magazines when they notice that the generation has changed.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * The number of objects which had to be allocated because the pool was empty
+     */
+    private final AtomicLong allocations = new AtomicLong();
+    /**
+     * The number of full magazines the depot currently retains at most
+     */
+    private volatile int depotCapacity;
+    /**
+     * The minimum number of full magazines in the depot since the last resize,
+     * these magazines were not needed during that interval.
+     */
+    private volatile int depotLowWatermark;
+    private final AtomicBoolean resizing = new AtomicBoolean();
+    private volatile long lastResizeNanos;
+    // only accessed while holding the resizing flag
+    private long allocationsAtLastResize;
+    private long garbageAtLastResize;
+    private long gcTimeMillisAtLastResize;
+
+    public static <T extends Recyclable> MagazineObjectPool<T> ofRecyclable(int maxCapacity, Allocator<T> allocator) {
+        return new MagazineObjectPool<T>(maxCapacity, DEFAULT_MAGAZINE_SIZE, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    /**
+     * @param maxCapacity  the maximum number of objects the depot retains, excluding the ones cached by threads
+     * @param magazineSize the number of objects in a magazine
+     * @param allocator    a factory used to create new instances if the pool is empty
+     * @param resetter     a reset strategy class
+     */
+    public MagazineObjectPool(int maxCapacity, int magazineSize, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        super(allocator, resetter);
+        this.magazineSize = magazineSize;
+        this.maxMagazines = Math.max(1, maxCapacity / magazineSize);
+        this.minMagazines = Math.max(1, maxMagazines / 16);
+        this.fullMagazines = new MpmcAtomicArrayQueue<Magazine>(maxMagazines);
+        this.emptyMagazines = new MpmcAtomicArrayQueue<Magazine>(maxMagazines);
+        this.depotCapacity = minMagazines;
+        this.lastResizeNanos = System.nanoTime();
+        this.gcTimeMillisAtLastResize = getTotalGcTimeMillis();
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        ThreadCache cache = getThreadCache();
+        Magazine loaded = cache.loaded;
+        if (!loaded.isEmpty()) {
+            return loaded.pop();
+        }
+        Magazine previous = cache.previous;
+        if (!previous.isEmpty()) {
+            cache.loaded = previous;
+            cache.previous = loaded;
+            return previous.pop();
+        }
+        // both magazines are empty, exchange one of them for a full one from the depot
+        Magazine full = pollFullMagazine();
+        if (full != null) {
+            emptyMagazines.offer(previous);
+            cache.previous = loaded;
+            cache.loaded = full;
+            return full.pop();
+        }
+        allocations.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        ThreadCache cache = getThreadCache();
+        Magazine loaded = cache.loaded;
+        if (!loaded.isFull()) {
+            loaded.push(obj);
+            return true;
+        }
+        Magazine previous = cache.previous;
+        if (previous.isEmpty()) {
+            cache.loaded = previous;
+            cache.previous = loaded;
+            previous.push(obj);
+            return true;
+        }
+        // both magazines are full, hand one of them over to the depot
+        if (offerFullMagazine(previous)) {
+            Magazine empty = emptyMagazines.poll();
+            if (empty == null) {
+                empty = new Magazine(magazineSize);
+            }
+            cache.previous = loaded;
+            cache.loaded = empty;
+            empty.push(obj);
+            return true;
+        }
+        return false;
+    }
+
+    private ThreadCache getThreadCache() {
+        ThreadCache cache = threadCache.get();
+        int currentGeneration = generation.get();
+        if (cache.generation != currentGeneration) {
+            // the pool has been cleared since this thread has last used it
+            cache.loaded.clear();
+            cache.previous.clear();
+            cache.generation = currentGeneration;
+        }
+        return cache;
+    }
+
+    private void register(ThreadCache cache) {
+        // remove the caches of terminated threads, this only happens when a thread uses the pool for the first time
+        for (Iterator<WeakReference<ThreadCache>> iterator = threadCaches.iterator(); iterator.hasNext(); ) {
+            ThreadCache registered = iterator.next().get();
+            if (registered == null || !registered.owner.isAlive()) {
+                iterator.remove();
+            }
+        }
+        threadCaches.add(new WeakReference<ThreadCache>(cache));
+    }
+
+    @Nullable
+    private Magazine pollFullMagazine() {
+        maybeResize();
+        Magazine magazine = fullMagazines.poll();
+        if (magazine != null) {
+            int level = fullMagazines.size();
+            if (level < depotLowWatermark) {
+                depotLowWatermark = level;
+            }
+        }
+        return magazine;
+    }
+
+    private boolean offerFullMagazine(Magazine magazine) {
+        maybeResize();
+        return fullMagazines.size() < depotCapacity && fullMagazines.offer(magazine);
+    }
+
+    private void maybeResize() {
+        long now = System.nanoTime();
+        if (now - lastResizeNanos >= RESIZE_INTERVAL_NANOS && resizing.compareAndSet(false, true)) {
+            try {
+                resize(now);
+            } finally {
+                resizing.set(false);
+            }
+        }
+    }
+
+    private void resize(long now) {
+        long totalAllocations = allocations.get();
+        long totalGarbage = getGarbageCreated();
+        long gcTimeMillis = getTotalGcTimeMillis();
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - lastResizeNanos));
+        boolean underGcPressure = (gcTimeMillis - gcTimeMillisAtLastResize) > elapsedMillis * GC_PRESSURE_THRESHOLD;
+
+        int newCapacity = computeCapacity(depotCapacity, minMagazines, maxMagazines, magazineSize,
+            totalAllocations - allocationsAtLastResize, totalGarbage - garbageAtLastResize, depotLowWatermark, underGcPressure);
+        depotCapacity = newCapacity;
+        // release the magazines exceeding the new capacity, their objects are left to the GC
+        while (fullMagazines.size() > newCapacity) {
+            if (fullMagazines.poll() == null) {
+                break;
+            }
+        }
+
+        allocationsAtLastResize = totalAllocations;
+        garbageAtLastResize = totalGarbage;
+        gcTimeMillisAtLastResize = gcTimeMillis;
+        depotLowWatermark = fullMagazines.size();
+        lastResizeNanos = now;
+    }
+
+    /**
+     * Computes the depot capacity for the next interval, based on the observations of the last interval.
+     *
+     * @param capacity        the current capacity, in magazines
+     * @param min             the minimum capacity, in magazines
+     * @param max             the maximum capacity, in magazines
+     * @param magazineSize    the number of objects per magazine
+     * @param allocated       the number of objects which had to be allocated because the pool was empty
+     * @param discarded       the number of recycled objects which had to be discarded because the depot was full
+     * @param idle            the number of full magazines which have not been needed
+     * @param underGcPressure whether the JVM spent a significant share of time in GC
+     * @return the new capacity, in magazines
+     */
+    static int computeCapacity(int capacity, int min, int max, int magazineSize, long allocated, long discarded, int idle, boolean underGcPressure) {
+        if (allocated > 0 && discarded > 0 && !underGcPressure) {
+            // the pool has been too small to absorb the fluctuations of the workload
+            long missingMagazines = (Math.min(allocated, discarded) + magazineSize - 1) / magazineSize;
+            return (int) Math.min(max, capacity + Math.max(missingMagazines, 1));
+        }
+        if (idle > 0) {
+            int release = underGcPressure ? idle : (idle + 1) / 2;
+            return Math.max(min, capacity - release);
+        }
+        return capacity;
+    }
+
+    private static long getTotalGcTimeMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gcBean : GcBeans.GC_BEANS) {
+            long collectionTime = gcBean.getCollectionTime();
+            if (collectionTime > 0) {
+                total += collectionTime;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of objects the depot currently retains at most
+     */
+    public int getCapacity() {
+        return depotCapacity * magazineSize;
+    }
+
+    /**
+     * @return the number of objects which had to be allocated because the pool was empty
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Returns the number of objects in the depot, plus the ones cached by all live threads.
+     * As the magazines of other threads are read without synchronization, the result is an estimate.
+     */
+    @Override
+    public int getObjectsInPool() {
+        int objects = fullMagazines.size() * magazineSize;
+        int currentGeneration = generation.get();
+        for (WeakReference<ThreadCache> reference : threadCaches) {
+            ThreadCache cache = reference.get();
+            if (cache != null && cache.owner.isAlive() && cache.generation == currentGeneration) {
+                objects += cache.loaded.size + cache.previous.size;
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Clears the depot and the magazines of all threads.
+     * Other threads discard their magazines the next time they use the pool,
+     * until then, they are not included in {@link #getObjectsInPool()} anymore.
+     */
+    @Override
+    public void clear() {
+        generation.incrementAndGet();
+        fullMagazines.clear();
+        emptyMagazines.clear();
+        getThreadCache();
+    }
+
+    private static class GcBeans {
+        private static final List<GarbageCollectorMXBean> GC_BEANS = ManagementFactory.getGarbageCollectorMXBeans();
+    }
+
+    private static class ThreadCache {
+        private final Thread owner;
+        private Magazine loaded;
+        private Magazine previous;
+        private int generation;
+
+        private ThreadCache(Thread owner, Magazine loaded, Magazine previous, int generation) {
+            this.owner = owner;
+            this.loaded = loaded;
+            this.previous = previous;
+            this.generation = generation;
+        }
+    }
+
+    private static class Magazine {
+        private final Object[] objects;
+        private int size;
+
+        private Magazine(int capacity) {
+            objects = new Object[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean isFull() {
+            return size == objects.length;
+        }
+
+        void push(Object obj) {
+            objects[size++] = obj;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T pop() {
+            T obj = (T) objects[--size];
+            objects[size] = null;
+            return obj;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                objects[i] = null;
+            }
+            size = 0;
+        }
+    }
+}
@@ -18,35 +18,46 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCodec;
+import co.elastic.apm.agent.report.compression.PipelinedOutputStream;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
-import co.elastic.apm.agent.util.UrlConnectionUtils;
+import co.elastic.apm.agent.util.ExecutorUtils;
 import org.stagemonitor.util.IOUtils;
 
 import javax.annotation.Nullable;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.util.Arrays;
+import java.net.URL;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     private static final Logger logger = LoggerFactory.getLogger(AbstractIntakeApiHandler.class);
     private static final Object WAIT_LOCK = new Object();
+    /**
+     * The number of buffers which can be in flight between the reporter thread and the compression thread
+     * if {@link ReporterConfigurationImpl#isIntakeCompressionAsync()} is enabled
+     */
+    private static final int COMPRESSION_PIPELINE_CHUNKS = 4;
 
     protected final ReporterConfigurationImpl reporterConfiguration;
     protected final DslJsonSerializer.Writer payloadSerializer;
     protected final ApmServerClient apmServerClient;
-    protected Deflater deflater;
+    protected final CompressionCodec compressionCodec;
+    @Nullable
+    private final ThreadPoolExecutor compressionExecutor;
+    protected final IntakeTransport transport;
+    @Nullable
+    protected final IntakeSpool spool;
+    @Nullable
+    private final IntakeTransport spoolTransport;
     @Nullable
-    protected HttpURLConnection connection;
+    protected IntakeRequest request;
     @Nullable
     protected OutputStream os;
     @Nullable
@@ -57,10 +68,39 @@ public class AbstractIntakeApiHandler {
     private long requestStartedNanos;
 
     protected AbstractIntakeApiHandler(ReporterConfigurationImpl reporterConfiguration, DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, payloadSerializer, apmServerClient, null);
+    }
+
+    /**
+     * @param spool if not {@code null}, requests are written to the spool while the APM Server is unavailable instead of backing off
+     */
+    protected AbstractIntakeApiHandler(ReporterConfigurationImpl reporterConfiguration, DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient,
+                                       @Nullable IntakeSpool spool) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer.newWriter();
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.transport = createTransport(reporterConfiguration, apmServerClient);
+        this.spool = spool;
+        this.spoolTransport = spool != null ? spool.createTransport() : null;
+        this.compressionCodec = createCompressionCodec(reporterConfiguration);
+        this.compressionExecutor = reporterConfiguration.isIntakeCompressionAsync()
+            ? ExecutorUtils.createSingleThreadDaemonPool("intake-compression", COMPRESSION_PIPELINE_CHUNKS + 1)
+            : null;
+    }
+
+    private static CompressionCodec createCompressionCodec(ReporterConfigurationImpl reporterConfiguration) {
+        int level = reporterConfiguration.getIntakeCompressionLevel();
+        if (reporterConfiguration.getIntakeCompression() == ReporterConfigurationImpl.CompressionAlgorithm.GZIP) {
+            return DeflateCodec.gzip(level);
+        }
+        return DeflateCodec.deflate(level);
+    }
+
+    private static IntakeTransport createTransport(ReporterConfigurationImpl reporterConfiguration, ApmServerClient apmServerClient) {
+        if (reporterConfiguration.getIntakeTransport() == ReporterConfigurationImpl.IntakeTransportType.NIO) {
+            return new NioIntakeTransport(apmServerClient);
+        }
+        return new UrlConnectionIntakeTransport(apmServerClient);
     }
 
     /*
@@ -91,29 +131,27 @@ public class AbstractIntakeApiHandler {
     }
 
     @Nullable
-    protected HttpURLConnection startRequest(String endpoint) throws Exception {
+    protected IntakeRequest startRequest(String endpoint) throws Exception {
         payloadSerializer.blockUntilReady();
-        final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
-        if (connection == null) {
+        final IntakeRequest request = getCurrentTransport().startRequest(endpoint);
+        if (request == null) {
             return null;
         }
-        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)){
+        try {
             if (logger.isDebugEnabled()) {
-                logger.debug("Starting new request to {}", connection.getURL());
+                logger.debug("Starting new request to {}", request.getUrl());
             }
-            boolean useCompression = !isLocalhost(connection);
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
+            boolean useCompression = !isLocalhost(request.getUrl());
             if (useCompression) {
-                connection.setRequestProperty("Content-Encoding", "deflate");
+                request.setHeader("Content-Encoding", compressionCodec.getContentEncoding());
             }
-            connection.setRequestProperty("Content-Type", "application/x-ndjson");
-            connection.setUseCaches(false);
-            connection.connect();
-            countingOs = new CountingOutputStream(connection.getOutputStream()); // TODO : here
+            request.setHeader("Content-Type", "application/x-ndjson");
+            countingOs = new CountingOutputStream(request.getOutputStream());
             if (useCompression) {
-                os = new DeflaterOutputStream(countingOs, deflater, true);
+                os = compressionCodec.compress(countingOs);
+                if (compressionExecutor != null) {
+                    os = new PipelinedOutputStream(os, compressionExecutor, COMPRESSION_PIPELINE_CHUNKS, SerializationConstants.BUFFER_SIZE);
+                }
             } else {
                 os = countingOs;
             }
@@ -122,50 +160,26 @@ public class AbstractIntakeApiHandler {
             payloadSerializer.flushToOutputStream();
             requestStartedNanos = System.nanoTime();
         } catch (IOException e) {
-            try {
-                logger.error("Error trying to connect to APM Server at {}. Although not necessarily related to SSL, some related SSL " +
-                    "configurations corresponding the current connection are logged at INFO level.", connection.getURL());
-                if (logger.isInfoEnabled() && connection instanceof HttpsURLConnection) {
-                    HttpsURLConnection httpsURLConnection = (HttpsURLConnection) connection;
-                    try {
-                        logger.info("Cipher suite used for this connection: {}", httpsURLConnection.getCipherSuite());
-                    } catch (Exception e1) {
-                        SSLSocketFactory sslSocketFactory = httpsURLConnection.getSSLSocketFactory();
-                        logger.info("Default cipher suites: {}", Arrays.toString(sslSocketFactory.getDefaultCipherSuites()));
-                        logger.info("Supported cipher suites: {}", Arrays.toString(sslSocketFactory.getSupportedCipherSuites()));
-                    }
-                    try {
-                        logger.info("APM Server certificates: {}", Arrays.toString(httpsURLConnection.getServerCertificates()));
-                    } catch (Exception e1) {
-                        // ignore - invalid
-                    }
-                    try {
-                        logger.info("Local certificates: {}", Arrays.toString(httpsURLConnection.getLocalCertificates()));
-                    } catch (Exception e1) {
-                        // ignore - invalid
-                    }
-                }
-            } finally {
-                closeAndSuppressErrors(connection);
-            }
+            logger.error("Error trying to connect to APM Server at {}. Although not necessarily related to SSL, some related SSL " +
+                "configurations corresponding the current connection are logged at INFO level.", request.getUrl());
+            request.abort();
             throw e;
         } catch (Throwable t) {
-            closeAndSuppressErrors(connection);
+            request.abort();
             throw t;
         }
-        return connection;
+        return request;
     }
 
-    private void closeAndSuppressErrors(HttpURLConnection connection) {
-        try {
-            connection.disconnect();
-        } catch (Throwable t) {
-            logger.debug("Suppressed error on attempt to close connection", t);
+    private IntakeTransport getCurrentTransport() {
+        if (spool != null && spoolTransport != null && !spool.isServerAvailable()) {
+            return spoolTransport;
         }
+        return transport;
     }
 
-    private boolean isLocalhost(HttpURLConnection connection) {
-        switch (connection.getURL().getHost()) {
+    private boolean isLocalhost(URL url) {
+        switch (url.getHost()) {
             case "localhost":
             case "127.0.0.1":
             case "[::1]":
@@ -181,8 +195,8 @@ public class AbstractIntakeApiHandler {
     }
 
     protected void endRequestExceptionally() {
-        if (connection == null) {
-            //The HttpUrlConnection could not be established if connection == null
+        if (request == null) {
+            //The request could not be established if request == null
             onConnectionError(null, null, 0L);
         } else {
             endRequest(true);
@@ -190,40 +204,47 @@ public class AbstractIntakeApiHandler {
     }
 
     private void endRequest(boolean isFailed) {
-        if (connection == null) {
+        if (request == null) {
             return;
         }
-        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
-            long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
-            try {
-                payloadSerializer.fullFlush();
-                if (os != null) {
-                    os.close();
-                }
-                writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), writtenBytes);
-                }
-                InputStream inputStream = connection.getInputStream();
-                final int responseCode = connection.getResponseCode();
-                if (isFailed || responseCode >= 400) {
-                    onRequestError(responseCode, writtenBytes, inputStream, null);
-                } else {
-                    onRequestSuccess(writtenBytes);
-                }
-            } catch (IOException e) {
-                try {
-                    onRequestError(connection.getResponseCode(), writtenBytes, connection.getErrorStream(), e);
-                } catch (IOException e1) {
-                    onRequestError(-1, writtenBytes, connection.getErrorStream(), e);
-                }
-            } finally {
-                HttpUtils.consumeAndClose(connection);
-                connection = null;
+        long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+        try {
+            payloadSerializer.fullFlush();
+            if (os != null) {
+                OutputStream stream = os;
+                os = null;
+                stream.close();
+            }
+            writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Flushing {} bytes", writtenBytes);
+            }
+            final int responseCode = request.finish();
+            if (isFailed || responseCode >= 400) {
+                onRequestError(responseCode, writtenBytes, request.getResponseBody(), null);
+            } else {
+                onRequestSuccess(writtenBytes);
+            }
+        } catch (IOException e) {
+            onRequestError(request.getResponseCode(), writtenBytes, request.getResponseBody(), e);
+        } finally {
+            if (os != null) {
+                // the request has failed before the stream could be closed,
+                // closing it anyway releases pooled resources, like the deflater of the compression codec
+                closeQuietly(os);
                 os = null;
-                countingOs = null;
-                deflater.reset();
             }
+            request.close();
+            request = null;
+            countingOs = null;
+        }
+    }
+
+    private static void closeQuietly(OutputStream os) {
+        try {
+            os.close();
+        } catch (IOException e) {
+            logger.debug("Suppressed error on attempt to close the request body", e);
         }
     }
 
@@ -231,13 +252,15 @@ public class AbstractIntakeApiHandler {
         return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
     }
 
-    private void onRequestError(Integer responseCode, long bytesWritten, InputStream inputStream, @Nullable IOException e) {
+    private void onRequestError(Integer responseCode, long bytesWritten, @Nullable InputStream inputStream, @Nullable IOException e) {
         String responseBody = null;
-        try {
-            responseBody = IOUtils.toString(inputStream);
-            logger.warn("Response body: {}", responseBody);
-        } catch (IOException e1) {
-            logger.warn(e1.getMessage(), e1);
+        if (inputStream != null) {
+            try {
+                responseBody = IOUtils.toString(inputStream);
+                logger.warn("Response body: {}", responseBody);
+            } catch (IOException e1) {
+                logger.warn(e1.getMessage(), e1);
+            }
         }
         onConnectionError(responseCode, responseBody, bytesWritten);
         if (e != null) {
@@ -247,6 +270,10 @@ public class AbstractIntakeApiHandler {
     }
 
     protected void onConnectionError(@Nullable Integer responseCode, @Nullable String responseBody, long bytesWritten) {
+        if (request != null && IntakeSpool.isSpoolRequest(request)) {
+            // the body could not be written to the spool, which says nothing about the APM Server, so there's no need to back off
+            return;
+        }
         // if the response code is null, the server did not even send a response
         if (responseCode == null || responseCode > 429) {
             // this server seems to have connection or capacity issues, try next
@@ -256,6 +283,11 @@ public class AbstractIntakeApiHandler {
                 "Please use APM Server 6.5.0 or newer.");
         }
 
+        if (spool != null && (responseCode == null || responseCode >= 429)) {
+            // instead of backing off, the following requests are written to the spool until the APM Server is available again
+            spool.onServerUnavailable();
+            return;
+        }
         backoff();
     }
 
@@ -284,6 +316,13 @@ public class AbstractIntakeApiHandler {
 
     public void close() {
         shutDown = true;
+        transport.close();
+        if (spool != null) {
+            spool.close();
+        }
+        if (compressionExecutor != null) {
+            ExecutorUtils.shutdownAndWaitTermination(compressionExecutor);
+        }
         synchronized (WAIT_LOCK) {
             WAIT_LOCK.notifyAll();
         }
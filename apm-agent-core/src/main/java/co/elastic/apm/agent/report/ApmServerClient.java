@@ -170,24 +170,35 @@ public class ApmServerClient {
             }
         }
 
+        String authHeaderValue = getAuthorizationHeaderValue();
+        if (authHeaderValue != null) {
+            connection.setRequestProperty("Authorization", authHeaderValue);
+        }
+
+        connection.setRequestProperty("User-Agent", userAgent);
+        connection.setConnectTimeout((int) getServerTimeoutMillis());
+        connection.setReadTimeout((int) getServerTimeoutMillis());
+        return (HttpURLConnection) connection;
+    }
+
+    @Nullable
+    String getAuthorizationHeaderValue() {
         String secretToken = reporterConfiguration.getSecretToken();
         String apiKey = reporterConfiguration.getApiKey();
-        String authHeaderValue = null;
-
         if (apiKey != null) {
-            authHeaderValue = String.format("ApiKey %s", apiKey);
+            return String.format("ApiKey %s", apiKey);
         } else if (secretToken != null) {
-            authHeaderValue = String.format("Bearer %s", secretToken);
+            return String.format("Bearer %s", secretToken);
         }
+        return null;
+    }
 
-        if (authHeaderValue != null) {
-            connection.setRequestProperty("Authorization", authHeaderValue);
-        }
+    String getUserAgentHeaderValue() {
+        return userAgent;
+    }
 
-        connection.setRequestProperty("User-Agent", userAgent);
-        connection.setConnectTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        connection.setReadTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        return (HttpURLConnection) connection;
+    long getServerTimeoutMillis() {
+        return reporterConfiguration.getServerTimeout().getMillis();
     }
 
     @Nullable
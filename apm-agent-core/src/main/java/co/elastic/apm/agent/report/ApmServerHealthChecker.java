@@ -27,6 +27,7 @@ import com.dslplatform.json.ObjectConverter;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -107,6 +108,22 @@ public class ApmServerHealthChecker implements Callable<Version> {
         return UNKNOWN_VERSION;
     }
 
+    /**
+     * Checks whether at least one of the configured APM Servers is available.
+     * As opposed to {@link #call()}, the outcome is not logged so that this method can be polled while the APM Server is down.
+     *
+     * @return {@code true} if at least one APM Server responded with a successful status code
+     */
+    public boolean isAnyServerAvailable() {
+        List<Boolean> results = apmServerClient.executeForAllUrls("/", new ApmServerClient.ConnectionHandler<Boolean>() {
+            @Override
+            public Boolean withConnection(HttpURLConnection connection) throws IOException {
+                return connection.getResponseCode() < 300;
+            }
+        });
+        return results.contains(Boolean.TRUE);
+    }
+
     static Version parseVersion(String body) throws java.io.IOException {
         JsonReader<Object> reader = dslJson.newReader(body.getBytes(UTF_8));
         reader.startObject();
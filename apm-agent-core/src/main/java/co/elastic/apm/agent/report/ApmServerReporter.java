@@ -39,8 +39,9 @@ import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 
 /**
@@ -124,7 +125,7 @@ public class ApmServerReporter implements Reporter {
     };
 
     private final Disruptor<ReportingEvent> disruptor;
-    private final AtomicLong dropped = new AtomicLong();
+    private final ReportingEventCounter dropped = new ReportingEventCounter();
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
     private final boolean syncReport;
@@ -135,6 +136,21 @@ public class ApmServerReporter implements Reporter {
 
     private final CoreConfigurationImpl coreConfiguration;
 
+    @Nullable
+    private final EagerEventSerializer eagerSerializer;
+
+    /**
+     * The share of the queue's capacity which is reserved for events that are not {@link ReportingEvent.ReportingEventType#isLowPriority()},
+     * see {@link ReporterConfigurationImpl.QueueSheddingPolicy}
+     */
+    private final double reservedCapacity;
+
+    /**
+     * If not {@code null}, logs are buffered in this queue instead of the disruptor's ring buffer
+     */
+    @Nullable
+    private final LogEventQueue logQueue;
+
     public ApmServerReporter(boolean dropTransactionIfQueueFull,
                              ReporterConfigurationImpl reporterConfiguration,
                              CoreConfigurationImpl coreConfiguration,
@@ -145,19 +161,49 @@ public class ApmServerReporter implements Reporter {
                              ObjectPoolFactoryImpl poolFactory
 
     ) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, coreConfiguration, reportingEventHandler, monitor, apmServer, serializer, poolFactory, null);
+    }
+
+    /**
+     * @param eagerSerializer if not {@code null}, transactions and spans are serialized on the thread which reports them,
+     *                        see {@link EagerEventSerializer}
+     */
+    ApmServerReporter(boolean dropTransactionIfQueueFull,
+                      ReporterConfigurationImpl reporterConfiguration,
+                      CoreConfigurationImpl coreConfiguration,
+                      ReportingEventHandler reportingEventHandler,
+                      ReporterMonitor monitor,
+                      ApmServerClient apmServer,
+                      DslJsonSerializer serializer,
+                      ObjectPoolFactoryImpl poolFactory,
+                      @Nullable EagerEventSerializer eagerSerializer) {
+        this.eagerSerializer = eagerSerializer;
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
         this.syncReport = reporterConfiguration.isReportSynchronously();
         this.monitor = monitor;
         this.coreConfiguration = coreConfiguration;
+        if (reporterConfiguration.getQueueSheddingPolicy() == ReporterConfigurationImpl.QueueSheddingPolicy.PRIORITY) {
+            this.reservedCapacity = reporterConfiguration.getQueueReservedCapacity();
+        } else {
+            this.reservedCapacity = 0;
+        }
+        long logQueueSize = reporterConfiguration.getLogSendingQueueSize();
+        this.logQueue = logQueueSize > 0 ? new LogEventQueue((int) Math.min(Integer.MAX_VALUE, logQueueSize)) : null;
+        ThreadFactory threadFactory;
+        if (reporterConfiguration.getIntakeWorkers() > 1) {
+            threadFactory = new ExecutorUtils.NamedThreadFactory("server-reporter");
+        } else {
+            threadFactory = new ExecutorUtils.SingleNamedThreadFactory("server-reporter");
+        }
         disruptor = new Disruptor<>(
             new TransactionEventFactory(),
             MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()),
-            new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
+            threadFactory,
             ProducerType.MULTI,
             new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
         this.reportingEventHandler = reportingEventHandler;
         disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        this.reportingEventHandler.registerWith(disruptor);
         partialTransactionReporter = new PartialTransactionReporter(apmServer, serializer, poolFactory);
     }
 
@@ -176,7 +222,14 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(TransactionImpl transaction) {
-        if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.TRANSACTION)) {
+        EagerEventSerializer eagerSerializer = this.eagerSerializer;
+        if (eagerSerializer != null && eagerSerializer.isReady()) {
+            if (!isContextPropagationOnly(transaction)) {
+                onEventSerialized(eagerSerializer, eagerSerializer.serialize(transaction), ReportingEvent.ReportingEventType.TRANSACTION);
+            }
+            // the serialized transaction does not need to be retained until the reporter thread gets to it
+            transaction.decrementReferences();
+        } else if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.TRANSACTION)) {
             transaction.decrementReferences();
         }
         if (syncReport) {
@@ -186,7 +239,14 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(SpanImpl span) {
-        if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.SPAN)) {
+        EagerEventSerializer eagerSerializer = this.eagerSerializer;
+        if (eagerSerializer != null && eagerSerializer.isReady()) {
+            if (!isContextPropagationOnly(span)
+                && !shed(ReportingEvent.ReportingEventType.SPAN, eagerSerializer.getCapacity(), eagerSerializer.getSize())) {
+                onEventSerialized(eagerSerializer, eagerSerializer.serialize(span), ReportingEvent.ReportingEventType.SPAN);
+            }
+            span.decrementReferences();
+        } else if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.SPAN)) {
             span.decrementReferences();
         }
         if (syncReport) {
@@ -194,6 +254,34 @@ public class ApmServerReporter implements Reporter {
         }
     }
 
+    /**
+     * @param buffer the buffer the event has been serialized to, or {@code null} if it has been dropped
+     */
+    private void onEventSerialized(EagerEventSerializer eagerSerializer, @Nullable ByteRingBuffer buffer, ReportingEvent.ReportingEventType type) {
+        long capacity = eagerSerializer.getCapacity();
+        monitor.eventCreated(type, capacity, eagerSerializer.getSize());
+        if (buffer == null) {
+            logger.debug("Could not add {} to the serialized event buffer as there is not enough space", type);
+            dropped.increment(type);
+            monitor.eventDroppedBeforeQueue(type, capacity);
+        } else if (buffer.requestWakeup()) {
+            // the intake worker reads the buffer whenever it handles an event
+            scheduleWakeupEvent();
+        }
+    }
+
+    private void reportToLogQueue(LogEventQueue logQueue, ReportingEvent.ReportingEventType type, byte[] log) {
+        long capacity = logQueue.getCapacity();
+        monitor.logEventCreated(capacity, logQueue.getSize());
+        if (!logQueue.offer(type, log)) {
+            dropped.increment(type);
+            monitor.logEventDroppedBeforeQueue(capacity);
+        } else if (logQueue.requestWakeup()) {
+            // the first intake worker reads the queue whenever it handles an event
+            scheduleWakeupEvent();
+        }
+    }
+
     @Override
     public boolean flush() {
         return flush(-1, TimeUnit.NANOSECONDS, false);
@@ -201,7 +289,15 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public long getDropped() {
-        return dropped.get() + reportingEventHandler.getDropped();
+        return dropped.getTotalCount() + reportingEventHandler.getDropped();
+    }
+
+    /**
+     * @return the number of events of the given type which have been rejected because the queue was full,
+     * or because they have been shed to make room for events of a higher priority
+     */
+    public long getDropped(ReportingEvent.ReportingEventType type) {
+        return dropped.getCount(type);
     }
 
     @Override
@@ -213,6 +309,11 @@ public class ApmServerReporter implements Reporter {
         return monitor;
     }
 
+    @Nullable
+    LogEventQueue getLogQueue() {
+        return logQueue;
+    }
+
     public void scheduleWakeupEvent() {
         disruptor.getRingBuffer().tryPublishEvent(WAKEUP_EVENT_TRANSLATOR);
     }
@@ -276,7 +377,7 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void close() {
-        logger.info("dropped events because of full queue: {}", dropped.get());
+        logger.info("dropped events because of full queue: {}", dropped.getTotalCount());
         publishAndWaitForEvent(5, TimeUnit.SECONDS, SHUTDOWN_EVENT_TRANSLATOR);
         reportingEventHandler.close();
         try {
@@ -312,7 +413,12 @@ public class ApmServerReporter implements Reporter {
         if (log.isEmpty()) {
             return;
         }
-        tryAddEventToRingBuffer(log, LOG_STRING_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.STRING_LOG);
+        LogEventQueue logQueue = this.logQueue;
+        if (logQueue != null) {
+            reportToLogQueue(logQueue, ReportingEvent.ReportingEventType.STRING_LOG, log.getBytes(StandardCharsets.UTF_8));
+        } else {
+            tryAddEventToRingBuffer(log, LOG_STRING_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.STRING_LOG);
+        }
         if (syncReport) {
             flush();
         }
@@ -332,7 +438,12 @@ public class ApmServerReporter implements Reporter {
         if (log.length == 0) {
             return;
         }
-        tryAddEventToRingBuffer(log, translator, ReportingEvent.ReportingEventType.BYTES_LOG);
+        LogEventQueue logQueue = this.logQueue;
+        if (logQueue != null) {
+            reportToLogQueue(logQueue, ReportingEvent.ReportingEventType.BYTES_LOG, log);
+        } else {
+            tryAddEventToRingBuffer(log, translator, ReportingEvent.ReportingEventType.BYTES_LOG);
+        }
         if (syncReport) {
             flush();
         }
@@ -346,20 +457,31 @@ public class ApmServerReporter implements Reporter {
         return disruptor.getRingBuffer().getBufferSize() - disruptor.getRingBuffer().remainingCapacity();
     }
 
-    private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator, ReportingEvent.ReportingEventType targetType) {
-        if(coreConfiguration.isContextPropagationOnly()) {
+    private boolean isContextPropagationOnly(Object event) {
+        if (coreConfiguration.isContextPropagationOnly()) {
             logger.debug("Dropping event {} because of context_propagation_only", event.getClass().getSimpleName(), event);
+            return true;
+        }
+        return false;
+    }
+
+    private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator, ReportingEvent.ReportingEventType targetType) {
+        if (isContextPropagationOnly(event)) {
             return false;
         }
         long capacity = getQueueCapacity();
-        monitor.eventCreated(targetType, capacity, getQueueElementCount());
+        long size = getQueueElementCount();
+        if (dropTransactionIfQueueFull && shed(targetType, capacity, size)) {
+            return false;
+        }
+        monitor.eventCreated(targetType, capacity, size);
         if (dropTransactionIfQueueFull) {
             boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
             if (queueFull) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
                 }
-                dropped.incrementAndGet();
+                dropped.increment(targetType);
                 monitor.eventDroppedBeforeQueue(targetType, capacity);
                 return false;
             }
@@ -369,6 +491,24 @@ public class ApmServerReporter implements Reporter {
         return true;
     }
 
+    /**
+     * Rejects low priority events if less than the {@link #reservedCapacity} of the queue is left.
+     *
+     * @return {@code true} if the event has been rejected
+     */
+    private boolean shed(ReportingEvent.ReportingEventType type, long capacity, long size) {
+        if (!type.isLowPriority() || capacity - size >= reservedCapacity * capacity) {
+            return false;
+        }
+        monitor.eventCreated(type, capacity, size);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rejecting {} as less than {} of the queue is left", type, reservedCapacity);
+        }
+        dropped.increment(type);
+        monitor.eventShed(type, capacity);
+        return true;
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
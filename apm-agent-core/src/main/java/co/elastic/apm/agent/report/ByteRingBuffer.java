@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free ring buffer of byte records which can be written by many threads concurrently and is read by a single thread.
+ * <p>
+ * Writers claim space for a record by advancing the tail with a CAS, copy the record into the claimed space
+ * and publish it by writing its length into the header which belongs to the record's position.
+ * Records which would wrap around the end of the buffer are preceded by a padding record, so that every record is contiguous.
+ * </p>
+ * <p>
+ * The reader consumes the records in the order in which space has been claimed.
+ * A record which has been claimed but is not published yet holds back the records which have been claimed after it.
+ * As writers only copy bytes between claiming and publishing, this is not an issue in practice.
+ * </p>
+ */
+class ByteRingBuffer {
+
+    /**
+     * Records are aligned to this many bytes, so that there is one header per {@code ALIGNMENT} bytes
+     */
+    static final int ALIGNMENT = 8;
+
+    private final byte[] buffer;
+    /**
+     * Contains the length of the published record, a negative length for padding, or {@code 0} if there's no published record
+     * at the corresponding position of the {@link #buffer}.
+     */
+    private final AtomicIntegerArray headers;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean();
+    /**
+     * Only written by the reader
+     */
+    private volatile long head;
+
+    /**
+     * @param capacity the capacity in bytes, which is rounded down to a power of two
+     */
+    ByteRingBuffer(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, ALIGNMENT * 2));
+        this.mask = this.capacity - 1;
+        this.buffer = new byte[this.capacity];
+        this.headers = new AtomicIntegerArray(this.capacity / ALIGNMENT);
+    }
+
+    /**
+     * Appends a record to this buffer.
+     *
+     * @param type   an arbitrary byte which is passed to the {@link RecordHandler}
+     * @param src    the bytes of the record
+     * @param offset the offset of the record within {@code src}
+     * @param length the length of the record, must be greater than {@code 0}
+     * @return {@code true} if the record has been appended, {@code false} if there's not enough space left in this buffer
+     */
+    boolean offer(byte type, byte[] src, int offset, int length) {
+        // one byte for the type
+        int recordLength = length + 1;
+        int required = align(recordLength);
+        if (length <= 0 || required > capacity) {
+            return false;
+        }
+        long claimed;
+        int padding;
+        do {
+            claimed = tail.get();
+            long available = capacity - (claimed - head);
+            int toEnd = capacity - (int) (claimed & mask);
+            padding = required > toEnd ? toEnd : 0;
+            if (padding + required > available) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + padding + required));
+
+        int index = (int) (claimed & mask);
+        if (padding > 0) {
+            headers.lazySet(index / ALIGNMENT, -padding);
+            index = 0;
+        }
+        buffer[index] = type;
+        System.arraycopy(src, offset, buffer, index + 1, length);
+        headers.lazySet(index / ALIGNMENT, recordLength);
+        return true;
+    }
+
+    /**
+     * Has to be called by writers after they have offered a record.
+     *
+     * @return {@code true} if the reader has to be woken up,
+     * which is the case for the first record which has been offered since the reader has started its last {@link #read}
+     */
+    boolean requestWakeup() {
+        return !wakeupRequested.get() && wakeupRequested.compareAndSet(false, true);
+    }
+
+    /**
+     * Reads all records which have been published, at most one lap of the buffer.
+     * Must only be called by a single thread at a time.
+     *
+     * @param handler the callback for each record
+     * @return the number of records which have been read
+     */
+    int read(RecordHandler handler) {
+        return read(handler, capacity);
+    }
+
+    /**
+     * Reads the records which have been published, until at least {@code maxBytes} have been read, but at most one lap of the buffer.
+     * Must only be called by a single thread at a time.
+     *
+     * @param handler  the callback for each record
+     * @param maxBytes the number of bytes after which no further record is read, the last record may exceed this limit
+     * @return the number of records which have been read
+     */
+    int read(RecordHandler handler, int maxBytes) {
+        // writers which publish after this point will request another wakeup
+        wakeupRequested.set(false);
+        long position = head;
+        long limit = position + Math.min(capacity, maxBytes);
+        int records = 0;
+        while (position < limit) {
+            int index = (int) (position & mask);
+            int slot = index / ALIGNMENT;
+            int header = headers.get(slot);
+            if (header == 0) {
+                break;
+            }
+            if (header > 0) {
+                handler.onRecord(buffer[index], buffer, index + 1, header - 1);
+                position += align(header);
+                records++;
+            } else {
+                position -= header;
+            }
+            headers.lazySet(slot, 0);
+            // frees the space for writers
+            head = position;
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of bytes which are claimed by records that have not been read yet
+     */
+    long size() {
+        return tail.get() - head;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    interface RecordHandler {
+
+        /**
+         * @param type   the type which has been passed to {@link #offer}
+         * @param buffer the buffer which contains the record, only valid until this method returns
+         * @param offset the offset of the record
+         * @param length the length of the record
+         */
+        void onRecord(byte type, byte[] buffer, int offset, int length);
+    }
+}
@@ -25,7 +25,7 @@ import java.io.OutputStream;
 class CountingOutputStream extends OutputStream {
 
     private final OutputStream out;
-    private long count;
+    private volatile long count;
 
     CountingOutputStream(OutputStream out) {
         this.out = out;
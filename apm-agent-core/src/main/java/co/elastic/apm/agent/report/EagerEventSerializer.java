@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+
+/**
+ * Serializes transactions and spans on the application thread which ends them,
+ * so that they can be recycled right away instead of being retained until the reporter thread gets to serialize them.
+ * <p>
+ * Each thread serializes into its own {@link DslJsonSerializer.Writer} and copies the resulting ND-JSON line into
+ * one of the {@link ByteRingBuffer}s, each of which is read by one intake worker.
+ * This means that the capacity of the reporter's queue is measured in bytes, rather than in the number of events.
+ * </p>
+ */
+class EagerEventSerializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EagerEventSerializer.class);
+
+    /**
+     * Writers whose buffer has grown beyond this size because of an exceptionally large event are not retained
+     */
+    private static final int MAX_RETAINED_WRITER_BUFFER_SIZE = 4 * SerializationConstants.BUFFER_SIZE;
+
+    private final DslJsonSerializer serializer;
+    private final ProcessorEventHandler processorEventHandler;
+    private final ApmServerClient apmServerClient;
+    private final ByteRingBuffer[] buffers;
+    private final ThreadLocal<DslJsonSerializer.Writer> writers = new ThreadLocal<DslJsonSerializer.Writer>() {
+        @Override
+        protected DslJsonSerializer.Writer initialValue() {
+            return serializer.newWriter();
+        }
+    };
+
+    /**
+     * @param bufferCount     the number of buffers, one per intake worker
+     * @param capacityInBytes the total capacity of all buffers
+     */
+    EagerEventSerializer(DslJsonSerializer serializer, ProcessorEventHandler processorEventHandler, ApmServerClient apmServerClient,
+                         int bufferCount, int capacityInBytes) {
+        this.serializer = serializer;
+        this.processorEventHandler = processorEventHandler;
+        this.apmServerClient = apmServerClient;
+        this.buffers = new ByteRingBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            buffers[i] = new ByteRingBuffer(capacityInBytes / bufferCount);
+        }
+    }
+
+    ByteRingBuffer getBuffer(int workerIndex) {
+        return buffers[workerIndex];
+    }
+
+    /**
+     * The serialization depends on the version of the APM Server.
+     * Until the version is known, events are handed over to the reporter thread so that application threads are not blocked.
+     *
+     * @return {@code true} if events can be serialized without blocking
+     */
+    boolean isReady() {
+        return apmServerClient.isServerVersionReady();
+    }
+
+    /**
+     * @return the buffer which the transaction has been written to, or {@code null} if there was not enough space
+     */
+    @Nullable
+    ByteRingBuffer serialize(TransactionImpl transaction) {
+        DslJsonSerializer.Writer writer = writers.get();
+        try {
+            processorEventHandler.processBeforeReport(transaction);
+            writer.serializeTransactionNdJson(transaction);
+            return offer(ReportingEvent.ReportingEventType.TRANSACTION, writer);
+        } catch (Exception e) {
+            logger.warn("Failed to serialize transaction {}: {}", transaction, e.getMessage());
+            logger.debug("Serialization failure", e);
+            return null;
+        } finally {
+            reset(writer);
+        }
+    }
+
+    /**
+     * @return the buffer which the span has been written to, or {@code null} if there was not enough space
+     */
+    @Nullable
+    ByteRingBuffer serialize(SpanImpl span) {
+        DslJsonSerializer.Writer writer = writers.get();
+        try {
+            writer.serializeSpanNdJson(span);
+            return offer(ReportingEvent.ReportingEventType.SPAN, writer);
+        } catch (Exception e) {
+            logger.warn("Failed to serialize span {}: {}", span, e.getMessage());
+            logger.debug("Serialization failure", e);
+            return null;
+        } finally {
+            reset(writer);
+        }
+    }
+
+    @Nullable
+    private ByteRingBuffer offer(ReportingEvent.ReportingEventType type, DslJsonSerializer.Writer writer) {
+        ByteRingBuffer buffer = buffers.length == 1 ? buffers[0] : buffers[(int) (Thread.currentThread().getId() % buffers.length)];
+        JsonWriter jw = writer.getJsonWriter();
+        if (buffer.offer((byte) type.ordinal(), jw.getByteBuffer(), 0, jw.size())) {
+            return buffer;
+        }
+        return null;
+    }
+
+    private void reset(DslJsonSerializer.Writer writer) {
+        if (writer.getJsonWriter().getByteBuffer().length > MAX_RETAINED_WRITER_BUFFER_SIZE) {
+            writers.remove();
+        } else {
+            writer.resetState();
+        }
+    }
+
+    long getCapacity() {
+        long capacity = 0;
+        for (ByteRingBuffer buffer : buffers) {
+            capacity += buffer.capacity();
+        }
+        return capacity;
+    }
+
+    long getSize() {
+        long size = 0;
+        for (ByteRingBuffer buffer : buffers) {
+            size += buffer.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * A single streaming request to the APM Server which is created by an {@link IntakeTransport}.
+ * <p>
+ * The lifecycle is as follows:
+ * set all headers via {@link #setHeader(String, String)},
+ * write the (chunked) request body to {@link #getOutputStream()},
+ * read the status via {@link #finish()}
+ * and eventually release the request via {@link #close()} or {@link #abort()}.
+ * </p>
+ */
+public interface IntakeRequest {
+
+    URL getUrl();
+
+    /**
+     * Adds a request header. Must be called before {@link #getOutputStream()}.
+     */
+    void setHeader(String name, String value);
+
+    /**
+     * Sends the request headers, if not done already, and returns the stream to write the request body to.
+     *
+     * @return the stream to write the request body to
+     * @throws IOException if the connection to the APM Server could not be established
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Waits for the response of the APM Server.
+     * The {@link #getOutputStream() request body} has to be closed before.
+     *
+     * @return the HTTP status code
+     * @throws IOException if an I/O error occurred while reading the response.
+     *                     Implementations may also throw in case of an error status code which is then available via {@link #getResponseCode()}.
+     */
+    int finish() throws IOException;
+
+    /**
+     * Returns the HTTP status code if a response has been received.
+     *
+     * @return the HTTP status code or {@code -1} if no response has been received
+     */
+    int getResponseCode();
+
+    /**
+     * Returns the body of the response, regardless of the status code.
+     *
+     * @return the response body, or {@code null} if there is none
+     */
+    @Nullable
+    InputStream getResponseBody();
+
+    /**
+     * Releases the request in a way that allows the underlying connection to be reused
+     */
+    void close();
+
+    /**
+     * Releases the request and closes the underlying connection
+     */
+    void abort();
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.spool.DiskSpool;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stores intake requests in a {@link DiskSpool} while the APM Server is unavailable and replays them once it is available again.
+ * <p>
+ * When a request to the APM Server fails because the server can't be reached or is overloaded,
+ * the {@link AbstractIntakeApiHandler}s call {@link #onServerUnavailable()}.
+ * From then on, they send their requests to the {@link #createTransport() spool transport} instead of backing off.
+ * The spool transport appends the compressed request bodies to the disk spool as soon as the request ends.
+ * If a body can't be spooled, the request fails with {@link #SPOOL_REJECTED_RESPONSE_CODE} and its events are counted as dropped.
+ * </p>
+ * <p>
+ * A background thread periodically checks the health of the APM Server via {@link ApmServerHealthChecker}.
+ * Once the APM Server is available again, new requests are sent to the APM Server directly,
+ * and the spooled requests are replayed in the order they have been spooled.
+ * The number of bytes which are replayed per second is limited to not overwhelm the APM Server which just recovered.
+ * </p>
+ */
+class IntakeSpool implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeSpool.class);
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * The response code of a spool request whose body could not be appended to the disk spool (Insufficient Storage)
+     */
+    static final int SPOOL_REJECTED_RESPONSE_CODE = 507;
+
+    private final DiskSpool diskSpool;
+    private final ApmServerClient apmServerClient;
+    private final ApmServerHealthChecker healthChecker;
+    private final IntakeTransport replayTransport;
+    private final long replayBytesPerSecond;
+    private final long checkIntervalMillis;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean serverAvailable = true;
+
+    // only accessed by the replay thread
+    private long replayCreditNanos;
+    private long lastReplayNanos;
+    // only written by the replay thread
+    private volatile long replayedBatches;
+    private volatile long discardedBatches;
+
+    IntakeSpool(DiskSpool diskSpool, ApmServerClient apmServerClient, long replayBytesPerSecond) {
+        this(diskSpool, apmServerClient, replayBytesPerSecond, 1000);
+    }
+
+    IntakeSpool(DiskSpool diskSpool, ApmServerClient apmServerClient, long replayBytesPerSecond, long checkIntervalMillis) {
+        this.diskSpool = diskSpool;
+        this.apmServerClient = apmServerClient;
+        this.healthChecker = new ApmServerHealthChecker(apmServerClient);
+        this.replayTransport = new UrlConnectionIntakeTransport(apmServerClient);
+        this.replayBytesPerSecond = Math.max(1, replayBytesPerSecond);
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.executor = ExecutorUtils.createSingleThreadSchedulingDaemonPool("intake-spool");
+    }
+
+    /**
+     * Starts replaying spooled requests, including the ones which have been left over from a previous run.
+     * Subsequent calls have no effect.
+     */
+    void start() {
+        if (started.compareAndSet(false, true)) {
+            lastReplayNanos = System.nanoTime();
+            executor.scheduleWithFixedDelay(this, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return {@code false} if requests should be sent to the spool, as the APM Server is not available
+     */
+    boolean isServerAvailable() {
+        return serverAvailable;
+    }
+
+    void onServerUnavailable() {
+        if (serverAvailable) {
+            serverAvailable = false;
+            logger.warn("APM Server is not available, spooling events to {} until it is available again", diskSpool.getDirectory());
+        }
+    }
+
+    IntakeTransport createTransport() {
+        return new SpoolTransport();
+    }
+
+    /**
+     * @return whether the request has been created by a {@link #createTransport() spool transport}
+     */
+    static boolean isSpoolRequest(IntakeRequest request) {
+        return request instanceof SpoolRequest;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!serverAvailable) {
+                if (!healthChecker.isAnyServerAvailable()) {
+                    return;
+                }
+                logger.info("APM Server is available again, replaying {} spooled requests", diskSpool.getPendingBatches());
+                serverAvailable = true;
+            }
+            replay();
+        } catch (Exception e) {
+            logger.warn("Error while replaying spooled requests: {}", e.getMessage());
+            logger.debug("Replay failure", e);
+        }
+    }
+
+    private void replay() {
+        long now = System.nanoTime();
+        // a token bucket, measured in the time it takes to replay the bytes at the configured rate,
+        // which allows to replay at most one second worth of bytes at once
+        replayCreditNanos = Math.min(ONE_SECOND_NANOS, replayCreditNanos + now - lastReplayNanos);
+        lastReplayNanos = now;
+        while (replayCreditNanos > 0 && serverAvailable && !closed.get()) {
+            DiskSpool.Batch batch = diskSpool.peek();
+            if (batch == null) {
+                return;
+            }
+            if (!send(batch)) {
+                return;
+            }
+            diskSpool.remove(batch);
+            replayCreditNanos -= batch.getBody().length * ONE_SECOND_NANOS / replayBytesPerSecond;
+        }
+    }
+
+    /**
+     * @return {@code true} if the batch has been handled and can be removed from the spool
+     */
+    private boolean send(DiskSpool.Batch batch) {
+        IntakeRequest request;
+        try {
+            request = replayTransport.startRequest(IntakeV2ReportingEventHandler.INTAKE_V2_URL);
+        } catch (IOException e) {
+            onReplayError(-1, e);
+            return false;
+        }
+        if (request == null) {
+            // no APM Server configured
+            return false;
+        }
+        int responseCode;
+        try {
+            if (!batch.getContentEncoding().isEmpty()) {
+                request.setHeader("Content-Encoding", batch.getContentEncoding());
+            }
+            request.setHeader("Content-Type", "application/x-ndjson");
+            OutputStream os = request.getOutputStream();
+            os.write(batch.getBody());
+            os.close();
+            responseCode = request.finish();
+            request.close();
+        } catch (IOException e) {
+            responseCode = request.getResponseCode();
+            request.abort();
+            if (responseCode == -1 || responseCode >= 429) {
+                onReplayError(responseCode, e);
+                return false;
+            }
+        }
+        if (responseCode >= 429) {
+            onReplayError(responseCode, null);
+            return false;
+        }
+        if (responseCode >= 400) {
+            // the APM Server rejects the request, retrying would not help
+            logger.warn("APM Server rejected a spooled request with status {}, discarding it", responseCode);
+            discardedBatches++;
+        } else {
+            replayedBatches++;
+        }
+        return true;
+    }
+
+    private void onReplayError(int responseCode, @Nullable IOException e) {
+        logger.debug("Failed to replay spooled request, response code {}", responseCode, e);
+        apmServerClient.onConnectionError();
+        onServerUnavailable();
+    }
+
+    long getReplayedBatches() {
+        return replayedBatches;
+    }
+
+    long getDiscardedBatches() {
+        return discardedBatches;
+    }
+
+    DiskSpool getDiskSpool() {
+        return diskSpool;
+    }
+
+    /**
+     * Stops replaying and closes the disk spool. The batches which have not been replayed yet are replayed after a restart.
+     * Subsequent calls have no effect.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            ExecutorUtils.shutdownAndWaitTermination(executor);
+            replayTransport.close();
+            diskSpool.close();
+        }
+    }
+
+    /**
+     * An {@link IntakeTransport} which appends the request bodies to the disk spool
+     */
+    private class SpoolTransport implements IntakeTransport {
+
+        private final SpoolRequest request = new SpoolRequest();
+
+        @Override
+        public IntakeRequest startRequest(String endpoint) {
+            request.reset();
+            return request;
+        }
+
+        @Override
+        public long getConnectionCount() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class SpoolRequest implements IntakeRequest {
+
+        private final ExposedByteArrayOutputStream body = new ExposedByteArrayOutputStream();
+        private final URL url;
+        private String contentEncoding = "";
+        private int responseCode = -1;
+
+        private SpoolRequest() {
+            URL url;
+            try {
+                url = diskSpool.getDirectory().toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+            this.url = url;
+        }
+
+        void reset() {
+            body.reset();
+            contentEncoding = "";
+            responseCode = -1;
+        }
+
+        @Override
+        public URL getUrl() {
+            return url;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Encoding".equals(name)) {
+                contentEncoding = value;
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return body;
+        }
+
+        @Override
+        public int finish() {
+            if (diskSpool.append(contentEncoding, body.getBuffer(), 0, body.size())) {
+                // the events are considered to be reported as soon as they have been spooled
+                responseCode = 202;
+            } else {
+                logger.warn("Could not spool request of {} bytes, dropping it", body.size());
+                responseCode = SPOOL_REJECTED_RESPONSE_CODE;
+            }
+            return responseCode;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Nullable
+        @Override
+        public InputStream getResponseBody() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Abstracts the HTTP client which is used to stream events to the APM Server intake API.
+ * <p>
+ * Implementations are used from a single reporter thread and don't need to be thread safe.
+ * </p>
+ */
+public interface IntakeTransport {
+
+    /**
+     * Starts a new streaming request to the current APM Server.
+     *
+     * @param endpoint the APM Server path, for example {@link IntakeV2ReportingEventHandler#INTAKE_V2_URL}
+     * @return the request, or {@code null} if there is no APM Server to send the request to
+     * @throws IOException if the request could not be started
+     */
+    @Nullable
+    IntakeRequest startRequest(String endpoint) throws IOException;
+
+    /**
+     * Returns the number of connections which have been established to the APM Server by this transport.
+     * As every connection to a HTTPS endpoint requires a TLS handshake, this is also a measure of the number of handshakes.
+     *
+     * @return the number of connections established so far, or {@code -1} if the implementation can't tell
+     */
+    long getConnectionCount();
+
+    /**
+     * Releases all connections held by this transport
+     */
+    void close();
+}
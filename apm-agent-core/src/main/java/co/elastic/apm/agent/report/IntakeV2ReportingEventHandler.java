@@ -25,9 +25,9 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
 import com.dslplatform.json.DslJson;
+import com.lmax.disruptor.dsl.Disruptor;
 
 import javax.annotation.Nullable;
-import java.net.HttpURLConnection;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +45,14 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     private static final Logger logsSupportLogger = LoggerUtils.logOnce(LoggerFactory.getLogger(IntakeV2ReportingEventHandler.class));
 
+    private static final ReportingEvent.ReportingEventType[] EVENT_TYPES = ReportingEvent.ReportingEventType.values();
+
+    /**
+     * The maximum number of bytes of logs which are read from the {@link LogEventQueue} per event,
+     * so that logs and the other events take turns in being written to the request.
+     */
+    static final int LOG_QUANTUM_BYTES = 8 * 1024;
+
     private final ProcessorEventHandler processorEventHandler;
     private final ScheduledExecutorService timeoutTimer;
     @Nullable
@@ -57,13 +65,52 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     private final DslJson<Object> dslJson;
 
+    /**
+     * The index of this handler within the group of parallel intake workers, see {@link ParallelReportingEventHandler}
+     */
+    private final int workerIndex;
+    private final int workerCount;
+
+    /**
+     * Contains the events which have already been serialized by the application threads, see {@link EagerEventSerializer}
+     */
+    @Nullable
+    private final ByteRingBuffer serializedEvents;
+    private final ByteRingBuffer.RecordHandler serializedEventHandler = new ByteRingBuffer.RecordHandler() {
+        @Override
+        public void onRecord(byte type, byte[] buffer, int offset, int length) {
+            handleSerializedEvent(EVENT_TYPES[type], buffer, offset, length);
+        }
+    };
+
+    /**
+     * Only read by the first worker, see {@link LogEventQueue}
+     */
+    @Nullable
+    private LogEventQueue logQueue;
+    private final ByteRingBuffer.RecordHandler logHandler = new ByteRingBuffer.RecordHandler() {
+        @Override
+        public void onRecord(byte type, byte[] buffer, int offset, int length) {
+            handleLog(EVENT_TYPES[type], buffer, offset, length);
+        }
+    };
+
     private long reported;
     private long dropped;
 
     public IntakeV2ReportingEventHandler(ReporterConfigurationImpl reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
-        super(reporterConfiguration, payloadSerializer, apmServerClient);
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, 0, 1, null, null);
+    }
+
+    IntakeV2ReportingEventHandler(ReporterConfigurationImpl reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                  DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient, int workerIndex, int workerCount,
+                                  @Nullable IntakeSpool spool, @Nullable EagerEventSerializer eagerSerializer) {
+        super(reporterConfiguration, payloadSerializer, apmServerClient, spool);
         this.processorEventHandler = processorEventHandler;
+        this.workerIndex = workerIndex;
+        this.workerCount = workerCount;
+        this.serializedEvents = eagerSerializer != null ? eagerSerializer.getBuffer(workerIndex) : null;
         this.dslJson = new DslJson<>(new DslJson.Settings<>());
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
     }
@@ -71,30 +118,61 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     @Override
     public void init(ApmServerReporter reporter) {
         this.reporter = reporter;
+        if (workerIndex == 0) {
+            this.logQueue = reporter.getLogQueue();
+        }
         timeoutTask = new WakeupOnTimeout(reporter);
+        if (spool != null) {
+            spool.start();
+        }
+    }
+
+    @Override
+    public void registerWith(Disruptor<ReportingEvent> disruptor) {
+        disruptor.handleEventsWith(this);
     }
 
     @Override
     public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
         try {
-            if (reporter != null) {
-                ReporterMonitor monitor = reporter.getReporterMonitor();
-                monitor.eventDequeued(event.getType(), reporter.getQueueCapacity(), reporter.getQueueElementCount());
-            }
-            if (logger.isDebugEnabled()) {
-                logger.debug("Receiving {} event (sequence {})", event.getType(), sequence);
-            }
-            if (!shutDown) {
-                if (connection != null && isApiRequestTimeExpired()) {
-                    logger.debug("Request flush because the request timeout occurred");
-                    endRequest();
-                }
-                dispatchEvent(event, sequence, endOfBatch);
-            }
+            handleEvent(event, sequence, endOfBatch);
         } finally {
             processed.set(sequence);
-            event.end();
-            event.resetState();
+            if (workerCount == 1) {
+                event.end();
+                event.resetState();
+            }
+            // when running as one of multiple workers, the ParallelReportingEventHandler ends the event
+            // as soon as all workers have processed it
+        }
+    }
+
+    void handleEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
+        if (serializedEvents != null && !shutDown) {
+            // also handles the wakeup events which are scheduled when events are added to the buffer
+            serializedEvents.read(serializedEventHandler);
+        }
+        ReportingEvent.ReportingEventType type = event.getType();
+        if (logQueue != null && !shutDown) {
+            drainLogs(logQueue, type);
+        }
+        if (!type.isControl() && sequence % workerCount != workerIndex) {
+            // payload events are distributed round-robin across the workers
+            return;
+        }
+        if (reporter != null && (!type.isControl() || workerIndex == 0)) {
+            ReporterMonitor monitor = reporter.getReporterMonitor();
+            monitor.eventDequeued(type, reporter.getQueueCapacity(), reporter.getQueueElementCount());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Receiving {} event (sequence {})", type, sequence);
+        }
+        if (!shutDown) {
+            if (request != null && isApiRequestTimeExpired()) {
+                logger.debug("Request flush because the request timeout occurred");
+                endRequest();
+            }
+            dispatchEvent(event, sequence, endOfBatch);
         }
     }
 
@@ -110,7 +188,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 break;
             case MAKE_FLUSH_REQUEST:
                 endRequest();
-                connection = startRequest(INTAKE_V2_FLUSH_URL);
+                request = startRequest(INTAKE_V2_FLUSH_URL);
                 // continuing to behave as END_REQUEST
             case END_REQUEST:
                 endRequest();
@@ -139,24 +217,60 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         processorEventHandler.onEvent(event, sequence, endOfBatch);
         try {
-            inflightEvents.increment(event.getType());
-            if (connection == null) {
-                connection = startRequest(INTAKE_V2_URL);
-            }
-            if (connection != null) {
+            if (startRequestIfNecessary(event.getType(), event)) {
                 writeEvent(event);
-            } else {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Failed to get APM server connection, dropping event: {}", event);
-                }
-                dropped++;
-                if (reporter != null) {
-                    inflightEvents.reset(); //we never actually created a request when connection is null
-                    reporter.getReporterMonitor().eventDroppedAfterDequeue(event.getType());
-                }
             }
         } catch (Exception e) {
-            handleConnectionError(event, e);
+            handleConnectionError(event.getType(), e);
+        }
+
+        if (shouldEndRequest()) {
+            endRequest();
+        }
+    }
+
+    private void handleSerializedEvent(ReportingEvent.ReportingEventType type, byte[] buffer, int offset, int length) {
+        if (reporter != null) {
+            //noinspection ConstantConditions
+            reporter.getReporterMonitor().eventDequeued(type, serializedEvents.capacity(), serializedEvents.size());
+        }
+        try {
+            if (startRequestIfNecessary(type, type)) {
+                payloadSerializer.writeBytes(buffer, offset, length);
+            }
+        } catch (Exception e) {
+            handleConnectionError(type, e);
+        }
+
+        if (shouldEndRequest()) {
+            endRequest();
+        }
+    }
+
+    private void drainLogs(LogEventQueue logQueue, ReportingEvent.ReportingEventType type) {
+        if (type == ReportingEvent.ReportingEventType.WAKEUP || !type.isControl()) {
+            logQueue.drain(logHandler, LOG_QUANTUM_BYTES);
+            if (logQueue.getSize() > 0 && logQueue.requestWakeup() && reporter != null) {
+                // makes sure the remaining logs are read after the events which are currently queued
+                reporter.scheduleWakeupEvent();
+            }
+        } else {
+            // the queued logs have to be sent before the request is ended
+            logQueue.drain(logHandler, Integer.MAX_VALUE);
+        }
+    }
+
+    private void handleLog(ReportingEvent.ReportingEventType type, byte[] buffer, int offset, int length) {
+        if (reporter != null) {
+            //noinspection ConstantConditions
+            reporter.getReporterMonitor().logEventDequeued(logQueue.getCapacity(), logQueue.getSize());
+        }
+        try {
+            if (startRequestIfNecessary(type, type) && logsSupported()) {
+                payloadSerializer.serializeLogNdJson(buffer, offset, length);
+            }
+        } catch (Exception e) {
+            handleConnectionError(type, e);
         }
 
         if (shouldEndRequest()) {
@@ -164,8 +278,30 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
     }
 
-    private void handleConnectionError(ReportingEvent event, Exception e) {
-        logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
+    /**
+     * @return {@code true} if the event can be written to the current request, {@code false} if it has been dropped
+     */
+    private boolean startRequestIfNecessary(ReportingEvent.ReportingEventType type, Object event) throws Exception {
+        inflightEvents.increment(type);
+        if (request == null) {
+            request = startRequest(INTAKE_V2_URL);
+        }
+        if (request != null) {
+            return true;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to get APM server connection, dropping event: {}", event);
+        }
+        dropped++;
+        if (reporter != null) {
+            inflightEvents.reset(); //we never actually created a request when request is null
+            reporter.getReporterMonitor().eventDroppedAfterDequeue(type);
+        }
+        return false;
+    }
+
+    private void handleConnectionError(ReportingEvent.ReportingEventType type, Exception e) {
+        logger.error("Failed to handle event of type {} with this error: {}", type, e.getMessage());
         logger.debug("Event handling failure", e);
         endRequestExceptionally();
     }
@@ -206,9 +342,9 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     @Override
     @Nullable
-    protected HttpURLConnection startRequest(String endpoint) throws Exception {
-        HttpURLConnection connection = super.startRequest(endpoint);
-        if (connection != null) {
+    protected IntakeRequest startRequest(String endpoint) throws Exception {
+        IntakeRequest request = super.startRequest(endpoint);
+        if (request != null) {
             if (timeoutTask != null) {
                 long requestTimeoutMillis = reporterConfiguration.getApiRequestTime().getMillis();
                 if (logger.isDebugEnabled()) {
@@ -217,7 +353,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 timeoutTimer.schedule(timeoutTask, requestTimeoutMillis, TimeUnit.MILLISECONDS);
             }
         }
-        return connection;
+        return request;
     }
 
     @Override
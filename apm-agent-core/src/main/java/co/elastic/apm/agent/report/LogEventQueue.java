@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A dedicated queue for the logs which are sent to the APM Server, see {@code log_sending_queue_size}.
+ * <p>
+ * Logs are buffered separately from the reporter's ring buffer, so that a burst of logs can't crowd out transactions, spans and errors,
+ * and vice versa. The capacity of this queue is measured in bytes, as the size of log lines varies a lot.
+ * </p>
+ * <p>
+ * Instead of rejecting all logs once the queue is full, logs are dropped at random as soon as the queue is more than half full,
+ * with a probability which increases linearly with the size of the queue, up to {@code 1} when it's full.
+ * This samples the logs of a long burst, rather than keeping its beginning and dropping all of its remainder.
+ * </p>
+ * <p>
+ * The queue is read by the first intake worker, which interleaves logs with the other events,
+ * see {@link IntakeV2ReportingEventHandler}.
+ * </p>
+ */
+class LogEventQueue {
+
+    private final ByteRingBuffer buffer;
+
+    /**
+     * @param capacityInBytes the capacity, which is rounded down to a power of two
+     */
+    LogEventQueue(int capacityInBytes) {
+        this.buffer = new ByteRingBuffer(capacityInBytes);
+    }
+
+    /**
+     * @param type the type of the log, either {@link ReportingEvent.ReportingEventType#STRING_LOG} or
+     *             {@link ReportingEvent.ReportingEventType#BYTES_LOG}
+     * @param log  the log line, which is sent as-is
+     * @return {@code true} if the log has been added to the queue, {@code false} if it has been dropped
+     */
+    boolean offer(ReportingEvent.ReportingEventType type, byte[] log) {
+        int capacity = buffer.capacity();
+        long size = buffer.size();
+        int threshold = capacity / 2;
+        if (size > threshold && ThreadLocalRandom.current().nextInt(threshold) >= capacity - size) {
+            return false;
+        }
+        return buffer.offer((byte) type.ordinal(), log, 0, log.length);
+    }
+
+    /**
+     * @return {@code true} if the reader has to be woken up, see {@link ByteRingBuffer#requestWakeup()}
+     */
+    boolean requestWakeup() {
+        return buffer.requestWakeup();
+    }
+
+    /**
+     * Must only be called by a single thread at a time.
+     *
+     * @param handler  the callback for each log
+     * @param maxBytes the number of bytes after which no further log is read
+     * @return the number of logs which have been read
+     */
+    int drain(ByteRingBuffer.RecordHandler handler, int maxBytes) {
+        return buffer.read(handler, maxBytes);
+    }
+
+    long getSize() {
+        return buffer.size();
+    }
+
+    long getCapacity() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link IntakeTransport} which keeps a single, persistent HTTP/1.1 connection to the APM Server
+ * and streams the request body via a non-blocking {@link SocketChannel}.
+ * <p>
+ * Other than {@link UrlConnectionIntakeTransport}, this transport does not depend on the JDK's keep-alive cache,
+ * which only reuses a connection if the response has been consumed completely and which silently opens new connections otherwise.
+ * Writes don't block indefinitely if the APM Server stops reading:
+ * if the socket send buffer stays full for longer than {@code server_timeout}, the request fails with a {@link SocketTimeoutException}.
+ * </p>
+ * <p>
+ * This transport only handles plain HTTP connections without a proxy.
+ * For HTTPS URLs, and if the default {@link ProxySelector} selects a proxy for the APM Server URL,
+ * for example because {@code http.proxyHost} is set, requests are delegated to {@link UrlConnectionIntakeTransport}.
+ * </p>
+ * <p>
+ * Instances are not thread safe.
+ * Every {@link AbstractIntakeApiHandler} owns its own transport.
+ * </p>
+ */
+class NioIntakeTransport implements IntakeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioIntakeTransport.class);
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final ApmServerClient apmServerClient;
+    private final IntakeTransport fallback;
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+    @Nullable
+    private SocketChannel channel;
+    @Nullable
+    private Selector selector;
+    @Nullable
+    private SelectionKey selectionKey;
+    @Nullable
+    private String connectedAuthority;
+
+    NioIntakeTransport(ApmServerClient apmServerClient) {
+        this(apmServerClient, new UrlConnectionIntakeTransport(apmServerClient));
+    }
+
+    NioIntakeTransport(ApmServerClient apmServerClient, IntakeTransport fallback) {
+        this.apmServerClient = apmServerClient;
+        this.fallback = fallback;
+    }
+
+    @Nullable
+    @Override
+    public IntakeRequest startRequest(String endpoint) throws IOException {
+        URL url = apmServerClient.appendPathToCurrentUrl(endpoint);
+        if (url == null) {
+            return null;
+        }
+        if (!"http".equals(url.getProtocol()) || isProxied(url)) {
+            return fallback.startRequest(endpoint);
+        }
+        return new NioIntakeRequest(url);
+    }
+
+    /**
+     * Consults the default {@link ProxySelector}, just like {@link java.net.HttpURLConnection} does,
+     * which also covers proxies configured via system properties.
+     */
+    private static boolean isProxied(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return false;
+        }
+        try {
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            for (int i = 0; i < proxies.size(); i++) {
+                if (proxies.get(i).type() != Proxy.Type.DIRECT) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // let the fallback deal with it
+            return true;
+        }
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Suppressed error on attempt to close selector", e);
+            }
+            selector = null;
+        }
+        fallback.close();
+    }
+
+    private SocketChannel getConnection(URL url) throws IOException {
+        String authority = url.getHost() + ":" + getPort(url);
+        if (channel != null && (!authority.equals(connectedAuthority) || !isReusable(channel))) {
+            closeConnection();
+        }
+        if (channel == null) {
+            channel = connect(url, authority);
+        }
+        return channel;
+    }
+
+    private SocketChannel connect(URL url, String authority) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().setTcpNoDelay(true);
+            socketChannel.socket().connect(new InetSocketAddress(url.getHost(), getPort(url)), (int) apmServerClient.getServerTimeoutMillis());
+            socketChannel.configureBlocking(false);
+            selectionKey = socketChannel.register(selector, 0);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        connectionCount.incrementAndGet();
+        connectedAuthority = authority;
+        ((Buffer) readBuffer).clear();
+        ((Buffer) readBuffer).flip();
+        logger.debug("Opened new connection to {}", authority);
+        return socketChannel;
+    }
+
+    /**
+     * A connection which has been closed by the server in the meantime can be detected by a non-blocking read returning {@code -1}.
+     * The server must not send anything in between requests, so any data that's readable also renders the connection unusable.
+     */
+    private boolean isReusable(SocketChannel socketChannel) {
+        if (!socketChannel.isOpen() || readBuffer.hasRemaining()) {
+            return false;
+        }
+        try {
+            ((Buffer) readBuffer).clear();
+            int read = socketChannel.read(readBuffer);
+            ((Buffer) readBuffer).flip();
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void closeConnection() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Suppressed error on attempt to close connection", e);
+            }
+            channel = null;
+            selectionKey = null;
+            connectedAuthority = null;
+        }
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    private void await(int operation) throws IOException {
+        if (selector == null || selectionKey == null) {
+            throw new IOException("Connection has been closed");
+        }
+        selectionKey.interestOps(operation);
+        try {
+            if (selector.select(apmServerClient.getServerTimeoutMillis()) == 0) {
+                throw new SocketTimeoutException("Timed out after " + apmServerClient.getServerTimeoutMillis() + "ms");
+            }
+        } finally {
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        SocketChannel socketChannel = getOpenChannel();
+        while (buffer.hasRemaining()) {
+            if (socketChannel.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            SocketChannel socketChannel = getOpenChannel();
+            ((Buffer) readBuffer).clear();
+            int read;
+            while ((read = socketChannel.read(readBuffer)) == 0) {
+                await(SelectionKey.OP_READ);
+            }
+            ((Buffer) readBuffer).flip();
+            if (read == -1) {
+                return -1;
+            }
+        }
+        return readBuffer.get() & 0xFF;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = readByte(); b != '\n'; b = readByte()) {
+            if (b == -1) {
+                throw new EOFException("Connection closed by APM Server");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void readFully(ByteArrayOutputStream body, long length) throws IOException {
+        for (long i = 0; i < length; i++) {
+            int b = readByte();
+            if (b == -1) {
+                throw new EOFException("Connection closed by APM Server");
+            }
+            body.write(b);
+        }
+    }
+
+    private SocketChannel getOpenChannel() throws IOException {
+        if (channel == null) {
+            throw new IOException("Connection has been closed");
+        }
+        return channel;
+    }
+
+    private class NioIntakeRequest implements IntakeRequest {
+
+        private final URL url;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        @Nullable
+        private ChunkedOutputStream outputStream;
+        private int responseCode = -1;
+        @Nullable
+        private byte[] responseBody;
+        private boolean reusable;
+
+        private NioIntakeRequest(URL url) {
+            this.url = url;
+            String authHeaderValue = apmServerClient.getAuthorizationHeaderValue();
+            if (authHeaderValue != null) {
+                headers.put("Authorization", authHeaderValue);
+            }
+            headers.put("User-Agent", apmServerClient.getUserAgentHeaderValue());
+        }
+
+        @Override
+        public URL getUrl() {
+            return url;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                getConnection(url);
+                StringBuilder head = new StringBuilder()
+                    .append("POST ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(url.getHost());
+                if (url.getPort() != -1) {
+                    head.append(':').append(url.getPort());
+                }
+                head.append("\r\n");
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                head.append("Transfer-Encoding: chunked\r\n\r\n");
+                writeFully(ByteBuffer.wrap(head.toString().getBytes(ISO_8859_1)));
+                outputStream = new ChunkedOutputStream();
+            }
+            return outputStream;
+        }
+
+        @Override
+        public int finish() throws IOException {
+            if (outputStream == null || !outputStream.closed) {
+                throw new IllegalStateException("The request body has to be closed before finishing the request");
+            }
+            String statusLine = readLine();
+            // HTTP/1.1 200 OK
+            String[] statusLineParts = statusLine.split(" ", 3);
+            if (statusLineParts.length < 2 || !statusLineParts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            try {
+                responseCode = Integer.parseInt(statusLineParts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            boolean keepAlive = "HTTP/1.1".equals(statusLineParts[0]);
+            long contentLength = -1;
+            boolean chunked = false;
+            for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+                int colon = header.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = parseLong(value, 10, "Invalid Content-Length: ");
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value);
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (chunked) {
+                readChunkedBody(body);
+            } else if (contentLength >= 0) {
+                readFully(body, contentLength);
+            } else if (responseCode != 204 && responseCode != 304) {
+                // the body is delimited by the end of the connection
+                for (int b = readByte(); b != -1; b = readByte()) {
+                    body.write(b);
+                }
+                keepAlive = false;
+            }
+            responseBody = body.toByteArray();
+            reusable = keepAlive;
+            return responseCode;
+        }
+
+        private void readChunkedBody(ByteArrayOutputStream body) throws IOException {
+            while (true) {
+                String chunkHeader = readLine();
+                int extension = chunkHeader.indexOf(';');
+                long chunkSize = parseLong((extension >= 0 ? chunkHeader.substring(0, extension) : chunkHeader).trim(), 16, "Invalid chunk size: ");
+                if (chunkSize == 0) {
+                    // skip trailers
+                    String trailer;
+                    do {
+                        trailer = readLine();
+                    } while (!trailer.isEmpty());
+                    return;
+                }
+                readFully(body, chunkSize);
+                readLine();
+            }
+        }
+
+        private long parseLong(String value, int radix, String errorMessage) throws IOException {
+            try {
+                long result = Long.parseLong(value, radix);
+                if (result < 0) {
+                    throw new IOException(errorMessage + value);
+                }
+                return result;
+            } catch (NumberFormatException e) {
+                throw new IOException(errorMessage + value);
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Nullable
+        @Override
+        public InputStream getResponseBody() {
+            return responseBody != null ? new ByteArrayInputStream(responseBody) : null;
+        }
+
+        @Override
+        public void close() {
+            if (!reusable) {
+                closeConnection();
+            }
+        }
+
+        @Override
+        public void abort() {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Buffers the request body and writes it as HTTP chunks.
+     * Closing the stream writes the last chunk but keeps the connection open.
+     */
+    private class ChunkedOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(SerializationConstants.BUFFER_SIZE);
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                writeChunk();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    writeChunk();
+                }
+                int length = Math.min(len, buffer.remaining());
+                buffer.put(b, off, length);
+                off += length;
+                len -= length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                writeChunk();
+                writeFully(ByteBuffer.wrap(LAST_CHUNK));
+                closed = true;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (buffer.position() == 0) {
+                return;
+            }
+            ((Buffer) buffer).flip();
+            writeFully(ByteBuffer.wrap((Integer.toHexString(buffer.remaining()) + "\r\n").getBytes(ISO_8859_1)));
+            writeFully(buffer);
+            writeFully(ByteBuffer.wrap(CRLF));
+            ((Buffer) buffer).clear();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.lmax.disruptor.dsl.Disruptor;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes the events of the reporter's ring buffer across multiple {@link IntakeV2ReportingEventHandler}s,
+ * each of which runs on its own thread and maintains its own serializer, compressor and HTTP request to the APM Server.
+ * <p>
+ * Every worker consumes the whole ring buffer but only handles the payload events whose sequence is assigned to it.
+ * Control events like flushes, wakeups and the shutdown are handled by all workers.
+ * </p>
+ * <p>
+ * This handler is registered as a consumer which runs after all workers.
+ * Only after all workers have seen an event, it is safe to recycle it and to notify threads waiting for it to be processed.
+ * </p>
+ */
+public class ParallelReportingEventHandler implements ReportingEventHandler {
+
+    private final IntakeV2ReportingEventHandler[] workers;
+    private final AtomicLong processed = new AtomicLong(-1);
+
+    public ParallelReportingEventHandler(int workerCount, ReporterConfigurationImpl reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(workerCount, reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, null, null);
+    }
+
+    /**
+     * @param spool           shared by all workers, if not {@code null}
+     * @param eagerSerializer if not {@code null}, provides one buffer of serialized events per worker
+     */
+    ParallelReportingEventHandler(int workerCount, ReporterConfigurationImpl reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                  DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient, @Nullable IntakeSpool spool,
+                                  @Nullable EagerEventSerializer eagerSerializer) {
+        workers = new IntakeV2ReportingEventHandler[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, i, workerCount,
+                spool, eagerSerializer);
+        }
+    }
+
+    @Override
+    public void init(ApmServerReporter reporter) {
+        for (IntakeV2ReportingEventHandler worker : workers) {
+            worker.init(reporter);
+        }
+    }
+
+    @Override
+    public void registerWith(Disruptor<ReportingEvent> disruptor) {
+        disruptor.handleEventsWith(workers).then(this);
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            event.end();
+            event.resetState();
+        } finally {
+            processed.set(sequence);
+        }
+    }
+
+    @Override
+    public long getReported() {
+        long reported = 0;
+        for (IntakeV2ReportingEventHandler worker : workers) {
+            reported += worker.getReported();
+        }
+        return reported;
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (IntakeV2ReportingEventHandler worker : workers) {
+            dropped += worker.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public boolean isProcessed(long sequence) {
+        return processed.get() >= sequence;
+    }
+
+    @Override
+    public void close() {
+        for (IntakeV2ReportingEventHandler worker : workers) {
+            worker.close();
+        }
+    }
+
+    /**
+     * As control events have to be handled by all workers, the reporter is only considered healthy if all workers are.
+     */
+    @Override
+    public boolean isHealthy() {
+        for (IntakeV2ReportingEventHandler worker : workers) {
+            if (!worker.isHealthy()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getWorkerCount() {
+        return workers.length;
+    }
+}
@@ -24,11 +24,10 @@ import co.elastic.apm.agent.tracer.configuration.ReporterConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
-import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
@@ -36,6 +35,7 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isInRange;
 import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isNotInRange;
 
 public class ReporterConfigurationImpl extends ConfigurationOptionProvider implements ReporterConfiguration {
@@ -156,6 +156,236 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<QueueSheddingPolicy> queueSheddingPolicy = ConfigurationOption.enumOption(QueueSheddingPolicy.class)
+        .key("queue_shedding_policy")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Determines which events are rejected when the queue of buffered events fills up.\n" +
+            "\n" +
+            "* 'tail_drop': The default. Events of all types are accepted until the queue is full.\n" +
+            "* 'priority': Spans and logs are rejected as soon as less than `queue_reserved_capacity` of the queue is left,\n" +
+            "so that the remaining capacity is reserved for transactions, errors and metrics.\n" +
+            "\n" +
+            "The policy applies to the queue configured by `max_queue_size`,\n" +
+            "as well as to the queue configured by `intake_eager_serialization_queue_size`.")
+        .dynamic(false)
+        .buildWithDefault(QueueSheddingPolicy.TAIL_DROP);
+
+    private final ConfigurationOption<Double> queueReservedCapacity = ConfigurationOption.doubleOption()
+        .key("queue_reserved_capacity")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The share of the queue which is reserved for transactions, errors and metrics if `queue_shedding_policy` is set to 'priority'.\n" +
+            "For example, `0.25` means that spans and logs are rejected once the queue is more than 75% full.")
+        .addValidator(isInRange(0d, 1d))
+        .dynamic(false)
+        .buildWithDefault(0.25);
+
+    private final ConfigurationOption<Integer> intakeWorkers = ConfigurationOption.integerOption()
+        .key("intake_workers")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of threads which serialize, compress and send events to the APM Server in parallel.\n" +
+            "\n" +
+            "By default, a single thread takes care of all events, which may not be able to keep up with very high event rates.\n" +
+            "When set to a value greater than `1`, every worker thread maintains its own HTTP request to the APM Server.\n" +
+            "Events are distributed across the workers, whereas flush and shutdown requests are handled by all of them.")
+        .addValidator(isInRange(1, 64))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<IntakeTransportType> intakeTransport = ConfigurationOption.enumOption(IntakeTransportType.class)
+        .key("intake_transport")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The HTTP client implementation which is used to send events to the APM Server.\n" +
+            "\n" +
+            "* 'url_connection': The default. Uses the JDK's `HttpURLConnection`.\n" +
+            "* 'nio': Uses a non-blocking socket and keeps a persistent connection to the APM Server across requests. " +
+            "Writes wait for the socket to become writable for at most `server_timeout` instead of blocking indefinitely.\n" +
+            "\n" +
+            "The 'nio' transport only supports plain HTTP without a proxy. " +
+            "It falls back to 'url_connection' for `https` URLs and if a proxy is configured via the `http.proxyHost` system property.")
+        .dynamic(false)
+        .buildWithDefault(IntakeTransportType.URL_CONNECTION);
+
+    private final ConfigurationOption<CompressionAlgorithm> intakeCompression = ConfigurationOption.enumOption(CompressionAlgorithm.class)
+        .key("intake_compression")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The algorithm which is used to compress the events sent to the APM Server.\n" +
+            "\n" +
+            "* 'deflate': The default. Sends the events with `Content-Encoding: deflate`.\n" +
+            "* 'gzip': Sends the events with `Content-Encoding: gzip`.\n" +
+            "\n" +
+            "Requests to an APM Server running on `localhost` are never compressed.")
+        .dynamic(false)
+        .buildWithDefault(CompressionAlgorithm.DEFLATE);
+
+    private final ConfigurationOption<Integer> intakeCompressionLevel = ConfigurationOption.integerOption()
+        .key("intake_compression_level")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The compression level, ranging from `0` (no compression) to `9` (best compression).\n" +
+            "\n" +
+            "Higher levels reduce the network traffic to the APM Server at the cost of more CPU time spent in the reporter thread.")
+        .addValidator(isInRange(0, 9))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> intakeCompressionAsync = ConfigurationOption.booleanOption()
+        .key("intake_compression_async")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("When enabled, events are compressed on a dedicated thread,\n" +
+            "so that the reporter thread can serialize the next events while the previous ones are being compressed.\n" +
+            "\n" +
+            "As the bytes which are still being compressed are not yet accounted for, requests may slightly exceed `api_request_size`.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<String> intakeSpoolDir = ConfigurationOption.stringOption()
+        .key("intake_spool_dir")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("A directory to store events in while the APM Server is unavailable, for example during an upgrade.\n" +
+            "\n" +
+            "By default, the agent backs off and drops events while the APM Server can't be reached.\n" +
+            "If this option is set, the compressed events are written to memory-mapped files in this directory instead.\n" +
+            "Once the APM Server is available again, the stored events are sent at the rate configured by `intake_spool_replay_rate`.\n" +
+            "Events which have not been sent when the application stops are sent after the next start.\n" +
+            "\n" +
+            "Each JVM requires its own directory.\n" +
+            "The events of the request which was in progress when the APM Server became unavailable are lost.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> intakeSpoolMaxSize = ByteValueConverter.byteOption()
+        .key("intake_spool_max_size")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum disk space used by `intake_spool_dir`.\n" +
+            "If the limit is exceeded, the oldest events are dropped.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("100mb"));
+
+    private final ConfigurationOption<ByteValue> intakeSpoolReplayRate = ByteValueConverter.byteOption()
+        .key("intake_spool_replay_rate")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum number of compressed bytes per second which are sent from `intake_spool_dir`\n" +
+            "to the APM Server once it is available again.\n" +
+            "This avoids overwhelming an APM Server which just recovered.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("1mb"));
+
+    private final ConfigurationOption<Boolean> intakeEagerSerialization = ConfigurationOption.booleanOption()
+        .key("intake_eager_serialization")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If enabled, transactions and spans are serialized by the application thread which ends them,\n" +
+            "instead of being buffered until the reporter thread serializes them.\n" +
+            "\n" +
+            "This allows the agent to recycle the transaction and span objects right away, which decreases the heap overhead of the agent\n" +
+            "when the agent can't keep up with sending events to the APM Server.\n" +
+            "The serialized events are buffered in a queue whose size is configured by `intake_eager_serialization_queue_size`, instead of `max_queue_size`.\n" +
+            "The reporter thread only has to compress and send the serialized events.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> intakeEagerSerializationQueueSize = ByteValueConverter.byteOption()
+        .key("intake_eager_serialization_queue_size")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum size of serialized events which are buffered if `intake_eager_serialization` is enabled.\n" +
+            "If the queue is full, events are rejected.\n" +
+            "The size is rounded down to a power of two for each of the `intake_workers`.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("4mb"));
+
+    private final ConfigurationOption<ByteValue> logSendingQueueSize = ByteValueConverter.byteOption()
+        .key("log_sending_queue_size")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If set to a value greater than `0b`, the logs which are sent to the APM Server (see `log_sending`)\n" +
+            "are buffered in a dedicated queue of this size, instead of the queue which buffers transactions, spans and errors (`max_queue_size`).\n" +
+            "This ensures that a burst of logs can't crowd out the other events, and vice versa.\n" +
+            "\n" +
+            "Once the queue is more than half full, logs are dropped at random, with a probability that increases with the size of the queue.\n" +
+            "The queued logs are sent within the same requests as the other events, alternating between a few logs and the other events.\n" +
+            "The size is rounded down to a power of two.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<ByteValue> tailSamplingBufferSize = ByteValueConverter.byteOption()
+        .key("tail_sampling_buffer_size")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If set to a value greater than `0b`, the spans of sampled transactions are held back until their transaction ends.\n" +
+            "The agent then decides whether to report the transaction along with its spans or to discard them.\n" +
+            "A transaction is reported if\n" +
+            "\n" +
+            "* its outcome, or the outcome of one of its spans, is `failure`, or an error has been captured for it\n" +
+            "* it takes at least `tail_sampling_duration_threshold`\n" +
+            "* its name matches one of the `tail_sampling_keep_transactions` expressions\n" +
+            "* otherwise, with a probability of `tail_sampling_keep_rate`\n" +
+            "\n" +
+            "This allows to capture most slow and failed transactions while reporting only a fraction of the others,\n" +
+            "which is not possible with `transaction_sample_rate`, as it decides whether to sample a transaction when it starts.\n" +
+            "\n" +
+            "The value limits the estimated memory used by the spans which are held back.\n" +
+            "Once it is exceeded, further spans are dropped until the decision for some of the pending transactions has been made.\n" +
+            "\n" +
+            "NOTE: The decision is made for each service on its own.\n" +
+            "If a trace spans multiple services, some of its transactions may be reported while others are discarded.\n" +
+            "Unsampled transactions (see `transaction_sample_rate`) are not affected.\n" +
+            "Discarded transactions are not reported at all.\n" +
+            "To keep the throughput and latency distribution which the APM Server extrapolates from the reported transactions accurate,\n" +
+            "the sample rate of transactions which are kept randomly, and of their spans, is multiplied by `tail_sampling_keep_rate`.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<TimeDuration> tailSamplingDurationThreshold = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_duration_threshold")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Transactions which take at least this long are always reported if `tail_sampling_buffer_size` is enabled.\n" +
+            "Set to `0ms` to decide regardless of the duration.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("500ms"));
+
+    private final ConfigurationOption<Double> tailSamplingKeepRate = ConfigurationOption.doubleOption()
+        .key("tail_sampling_keep_rate")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The share of transactions which are reported if `tail_sampling_buffer_size` is enabled,\n" +
+            "even though they are neither slow nor failed and don't match `tail_sampling_keep_transactions`.")
+        .addValidator(isInRange(0d, 1d))
+        .dynamic(true)
+        .buildWithDefault(0.1);
+
+    private final ConfigurationOption<List<WildcardMatcher>> tailSamplingKeepTransactions = ConfigurationOption
+        .builder(new WildcardMatcherListValueConverter(), List.class)
+        .key("tail_sampling_keep_transactions")
+        .tags("added[1.56.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Transactions whose name matches any of these expressions are always reported if `tail_sampling_buffer_size` is enabled.\n" +
+            "Example: `POST /checkout*`\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(true)
+        .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -203,7 +433,7 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -280,6 +510,75 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
         return maxQueueSize.get();
     }
 
+    public QueueSheddingPolicy getQueueSheddingPolicy() {
+        return queueSheddingPolicy.get();
+    }
+
+    public double getQueueReservedCapacity() {
+        return queueReservedCapacity.get();
+    }
+
+    public int getIntakeWorkers() {
+        return intakeWorkers.get();
+    }
+
+    public IntakeTransportType getIntakeTransport() {
+        return intakeTransport.get();
+    }
+
+    public CompressionAlgorithm getIntakeCompression() {
+        return intakeCompression.get();
+    }
+
+    public int getIntakeCompressionLevel() {
+        return intakeCompressionLevel.get();
+    }
+
+    public boolean isIntakeCompressionAsync() {
+        return intakeCompressionAsync.get();
+    }
+
+    @Nullable
+    public String getIntakeSpoolDir() {
+        return intakeSpoolDir.get();
+    }
+
+    public long getIntakeSpoolMaxSize() {
+        return intakeSpoolMaxSize.get().getBytes();
+    }
+
+    public long getIntakeSpoolReplayRate() {
+        return intakeSpoolReplayRate.get().getBytes();
+    }
+
+    public boolean isIntakeEagerSerialization() {
+        return intakeEagerSerialization.get();
+    }
+
+    public long getIntakeEagerSerializationQueueSize() {
+        return intakeEagerSerializationQueueSize.get().getBytes();
+    }
+
+    public long getLogSendingQueueSize() {
+        return logSendingQueueSize.get().getBytes();
+    }
+
+    public long getTailSamplingBufferSize() {
+        return tailSamplingBufferSize.get().getBytes();
+    }
+
+    public TimeDuration getTailSamplingDurationThreshold() {
+        return tailSamplingDurationThreshold.get();
+    }
+
+    public double getTailSamplingKeepRate() {
+        return tailSamplingKeepRate.get();
+    }
+
+    public List<WildcardMatcher> getTailSamplingKeepTransactions() {
+        return tailSamplingKeepTransactions.get();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -314,4 +613,34 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum IntakeTransportType {
+        URL_CONNECTION,
+        NIO;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum CompressionAlgorithm {
+        DEFLATE,
+        GZIP;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum QueueSheddingPolicy {
+        TAIL_DROP,
+        PRIORITY;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
@@ -22,12 +22,25 @@ import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spool.DiskSpool;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
 
 public class ReporterFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReporterFactory.class);
+
+    /**
+     * The size of a spool segment file, unless a larger size is required to hold request bodies of {@code api_request_size}
+     */
+    private static final int DEFAULT_SPOOL_SEGMENT_SIZE = 8 * 1024 * 1024;
+
     public Reporter createReporter(ConfigurationRegistry configurationRegistry,
                                    ApmServerClient apmServerClient,
                                    DslJsonSerializer payloadSerializer,
@@ -36,17 +49,49 @@ public class ReporterFactory {
 
         ReporterConfigurationImpl reporterConfiguration = configurationRegistry.getConfig(ReporterConfigurationImpl.class);
         CoreConfigurationImpl coreConfig = configurationRegistry.getConfig(CoreConfigurationImpl.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, payloadSerializer, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, coreConfig, reportingEventHandler, monitor, apmServerClient, payloadSerializer, poolFactory);
+        ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
+        EagerEventSerializer eagerSerializer = null;
+        if (reporterConfiguration.isIntakeEagerSerialization()) {
+            eagerSerializer = new EagerEventSerializer(payloadSerializer, processorEventHandler, apmServerClient, Math.max(1, reporterConfiguration.getIntakeWorkers()),
+                (int) Math.min(Integer.MAX_VALUE, reporterConfiguration.getIntakeEagerSerializationQueueSize()));
+        }
+        ReportingEventHandler reportingEventHandler = getReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, eagerSerializer);
+        Reporter reporter = new ApmServerReporter(true, reporterConfiguration, coreConfig, reportingEventHandler, monitor, apmServerClient, payloadSerializer, poolFactory, eagerSerializer);
+        if (reporterConfiguration.getTailSamplingBufferSize() > 0) {
+            reporter = new TailSamplingReporter(reporter, reporterConfiguration);
+        }
+        return reporter;
     }
 
     @Nonnull
-    private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
-                                                           ReporterConfigurationImpl reporterConfiguration,
+    private ReportingEventHandler getReportingEventHandler(ReporterConfigurationImpl reporterConfiguration,
+                                                           ProcessorEventHandler processorEventHandler,
                                                            DslJsonSerializer payloadSerializer,
-                                                           ApmServerClient apmServerClient) {
-        ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+                                                           ApmServerClient apmServerClient,
+                                                           @Nullable EagerEventSerializer eagerSerializer) {
+        IntakeSpool spool = createIntakeSpool(reporterConfiguration, apmServerClient);
+        int intakeWorkers = reporterConfiguration.getIntakeWorkers();
+        if (intakeWorkers > 1) {
+            return new ParallelReportingEventHandler(intakeWorkers, reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, spool, eagerSerializer);
+        }
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, 0, 1, spool, eagerSerializer);
+    }
+
+    @Nullable
+    private IntakeSpool createIntakeSpool(ReporterConfigurationImpl reporterConfiguration, ApmServerClient apmServerClient) {
+        String spoolDir = reporterConfiguration.getIntakeSpoolDir();
+        if (spoolDir == null || spoolDir.isEmpty()) {
+            return null;
+        }
+        long maxSize = reporterConfiguration.getIntakeSpoolMaxSize();
+        long segmentSize = Math.min(maxSize, Math.max(DEFAULT_SPOOL_SEGMENT_SIZE, 2 * reporterConfiguration.getApiRequestSize()));
+        try {
+            DiskSpool diskSpool = new DiskSpool(new File(spoolDir), maxSize, (int) Math.min(Integer.MAX_VALUE, segmentSize));
+            return new IntakeSpool(diskSpool, apmServerClient, reporterConfiguration.getIntakeSpoolReplayRate());
+        } catch (IOException e) {
+            logger.warn("Failed to open intake spool in {}, events are dropped while the APM Server is unavailable: {}", spoolDir, e.getMessage());
+            return null;
+        }
     }
 
 }
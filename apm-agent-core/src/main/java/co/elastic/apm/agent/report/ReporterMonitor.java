@@ -28,8 +28,23 @@ public interface ReporterMonitor {
 
     void eventDroppedAfterDequeue(ReportingEvent.ReportingEventType eventType);
 
+    /**
+     * Called when a {@link ReportingEvent.ReportingEventType#isLowPriority() low priority} event is rejected
+     * to reserve the remaining capacity of the queue for other events
+     */
+    void eventShed(ReportingEvent.ReportingEventType eventType, long queueCapacity);
+
     void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success);
 
+    /**
+     * Called when a log is added to the dedicated log queue, see {@link LogEventQueue}
+     */
+    void logEventCreated(long queueCapacity, long queueSize);
+
+    void logEventDequeued(long queueCapacity, long queueSize);
+
+    void logEventDroppedBeforeQueue(long queueCapacity);
+
 
     ReporterMonitor NOOP = new ReporterMonitor() {
 
@@ -53,9 +68,29 @@ public interface ReporterMonitor {
 
         }
 
+        @Override
+        public void eventShed(ReportingEvent.ReportingEventType eventType, long queueCapacity) {
+
+        }
+
         @Override
         public void requestFinished(ReportingEventCounter contents, long acceptedEventCount, long bytesWritten, boolean success) {
 
         }
+
+        @Override
+        public void logEventCreated(long queueCapacity, long queueSize) {
+
+        }
+
+        @Override
+        public void logEventDequeued(long queueCapacity, long queueSize) {
+
+        }
+
+        @Override
+        public void logEventDroppedBeforeQueue(long queueCapacity) {
+
+        }
     };
 }
@@ -190,32 +190,38 @@ public class ReportingEvent {
 
     public enum ReportingEventType {
         // control events
-        END_REQUEST(true),
-        MAKE_FLUSH_REQUEST(true),
-        SHUTDOWN(true),
-        WAKEUP(true),
+        END_REQUEST(true, false),
+        MAKE_FLUSH_REQUEST(true, false),
+        SHUTDOWN(true, false),
+        WAKEUP(true, false),
 
         // payload events,
-        TRANSACTION(false),
-        SPAN(false),
-        ERROR(false),
-        METRICSET_JSON_WRITER(false),
-        STRING_LOG(false),
-        BYTES_LOG(false);
+        TRANSACTION(false, false),
+        SPAN(false, true),
+        ERROR(false, false),
+        METRICSET_JSON_WRITER(false, false),
+        STRING_LOG(false, true),
+        BYTES_LOG(false, true);
 
         private final boolean control;
+        private final boolean lowPriority;
 
         /**
-         * @param control {@literal true} for control events
+         * @param control     {@literal true} for control events
+         * @param lowPriority {@literal true} for events which are rejected first when the queue fills up,
+         *                    see {@link ReporterConfigurationImpl.QueueSheddingPolicy#PRIORITY}
          */
-        ReportingEventType(boolean control) {
+        ReportingEventType(boolean control, boolean lowPriority) {
             this.control = control;
+            this.lowPriority = lowPriority;
         }
 
         public boolean isControl() {
             return control;
         }
-    }
-
 
+        public boolean isLowPriority() {
+            return lowPriority;
+        }
+    }
 }
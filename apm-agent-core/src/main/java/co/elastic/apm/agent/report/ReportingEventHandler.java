@@ -19,11 +19,19 @@
 package co.elastic.apm.agent.report;
 
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.dsl.Disruptor;
 
 public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
 
     void init(ApmServerReporter reporter);
 
+    /**
+     * Registers the event consumers of this handler with the reporter's ring buffer
+     *
+     * @param disruptor the disruptor of the reporter
+     */
+    void registerWith(Disruptor<ReportingEvent> disruptor);
+
     long getReported();
 
     long getDropped();
@@ -0,0 +1,350 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.Outcome;
+import com.dslplatform.json.JsonWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds back the spans of sampled transactions until their transaction ends and then decides whether to report the transaction
+ * along with its spans, based on its outcome, duration and name (see {@code tail_sampling_buffer_size}).
+ * <p>
+ * The spans are buffered in a {@link PendingTrace} which is attached to their transaction.
+ * Spans which end after the decision has been made are reported or discarded right away.
+ * The memory held by the pending spans is estimated with a fixed size per span.
+ * If the buffer is full, spans are dropped, just like spans which exceed {@code transaction_max_spans}.
+ * </p>
+ * <p>
+ * Discarded transactions and spans are not handed over to the {@link #delegate} reporter,
+ * but their references are released right away so that they are recycled.
+ * The sample rate of transactions which are kept randomly is multiplied by the keep rate,
+ * so that the APM Server extrapolates the throughput of the discarded transactions from the kept ones.
+ * </p>
+ */
+public class TailSamplingReporter implements Reporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSamplingReporter.class);
+
+    /**
+     * A rough estimate of the heap which is retained by a span and its context
+     */
+    static final int ESTIMATED_SPAN_SIZE = 1024;
+
+    private final Reporter delegate;
+    private final ReporterConfigurationImpl reporterConfiguration;
+    private final long maxBufferSize;
+    private final AtomicLong bufferSize = new AtomicLong();
+    private final AtomicLong keptTransactions = new AtomicLong();
+    private final AtomicLong discardedTransactions = new AtomicLong();
+    private final AtomicLong droppedSpans = new AtomicLong();
+    private final AtomicLong decisionNanos = new AtomicLong();
+
+    public TailSamplingReporter(Reporter delegate, ReporterConfigurationImpl reporterConfiguration) {
+        this.delegate = delegate;
+        this.reporterConfiguration = reporterConfiguration;
+        this.maxBufferSize = reporterConfiguration.getTailSamplingBufferSize();
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    @Override
+    public void reportPartialTransaction(TransactionImpl transaction) {
+        delegate.reportPartialTransaction(transaction);
+    }
+
+    @Override
+    public void report(TransactionImpl transaction) {
+        if (!transaction.isSampled()) {
+            delegate.report(transaction);
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicReference<PendingTrace> pendingTraceReference = transaction.getPendingTrace();
+        PendingTrace pendingTrace = pendingTraceReference.get();
+        boolean keep;
+        if (pendingTrace == null) {
+            // no span has been buffered yet, which avoids allocating a PendingTrace for transactions without spans
+            keep = shouldKeep(transaction, false);
+            if (!pendingTraceReference.compareAndSet(null, keep ? PendingTrace.KEPT : PendingTrace.DISCARDED)) {
+                // a span has ended concurrently
+                keep = decide(transaction, pendingTraceReference.get());
+            }
+        } else {
+            keep = decide(transaction, pendingTrace);
+        }
+        if (keep) {
+            keptTransactions.incrementAndGet();
+            delegate.report(transaction);
+        } else {
+            logger.debug("Discarding transaction {} based on the tail sampling decision", transaction);
+            discardedTransactions.incrementAndGet();
+            transaction.decrementReferences();
+        }
+        decisionNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private boolean decide(TransactionImpl transaction, PendingTrace pendingTrace) {
+        boolean keep = pendingTrace.decide(transaction, this);
+        List<SpanImpl> spans = pendingTrace.spans;
+        for (int i = 0, size = spans.size(); i < size; i++) {
+            SpanImpl span = spans.get(i);
+            if (keep) {
+                delegate.report(span);
+            } else {
+                span.decrementReferences();
+            }
+        }
+        spans.clear();
+        bufferSize.addAndGet(-pendingTrace.bufferedBytes);
+        return keep;
+    }
+
+    private boolean shouldKeep(TransactionImpl transaction, boolean hasFailedSpans) {
+        if (hasFailedSpans || transaction.getOutcome() == Outcome.FAILURE || transaction.hasCapturedExceptions()) {
+            return true;
+        }
+        long durationThresholdUs = reporterConfiguration.getTailSamplingDurationThreshold().getMicros();
+        if (durationThresholdUs > 0 && transaction.getDuration() >= durationThresholdUs) {
+            return true;
+        }
+        List<WildcardMatcher> keepTransactions = reporterConfiguration.getTailSamplingKeepTransactions();
+        if (!keepTransactions.isEmpty() && WildcardMatcher.anyMatch(keepTransactions, transaction.getNameForSerialization()) != null) {
+            return true;
+        }
+        double keepRate = reporterConfiguration.getTailSamplingKeepRate();
+        if (keepRate >= 1d) {
+            return true;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < keepRate) {
+            // the transaction and its spans represent the ones which have been discarded as well
+            transaction.setTailSamplingKeepRate(keepRate);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void report(SpanImpl span) {
+        TransactionImpl transaction = span.getTransaction();
+        if (transaction == null) {
+            delegate.report(span);
+            return;
+        }
+        AtomicReference<PendingTrace> pendingTraceReference = transaction.getPendingTrace();
+        PendingTrace pendingTrace = pendingTraceReference.get();
+        if (pendingTrace == null) {
+            pendingTrace = new PendingTrace();
+            if (!pendingTraceReference.compareAndSet(null, pendingTrace)) {
+                pendingTrace = pendingTraceReference.get();
+            }
+        }
+        switch (pendingTrace.add(span, this)) {
+            case PendingTrace.BUFFERED:
+                break;
+            case PendingTrace.KEEP:
+                delegate.report(span);
+                break;
+            case PendingTrace.BUFFER_FULL:
+                droppedSpans.incrementAndGet();
+                transaction.getSpanCount().getReported().decrementAndGet();
+                transaction.captureDroppedSpan(span);
+                span.decrementReferences();
+                break;
+            default:
+                span.decrementReferences();
+        }
+    }
+
+    private boolean tryReserve(long bytes) {
+        long size;
+        do {
+            size = bufferSize.get();
+            if (size + bytes > maxBufferSize) {
+                return false;
+            }
+        } while (!bufferSize.compareAndSet(size, size + bytes));
+        return true;
+    }
+
+    @Override
+    public void report(ErrorCaptureImpl error) {
+        delegate.report(error);
+    }
+
+    @Override
+    public void reportMetrics(JsonWriter jsonWriter) {
+        delegate.reportMetrics(jsonWriter);
+    }
+
+    @Override
+    public void reportLog(String log) {
+        delegate.reportLog(log);
+    }
+
+    @Override
+    public void reportLog(byte[] log) {
+        delegate.reportLog(log);
+    }
+
+    @Override
+    public void reportAgentLog(byte[] log) {
+        delegate.reportAgentLog(log);
+    }
+
+    @Override
+    public long getDropped() {
+        return delegate.getDropped();
+    }
+
+    @Override
+    public long getReported() {
+        return delegate.getReported();
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+        return delegate.flush(timeout, unit, followupWithFlushRequest);
+    }
+
+    @Override
+    public boolean flush() {
+        return delegate.flush();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    public Reporter getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return the estimated size of the spans which are currently held back, in bytes
+     */
+    public long getBufferSize() {
+        return bufferSize.get();
+    }
+
+    public long getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public long getKeptTransactions() {
+        return keptTransactions.get();
+    }
+
+    public long getDiscardedTransactions() {
+        return discardedTransactions.get();
+    }
+
+    /**
+     * @return the number of spans which have been dropped because the buffer was full
+     */
+    public long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    /**
+     * @return the total time spent on deciding whether to keep transactions and on handing over or releasing their spans
+     */
+    public long getDecisionNanos() {
+        return decisionNanos.get();
+    }
+
+    /**
+     * The spans of a transaction which are held back until the transaction has ended, and the decision which has been made afterwards.
+     */
+    public static final class PendingTrace {
+
+        static final int BUFFERED = 0;
+        static final int KEEP = 1;
+        static final int DISCARD = 2;
+        static final int BUFFER_FULL = 3;
+
+        /**
+         * Shared by all transactions which didn't have any pending spans when the decision has been made
+         */
+        static final PendingTrace KEPT = new PendingTrace(KEEP);
+        static final PendingTrace DISCARDED = new PendingTrace(DISCARD);
+
+        private final List<SpanImpl> spans = new ArrayList<>();
+        private long bufferedBytes;
+        private boolean failedSpans;
+        /**
+         * {@link #BUFFERED} until the decision has been made, {@link #KEEP} or {@link #DISCARD} afterwards
+         */
+        private int decision;
+
+        PendingTrace() {
+            this(BUFFERED);
+        }
+
+        private PendingTrace(int decision) {
+            this.decision = decision;
+        }
+
+        /**
+         * @return {@link #BUFFERED} or {@link #BUFFER_FULL} if the decision has not been made yet, the decision otherwise
+         */
+        synchronized int add(SpanImpl span, TailSamplingReporter reporter) {
+            if (decision != BUFFERED) {
+                return decision;
+            }
+            if (span.getOutcome() == Outcome.FAILURE || span.hasCapturedExceptions()) {
+                failedSpans = true;
+            }
+            if (!reporter.tryReserve(ESTIMATED_SPAN_SIZE)) {
+                return BUFFER_FULL;
+            }
+            bufferedBytes += ESTIMATED_SPAN_SIZE;
+            spans.add(span);
+            return BUFFERED;
+        }
+
+        /**
+         * After this method returns, no more spans are added,
+         * which allows the caller to process the buffered spans without holding the lock.
+         *
+         * @return whether to keep the trace
+         */
+        synchronized boolean decide(TransactionImpl transaction, TailSamplingReporter reporter) {
+            boolean keep = reporter.shouldKeep(transaction, failedSpans);
+            decision = keep ? KEEP : DISCARD;
+            return keep;
+        }
+    }
+}
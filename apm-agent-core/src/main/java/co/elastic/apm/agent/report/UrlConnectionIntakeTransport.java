@@ -0,0 +1,186 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.UrlConnectionUtils;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * The default {@link IntakeTransport}, based on {@link HttpURLConnection}.
+ * <p>
+ * Connections are reused by the JDK's keep-alive cache as long as the response is consumed completely,
+ * see {@link HttpUtils#consumeAndClose(HttpURLConnection)}.
+ * </p>
+ */
+class UrlConnectionIntakeTransport implements IntakeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlConnectionIntakeTransport.class);
+
+    private final ApmServerClient apmServerClient;
+
+    UrlConnectionIntakeTransport(ApmServerClient apmServerClient) {
+        this.apmServerClient = apmServerClient;
+    }
+
+    @Nullable
+    @Override
+    public IntakeRequest startRequest(String endpoint) throws IOException {
+        HttpURLConnection connection = apmServerClient.startRequest(endpoint);
+        if (connection == null) {
+            return null;
+        }
+        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
+            connection.setUseCaches(false);
+        }
+        return new UrlConnectionIntakeRequest(connection);
+    }
+
+    @Override
+    public long getConnectionCount() {
+        // the keep-alive cache of the JDK does not expose whether a connection has been reused
+        return -1;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static class UrlConnectionIntakeRequest implements IntakeRequest {
+
+        private final HttpURLConnection connection;
+        private int responseCode = -1;
+
+        private UrlConnectionIntakeRequest(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public URL getUrl() {
+            return connection.getURL();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            connection.setRequestProperty(name, value);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                connection.connect();
+                return connection.getOutputStream();
+            } catch (IOException e) {
+                logSslDetails();
+                throw e;
+            }
+        }
+
+        private void logSslDetails() {
+            if (logger.isInfoEnabled() && connection instanceof HttpsURLConnection) {
+                HttpsURLConnection httpsURLConnection = (HttpsURLConnection) connection;
+                try {
+                    logger.info("Cipher suite used for this connection: {}", httpsURLConnection.getCipherSuite());
+                } catch (Exception e1) {
+                    SSLSocketFactory sslSocketFactory = httpsURLConnection.getSSLSocketFactory();
+                    logger.info("Default cipher suites: {}", Arrays.toString(sslSocketFactory.getDefaultCipherSuites()));
+                    logger.info("Supported cipher suites: {}", Arrays.toString(sslSocketFactory.getSupportedCipherSuites()));
+                }
+                try {
+                    logger.info("APM Server certificates: {}", Arrays.toString(httpsURLConnection.getServerCertificates()));
+                } catch (Exception e1) {
+                    // ignore - invalid
+                }
+                try {
+                    logger.info("Local certificates: {}", Arrays.toString(httpsURLConnection.getLocalCertificates()));
+                } catch (Exception e1) {
+                    // ignore - invalid
+                }
+            }
+        }
+
+        @Override
+        public int finish() throws IOException {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                try {
+                    // throws for error status codes
+                    connection.getInputStream();
+                } catch (IOException e) {
+                    try {
+                        responseCode = connection.getResponseCode();
+                    } catch (IOException ignore) {
+                        // no response at all
+                    }
+                    throw e;
+                }
+                responseCode = connection.getResponseCode();
+                return responseCode;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Nullable
+        @Override
+        public InputStream getResponseBody() {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    return errorStream;
+                }
+                return connection.getInputStream();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                HttpUtils.consumeAndClose(connection);
+            }
+        }
+
+        @Override
+        public void abort() {
+            try {
+                connection.disconnect();
+            } catch (Throwable t) {
+                logger.debug("Suppressed error on attempt to close connection", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the request body which is sent to the APM Server.
+ * <p>
+ * Implementations are thread safe and may be shared across multiple reporter threads.
+ * </p>
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the value of the {@code Content-Encoding} header of requests compressed with this codec
+     */
+    String getContentEncoding();
+
+    /**
+     * Wraps the provided stream so that everything written to the returned stream is compressed.
+     * <p>
+     * {@link OutputStream#flush()} performs a sync flush so that all data written so far can be decompressed by the receiver.
+     * {@link OutputStream#close()} finishes the compressed stream, closes the provided stream,
+     * and releases the resources the codec has allocated for this stream.
+     * </p>
+     *
+     * @param out the stream to write the compressed bytes to
+     * @return a stream which compresses all data written to it
+     * @throws IOException if writing a header to {@code out} fails
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A {@link CompressionCodec} for the {@code deflate} and {@code gzip} content encodings, based on {@link Deflater}.
+ * <p>
+ * Creating a {@link Deflater} allocates a considerable amount of native memory.
+ * Therefore, the deflaters are pooled and reused across requests.
+ * Deflaters which don't fit into the pool are {@linkplain Deflater#end() ended} right away,
+ * instead of leaving the release of their native memory to the GC.
+ * </p>
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    private static final int POOL_SIZE = 4;
+    // see java.util.zip.GZIPOutputStream
+    private static final byte[] GZIP_HEADER = {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final boolean gzip;
+    private final int level;
+    private final Queue<Deflater> deflaterPool = new MpmcAtomicArrayQueue<Deflater>(POOL_SIZE);
+
+    public static DeflateCodec deflate(int level) {
+        return new DeflateCodec(false, level);
+    }
+
+    public static DeflateCodec gzip(int level) {
+        return new DeflateCodec(true, level);
+    }
+
+    private DeflateCodec(final boolean gzip, final int level) {
+        this.gzip = gzip;
+        this.level = level;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return gzip ? "gzip" : "deflate";
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (gzip) {
+            out.write(GZIP_HEADER);
+        }
+        return new PooledDeflaterOutputStream(out, acquireDeflater());
+    }
+
+    private Deflater acquireDeflater() {
+        Deflater deflater = deflaterPool.poll();
+        if (deflater == null) {
+            // gzip uses raw deflate data with its own header and trailer
+            deflater = new Deflater(level, gzip);
+        }
+        return deflater;
+    }
+
+    private void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!deflaterPool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+        private final CRC32 crc = new CRC32();
+        private boolean released;
+
+        private PooledDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, SerializationConstants.BUFFER_SIZE, true);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                super.finish();
+                if (gzip) {
+                    writeTrailer();
+                }
+            }
+        }
+
+        private void writeTrailer() throws IOException {
+            byte[] trailer = new byte[8];
+            writeIntLittleEndian((int) crc.getValue(), trailer, 0);
+            writeIntLittleEndian((int) def.getBytesRead(), trailer, 4);
+            out.write(trailer);
+        }
+
+        private void writeIntLittleEndian(int i, byte[] buf, int offset) {
+            buf[offset] = (byte) i;
+            buf[offset + 1] = (byte) (i >> 8);
+            buf[offset + 2] = (byte) (i >> 16);
+            buf[offset + 3] = (byte) (i >> 24);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    releaseDeflater(def);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands off the data written to this stream to an {@link Executor} which writes it to the underlying stream.
+ * <p>
+ * This is used to compress the serialized events on a dedicated thread,
+ * so that serializing the next events overlaps with compressing the previous ones.
+ * Data is buffered in a fixed number of chunks.
+ * If all chunks are in flight, the writing thread blocks until the executor has written one of them,
+ * which bounds the memory usage and provides back pressure.
+ * </p>
+ * <p>
+ * The provided executor has to execute tasks sequentially, in the order they have been submitted.
+ * Exceptions thrown by the underlying stream are rethrown on the next write, flush or close.
+ * </p>
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final BlockingQueue<Chunk> freeChunks;
+    @Nullable
+    private Chunk current;
+    @Nullable
+    private volatile IOException failure;
+    private boolean closed;
+
+    public PipelinedOutputStream(OutputStream out, Executor executor, int chunks, int chunkSize) {
+        this.out = out;
+        this.executor = executor;
+        this.freeChunks = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            freeChunks.offer(new Chunk(chunkSize));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        Chunk chunk = currentChunk();
+        if (chunk.length == chunk.data.length) {
+            submit(false);
+            chunk = currentChunk();
+        }
+        chunk.data[chunk.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            Chunk chunk = currentChunk();
+            if (chunk.length == chunk.data.length) {
+                submit(false);
+                chunk = currentChunk();
+            }
+            int length = Math.min(len, chunk.data.length - chunk.length);
+            System.arraycopy(b, off, chunk.data, chunk.length, length);
+            chunk.length += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Submits the buffered data without waiting for it to be written to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        submit(true);
+    }
+
+    /**
+     * Submits the buffered data, closes the underlying stream and waits until all data has been written.
+     * The underlying stream is closed even if writing to it has failed, so that it can release its resources.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (failure == null && current != null && current.length > 0) {
+                submit(false);
+            }
+        } finally {
+            closed = true;
+            closeUnderlyingStream();
+        }
+        throwIfFailed();
+    }
+
+    private void closeUnderlyingStream() throws InterruptedIOException {
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        Runnable closeTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    onFailure(e);
+                } finally {
+                    closeLatch.countDown();
+                }
+            }
+        };
+        try {
+            executor.execute(closeTask);
+        } catch (RejectedExecutionException e) {
+            closeTask.run();
+        }
+        try {
+            closeLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private Chunk currentChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        throwIfFailed();
+        if (current == null) {
+            try {
+                current = freeChunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return current;
+    }
+
+    private void submit(boolean flush) throws IOException {
+        Chunk chunk = currentChunk();
+        current = null;
+        chunk.flush = flush;
+        execute(chunk);
+    }
+
+    private void execute(Runnable task) throws IOException {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private void onFailure(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private class Chunk implements Runnable {
+        private final byte[] data;
+        private int length;
+        private boolean flush;
+
+        private Chunk(int size) {
+            data = new byte[size];
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure == null) {
+                    out.write(data, 0, length);
+                    if (flush) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                onFailure(e);
+            } finally {
+                length = 0;
+                flush = false;
+                freeChunks.offer(this);
+            }
+        }
+    }
+}
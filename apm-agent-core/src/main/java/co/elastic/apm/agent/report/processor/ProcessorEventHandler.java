@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.report.processor;
 
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.report.ReportingEvent;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import com.lmax.disruptor.EventHandler;
@@ -44,13 +45,22 @@ public class ProcessorEventHandler implements EventHandler<ReportingEvent> {
     @Override
     public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         if (event.getTransaction() != null) {
-            for (int i = 0; i < processors.size(); i++) {
-                processors.get(i).processBeforeReport(event.getTransaction());
-            }
+            processBeforeReport(event.getTransaction());
         } else if (event.getError() != null) {
             for (int i = 0; i < processors.size(); i++) {
                 processors.get(i).processBeforeReport(event.getError());
             }
         }
     }
+
+    /**
+     * Invokes all registered {@link Processor}s for a transaction which is serialized without going through a {@link ReportingEvent}
+     *
+     * @param transaction the transaction which is about to be serialized
+     */
+    public void processBeforeReport(TransactionImpl transaction) {
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).processBeforeReport(transaction);
+        }
+    }
 }
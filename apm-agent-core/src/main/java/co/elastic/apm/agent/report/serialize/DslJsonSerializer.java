@@ -47,6 +47,7 @@ import co.elastic.apm.agent.impl.metadata.ProcessInfo;
 import co.elastic.apm.agent.impl.metadata.RuntimeInfo;
 import co.elastic.apm.agent.impl.metadata.ServiceImpl;
 import co.elastic.apm.agent.impl.metadata.SystemInfo;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceCapture;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
 import co.elastic.apm.agent.impl.transaction.AbstractSpanImpl;
 import co.elastic.apm.agent.impl.transaction.Composite;
@@ -91,7 +92,6 @@ import java.nio.CharBuffer;
 import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -111,7 +111,6 @@ public class DslJsonSerializer {
 
     private static final byte NEW_LINE = (byte) '\n';
     private static final Logger logger = LoggerFactory.getLogger(DslJsonSerializer.class);
-    private static final List<String> excludedStackFramesPrefixes = Arrays.asList("java.lang.reflect.", "com.sun.", "sun.", "jdk.internal.");
 
     private final ObjectPool<? extends ObjectHandle<CharBuffer>> requestBodyBufferPool = ObjectPooling.createWithDefaultFactory(new Callable<CharBuffer>() {
         @Override
@@ -122,9 +121,28 @@ public class DslJsonSerializer {
 
 
     private final StacktraceConfigurationImpl stacktraceConfiguration;
+    @Nullable
+    private final StackTraceCache stackTraceCache;
     private final WebConfiguration webConfiguration;
     private final ApmServerClient apmServerClient;
 
+    private final JsonFragmentTemplate contextServiceTemplate = new JsonFragmentTemplate() {
+        @Override
+        protected void serialize(@Nullable String serviceName, @Nullable String serviceVersion, @Nullable String frameworkName, @Nullable String frameworkVersion,
+                                 StringBuilder replaceBuilder, JsonWriter jw) {
+            serializeContextService(serviceName, serviceVersion, frameworkName, frameworkVersion, replaceBuilder, jw);
+        }
+    };
+
+    private final JsonFragmentTemplate serviceNameAndVersionTemplate = new JsonFragmentTemplate() {
+        @Override
+        protected void serialize(@Nullable String serviceName, @Nullable String serviceVersion, @Nullable String unused1, @Nullable String unused2,
+                                 StringBuilder replaceBuilder, JsonWriter jw) {
+            //noinspection ConstantConditions only used for non-null service names
+            serializeServiceNameAndVersion(serviceName, serviceVersion, replaceBuilder, jw);
+        }
+    };
+
     private final Future<MetaData> metaData;
     @Nullable
     private byte[] serializedMetaData;
@@ -132,6 +150,8 @@ public class DslJsonSerializer {
 
     public DslJsonSerializer(ConfigurationRegistry config, ApmServerClient apmServerClient, final Future<MetaData> metaData) {
         this.stacktraceConfiguration = config.getConfig(StacktraceConfigurationImpl.class);
+        long stackTraceCacheSize = stacktraceConfiguration.getStackTraceCacheSizeBytes();
+        this.stackTraceCache = stackTraceCacheSize > 0 ? new StackTraceCache(stackTraceCacheSize) : null;
         this.webConfiguration = config.getConfig(WebConfiguration.class);
         this.apmServerClient = apmServerClient;
         this.metaData = metaData;
@@ -239,7 +259,13 @@ public class DslJsonSerializer {
         jw.writeByte(JsonWriter.OBJECT_END);
     }
 
-    private static void serializeService(@Nullable final CharSequence serviceName, @Nullable final CharSequence serviceVersion, @Nullable ServiceTargetImpl serviceTarget, final StringBuilder replaceBuilder, final JsonWriter jw) {
+    /**
+     * @param serializedNameAndVersion the name and version fields as serialized by {@link #serializeServiceNameAndVersion},
+     *                                 or {@code null} to serialize them
+     */
+    private static void serializeService(@Nullable final CharSequence serviceName, @Nullable final CharSequence serviceVersion,
+                                         @Nullable byte[] serializedNameAndVersion, @Nullable ServiceTargetImpl serviceTarget,
+                                         final StringBuilder replaceBuilder, final JsonWriter jw) {
         boolean hasServiceTarget = (serviceTarget != null && serviceTarget.hasContent());
         if (serviceName == null && !hasServiceTarget) {
             return;
@@ -249,13 +275,10 @@ public class DslJsonSerializer {
         jw.writeByte(OBJECT_START);
 
         if (serviceName != null) {
-            DslJsonUtil.writeFieldName("name", jw);
-            DslJsonUtil.writeStringValue(serviceName, replaceBuilder, jw);
-
-            if (serviceVersion != null) {
-                jw.writeByte(COMMA);
-                DslJsonUtil.writeFieldName("version", jw);
-                DslJsonUtil.writeStringValue(serviceVersion, replaceBuilder, jw);
+            if (serializedNameAndVersion != null) {
+                jw.writeAscii(serializedNameAndVersion);
+            } else {
+                serializeServiceNameAndVersion(serviceName, serviceVersion, replaceBuilder, jw);
             }
         }
 
@@ -287,8 +310,42 @@ public class DslJsonSerializer {
         jw.writeByte(COMMA);
     }
 
+    private static void serializeServiceNameAndVersion(final CharSequence serviceName, @Nullable final CharSequence serviceVersion, final StringBuilder replaceBuilder, final JsonWriter jw) {
+        DslJsonUtil.writeFieldName("name", jw);
+        DslJsonUtil.writeStringValue(serviceName, replaceBuilder, jw);
+
+        if (serviceVersion != null) {
+            jw.writeByte(COMMA);
+            DslJsonUtil.writeFieldName("version", jw);
+            DslJsonUtil.writeStringValue(serviceVersion, replaceBuilder, jw);
+        }
+    }
+
     private static void serializeService(@Nullable String name, @Nullable String version, StringBuilder replaceBuilder, JsonWriter jw) {
-        serializeService(name, version, null, replaceBuilder, jw);
+        serializeService(name, version, null, null, replaceBuilder, jw);
+    }
+
+    /**
+     * Serializes the {@code service} field of the transaction and error context, unless it contains the service origin.
+     * The values are the service name and version, and the framework name and version.
+     */
+    private static void serializeContextService(@Nullable String serviceName, @Nullable String serviceVersion,
+                                                @Nullable String frameworkName, @Nullable String frameworkVersion,
+                                                StringBuilder replaceBuilder, JsonWriter jw) {
+        DslJsonUtil.writeFieldName("service", jw);
+        jw.writeByte(OBJECT_START);
+        if (frameworkName != null) {
+            DslJsonUtil.writeFieldName("framework", jw);
+            jw.writeByte(JsonWriter.OBJECT_START);
+            writeField("version", frameworkVersion, replaceBuilder, jw);
+            writeLastField("name", frameworkName, replaceBuilder, jw);
+            jw.writeByte(JsonWriter.OBJECT_END);
+            jw.writeByte(COMMA);
+        }
+        writeField("name", serviceName, replaceBuilder, jw);
+        writeLastField("version", serviceVersion, replaceBuilder, jw);
+        jw.writeByte(OBJECT_END);
+        jw.writeByte(COMMA);
     }
 
     private static void serializeAgent(final Agent agent, final StringBuilder replaceBuilder, final JsonWriter jw, boolean supportsAgentActivationMethod) {
@@ -478,17 +535,7 @@ public class DslJsonSerializer {
     }
 
     private static boolean isExcluded(StackTraceElement stackTraceElement) {
-        // file name is a required field
-        if (stackTraceElement.getFileName() == null) {
-            return true;
-        }
-        String className = stackTraceElement.getClassName();
-        for (int i = 0, size = excludedStackFramesPrefixes.size(); i < size; i++) {
-            if (className.startsWith(excludedStackFramesPrefixes.get(i))) {
-                return true;
-            }
-        }
-        return false;
+        return StackTraceCapture.isExcluded(stackTraceElement.getClassName(), stackTraceElement.getFileName());
     }
 
     private static void serializeStringKeyScalarValueMap(Iterator<? extends Map.Entry<String, ? /* String|Number|Boolean */>> it,
@@ -686,9 +733,28 @@ public class DslJsonSerializer {
         private final StringBuilder replaceBuilder;
         @Nullable
         private OutputStream os;
+        private final StackTraceCache.StackTraceKey stackTraceKey = new StackTraceCache.StackTraceKey();
+        /**
+         * Serializes the stack traces and stack frames which are not yet in the {@link StackTraceCache}
+         */
+        private final JsonWriter stackTraceJw;
+        private final JsonWriter frameJw;
+        private final JsonFragmentTemplate.Key templateKey = new JsonFragmentTemplate.Key();
+        /**
+         * Serializes the fragments which are not yet cached by a {@link JsonFragmentTemplate}
+         */
+        private final JsonWriter templateJw;
+        /**
+         * {@link JsonWriter} can only write byte arrays from their start, slices of arrays are copied to this buffer first
+         */
+        private final byte[] sliceBuffer = new byte[1024];
 
         private Writer() {
-            jw = new DslJson<>(new DslJson.Settings<>()).newWriter(SerializationConstants.BUFFER_SIZE);
+            DslJson<Object> dslJson = new DslJson<Object>(new DslJson.Settings<Object>());
+            jw = dslJson.newWriter(SerializationConstants.BUFFER_SIZE);
+            stackTraceJw = dslJson.newWriter(4096);
+            frameJw = dslJson.newWriter(512);
+            templateJw = dslJson.newWriter(512);
             this.replaceBuilder = new StringBuilder(SerializationConstants.getMaxLongStringValueLength() + 1);
         }
 
@@ -849,6 +915,24 @@ public class DslJsonSerializer {
             jw.writeAscii(bytes, len);
         }
 
+        public void writeBytes(byte[] bytes, int offset, int len) {
+            writeSlice(bytes, offset, len);
+        }
+
+        private void writeSlice(byte[] bytes, int offset, int len) {
+            if (offset == 0) {
+                jw.writeAscii(bytes, len);
+                return;
+            }
+            while (len > 0) {
+                int chunk = Math.min(len, sliceBuffer.length);
+                System.arraycopy(bytes, offset, sliceBuffer, 0, chunk);
+                jw.writeAscii(sliceBuffer, chunk);
+                offset += chunk;
+                len -= chunk;
+            }
+        }
+
         public void serializeLogNdJson(String stringLog) {
             jw.writeByte(JsonWriter.OBJECT_START);
             writeFieldName("log");
@@ -866,17 +950,20 @@ public class DslJsonSerializer {
         }
 
         public void serializeLogNdJson(byte[] bytesLog) {
+            serializeLogNdJson(bytesLog, 0, bytesLog.length);
+        }
+
+        public void serializeLogNdJson(byte[] bytesLog, int offset, int length) {
             jw.writeByte(JsonWriter.OBJECT_START);
             writeFieldName("log");
 
             // because the input might come directly from the ECS reformatter, there might be an extra EOL
             // that needs to be ignored otherwise we get invalid ND-JSON.
-            int length = bytesLog.length;
-            if (bytesLog[length - 1] == NEW_LINE) {
+            if (bytesLog[offset + length - 1] == NEW_LINE) {
                 length--;
             }
 
-            jw.writeAscii(bytesLog, length);
+            writeSlice(bytesLog, offset, length);
             jw.writeByte(JsonWriter.OBJECT_END);
             jw.writeByte(NEW_LINE);
         }
@@ -959,7 +1046,7 @@ public class DslJsonSerializer {
 
         public String toJsonString(final StackTraceElement stackTraceElement) {
             jw.reset();
-            serializeStackTraceElement(stackTraceElement);
+            serializeStackTraceElement(stackTraceElement, jw);
             final String s = jw.toString();
             jw.reset();
             return s;
@@ -997,12 +1084,23 @@ public class DslJsonSerializer {
                 serializeDroppedSpanStats(transaction.getDroppedSpanStats());
             }
             serializeOTel(transaction);
+            serializeSampleRate(traceContext, transaction);
+            writeLastField("sampled", transaction.isSampled());
+            jw.writeByte(OBJECT_END);
+        }
+
+        /**
+         * The sample rate of transactions which have been kept randomly by the {@link co.elastic.apm.agent.report.TailSamplingReporter}
+         * and of their spans includes the keep rate
+         */
+        private void serializeSampleRate(TraceContextImpl traceContext, @Nullable TransactionImpl transaction) {
             double sampleRate = traceContext.getSampleRate();
             if (!Double.isNaN(sampleRate)) {
+                if (transaction != null) {
+                    sampleRate *= transaction.getTailSamplingKeepRate();
+                }
                 writeField("sample_rate", sampleRate);
             }
-            writeLastField("sampled", transaction.isSampled());
-            jw.writeByte(OBJECT_END);
         }
 
         private void serializeTraceContext(TraceContextImpl traceContext, boolean serializeTransactionId) {
@@ -1033,17 +1131,15 @@ public class DslJsonSerializer {
             serializeTraceContext(traceContext, true);
             serializeSpanLinks(span.getSpanLinks());
             writeField("duration", span.getDurationMs());
-            if (span.getStacktrace() != null) {
-                serializeStacktrace(span.getStacktrace().getStackTrace());
+            StackTraceElement[] stackTraceElements = span.getStackTraceElements();
+            if (stackTraceElements != null) {
+                serializeStacktrace(stackTraceElements);
             } else if (span.getStackFrames() != null) {
                 serializeStackTrace(span.getStackFrames());
             }
             serializeSpanContext(span.getContext(), traceContext);
             writeHexArray("child_ids", span.getChildIds());
-            double sampleRate = traceContext.getSampleRate();
-            if (!Double.isNaN(sampleRate)) {
-                writeField("sample_rate", sampleRate);
-            }
+            serializeSampleRate(traceContext, span.getTransaction());
             serializeOtel(span, Collections.<IdImpl>emptyList(), span.getContext().getHttp().getRequestBody());
             if (span.isComposite() && span.getComposite().getCount() > 1) {
                 serializeComposite(span.getComposite());
@@ -1215,12 +1311,10 @@ public class DslJsonSerializer {
             String serviceName = traceContext.getServiceName();
             String serviceVersion = traceContext.getServiceVersion();
             boolean isFrameworkNameNotNull = transaction != null && transaction.getFrameworkName() != null;
-            if (serviceName != null || serviceVersion != null || isFrameworkNameNotNull || serviceOrigin.hasContent()) {
+            if (serviceOrigin.hasContent()) {
                 writeFieldName("service");
                 jw.writeByte(OBJECT_START);
-                if (serviceOrigin.hasContent()) {
-                    serializeServiceOrigin(serviceOrigin);
-                }
+                serializeServiceOrigin(serviceOrigin);
                 if (isFrameworkNameNotNull) {
                     serializeFramework(transaction.getFrameworkName(), transaction.getFrameworkVersion());
                 }
@@ -1228,6 +1322,10 @@ public class DslJsonSerializer {
                 writeLastField("version", serviceVersion);
                 jw.writeByte(OBJECT_END);
                 jw.writeByte(COMMA);
+            } else if (serviceName != null || serviceVersion != null || isFrameworkNameNotNull) {
+                String frameworkName = isFrameworkNameNotNull ? transaction.getFrameworkName() : null;
+                String frameworkVersion = isFrameworkNameNotNull ? transaction.getFrameworkVersion() : null;
+                writeFragment(contextServiceTemplate.get(serviceName, serviceVersion, frameworkName, frameworkVersion, templateKey, templateJw, replaceBuilder));
             }
         }
 
@@ -1321,14 +1419,39 @@ public class DslJsonSerializer {
         }
 
         private void serializeStackTraceArrayElements(StackTraceElement[] stacktrace) {
+            StackTraceCache.StackTraceKey frames = collectStackFrames(stacktrace);
+            try {
+                StackTraceCache stackTraceCache = DslJsonSerializer.this.stackTraceCache;
+                if (stackTraceCache == null) {
+                    serializeStackTraceElements(frames, null, jw);
+                    return;
+                }
+                stackTraceCache.onApplicationPackages(stacktraceConfiguration.getApplicationPackages());
+                byte[] serialized = stackTraceCache.getStackTrace(frames);
+                if (serialized == null) {
+                    stackTraceJw.reset();
+                    serializeStackTraceElements(frames, stackTraceCache, stackTraceJw);
+                    serialized = stackTraceJw.toByteArray();
+                    stackTraceCache.putStackTrace(frames.copy(), serialized);
+                }
+                jw.writeAscii(serialized);
+            } finally {
+                frames.reset();
+            }
+        }
 
+        /**
+         * Collects the frames which are serialized, skipping the top most agent frames and excluded frames,
+         * up to the {@code stack_trace_limit}.
+         */
+        private StackTraceCache.StackTraceKey collectStackFrames(StackTraceElement[] stacktrace) {
+            StackTraceCache.StackTraceKey frames = this.stackTraceKey;
             boolean topMostElasticApmPackagesSkipped = false;
-            int collectedStackFrames = 0;
             int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
             if (stackTraceLimit < 0) {
                 stackTraceLimit = stacktrace.length;
             }
-            for (int i = 0; i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
+            for (int i = 0; i < stacktrace.length && frames.size() < stackTraceLimit; i++) {
                 StackTraceElement stackTraceElement = stacktrace[i];
                 // only skip the top most apm stack frames
                 if (!topMostElasticApmPackagesSkipped && stackTraceElement.getClassName().startsWith("co.elastic.apm")) {
@@ -1339,34 +1462,53 @@ public class DslJsonSerializer {
                 if (isExcluded(stackTraceElement)) {
                     continue;
                 }
+                frames.add(stackTraceElement);
+            }
+            return frames;
+        }
 
-                if (collectedStackFrames > 0) {
-                    jw.writeByte(COMMA);
+        private void serializeStackTraceElements(StackTraceCache.StackTraceKey frames, @Nullable StackTraceCache stackTraceCache, JsonWriter out) {
+            for (int i = 0, size = frames.size(); i < size; i++) {
+                if (i > 0) {
+                    out.writeByte(COMMA);
+                }
+                StackTraceElement frame = frames.get(i);
+                if (stackTraceCache == null) {
+                    serializeStackTraceElement(frame, out);
+                    continue;
                 }
-                serializeStackTraceElement(stackTraceElement);
-                collectedStackFrames++;
+                byte[] serialized = stackTraceCache.getFrame(frame);
+                if (serialized == null) {
+                    frameJw.reset();
+                    serializeStackTraceElement(frame, frameJw);
+                    serialized = frameJw.toByteArray();
+                    stackTraceCache.putFrame(frame, serialized);
+                }
+                out.writeAscii(serialized);
             }
         }
 
-        private void serializeStackTraceElement(StackTraceElement stacktrace) {
-            jw.writeByte(OBJECT_START);
-            writeField("filename", stacktrace.getFileName());
-            writeField("classname", stacktrace.getClassName());
-            writeField("function", stacktrace.getMethodName());
-            writeField("library_frame", isLibraryFrame(stacktrace.getClassName()));
-            writeField("lineno", stacktrace.getLineNumber());
-            serializeStackFrameModule(stacktrace.getClassName());
-            jw.writeByte(OBJECT_END);
+        private void serializeStackTraceElement(StackTraceElement stacktrace, JsonWriter out) {
+            out.writeByte(OBJECT_START);
+            DslJsonSerializer.writeField("filename", stacktrace.getFileName(), replaceBuilder, out);
+            DslJsonSerializer.writeField("classname", stacktrace.getClassName(), replaceBuilder, out);
+            DslJsonSerializer.writeField("function", stacktrace.getMethodName(), replaceBuilder, out);
+            DslJsonUtil.writeFieldName("library_frame", out);
+            BoolConverter.serialize(isLibraryFrame(stacktrace.getClassName()), out);
+            out.writeByte(COMMA);
+            DslJsonSerializer.writeField("lineno", stacktrace.getLineNumber(), out);
+            serializeStackFrameModule(stacktrace.getClassName(), out);
+            out.writeByte(OBJECT_END);
         }
 
-        private void serializeStackFrameModule(final String fullyQualifiedClassName) {
-            writeFieldName("module");
+        private void serializeStackFrameModule(final String fullyQualifiedClassName, JsonWriter out) {
+            DslJsonUtil.writeFieldName("module", out);
             replaceBuilder.setLength(0);
             final int lastDotIndex = fullyQualifiedClassName.lastIndexOf('.');
             if (lastDotIndex > 0) {
                 replaceBuilder.append(fullyQualifiedClassName, 0, lastDotIndex);
             }
-            DslJsonSerializer.writeStringBuilderValue(replaceBuilder, jw);
+            DslJsonSerializer.writeStringBuilderValue(replaceBuilder, out);
         }
 
         private boolean isLibraryFrame(String className) {
@@ -1411,7 +1553,12 @@ public class DslJsonSerializer {
             writeFieldName("context");
             jw.writeByte(OBJECT_START);
 
-            DslJsonSerializer.serializeService(traceContext.getServiceName(), traceContext.getServiceVersion(), context.getServiceTarget(), replaceBuilder, jw);
+            String serviceName = traceContext.getServiceName();
+            String serviceVersion = traceContext.getServiceVersion();
+            byte[] serializedNameAndVersion = serviceName != null
+                ? serviceNameAndVersionTemplate.get(serviceName, serviceVersion, null, null, templateKey, templateJw, replaceBuilder)
+                : null;
+            DslJsonSerializer.serializeService(serviceName, serviceVersion, serializedNameAndVersion, context.getServiceTarget(), replaceBuilder, jw);
             serializeMessageContext(context.getMessage());
             serializeDbContext(context.getDb());
             serializeHttpContext(context.getHttp());
@@ -1907,6 +2054,10 @@ public class DslJsonSerializer {
             DslJsonUtil.writeFieldName(fieldName, jw);
         }
 
+        private void writeFragment(byte[] fragment) {
+            jw.writeAscii(fragment);
+        }
+
         private void writeNonLastIdField(String fieldName, IdImpl id) {
             writeIdField(fieldName, id);
             jw.writeByte(COMMA);
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import co.elastic.apm.agent.sdk.internal.collections.LRUCache;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * A JSON fragment which only depends on a few values that rarely change, such as the service name and version.
+ * <p>
+ * The serialized fragment is cached per distinct combination of values,
+ * so that serializing an event mostly means copying the cached bytes and writing the variable fields.
+ * As the cache is keyed by the values the fragment is serialized from, it never needs to be invalidated.
+ * The number of cached fragments is bounded, so that high-cardinality values can't blow up the memory footprint.
+ * </p>
+ */
+abstract class JsonFragmentTemplate {
+
+    private static final int MAX_FRAGMENTS = 256;
+
+    private final Map<Key, byte[]> fragments = LRUCache.createCache(MAX_FRAGMENTS);
+
+    /**
+     * Returns the serialized fragment for the provided values, serializing it on a cache miss.
+     *
+     * @param lookupKey      a key re-used for looking up fragments, owned by the calling {@link DslJsonSerializer.Writer}
+     * @param fragmentWriter a writer to serialize the fragment on a cache miss, owned by the calling {@link DslJsonSerializer.Writer}
+     * @param replaceBuilder a builder to sanitize the values, owned by the calling {@link DslJsonSerializer.Writer}
+     */
+    byte[] get(@Nullable String first, @Nullable String second, @Nullable String third, @Nullable String fourth,
+               Key lookupKey, JsonWriter fragmentWriter, StringBuilder replaceBuilder) {
+        lookupKey.set(first, second, third, fourth);
+        byte[] fragment = fragments.get(lookupKey);
+        if (fragment == null) {
+            fragmentWriter.reset();
+            serialize(first, second, third, fourth, replaceBuilder, fragmentWriter);
+            fragment = fragmentWriter.toByteArray();
+            fragments.put(new Key().set(first, second, third, fourth), fragment);
+        }
+        return fragment;
+    }
+
+    protected abstract void serialize(@Nullable String first, @Nullable String second, @Nullable String third, @Nullable String fourth,
+                                      StringBuilder replaceBuilder, JsonWriter jw);
+
+    static class Key {
+
+        @Nullable
+        private String first;
+        @Nullable
+        private String second;
+        @Nullable
+        private String third;
+        @Nullable
+        private String fourth;
+
+        Key set(@Nullable String first, @Nullable String second, @Nullable String third, @Nullable String fourth) {
+            this.first = first;
+            this.second = second;
+            this.third = third;
+            this.fourth = fourth;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return equals(first, that.first)
+                && equals(second, that.second)
+                && equals(third, that.third)
+                && equals(fourth, that.fourth);
+        }
+
+        private static boolean equals(@Nullable String a, @Nullable String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = first != null ? first.hashCode() : 0;
+            result = 31 * result + (second != null ? second.hashCode() : 0);
+            result = 31 * result + (third != null ? third.hashCode() : 0);
+            result = 31 * result + (fourth != null ? fourth.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.tracer.service.ServiceInfo;
 import co.elastic.apm.agent.tracer.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import co.elastic.apm.agent.tracer.metrics.DslJsonUtil;
@@ -92,6 +93,7 @@ public class MetricRegistrySerializer {
                 jw.writeByte(JsonWriter.OBJECT_START);
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
                 hasSamples |= serializeRawMetrics(metricSet.getRawMetrics(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
@@ -166,6 +168,22 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (!histograms.isEmpty()) {
+            for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+                Histogram histogram = kv.getValue();
+                if (histogram.hasContent()) {
+                    if (hasSamples) {
+                        jw.writeByte(JsonWriter.COMMA);
+                    }
+                    serializeHistogram(kv.getKey(), histogram, jw);
+                    hasSamples = true;
+                }
+            }
+        }
+        return hasSamples;
+    }
+
     private static boolean serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
         final int size = counters.size();
         if (size > 0) {
@@ -244,6 +262,52 @@ public class MetricRegistrySerializer {
         serializeValue(key, ".sum.us", timer.getTotalTimeUs(), jw);
     }
 
+    /**
+     * Serializes the non-empty buckets of a histogram in the intake API format:
+     * <pre>
+     * "transaction.duration.histogram":{"values":[12.5,1031.5],"counts":[3,1],"type":"histogram"}
+     * </pre>
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeAscii(key);
+        jw.writeAscii(".histogram");
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeByte(JsonWriter.SEMI);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonUtil.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(Histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonUtil.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        jw.writeAscii("\"type\":\"histogram\"");
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeValue(String key, double value, JsonWriter jw) {
         serializeValue(key, "", value, jw);
     }
@@ -0,0 +1,199 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import co.elastic.apm.agent.sdk.internal.collections.LRUCache;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Caches the serialized JSON of recurring stack frames and of whole stack traces,
+ * so that they can be copied to the output instead of being encoded over and over again.
+ * <p>
+ * A stack trace is identified by the frames which are actually serialized,
+ * that is after skipping agent and excluded frames and after applying the {@code stack_trace_limit}.
+ * Stack frames are identified by their {@link StackTraceElement}.
+ * Both kinds of entries share a single LRU cache,
+ * which is bounded by the estimated memory consumption of its entries rather than by the number of entries.
+ * </p>
+ * <p>
+ * As the serialized frames contain the {@code library_frame} flag, which depends on the dynamic {@code application_packages} option,
+ * the cache is cleared whenever the application packages change.
+ * </p>
+ */
+class StackTraceCache {
+
+    /**
+     * The estimated memory overhead of a cache entry, excluding the serialized JSON and the frames of a stack trace key
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final LRUCache.Weigher<Object, byte[]> ENTRY_WEIGHER = new LRUCache.Weigher<Object, byte[]>() {
+        @Override
+        public int weightOf(Object key, byte[] serialized) {
+            int weight = ENTRY_OVERHEAD_BYTES + serialized.length;
+            if (key instanceof StackTraceKey) {
+                // the frames themselves are shared with the stack frame entries
+                weight += 8 * ((StackTraceKey) key).size;
+            }
+            return weight;
+        }
+    };
+
+    private static final LRUCache.EvictionListener<Object, byte[]> EVICTION_LISTENER = new LRUCache.EvictionListener<Object, byte[]>() {
+        @Override
+        public void onEviction(Object key, byte[] serialized) {
+            StackTraceCacheStatistics.recordEviction();
+        }
+    };
+
+    private final Map<Object, byte[]> cache;
+    @Nullable
+    private volatile Collection<String> applicationPackages;
+
+    StackTraceCache(long maxSizeBytes) {
+        cache = LRUCache.createWeightedCache(maxSizeBytes, ENTRY_WEIGHER, EVICTION_LISTENER);
+    }
+
+    /**
+     * Clears the cache if the application packages are not the ones the cached frames have been serialized with.
+     * <p>
+     * The value of a configuration option is only replaced when the configuration changes,
+     * which is why comparing the identity is sufficient.
+     * </p>
+     */
+    void onApplicationPackages(Collection<String> applicationPackages) {
+        if (this.applicationPackages != applicationPackages) {
+            cache.clear();
+            this.applicationPackages = applicationPackages;
+        }
+    }
+
+    @Nullable
+    byte[] getStackTrace(StackTraceKey stackTrace) {
+        byte[] serialized = cache.get(stackTrace);
+        if (serialized != null) {
+            StackTraceCacheStatistics.recordStackTraceHit();
+        } else {
+            StackTraceCacheStatistics.recordStackTraceMiss();
+        }
+        return serialized;
+    }
+
+    /**
+     * @param stackTrace a key which is not mutated afterwards, usually created via {@link StackTraceKey#copy()}
+     */
+    void putStackTrace(StackTraceKey stackTrace, byte[] serialized) {
+        cache.put(stackTrace, serialized);
+    }
+
+    @Nullable
+    byte[] getFrame(StackTraceElement frame) {
+        byte[] serialized = cache.get(frame);
+        if (serialized != null) {
+            StackTraceCacheStatistics.recordFrameHit();
+        } else {
+            StackTraceCacheStatistics.recordFrameMiss();
+        }
+        return serialized;
+    }
+
+    void putFrame(StackTraceElement frame, byte[] serialized) {
+        cache.put(frame, serialized);
+    }
+
+    /**
+     * The frames of a stack trace which are serialized.
+     * <p>
+     * A {@link DslJsonSerializer.Writer} re-uses a single instance to look up stack traces and
+     * only creates a {@link #copy()} when adding a stack trace to the cache.
+     * </p>
+     */
+    static class StackTraceKey {
+
+        private StackTraceElement[] frames;
+        private int size;
+        private int hash;
+
+        StackTraceKey() {
+            this(new StackTraceElement[16], 0, 1);
+        }
+
+        private StackTraceKey(StackTraceElement[] frames, int size, int hash) {
+            this.frames = frames;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        void reset() {
+            // avoids retaining the frames of the last stack trace
+            Arrays.fill(frames, 0, size, null);
+            size = 0;
+            hash = 1;
+        }
+
+        void add(StackTraceElement frame) {
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, size * 2);
+            }
+            frames[size++] = frame;
+            hash = 31 * hash + frame.hashCode();
+        }
+
+        int size() {
+            return size;
+        }
+
+        StackTraceElement get(int index) {
+            return frames[index];
+        }
+
+        StackTraceKey copy() {
+            return new StackTraceKey(Arrays.copyOf(frames, size), size, hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StackTraceKey)) {
+                return false;
+            }
+            StackTraceKey that = (StackTraceKey) o;
+            if (size != that.size || hash != that.hash) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (!frames[i].equals(that.frames[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
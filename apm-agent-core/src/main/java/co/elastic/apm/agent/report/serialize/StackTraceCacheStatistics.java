@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the hits, misses and evictions of the stack trace caches of all {@link DslJsonSerializer}s.
+ * <p>
+ * The counters are only updated after {@link #enable()} has been called,
+ * so that there is no contention on them unless the corresponding metrics are actually collected.
+ * </p>
+ */
+public final class StackTraceCacheStatistics {
+
+    private static volatile boolean enabled = false;
+    private static final AtomicLong stackTraceHits = new AtomicLong();
+    private static final AtomicLong stackTraceMisses = new AtomicLong();
+    private static final AtomicLong frameHits = new AtomicLong();
+    private static final AtomicLong frameMisses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private StackTraceCacheStatistics() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void recordStackTraceHit() {
+        if (enabled) {
+            stackTraceHits.incrementAndGet();
+        }
+    }
+
+    static void recordStackTraceMiss() {
+        if (enabled) {
+            stackTraceMisses.incrementAndGet();
+        }
+    }
+
+    static void recordFrameHit() {
+        if (enabled) {
+            frameHits.incrementAndGet();
+        }
+    }
+
+    static void recordFrameMiss() {
+        if (enabled) {
+            frameMisses.incrementAndGet();
+        }
+    }
+
+    static void recordEviction() {
+        if (enabled) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    public static long getStackTraceHits() {
+        return stackTraceHits.get();
+    }
+
+    public static long getStackTraceMisses() {
+        return stackTraceMisses.get();
+    }
+
+    public static long getFrameHits() {
+        return frameHits.get();
+    }
+
+    public static long getFrameMisses() {
+        return frameMisses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A persistent FIFO queue of batches, backed by memory-mapped segment files of a fixed size in a directory.
+ * <p>
+ * When the total size of the segments would exceed the configured maximum, the oldest segment is evicted,
+ * including all batches in it which have not been consumed yet.
+ * Evicted and fully consumed segments are not deleted but reused,
+ * as the disk space of a memory-mapped file is only freed after it has been unmapped,
+ * which only happens when the mapping is garbage collected.
+ * This makes sure that the segment files never exceed the configured maximum size.
+ * </p>
+ * <p>
+ * The batches which have not been consumed when the spool is closed are available again after re-opening the directory,
+ * for example after a restart of the application.
+ * A directory can only be used by one spool at a time, which is enforced by a lock file.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class DiskSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpool.class);
+
+    private static final String SEGMENT_FILE_PREFIX = "spool-";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final String LOCK_FILE_NAME = "spool.lock";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final FileOutputStream lockFileStream;
+    private final FileLock lock;
+    private final ArrayDeque<SpoolSegment> segments = new ArrayDeque<>();
+    /**
+     * Segments which have been cleared and can be reused, they count towards the maximum size as well
+     */
+    private final ArrayDeque<SpoolSegment> freeSegments = new ArrayDeque<>();
+    private long nextSegmentId;
+    private boolean closed;
+
+    private long appendedBatches;
+    private long consumedBatches;
+    private long evictedBatches;
+    private long rejectedBatches;
+
+    /**
+     * @param directory    the directory to store the segment files in, created if it does not exist
+     * @param maxSizeBytes the maximum total size of all segment files
+     * @param segmentSize  the size of a single segment file, which is also the upper limit of the size of a single batch
+     * @throws IOException if the directory can't be created, is already used by another spool, or if existing segments can't be read
+     */
+    public DiskSpool(File directory, long maxSizeBytes, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSizeBytes / segmentSize));
+        this.lockFileStream = new FileOutputStream(new File(directory, LOCK_FILE_NAME));
+        FileLock lock;
+        try {
+            lock = lockFileStream.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by this JVM
+            lock = null;
+        } catch (IOException e) {
+            lockFileStream.close();
+            throw e;
+        }
+        if (lock == null) {
+            lockFileStream.close();
+            throw new IOException("Spool directory " + directory + " is already in use");
+        }
+        this.lock = lock;
+        openExistingSegments();
+    }
+
+    private void openExistingSegments() {
+        // reused segments keep their file name, so the order of the segments is determined by the id in their header
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] candidates = directory.listFiles();
+        if (candidates != null) {
+            for (File file : candidates) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    // files are named after the id the segment has been created with, which must not be used for new files
+                    long initialId = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+                    nextSegmentId = Math.max(nextSegmentId, initialId + 1);
+                } catch (NumberFormatException ignore) {
+                    // not a segment file
+                    continue;
+                }
+                try {
+                    long id = SpoolSegment.readId(file);
+                    files.put(id, file);
+                    nextSegmentId = Math.max(nextSegmentId, id + 1);
+                } catch (IOException e) {
+                    logger.warn("Deleting unreadable spool segment {}: {}", file, e.getMessage());
+                    deleteFile(file);
+                }
+            }
+        }
+        // the files are not mapped yet, so that deleting them frees the disk space right away
+        while (files.size() > maxSegments) {
+            File oldest = files.pollFirstEntry().getValue();
+            logger.warn("Spool {} exceeds its maximum size, dropping the oldest segment {}", directory, oldest.getName());
+            deleteFile(oldest);
+        }
+        for (File file : files.values()) {
+            try {
+                SpoolSegment segment = SpoolSegment.open(file);
+                if (segment.hasUnconsumed()) {
+                    segments.add(segment);
+                } else {
+                    release(segment);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not open spool segment {}: {}", file, e.getMessage());
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Found {} spooled batches in {}", getPendingBatches(), directory);
+        }
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(directory, String.format("%s%019d%s", SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX));
+    }
+
+    /**
+     * Appends a batch to the spool.
+     * If the spool is full, the oldest segment is evicted to make room for the batch.
+     *
+     * @param contentEncoding the content encoding of the body, or an empty string if the body is not encoded
+     * @param body            the buffer containing the body
+     * @param offset          the offset of the body in the buffer
+     * @param length          the length of the body
+     * @return {@code false} if the batch was rejected because it exceeds the segment size or because the spool is closed
+     */
+    public synchronized boolean append(String contentEncoding, byte[] body, int offset, int length) {
+        byte[] encoding = contentEncoding.getBytes(UTF_8);
+        if (closed || encoding.length > 0xFF || SpoolSegment.HEADER_SIZE + SpoolSegment.getRecordSize(encoding, length) > segmentSize) {
+            rejectedBatches++;
+            return false;
+        }
+        SpoolSegment tail = segments.peekLast();
+        if (tail == null || !tail.append(encoding, body, offset, length)) {
+            try {
+                tail = nextSegment();
+            } catch (IOException e) {
+                logger.warn("Failed to create spool segment in {}: {}", directory, e.getMessage());
+                rejectedBatches++;
+                return false;
+            }
+            segments.addLast(tail);
+            tail.append(encoding, body, offset, length);
+        }
+        appendedBatches++;
+        return true;
+    }
+
+    /**
+     * Reuses a free segment, evicting the oldest one if the spool is full, or creates a new one.
+     */
+    private SpoolSegment nextSegment() throws IOException {
+        if (freeSegments.isEmpty() && segments.size() >= maxSegments) {
+            evictOldestSegment();
+        }
+        SpoolSegment segment = freeSegments.pollFirst();
+        if (segment != null) {
+            segment.reuse(nextSegmentId);
+        } else {
+            segment = SpoolSegment.create(getSegmentFile(nextSegmentId), nextSegmentId, segmentSize);
+        }
+        nextSegmentId++;
+        return segment;
+    }
+
+    private void evictOldestSegment() {
+        SpoolSegment oldest = segments.pollFirst();
+        if (oldest != null) {
+            int evicted = oldest.countUnconsumed();
+            evictedBatches += evicted;
+            logger.warn("Spool {} exceeds its maximum size, dropping the oldest {} batches", directory, evicted);
+            release(oldest);
+        }
+    }
+
+    private void release(SpoolSegment segment) {
+        if (segment.getSize() != segmentSize) {
+            // only happens after the segment size has been changed,
+            // the disk space is freed as soon as the mapping has been garbage collected
+            deleteFile(segment.getFile());
+            return;
+        }
+        segment.clear();
+        freeSegments.add(segment);
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            logger.debug("Could not delete {}", file);
+        }
+    }
+
+    /**
+     * Returns the oldest batch, without removing it.
+     * After the batch has been processed, it has to be removed via {@link #remove(Batch)}.
+     *
+     * @return the oldest batch or {@code null} if the spool is empty
+     */
+    @Nullable
+    public synchronized Batch peek() {
+        for (SpoolSegment head = segments.peekFirst(); head != null && !closed; head = segments.peekFirst()) {
+            Batch batch = head.peek();
+            if (batch != null) {
+                return batch;
+            }
+            if (head == segments.peekLast()) {
+                // keep appending to the tail segment
+                return null;
+            }
+            segments.pollFirst();
+            release(head);
+        }
+        return null;
+    }
+
+    /**
+     * Removes a batch previously returned by {@link #peek()}.
+     * Does nothing if the batch has been evicted in the meantime.
+     */
+    public synchronized void remove(Batch batch) {
+        SpoolSegment head = segments.peekFirst();
+        if (closed || head != batch.segment || head.getId() != batch.segmentId || head.getReadOffset() != batch.offset) {
+            return;
+        }
+        head.consume();
+        consumedBatches++;
+        if (!head.hasUnconsumed() && head != segments.peekLast()) {
+            segments.pollFirst();
+            release(head);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        for (SpoolSegment segment : segments) {
+            if (segment.hasUnconsumed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of batches which have been appended and neither been removed nor evicted yet
+     */
+    public synchronized long getPendingBatches() {
+        long pending = 0;
+        for (SpoolSegment segment : segments) {
+            pending += segment.countUnconsumed();
+        }
+        return pending;
+    }
+
+    /**
+     * @return the total size of all segment files, including the ones which are free to be reused
+     */
+    public synchronized long getSizeInBytes() {
+        long size = 0;
+        for (SpoolSegment segment : segments) {
+            size += segment.getSize();
+        }
+        for (SpoolSegment segment : freeSegments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    public synchronized long getAppendedBatches() {
+        return appendedBatches;
+    }
+
+    public synchronized long getConsumedBatches() {
+        return consumedBatches;
+    }
+
+    /**
+     * @return the number of batches which have been dropped because the spool exceeded its maximum size
+     */
+    public synchronized long getEvictedBatches() {
+        return evictedBatches;
+    }
+
+    /**
+     * @return the number of batches which could not be appended, for example because they exceeded the segment size
+     */
+    public synchronized long getRejectedBatches() {
+        return rejectedBatches;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (SpoolSegment segment : segments) {
+            segment.force();
+        }
+        for (SpoolSegment segment : freeSegments) {
+            segment.force();
+        }
+        segments.clear();
+        freeSegments.clear();
+        try {
+            lock.release();
+            lockFileStream.close();
+        } catch (IOException e) {
+            logger.debug("Failed to release the lock of spool directory {}", directory, e);
+        }
+    }
+
+    /**
+     * A batch of events stored in the spool, usually the (compressed) body of an intake API request
+     */
+    public static class Batch {
+        private final SpoolSegment segment;
+        private final long segmentId;
+        private final int offset;
+        private final String contentEncoding;
+        private final byte[] body;
+
+        Batch(SpoolSegment segment, long segmentId, int offset, String contentEncoding, byte[] body) {
+            this.segment = segment;
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+
+        /**
+         * @return the content encoding of the body, or an empty string if the body is not encoded
+         */
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
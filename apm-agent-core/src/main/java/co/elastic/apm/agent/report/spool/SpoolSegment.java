@@ -0,0 +1,245 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A fixed-size, memory-mapped file which stores a sequence of batches.
+ * <p>
+ * The file starts with a header consisting of a magic number, the offset of the first batch which has not been consumed yet
+ * and the id of the segment, which determines the order of the segments.
+ * Each batch is stored as a record, consisting of the record length, the length of the content encoding,
+ * the content encoding and the body.
+ * A record length of {@code 0} marks the end of the written data.
+ * The record length is written after the rest of the record and after the end marker following it,
+ * so that a partially written record is never visible, not even after a crash of the JVM.
+ * </p>
+ * <p>
+ * As a mapping can't be released explicitly and the disk space of a deleted file is only freed after it has been unmapped,
+ * segments are not deleted but {@link #clear() cleared} and {@link #reuse(long) reused} with a new id.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+class SpoolSegment {
+
+    private static final int MAGIC = 0x45415031;
+    private static final int READ_OFFSET_POSITION = 4;
+    private static final int ID_POSITION = 8;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_OVERHEAD = 4 + 1;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private long id;
+    private int writeOffset;
+    private int readOffset;
+
+    private SpoolSegment(File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    static SpoolSegment create(File file, long id, int size) throws IOException {
+        SpoolSegment segment = new SpoolSegment(file, map(file, size));
+        segment.buffer.putInt(0, MAGIC);
+        segment.reuse(id);
+        return segment;
+    }
+
+    /**
+     * Reads the id of a segment which has been written to before, without mapping the file.
+     *
+     * @throws IOException if the file can't be read or if it's not a valid segment
+     */
+    static long readId(File file) throws IOException {
+        long size = file.length();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid spool segment size " + size + " of " + file);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.readInt() != MAGIC) {
+                throw new IOException("Invalid spool segment " + file);
+            }
+            randomAccessFile.seek(ID_POSITION);
+            return randomAccessFile.readLong();
+        }
+    }
+
+    /**
+     * Opens a segment which has been written to before, for example by a previous run of the agent.
+     * The file has to be validated via {@link #readId(File)} first.
+     */
+    static SpoolSegment open(File file) throws IOException {
+        SpoolSegment segment = new SpoolSegment(file, map(file, (int) file.length()));
+        segment.id = segment.buffer.getLong(ID_POSITION);
+        int offset = HEADER_SIZE;
+        for (int length = segment.recordLengthAt(offset); length > 0; length = segment.recordLengthAt(offset)) {
+            offset += 4 + length;
+        }
+        segment.writeOffset = offset;
+        int readOffset = segment.buffer.getInt(READ_OFFSET_POSITION);
+        segment.readOffset = readOffset >= HEADER_SIZE && readOffset <= offset ? readOffset : HEADER_SIZE;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(size);
+            // the mapping stays valid after the channel has been closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @return the length of the record at the given offset or {@code 0} if there is no valid record
+     */
+    private int recordLengthAt(int offset) {
+        if (offset + RECORD_OVERHEAD > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - 4 || (buffer.get(offset + 4) & 0xFF) > length - 1) {
+            return 0;
+        }
+        return length;
+    }
+
+    static int getRecordSize(byte[] contentEncoding, int bodyLength) {
+        return RECORD_OVERHEAD + contentEncoding.length + bodyLength;
+    }
+
+    /**
+     * @return {@code false} if the segment does not have enough space left for the batch
+     */
+    boolean append(byte[] contentEncoding, byte[] body, int offset, int length) {
+        int recordSize = getRecordSize(contentEncoding, length);
+        if (writeOffset + recordSize > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(writeOffset + 4);
+        record.put((byte) contentEncoding.length);
+        record.put(contentEncoding);
+        record.put(body, offset, length);
+        // a reused segment may contain records of its previous use after the new record
+        markEnd(writeOffset + recordSize);
+        buffer.putInt(writeOffset, recordSize - 4);
+        writeOffset += recordSize;
+        return true;
+    }
+
+    boolean hasUnconsumed() {
+        return readOffset < writeOffset;
+    }
+
+    /**
+     * @return the oldest batch which has not been consumed yet, or {@code null} if all batches have been consumed
+     */
+    @Nullable
+    DiskSpool.Batch peek() {
+        if (!hasUnconsumed()) {
+            return null;
+        }
+        int recordLength = buffer.getInt(readOffset);
+        ByteBuffer record = buffer.duplicate();
+        record.position(readOffset + 4);
+        byte[] contentEncoding = new byte[record.get() & 0xFF];
+        record.get(contentEncoding);
+        byte[] body = new byte[recordLength - 1 - contentEncoding.length];
+        record.get(body);
+        return new DiskSpool.Batch(this, id, readOffset, new String(contentEncoding, UTF_8), body);
+    }
+
+    /**
+     * Marks the batch at the current read offset as consumed
+     */
+    void consume() {
+        if (hasUnconsumed()) {
+            setReadOffset(readOffset + 4 + buffer.getInt(readOffset));
+        }
+    }
+
+    /**
+     * Discards all batches, so that they are not visible after re-opening the segment either
+     */
+    void clear() {
+        markEnd(HEADER_SIZE);
+        writeOffset = HEADER_SIZE;
+        setReadOffset(HEADER_SIZE);
+    }
+
+    /**
+     * Clears the segment and assigns a new id, which moves it to the end of the spool
+     */
+    void reuse(long id) {
+        clear();
+        this.id = id;
+        buffer.putLong(ID_POSITION, id);
+    }
+
+    private void markEnd(int offset) {
+        if (offset + 4 <= buffer.capacity()) {
+            buffer.putInt(offset, 0);
+        }
+    }
+
+    private void setReadOffset(int readOffset) {
+        this.readOffset = readOffset;
+        buffer.putInt(READ_OFFSET_POSITION, readOffset);
+    }
+
+    int getReadOffset() {
+        return readOffset;
+    }
+
+    int countUnconsumed() {
+        int count = 0;
+        for (int offset = readOffset; offset < writeOffset; offset += 4 + buffer.getInt(offset)) {
+            count++;
+        }
+        return count;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    int getSize() {
+        return buffer.capacity();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.ServerlessConfigurationImpl;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import co.elastic.apm.agent.tracer.configuration.MessagingConfiguration;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NoMatchCacheTest {
+
+    private static final int SLOTS = 1024;
+    private static final TypeDescription TYPE = TypeDescription.ForLoadedType.of(NoMatchCacheTest.class);
+    private static final String INTERNAL_NAME = TYPE.getInternalName();
+    private static final byte[] CLASS_FILE = "class file".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    File cacheDir;
+
+    private NoMatchCache cache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cache = NoMatchCache.open(cacheDir, 42, SLOTS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    void testAddedKeysArePersisted() throws Exception {
+        long key = NoMatchCacheFilter.key("com.example.Foo", getClass().getClassLoader(), CLASS_FILE);
+        cache.add(key);
+        assertThat(cache.contains(key)).isFalse();
+        cache.flush();
+        assertThat(cache.contains(key)).isTrue();
+        cache.close();
+
+        cache = NoMatchCache.open(cacheDir, 42, SLOTS);
+        assertThat(cache.contains(key)).isTrue();
+        assertThat(cache.contains(NoMatchCacheFilter.key("com.example.Bar", getClass().getClassLoader(), CLASS_FILE))).isFalse();
+        assertThat(cache.contains(NoMatchCacheFilter.key("com.example.Foo", null, CLASS_FILE))).isFalse();
+        assertThat(cache.contains(NoMatchCacheFilter.key("com.example.Foo", getClass().getClassLoader(), "changed".getBytes(StandardCharsets.UTF_8)))).isFalse();
+    }
+
+    @Test
+    void testOtherFingerprintInvalidatesCache() throws Exception {
+        long key = NoMatchCacheFilter.key("com.example.Foo", getClass().getClassLoader(), CLASS_FILE);
+        cache.add(key);
+        cache.close();
+
+        cache = NoMatchCache.open(cacheDir, 43, SLOTS);
+        assertThat(cache.contains(key)).isFalse();
+        assertThat(cacheDir.listFiles()).containsExactlyInAnyOrder(cache.getFile(), new File(cache.getFile().getPath() + ".lock"));
+    }
+
+    @Test
+    void testCacheInUseIsNotDeleted() throws Exception {
+        // simulates another JVM which shares the directory and still uses the cache of another fingerprint
+        NoMatchCache otherCache = NoMatchCache.open(cacheDir, 43, SLOTS);
+        try {
+            assertThat(otherCache.getFile()).exists();
+            assertThat(cache.getFile()).exists();
+        } finally {
+            otherCache.close();
+        }
+
+        cache.close();
+        cache = NoMatchCache.open(cacheDir, 44, SLOTS);
+        assertThat(otherCache.getFile()).doesNotExist();
+    }
+
+    @Test
+    void testStopsGrowingAtMaxLoadFactor() {
+        for (int i = 1; i <= SLOTS; i++) {
+            cache.add(NoMatchCache.key(i, i));
+        }
+        cache.flush();
+        int contained = 0;
+        for (int i = 1; i <= SLOTS; i++) {
+            if (cache.contains(NoMatchCache.key(i, i))) {
+                contained++;
+            }
+        }
+        assertThat(contained).isGreaterThan(SLOTS / 2).isLessThanOrEqualTo(SLOTS / 4 * 3);
+    }
+
+    @Test
+    void testFingerprintChangesWithDisabledInstrumentations() {
+        List<ElasticApmInstrumentation> instrumentations = List.of();
+        long fingerprint = NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("disable_instrumentations", ""));
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("disable_instrumentations", ""))).isEqualTo(fingerprint);
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("disable_instrumentations", "jdbc"))).isNotEqualTo(fingerprint);
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.1", instrumentations, getConfiguration("disable_instrumentations", ""))).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    void testFingerprintChangesWithOptionsReadByTypeMatchers() {
+        List<ElasticApmInstrumentation> instrumentations = List.of();
+        long fingerprint = NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("service_name", "foo"));
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("application_packages", "com.example")))
+            .isNotEqualTo(fingerprint);
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("jms_listener_packages", "com.example")))
+            .isNotEqualTo(fingerprint);
+        assertThat(NoMatchCacheFilter.fingerprint("1.0.0", instrumentations, getConfiguration("aws_lambda_handler", "com.example.Handler")))
+            .isNotEqualTo(fingerprint);
+        for (String key : NoMatchCacheFilter.TYPE_MATCHER_OPTIONS) {
+            assertThat(getConfiguration("service_name", "foo").getConfigurationOptionByKey(key)).describedAs(key).isNotNull();
+        }
+    }
+
+    @Test
+    void testFilterSkipsClassesWithoutMatch() throws Exception {
+        InstrumentationStats stats = new InstrumentationStats();
+        NoMatchCacheFilter filter = new NoMatchCacheFilter(cache, stats);
+        ClassLoader classLoader = getClass().getClassLoader();
+
+        simulateTransformation(filter, classLoader);
+        assertThat(stats.getNoMatchCacheHits()).isZero();
+        assertThat(stats.getNoMatchCacheMisses()).isOne();
+        cache.flush();
+
+        simulateTransformation(filter, classLoader);
+        assertThat(stats.getNoMatchCacheHits()).isOne();
+        assertThat(stats.getNoMatchCacheMisses()).isOne();
+        assertThat(stats.getEstimatedNoMatchCacheTimeSaved()).isPositive();
+
+        // the key of a class is only known while it's being transformed
+        assertThat(filter.matches(TYPE, classLoader, null, null, null)).isFalse();
+    }
+
+    private void simulateTransformation(NoMatchCacheFilter filter, ClassLoader classLoader) throws Exception {
+        NoMatchCacheFilter.ClassFileHashRecorder.INSTANCE.transform(classLoader, INTERNAL_NAME, null, null, CLASS_FILE);
+        filter.onDiscovery(TYPE.getName(), classLoader, null, false);
+        Thread.sleep(1);
+        filter.matches(TYPE, classLoader, null, null, null);
+        // Byte Buddy reports a type as ignored if it's skipped by the filter and if no instrumentation matches
+        filter.onIgnored(TYPE, classLoader, null, false);
+        filter.onComplete(TYPE.getName(), classLoader, null, false);
+    }
+
+    private static ConfigurationRegistry getConfiguration(String key, String value) {
+        return ConfigurationRegistry.builder()
+            .addOptionProvider(new CoreConfigurationImpl())
+            .addOptionProvider(new StacktraceConfigurationImpl())
+            .addOptionProvider(new MessagingConfiguration())
+            .addOptionProvider(new ServerlessConfigurationImpl())
+            .addConfigSource(SimpleSource.forTest(key, value))
+            .build();
+    }
+}
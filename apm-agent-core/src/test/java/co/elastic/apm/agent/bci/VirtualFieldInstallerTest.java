@@ -0,0 +1,176 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.bytebuddy.LruTypePoolCache;
+import co.elastic.apm.agent.collections.VirtualFields;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.pool.TypePool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.lang.instrument.Instrumentation;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VirtualFieldInstallerTest {
+
+    private static final String FIELD = "test-field";
+
+    private static Instrumentation instrumentation;
+    private static ResettableClassFileTransformer transformer;
+    private static Object loadedBeforeInstallation;
+
+    @BeforeAll
+    static void install() {
+        loadedBeforeInstallation = new LoadedBeforeInstallation();
+        instrumentation = ByteBuddyAgent.install();
+        transformer = VirtualFieldInstaller.install(instrumentation, Collections.<String, Collection<String>>singletonMap(FIELD,
+            Collections.singletonList(Key.class.getName())), new LruTypePoolCache(TypePool.Default.ReaderMode.FAST));
+        assertThat(transformer).isNotNull();
+    }
+
+    @AfterAll
+    static void reset() {
+        transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.DISABLED);
+    }
+
+    @Test
+    void testVirtualFieldIsAdded() throws Exception {
+        Class<?> holder = Class.forName(VirtualFields.HOLDER_CLASS_NAME, false, null);
+
+        assertThat(holder).isAssignableFrom(defineKeyType("com.example.VirtualFieldKey"));
+        assertThat(holder.isAssignableFrom(defineKeyType("com.example.SerializableVirtualFieldKey", Serializable.class))).isFalse();
+        assertThat(holder.isAssignableFrom(LoadedBeforeInstallation.class)).isFalse();
+        assertThat(holder.isAssignableFrom(defineType("com.example.NoVirtualFieldKey", Object.class))).isFalse();
+    }
+
+    @Test
+    void testVirtualFieldIsAddedToSubTypes() throws Exception {
+        Class<?> holder = Class.forName(VirtualFields.HOLDER_CLASS_NAME, false, null);
+        // the class file of the super type has to be locatable in order to match the sub type
+        Class<?> superType = new ByteBuddy()
+            .subclass(Object.class)
+            .implement(Key.class)
+            .name("com.example.VirtualFieldKeySuperType")
+            .make()
+            .load(VirtualFieldInstallerTest.class.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER_PERSISTENT)
+            .getLoaded();
+
+        // doesn't implement an interface itself
+        assertThat(holder).isAssignableFrom(defineType("com.example.VirtualFieldKeySubType", superType));
+        assertThat(VirtualFieldInstaller.getHolderClassFileLocator().locate(VirtualFields.HOLDER_CLASS_NAME).isResolved()).isTrue();
+    }
+
+    @Test
+    void testValuesAreStoredInVirtualField() throws Exception {
+        WeakMap<Object, String> map = WeakConcurrent.<Object, String>weakMapBuilder().withVirtualField(FIELD).build();
+        Object key = defineKeyType("com.example.StoredVirtualFieldKey").getDeclaredConstructor().newInstance();
+
+        assertThat(map.get(key)).isNull();
+        assertThat(map.putIfAbsent(key, "foo")).isNull();
+        assertThat(map.putIfAbsent(key, "bar")).isEqualTo("foo");
+        assertThat(map.get(key)).isEqualTo("foo");
+        assertThat(map.containsKey(key)).isTrue();
+        // not stored in the fallback map
+        assertThat(map.approximateSize()).isZero();
+
+        assertThat(map.put(key, "bar")).isEqualTo("foo");
+        assertThat(map.remove(key)).isEqualTo("bar");
+        assertThat(map.get(key)).isNull();
+        assertThat(map.containsKey(key)).isFalse();
+    }
+
+    @Test
+    void testFallbackForClassesWithoutVirtualField() throws Exception {
+        WeakMap<Object, String> map = WeakConcurrent.<Object, String>weakMapBuilder().withVirtualField(FIELD).build();
+        Object serializableKey = defineKeyType("com.example.StoredSerializableVirtualFieldKey", Serializable.class).getDeclaredConstructor().newInstance();
+
+        map.put(loadedBeforeInstallation, "foo");
+        map.put(serializableKey, "bar");
+
+        assertThat(map.get(loadedBeforeInstallation)).isEqualTo("foo");
+        assertThat(map.get(serializableKey)).isEqualTo("bar");
+        assertThat(map.approximateSize()).isEqualTo(2);
+    }
+
+    @Test
+    void testDefaultValueSupplier() throws Exception {
+        WeakMap<Object, String> map = WeakConcurrent.<Object, String>weakMapBuilder()
+            .withVirtualField(FIELD)
+            .withDefaultValueSupplier(new WeakMap.DefaultValueSupplier<Object, String>() {
+                @Override
+                public String getDefaultValue(Object key) {
+                    return "default";
+                }
+            })
+            .build();
+        Object key = defineKeyType("com.example.DefaultVirtualFieldKey").getDeclaredConstructor().newInstance();
+
+        assertThat(map.get(key)).isEqualTo("default");
+        assertThat(map.remove(key)).isEqualTo("default");
+    }
+
+    @Test
+    void testUnknownVirtualFieldUsesWeakMap() throws Exception {
+        WeakMap<Object, String> map = WeakConcurrent.<Object, String>weakMapBuilder().withVirtualField("unknown").build();
+        Object key = defineKeyType("com.example.UnknownVirtualFieldKey").getDeclaredConstructor().newInstance();
+
+        map.put(key, "foo");
+        assertThat(map.get(key)).isEqualTo("foo");
+        assertThat(map.approximateSize()).isEqualTo(1);
+    }
+
+    private static Class<?> defineKeyType(String name, Class<?>... interfaces) {
+        return new ByteBuddy()
+            .subclass(Object.class)
+            .implement(Key.class)
+            .implement(interfaces)
+            .name(name)
+            .make()
+            .load(VirtualFieldInstallerTest.class.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+            .getLoaded();
+    }
+
+    private static Class<?> defineType(String name, Class<?> superClass) {
+        return new ByteBuddy()
+            .subclass(superClass)
+            .name(name)
+            .make()
+            .load(superClass == Object.class ? VirtualFieldInstallerTest.class.getClassLoader() : superClass.getClassLoader(),
+                ClassLoadingStrategy.Default.WRAPPER)
+            .getLoaded();
+    }
+
+    public interface Key {
+    }
+
+    public static class LoadedBeforeInstallation implements Key {
+    }
+}
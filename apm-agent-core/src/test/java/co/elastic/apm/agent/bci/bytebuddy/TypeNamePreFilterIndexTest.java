@@ -0,0 +1,161 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilterIndex.PatternKind.CONTAINS;
+import static co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilterIndex.PatternKind.EXACT;
+import static co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilterIndex.PatternKind.PREFIX;
+import static co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilterIndex.PatternKind.RESIDUAL;
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.namedOneOf;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class TypeNamePreFilterIndexTest {
+
+    private static final List<ElementMatcher<? super NamedElement>> PRE_FILTERS = List.of(
+        nameContains("Servlet").or(nameContainsIgnoreCase("jsp")),
+        nameStartsWith("io.grpc").and(nameContains("Channel")),
+        not(nameStartsWith("org.springframework.")),
+        new BooleanMatcher<NamedElement>(false).and(nameContains("HttpClient")),
+        any(),
+        nameEndsWith("ApplicationContext"),
+        nameContains("Filter").or(nameContains("Servlet")).or(nameContains("Listener")),
+        namedOneOf("com.example.Foo", "com.example.Bar"),
+        nameContains("Exec").or(nameContains("Chain")),
+        nameContains("Execut"),
+        nameStartsWith("com.amazonaws.services.").or(named("com.example.Baz"))
+    );
+
+    private static final List<String> TYPE_NAMES = List.of(
+        "com.example.Foo", "com.example.Bar", "com.example.Baz", "com.example.Qux",
+        "org.apache.catalina.servlets.DefaultServlet", "org.apache.jasper.JspServlet", "org.example.MyJSP",
+        "io.grpc.internal.ManagedChannelImpl", "io.grpc.Server", "org.example.ChannelFactory",
+        "org.springframework.web.servlet.DispatcherServlet", "java.net.http.HttpClient",
+        "org.springframework.context.support.GenericApplicationContext", "org.example.ApplicationContextHolder",
+        "org.example.FilterChainProxy", "java.util.concurrent.ThreadPoolExecutor", "org.example.Exe",
+        "com.amazonaws.services.s3.AmazonS3Client", "com.amazonaws.auth.AWSCredentials", ""
+    );
+
+    @Test
+    void testIndexedPreFiltersAreEquivalent() {
+        TypeNamePreFilterIndex index = TypeNamePreFilterIndex.of(PRE_FILTERS);
+        for (String typeName : TYPE_NAMES) {
+            NamedElement type = namedElement(typeName);
+            for (int slot = 0; slot < PRE_FILTERS.size(); slot++) {
+                assertThat(index.getPreFilter(slot).matches(type))
+                    .describedAs("%s on %s", PRE_FILTERS.get(slot), typeName)
+                    .isEqualTo(PRE_FILTERS.get(slot).matches(type));
+            }
+        }
+    }
+
+    @Test
+    void testCandidates() {
+        TypeNamePreFilterIndex index = TypeNamePreFilterIndex.of(PRE_FILTERS);
+
+        NamedElement grpcServer = namedElement("io.grpc.Server");
+        // only the prefix of the conjunction is indexed
+        assertThat(index.isCandidate(grpcServer, 1)).isTrue();
+        assertThat(index.getPreFilter(1).matches(grpcServer)).isFalse();
+
+        NamedElement foo = namedElement("com.example.Foo");
+        assertThat(index.isCandidate(foo, 0)).isFalse();
+        assertThat(index.isCandidate(foo, 2)).isTrue();
+        assertThat(index.isCandidate(foo, 3)).isFalse();
+        assertThat(index.isCandidate(foo, 4)).isTrue();
+        assertThat(index.isCandidate(foo, 7)).isTrue();
+        assertThat(index.isCandidate(foo, 10)).isFalse();
+
+        NamedElement executor = namedElement("java.util.concurrent.ThreadPoolExecutor");
+        assertThat(index.isCandidate(executor, 8)).isTrue();
+        assertThat(index.isCandidate(executor, 9)).isTrue();
+        assertThat(index.isCandidate(executor, 6)).isFalse();
+        // switching back to a previously looked up type
+        assertThat(index.isCandidate(foo, 8)).isFalse();
+    }
+
+    @Test
+    void testEmptyPatternsMatchEveryType() {
+        List<ElementMatcher<? super NamedElement>> preFilters = List.of(
+            nameStartsWith(""),
+            nameEndsWith(""),
+            nameContains(""),
+            nameStartsWith("com.example.").and(nameContains(""))
+        );
+        TypeNamePreFilterIndex index = TypeNamePreFilterIndex.of(preFilters);
+        for (String typeName : TYPE_NAMES) {
+            NamedElement type = namedElement(typeName);
+            for (int slot = 0; slot < preFilters.size(); slot++) {
+                assertThat(index.getPreFilter(slot).matches(type))
+                    .describedAs("%s on %s", preFilters.get(slot), typeName)
+                    .isEqualTo(preFilters.get(slot).matches(type));
+            }
+            assertThat(index.isCandidate(type, 0)).isTrue();
+            assertThat(index.isCandidate(type, 1)).isTrue();
+            assertThat(index.isCandidate(type, 2)).isTrue();
+        }
+    }
+
+    @Test
+    void testTypeDescription() {
+        TypeNamePreFilterIndex index = TypeNamePreFilterIndex.of(List.of(nameEndsWith("PreFilterIndexTest"), nameStartsWith("java.")));
+        assertThat(index.getPreFilter(0).matches(TypeDescription.ForLoadedType.of(TypeNamePreFilterIndexTest.class))).isTrue();
+        assertThat(index.getPreFilter(1).matches(TypeDescription.ForLoadedType.of(TypeNamePreFilterIndexTest.class))).isFalse();
+        assertThat(index.getPreFilter(1).matches(TypeDescription.ForLoadedType.of(String.class))).isTrue();
+    }
+
+    @Test
+    void testAnalyze() {
+        assertThat(TypeNamePreFilterIndex.analyze(any())).isNull();
+        assertThat(TypeNamePreFilterIndex.analyze(none())).isEmpty();
+        assertThat(TypeNamePreFilterIndex.analyze(named("com.example.Foo")))
+            .extracting(pattern -> pattern.kind, pattern -> pattern.value)
+            .containsExactly(tuple(EXACT, "com.example.Foo"));
+        assertThat(TypeNamePreFilterIndex.analyze(nameStartsWith("io.grpc").and(nameContains("Channel"))))
+            .extracting(pattern -> pattern.kind)
+            .containsExactly(PREFIX);
+        assertThat(TypeNamePreFilterIndex.analyze(not(nameStartsWith("io.grpc")).and(nameContains("Channel"))))
+            .extracting(pattern -> pattern.kind)
+            .containsExactly(CONTAINS);
+        assertThat(TypeNamePreFilterIndex.analyze(nameContains("Servlet").or(nameContainsIgnoreCase("jsp"))))
+            .extracting(pattern -> pattern.kind)
+            .containsExactly(CONTAINS, RESIDUAL);
+        assertThat(TypeNamePreFilterIndex.analyze(nameContains("Servlet").or(any()))).isNull();
+    }
+
+    private static NamedElement namedElement(String name) {
+        return () -> name;
+    }
+}
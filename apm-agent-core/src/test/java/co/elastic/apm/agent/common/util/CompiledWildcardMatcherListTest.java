@@ -0,0 +1,138 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompiledWildcardMatcherListTest {
+
+    @Test
+    void testSmallListsAreNotCompiled() {
+        List<WildcardMatcher> matchers = matchers("foo", "*bar", "baz*", "*qux*");
+        assertThat(WildcardMatcher.compile(matchers)).isSameAs(matchers);
+    }
+
+    @Test
+    void testCompiledListIsEqualToSourceList() {
+        List<WildcardMatcher> matchers = matchers("foo", "*bar", "baz*", "*qux*", "a*b*c");
+        List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers);
+        assertThat(compiled).isInstanceOf(CompiledWildcardMatcherList.class);
+        assertThat(compiled).isEqualTo(matchers);
+        assertThat(WildcardMatcher.compile(compiled)).isSameAs(compiled);
+    }
+
+    @Test
+    void testReturnsFirstMatchingMatcher() {
+        List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers("password", "*key", "*token*", "*auth*", "x-*-token", "*"));
+
+        assertThat(WildcardMatcher.anyMatch(compiled, "Password")).hasToString("password");
+        assertThat(WildcardMatcher.anyMatch(compiled, "my-password")).hasToString("*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "X-API-KEY")).hasToString("*key");
+        assertThat(WildcardMatcher.anyMatch(compiled, "x-auth-token")).hasToString("*token*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "Authorization")).hasToString("*auth*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "x-auth-", "token")).hasToString("*token*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "")).hasToString("*");
+        assertThat(WildcardMatcher.anyMatch(compiled, null)).isNull();
+    }
+
+    @Test
+    void testAllMatchersWithoutLiteralPartAreTried() {
+        List<WildcardMatcher> matchers = matchers("", "a", "b", "c", "*");
+        List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers);
+
+        // an empty matcher has no parts and therefore matches anything
+        for (String s : Arrays.asList("", "a", "B", "foo")) {
+            assertThat(WildcardMatcher.anyMatch(compiled, s)).isSameAs(WildcardMatcher.anyMatch(matchers, s)).hasToString("");
+        }
+        compiled = WildcardMatcher.compile(matchers("a", "b", "c", "", "*"));
+        assertThat(WildcardMatcher.anyMatch(compiled, "B")).hasToString("b");
+        assertThat(WildcardMatcher.anyMatch(compiled, "foo")).hasToString("");
+        compiled = WildcardMatcher.compile(matchers("a", "b", "c", "*", ""));
+        assertThat(WildcardMatcher.anyMatch(compiled, "foo")).hasToString("*");
+    }
+
+    @Test
+    void testCaseSensitiveMatchers() {
+        List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers("(?-i)*Token*", "(?-i)Foo", "(?-i)bar*", "*baz", "qux"));
+
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "x-Token")).isTrue();
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "x-token")).isFalse();
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "Foo")).isTrue();
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "FOO")).isFalse();
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "BAR")).isFalse();
+        assertThat(WildcardMatcher.isAnyMatch(compiled, "FOOBAZ")).isTrue();
+    }
+
+    @Test
+    void testNonAsciiCharacters() {
+        List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers("*äöü*", "straße", "*ünïcödé", "foo", "bar"));
+
+        assertThat(WildcardMatcher.anyMatch(compiled, "xÄÖÜx")).hasToString("*äöü*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "STRAßE")).hasToString("straße");
+        assertThat(WildcardMatcher.anyMatch(compiled, "some ÜNÏCÖDÉ")).hasToString("*ünïcödé");
+    }
+
+    @Test
+    void testSameResultAsMatchersTriedInTurn() {
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            List<WildcardMatcher> matchers = new ArrayList<>();
+            int size = WildcardMatcher.MIN_COMPILED_SIZE + random.nextInt(10);
+            for (int i = 0; i < size; i++) {
+                String matcher = randomString(random, "abAB**-ä", 6);
+                matchers.add(WildcardMatcher.valueOf(random.nextInt(4) == 0 ? "(?-i)" + matcher : matcher));
+            }
+            List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers);
+            for (int i = 0; i < 50; i++) {
+                String s = randomString(random, "abAB-Ä", 10);
+                int split = random.nextInt(s.length() + 1);
+                assertThat(WildcardMatcher.anyMatch(compiled, s))
+                    .describedAs("%s matching '%s'", matchers, s)
+                    .isSameAs(WildcardMatcher.anyMatch(matchers, s));
+                assertThat(WildcardMatcher.anyMatch(compiled, s.substring(0, split), s.substring(split)))
+                    .describedAs("%s matching '%s' split at %d", matchers, s, split)
+                    .isSameAs(WildcardMatcher.anyMatch(matchers, s.substring(0, split), s.substring(split)));
+            }
+        }
+    }
+
+    private static List<WildcardMatcher> matchers(String... matchers) {
+        List<WildcardMatcher> result = new ArrayList<>();
+        for (String matcher : Arrays.asList(matchers)) {
+            result.add(WildcardMatcher.valueOf(matcher));
+        }
+        return result;
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
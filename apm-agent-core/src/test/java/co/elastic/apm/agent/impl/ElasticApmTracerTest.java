@@ -28,6 +28,7 @@ import co.elastic.apm.agent.tracer.service.ServiceInfo;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.configuration.source.ConfigSources;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
+import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
 import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
@@ -161,7 +162,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNull();
     }
 
     @Test
@@ -176,15 +177,16 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        Throwable stackTrace = reporter.getFirstSpan().getStacktrace();
-        assertThat(stackTrace).isNotNull();
-        assertThat(Arrays.stream(stackTrace.getStackTrace()).filter(stackTraceElement ->
-            stackTraceElement.getMethodName().equals("stackTraceEndSpan")
-                && stackTraceElement.getClassName().equals(ElasticApmTracerTest.class.getName()))).hasSize(1);
+        StackTraceElement[] stackTrace = reporter.getFirstSpan().getStackTraceElements();
+        assertThat(stackTrace).isNotEmpty();
+        // the top most agent frames, which includes the frames of this test class, are skipped when capturing the stack trace
+        assertThat(stackTrace[0].getClassName()).doesNotStartWith("co.elastic.apm");
+        assertThat(stackTrace).hasSizeLessThanOrEqualTo(tracerImpl.getConfig(StacktraceConfigurationImpl.class).getStackTraceLimit());
+        assertThat(Arrays.stream(stackTrace).filter(stackTraceElement -> stackTraceElement.getMethodName().equals("stackTraceEndSpan"))).isEmpty();
     }
 
     private static void stackTraceEndSpan(SpanImpl span) {
-        // dummy method used just to verify that the captured stack trace contains it
+        // dummy method used just to verify that the top most agent frames are not part of the captured stack trace
         span.end();
     }
 
@@ -199,7 +201,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNull();
 
     }
 
@@ -215,7 +217,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNotNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNotNull();
     }
 
     @Nullable
@@ -529,6 +531,64 @@ class ElasticApmTracerTest {
         assertThat(reporter.getSpans()).hasSize(0);
     }
 
+    @Test
+    void testSampledChildTransactionWithParentReference() throws Exception {
+        Map<String, String> sampledParent = Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+        Map<String, String> unsampledParent = Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-00");
+        config.getConfig(CoreConfigurationImpl.class).getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+
+        // propagates the upstream context without being reported
+        TransactionImpl unsampled = tracerImpl.startSampledChildTransaction(unsampledParent, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(unsampled).isNotNull();
+        assertThat(unsampled.isSampled()).isFalse();
+        assertThat(unsampled.isNoop()).isTrue();
+        assertThat(unsampled.getTraceContext().getTraceId().toString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(unsampled.getTraceContext().getParentId().toString()).isEqualTo("b9c7c989f97918e1");
+        unsampled.end();
+        assertThat(reporter.getTransactions()).isEmpty();
+
+        TransactionImpl transaction = tracerImpl.startSampledChildTransaction(sampledParent, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(transaction).isNotNull();
+        assertThat(transaction.isSampled()).isTrue();
+        assertThat(transaction.getTraceContext().getParentId().toString()).isEqualTo("b9c7c989f97918e1");
+        transaction.end();
+        assertThat(reporter.getTransactions()).hasSize(1);
+    }
+
+    @Test
+    void testSampledChildTransactionWithoutParentReference() throws Exception {
+        CoreConfigurationImpl coreConfig = config.getConfig(CoreConfigurationImpl.class);
+
+        coreConfig.getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+        for (int i = 0; i < 100; i++) {
+            assertThat(tracerImpl.startSampledChildTransaction(new HashMap<>(), TextHeaderMapAccessor.INSTANCE, null)).isNull();
+        }
+        // the baggage is propagated even if the transaction is not sampled
+        TransactionImpl unsampled = tracerImpl.startSampledChildTransaction(Map.of(W3CBaggagePropagation.BAGGAGE_HEADER_NAME, "foo=bar"),
+            TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(unsampled).isNotNull();
+        assertThat(unsampled.isSampled()).isFalse();
+        assertThat(unsampled.isNoop()).isTrue();
+        assertThat(unsampled.getBaggage().get("foo")).isEqualTo("bar");
+        unsampled.end();
+        assertThat(reporter.getTransactions()).isEmpty();
+
+        coreConfig.getSampleRate().update(0.25, SpyConfiguration.CONFIG_SOURCE_NAME);
+        int sampled = 0;
+        for (int i = 0; i < 4000; i++) {
+            TransactionImpl transaction = tracerImpl.startSampledChildTransaction(new HashMap<>(), TextHeaderMapAccessor.INSTANCE, null);
+            if (transaction != null) {
+                assertThat(transaction.isSampled()).isTrue();
+                // the sample rate is used to extrapolate metrics, it must not be 1 just because the decision was made upfront
+                assertThat(transaction.getTraceContext().getSampleRate()).isEqualTo(0.25);
+                transaction.end();
+                sampled++;
+            }
+        }
+        assertThat(sampled).isBetween(800, 1200);
+        assertThat(reporter.getTransactions()).hasSize(sampled);
+    }
+
     @Test
     void testTimestamps() {
         final TransactionImpl transaction = tracerImpl.startChildTransaction(new HashMap<>(), TextHeaderMapAccessor.INSTANCE, ConstantSampler.of(true), 0, null);
@@ -27,6 +27,7 @@ import co.elastic.apm.agent.impl.transaction.AbstractSpanImpl;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.tracer.metrics.Labels;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import org.junit.jupiter.api.AfterEach;
@@ -375,12 +376,62 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testDurationHistograms() {
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("duration_histograms", "true")));
+        final TransactionImpl transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram transactionDuration = getHistogram(metricSets, "transaction.duration", null, null);
+            assertThat(transactionDuration.getTotalCount()).isEqualTo(1);
+            assertThat(transactionDuration.getCount(Histogram.getBucketIndex(30))).isEqualTo(1);
+            Histogram spanDuration = getHistogram(metricSets, "span.duration", "db", "mysql");
+            assertThat(spanDuration.getTotalCount()).isEqualTo(1);
+            assertThat(spanDuration.getCount(Histogram.getBucketIndex(10))).isEqualTo(1);
+        });
+    }
+
+    @Test
+    void testDurationHistograms_unsampled() {
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("duration_histograms", "true")));
+        tracer.startRootTransaction(ConstantSampler.of(false), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request")
+            .end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets ->
+            assertThat(getHistogram(metricSets, "transaction.duration", null, null).getTotalCount()).isEqualTo(1));
+    }
+
+    @Test
+    void testDurationHistograms_disabledByDefault() {
+        createTransaction().end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets ->
+            assertThat(getHistogram(metricSets, "transaction.duration", null, null)).isNull());
+    }
+
     private TransactionImpl createTransaction() {
         return tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
             .withName("test")
             .withType("request");
     }
 
+    @Nullable
+    private Histogram getHistogram(Map<? extends Labels, MetricSet> metricSets, String histogramName, @Nullable String spanType, @Nullable String spanSubType) {
+        final MetricSet metricSet = metricSets.get(Labels.Mutable.of()
+            .transactionName("test")
+            .transactionType("request")
+            .spanType(spanType)
+            .spanSubType(spanSubType));
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.getHistograms().get(histogramName);
+    }
+
     @Nullable
     private Timer getTimer(Map<? extends Labels, MetricSet> metricSets, String timerName, @Nullable String spanType, @Nullable String spanSubType) {
         return getTimer(metricSets, timerName, null, null, spanType, spanSubType);
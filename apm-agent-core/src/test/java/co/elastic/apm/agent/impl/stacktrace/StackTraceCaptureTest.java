@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceCaptureTest {
+
+    @Test
+    void testStackWalkerAvailable() {
+        assertThat(StackTraceCapture.isStackWalkerAvailable()).isTrue();
+    }
+
+    @Test
+    void testMaxDepth() {
+        StackTraceElement[] stackTrace = StackTraceCapture.capture(5);
+        assertThat(stackTrace).hasSize(5);
+        // the frames of this test are skipped as they are in the co.elastic.apm package
+        assertThat(stackTrace[0].getClassName()).doesNotStartWith("co.elastic.apm");
+        assertThat(Arrays.stream(stackTrace).filter(frame -> StackTraceCapture.isExcluded(frame.getClassName(), frame.getFileName()))).isEmpty();
+    }
+
+    @Test
+    void testZeroMaxDepth() {
+        assertThat(StackTraceCapture.capture(0)).isEmpty();
+    }
+
+    @Test
+    void testUnlimitedDepth() {
+        StackTraceElement[] stackTrace = StackTraceCapture.capture(-1);
+        assertThat(stackTrace).isNotNull();
+        assertThat(Arrays.stream(stackTrace).filter(frame -> frame.getClassName().startsWith("org.junit."))).isNotEmpty();
+        assertThat(Arrays.stream(stackTrace).filter(frame -> StackTraceCapture.isExcluded(frame.getClassName(), frame.getFileName()))).isEmpty();
+    }
+
+    @Test
+    void testExcluded() {
+        assertThat(StackTraceCapture.isExcluded("com.example.Foo", null)).isTrue();
+        assertThat(StackTraceCapture.isExcluded("jdk.internal.reflect.NativeMethodAccessorImpl", "NativeMethodAccessorImpl.java")).isTrue();
+        assertThat(StackTraceCapture.isExcluded("java.lang.reflect.Method", "Method.java")).isTrue();
+        assertThat(StackTraceCapture.isExcluded("com.example.Foo", "Foo.java")).isFalse();
+    }
+}
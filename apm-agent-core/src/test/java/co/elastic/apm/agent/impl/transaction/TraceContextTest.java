@@ -197,6 +197,23 @@ class TraceContextTest {
         assertThat(copy.get(TraceContextImpl.TRACESTATE_HEADER_NAME)).isNotNull();
     }
 
+    @Test
+    void testIsParentSampled() {
+        String sampled = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01";
+        String notSampled = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-00";
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, sampled), TextHeaderMapAccessor.INSTANCE)).isTrue();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, notSampled), TextHeaderMapAccessor.INSTANCE)).isFalse();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, sampled), TextHeaderMapAccessor.INSTANCE)).isTrue();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(
+            TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, notSampled,
+            TraceContextImpl.ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, sampled), TextHeaderMapAccessor.INSTANCE)).isFalse();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, sampled), Utf8HeaderMapAccessor.INSTANCE)).isTrue();
+
+        assertThat(TraceContextImpl.isParentSampled(Map.<String, String>of(), TextHeaderMapAccessor.INSTANCE)).isNull();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1"), TextHeaderMapAccessor.INSTANCE)).isNull();
+        assertThat(TraceContextImpl.isParentSampled(Map.of(TraceContextImpl.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-zz"), TextHeaderMapAccessor.INSTANCE)).isNull();
+    }
+
     @Test
     void testTracestateHeader() {
         PotentiallyMultiValuedMap incomingHeaders = new PotentiallyMultiValuedMap();
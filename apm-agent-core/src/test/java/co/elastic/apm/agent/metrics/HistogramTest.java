@@ -0,0 +1,117 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    void testSmallValuesHaveTheirOwnBucket() {
+        for (int i = 0; i < 8; i++) {
+            assertThat(Histogram.getBucketIndex(i)).isEqualTo(i);
+            assertThat(Histogram.getBucketValue(i)).isEqualTo(i);
+        }
+        assertThat(Histogram.getBucketIndex(-1)).isZero();
+    }
+
+    @Test
+    void testBucketIndicesAreContiguous() {
+        int previousIndex = 0;
+        for (long value = 1; value < 1 << 16; value++) {
+            int index = Histogram.getBucketIndex(value);
+            assertThat(index - previousIndex).isBetween(0, 1);
+            assertThat(Histogram.getBucketLowerBound(index)).isLessThanOrEqualTo(value);
+            previousIndex = index;
+        }
+    }
+
+    @Test
+    void testRelativeError() {
+        for (long value = 1; value < Histogram.getHighestTrackableValue(); value = value * 3 + 1) {
+            double bucketValue = Histogram.getBucketValue(Histogram.getBucketIndex(value));
+            assertThat(bucketValue).isCloseTo(value, within(value * 0.0625));
+        }
+    }
+
+    @Test
+    void testValuesAboveHighestTrackableValueAreClamped() {
+        assertThat(Histogram.getBucketIndex(Histogram.getHighestTrackableValue())).isEqualTo(Histogram.getBucketCount() - 1);
+        assertThat(Histogram.getBucketIndex(Long.MAX_VALUE)).isEqualTo(Histogram.getBucketCount() - 1);
+    }
+
+    @Test
+    void testRecordAndReset() {
+        assertThat(histogram.hasContent()).isFalse();
+        histogram.recordValue(42);
+        histogram.recordValue(42);
+        histogram.recordValue(1_000_000);
+
+        assertThat(histogram.hasContent()).isTrue();
+        assertThat(histogram.getTotalCount()).isEqualTo(3);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isEqualTo(2);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(1_000_000))).isEqualTo(1);
+
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            assertThat(histogram.getCount(i)).isZero();
+        }
+    }
+
+    @Test
+    void testConcurrentRecording() throws Exception {
+        int threads = 4;
+        int valuesPerThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < valuesPerThread; i++) {
+                        histogram.recordValue(i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(histogram.getTotalCount()).isEqualTo(threads * valuesPerThread);
+        long sum = 0;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            sum += histogram.getCount(i);
+        }
+        assertThat(sum).isEqualTo(threads * valuesPerThread);
+    }
+}
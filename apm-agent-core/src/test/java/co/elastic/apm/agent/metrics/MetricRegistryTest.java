@@ -103,6 +103,25 @@ class MetricRegistryTest {
         assertThat(timer.getTotalTimeUs()).isEqualTo(expectedTotalDurationUs);
     }
 
+    @Test
+    void testManyTimersPerMetricSet() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
+        for (int i = 0; i < 10; i++) {
+            String timerName = "timer" + i;
+            metricRegistry.updateTimer(timerName, labels, i);
+            // a different String instance with the same content
+            metricRegistry.updateTimer(new String(timerName), labels, i);
+        }
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            Map<String, Timer> timers = metricSets.get(labels).getTimers();
+            assertThat(timers).hasSize(10);
+            for (int i = 0; i < 10; i++) {
+                assertThat(timers.get("timer" + i).getCount()).isEqualTo(2);
+                assertThat(timers.get("timer" + i).getTotalTimeUs()).isEqualTo(2 * i);
+            }
+        });
+    }
+
     @Test
     void testCounterResetWithReporting() {
         Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetricSetTableTest {
+
+    private final MetricSetTable table = new MetricSetTable(1000);
+
+    @Test
+    void testLookupWithMutableAndImmutableLabels() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar")
+            .transactionName(new StringBuilder("GET /"))
+            .transactionType("request")
+            .spanType("db");
+        assertThat(table.get(labels)).isNull();
+
+        MetricSet metricSet = table.putIfAbsent(new MetricSet(labels.immutableCopy()));
+        assertThat(metricSet).isNotNull();
+        assertThat(table.get(labels)).isSameAs(metricSet);
+        assertThat(table.get(labels.immutableCopy())).isSameAs(metricSet);
+        assertThat(table.get(Labels.Mutable.of("foo", "bar"))).isNull();
+        assertThat(table).hasSize(1);
+    }
+
+    @Test
+    void testPutIfAbsentReturnsExistingMetricSet() {
+        Labels.Immutable labels = Labels.Mutable.of("foo", "bar").immutableCopy();
+        MetricSet metricSet = table.putIfAbsent(new MetricSet(labels));
+
+        assertThat(table.putIfAbsent(new MetricSet(labels))).isSameAs(metricSet);
+        assertThat(table).hasSize(1);
+    }
+
+    @Test
+    void testFingerprintDistinguishesLabels() {
+        assertThat(MetricSetTable.fingerprint(Labels.Mutable.of("ab", "c")))
+            .isNotEqualTo(MetricSetTable.fingerprint(Labels.Mutable.of("a", "bc")));
+        assertThat(MetricSetTable.fingerprint(Labels.Mutable.of().spanType("")))
+            .isNotEqualTo(MetricSetTable.fingerprint(Labels.EMPTY));
+        assertThat(MetricSetTable.fingerprint(Labels.Mutable.of().spanType("db")))
+            .isNotEqualTo(MetricSetTable.fingerprint(Labels.Mutable.of().spanSubType("db")));
+        assertThat(MetricSetTable.fingerprint(Labels.Mutable.of().transactionName(new StringBuilder("foo"))))
+            .isEqualTo(MetricSetTable.fingerprint(Labels.Mutable.of().transactionName("foo")));
+    }
+
+    @Test
+    void testIterateEntries() {
+        for (int i = 0; i < 100; i++) {
+            table.putIfAbsent(new MetricSet(Labels.Mutable.of("foo", Integer.toString(i)).immutableCopy()));
+        }
+        int count = 0;
+        for (Map.Entry<Labels.Immutable, MetricSet> entry : table.entrySet()) {
+            assertThat(entry.getValue().getLabels()).isSameAs(entry.getKey());
+            assertThat(table.get(entry.getKey())).isSameAs(entry.getValue());
+            count++;
+        }
+        assertThat(count).isEqualTo(100);
+        assertThat(table.values()).hasSize(100);
+    }
+
+    @Test
+    void testFullTable() {
+        MetricSetTable smallTable = new MetricSetTable(1);
+        int capacity = 0;
+        while (smallTable.putIfAbsent(new MetricSet(Labels.Mutable.of("foo", Integer.toString(capacity)).immutableCopy())) != null) {
+            capacity++;
+        }
+        assertThat(capacity).isGreaterThanOrEqualTo(2);
+        assertThat(smallTable).hasSize(capacity);
+        assertThat(smallTable.get(Labels.Mutable.of("foo", "not-there"))).isNull();
+    }
+
+    @Test
+    void testConcurrentInsertion() throws Exception {
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < 500; i++) {
+                        Labels.Mutable labels = Labels.Mutable.of("foo", Integer.toString(i));
+                        MetricSet metricSet = table.get(labels);
+                        if (metricSet == null) {
+                            metricSet = table.putIfAbsent(new MetricSet(labels.immutableCopy()));
+                        }
+                        metricSet.timer("timer").update(1);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(table).hasSize(500);
+        for (MetricSet metricSet : table.values()) {
+            assertThat(metricSet.getTimers().get("timer").getCount()).isEqualTo(threads);
+        }
+    }
+}
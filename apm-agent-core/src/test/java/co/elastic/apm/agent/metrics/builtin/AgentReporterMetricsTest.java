@@ -121,6 +121,28 @@ public class AgentReporterMetricsTest {
     }
 
 
+    @Test
+    public void checkShedEventCount() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+
+        for (int i = 0; i < 3; i++) {
+            reporterMetrics.eventShed(ReportingEvent.ReportingEventType.SPAN, 10);
+        }
+        reporterMetrics.eventShed(ReportingEvent.ReportingEventType.STRING_LOG, 10);
+        reporterMetrics.eventShed(ReportingEvent.ReportingEventType.BYTES_LOG, 10);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("reason", "shed").add("event_type", "span")).getCounters())
+                .extractingByKey("agent.events.dropped")
+                .satisfies(counter -> assertThat(counter).hasValue(3));
+            assertThat(metricSets.get(Labels.Mutable.of("reason", "shed").add("event_type", "log")).getCounters())
+                .extractingByKey("agent.events.dropped")
+                .satisfies(counter -> assertThat(counter).hasValue(2));
+        });
+    }
+
+
     @Test
     public void checkDroppedEventCount() {
         doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
@@ -237,6 +259,52 @@ public class AgentReporterMetricsTest {
 
     }
 
+    @Test
+    public void checkLogsQueueMetrics() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+
+        reporterMetrics.eventCreated(ReportingEvent.ReportingEventType.TRANSACTION, 10, 1);
+        reporterMetrics.logEventCreated(100, 20);
+        reporterMetrics.logEventCreated(100, 60);
+        reporterMetrics.logEventDroppedBeforeQueue(100);
+        reporterMetrics.logEventDequeued(100, 40);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("event_type", "log")).getCounters())
+                .extractingByKey("agent.events.total")
+                .satisfies(counter -> assertThat(counter).hasValue(2));
+            assertThat(metricSets.get(Labels.Mutable.of("reason", "queue").add("queue_name", "logs")).getCounters())
+                .extractingByKey("agent.events.dropped")
+                .satisfies(counter -> assertThat(counter).hasValue(1));
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "logs")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 1.0);
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "generic")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 0.1);
+        });
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "logs")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.4)
+                .containsEntry("agent.events.queue.max_size.pct", 0.4);
+        });
+    }
+
+    @Test
+    public void checkLogsQueueNotReportedIfUnused() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+
+        reporterMetrics.eventCreated(ReportingEvent.ReportingEventType.STRING_LOG, 10, 1);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets).containsKey(Labels.Mutable.of("queue_name", "generic"));
+            assertThat(metricSets).doesNotContainKey(Labels.Mutable.of("queue_name", "logs"));
+        });
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
         "agent.events.total",
@@ -0,0 +1,143 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.objectpool.ObservableObjectPool;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class ObjectPoolMetricsTest {
+
+    private static final Labels TRANSACTION_POOL = Labels.Mutable.of("pool", "transaction");
+    private static final Labels SPAN_POOL = Labels.Mutable.of("pool", "span");
+
+    private ConfigurationRegistry config;
+    private ElasticApmTracer tracer;
+    private MetricRegistry metricRegistry;
+    private ReporterConfigurationImpl reporterConfig;
+    private MetricsConfigurationImpl metricsConfig;
+    private final ObjectPoolFactoryImpl objectPoolFactory = new ObjectPoolFactoryImpl();
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig();
+        tracer = MockTracer.create(config);
+        reporterConfig = config.getConfig(ReporterConfigurationImpl.class);
+        metricsConfig = config.getConfig(MetricsConfigurationImpl.class);
+        metricRegistry = new MetricRegistry(reporterConfig, metricsConfig);
+    }
+
+    @Test
+    void testPoolMetrics() {
+        doReturn(true).when(metricsConfig).isOverheadMetricsEnabled();
+        ObservableObjectPool<TransactionImpl> transactionPool = objectPoolFactory.createTransactionPool(2, tracer);
+        objectPoolFactory.createSpanPool(16, tracer);
+        new ObjectPoolMetrics().bindTo(metricRegistry, metricsConfig, objectPoolFactory);
+
+        TransactionImpl first = transactionPool.createInstance();
+        TransactionImpl second = transactionPool.createInstance();
+        TransactionImpl third = transactionPool.createInstance();
+        transactionPool.recycle(first);
+        transactionPool.recycle(second);
+        transactionPool.recycle(third);
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(TRANSACTION_POOL).getRawMetrics())
+                .containsEntry("agent.objectpool.objects", 2.0)
+                .containsEntry("agent.objectpool.discarded", 1.0)
+                .doesNotContainKey("agent.objectpool.capacity");
+            assertThat(metrics.get(SPAN_POOL).getRawMetrics())
+                .containsEntry("agent.objectpool.objects", 0.0)
+                .containsEntry("agent.objectpool.discarded", 0.0);
+        });
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(TRANSACTION_POOL).getRawMetrics())
+            .containsEntry("agent.objectpool.discarded", 0.0));
+    }
+
+    @Test
+    void testAdaptivePoolMetrics() {
+        doReturn(true).when(metricsConfig).isOverheadMetricsEnabled();
+        doReturn(true).when(config.getConfig(CoreConfigurationImpl.class)).isAdaptiveObjectPools();
+        ObservableObjectPool<SpanImpl> spanPool = objectPoolFactory.createSpanPool(256, tracer);
+        new ObjectPoolMetrics().bindTo(metricRegistry, metricsConfig, objectPoolFactory);
+
+        SpanImpl span = spanPool.createInstance();
+        spanPool.createInstance();
+        spanPool.recycle(span);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(SPAN_POOL).getRawMetrics())
+            .containsEntry("agent.objectpool.objects", 1.0)
+            .containsEntry("agent.objectpool.discarded", 0.0)
+            .containsEntry("agent.objectpool.allocations", 2.0)
+            .containsKey("agent.objectpool.capacity"));
+
+        spanPool.createInstance();
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(SPAN_POOL).getRawMetrics())
+            .containsEntry("agent.objectpool.objects", 0.0)
+            .containsEntry("agent.objectpool.allocations", 0.0));
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        objectPoolFactory.createTransactionPool(16, tracer);
+        new ObjectPoolMetrics().bindTo(metricRegistry, metricsConfig, objectPoolFactory);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics).doesNotContainKey(TRANSACTION_POOL));
+    }
+
+    @Test
+    void testDisableMetric() {
+        doReturn(List.of(WildcardMatcher.valueOf("agent.objectpool.discarded"))).when(reporterConfig).getDisableMetrics();
+        doReturn(true).when(metricsConfig).isOverheadMetricsEnabled();
+        objectPoolFactory.createTransactionPool(16, tracer);
+        new ObjectPoolMetrics().bindTo(metricRegistry, metricsConfig, objectPoolFactory);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(TRANSACTION_POOL).getRawMetrics())
+            .containsKey("agent.objectpool.objects")
+            .doesNotContainKey("agent.objectpool.discarded"));
+    }
+
+    private void reportAndCheckMetrics(Consumer<Map<Labels, MetricSet>> assertions) {
+        metricRegistry.flipPhaseAndReport(metrics -> assertions.accept(new HashMap<>(metrics)));
+    }
+}
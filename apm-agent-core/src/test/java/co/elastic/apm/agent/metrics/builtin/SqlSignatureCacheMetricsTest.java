@@ -0,0 +1,120 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.sdk.internal.db.signature.Scanner;
+import co.elastic.apm.agent.sdk.internal.db.signature.SignatureParser;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+class SqlSignatureCacheMetricsTest {
+
+    private MetricRegistry metricRegistry;
+    private ReporterConfigurationImpl spyReporterConfig;
+    private MetricsConfigurationImpl spyMetricsConfig;
+    private final SignatureParser signatureParser = new SignatureParser();
+
+    @BeforeEach
+    void setUp() {
+        spyReporterConfig = spy(ReporterConfigurationImpl.class);
+        spyMetricsConfig = spy(MetricsConfigurationImpl.class);
+        metricRegistry = new MetricRegistry(spyReporterConfig, spyMetricsConfig);
+    }
+
+    @Test
+    void testHitsAndMissesAreReportedAsDeltas() {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        new SqlSignatureCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        querySignature("SELECT * FROM foo WHERE id = 1");
+        querySignature("SELECT * FROM foo WHERE id = 2");
+        querySignature("SELECT * FROM foo WHERE id = 3");
+        querySignature("SELECT * FROM bar");
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+            .containsEntry("agent.sql.signature_cache.hits", 2.0)
+            .containsEntry("agent.sql.signature_cache.misses", 2.0)
+            .containsEntry("agent.sql.signature_cache.evictions", 0.0));
+
+        querySignature("SELECT * FROM bar");
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+            .containsEntry("agent.sql.signature_cache.hits", 1.0)
+            .containsEntry("agent.sql.signature_cache.misses", 0.0));
+    }
+
+    @Test
+    void testEvictionsAreReported() {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        new SqlSignatureCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        // a cache which can only hold a single entry
+        SignatureParser smallCacheParser = new SignatureParser(Scanner::new, 200);
+        smallCacheParser.querySignature("SELECT * FROM foo", new StringBuilder(), false);
+        smallCacheParser.querySignature("SELECT * FROM bar", new StringBuilder(), false);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+            .containsEntry("agent.sql.signature_cache.evictions", 1.0));
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        new SqlSignatureCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        querySignature("SELECT * FROM foo");
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics).doesNotContainKey(Labels.EMPTY));
+    }
+
+    @Test
+    void testDisableMetric() {
+        doReturn(List.of(WildcardMatcher.valueOf("agent.sql.signature_cache.evictions"))).when(spyReporterConfig).getDisableMetrics();
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        new SqlSignatureCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        querySignature("SELECT * FROM foo");
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+            .containsKey("agent.sql.signature_cache.misses")
+            .doesNotContainKey("agent.sql.signature_cache.evictions"));
+    }
+
+    private void querySignature(String query) {
+        signatureParser.querySignature(query, new StringBuilder(), false);
+    }
+
+    private void reportAndCheckMetrics(Consumer<Map<Labels, MetricSet>> assertions) {
+        metricRegistry.flipPhaseAndReport(metrics -> assertions.accept(new HashMap<>(metrics)));
+    }
+}
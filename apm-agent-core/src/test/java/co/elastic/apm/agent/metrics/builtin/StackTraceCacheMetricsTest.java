@@ -0,0 +1,102 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+class StackTraceCacheMetricsTest {
+
+    private static final Labels STACK_TRACE = Labels.Mutable.of("entry", "stacktrace");
+    private static final Labels FRAME = Labels.Mutable.of("entry", "frame");
+
+    private MetricRegistry metricRegistry;
+    private MetricsConfigurationImpl spyMetricsConfig;
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer.Writer writer;
+
+    @BeforeEach
+    void setUp() {
+        spyMetricsConfig = spy(MetricsConfigurationImpl.class);
+        metricRegistry = new MetricRegistry(spy(ReporterConfigurationImpl.class), spyMetricsConfig);
+        tracer = MockTracer.createRealTracer();
+        writer = new DslJsonSerializer(tracer.getConfigurationRegistry(), mock(ApmServerClient.class), MetaDataMock.create()).newWriter();
+    }
+
+    @Test
+    void testHitsAndMissesAreReportedAsDeltas() {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        new StackTraceCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        ErrorCaptureImpl error = new ErrorCaptureImpl(tracer);
+        error.setException(new Exception());
+        writer.toJsonString(error);
+        writer.toJsonString(error);
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(STACK_TRACE).getRawMetrics())
+                .containsEntry("agent.stacktrace_cache.hits", 1.0)
+                .containsEntry("agent.stacktrace_cache.misses", 1.0);
+            assertThat(metrics.get(FRAME).getRawMetrics().get("agent.stacktrace_cache.misses")).isPositive();
+            assertThat(metrics.get(Labels.EMPTY).getRawMetrics()).containsEntry("agent.stacktrace_cache.evictions", 0.0);
+        });
+
+        writer.toJsonString(error);
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(STACK_TRACE).getRawMetrics())
+                .containsEntry("agent.stacktrace_cache.hits", 1.0)
+                .containsEntry("agent.stacktrace_cache.misses", 0.0);
+            assertThat(metrics.get(FRAME).getRawMetrics())
+                .containsEntry("agent.stacktrace_cache.hits", 0.0)
+                .containsEntry("agent.stacktrace_cache.misses", 0.0);
+        });
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        new StackTraceCacheMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics).isEmpty());
+    }
+
+    private void reportAndCheckMetrics(Consumer<Map<Labels, MetricSet>> assertions) {
+        metricRegistry.flipPhaseAndReport(metrics -> assertions.accept(new HashMap<>(metrics)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.report.TailSamplingReporter;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+class TailSamplingMetricsTest {
+
+    private static final Labels KEEP = Labels.Mutable.of("decision", "keep");
+    private static final Labels DISCARD = Labels.Mutable.of("decision", "discard");
+
+    private MetricRegistry metricRegistry;
+    private TailSamplingReporter reporter;
+
+    @BeforeEach
+    void setUp() {
+        metricRegistry = new MetricRegistry(spy(ReporterConfigurationImpl.class), spy(MetricsConfigurationImpl.class));
+        reporter = mock(TailSamplingReporter.class);
+        doReturn(1024L * 1024).when(reporter).getMaxBufferSize();
+    }
+
+    @Test
+    void testMetricsAreReportedAsDeltas() {
+        new TailSamplingMetrics().bindTo(metricRegistry, reporter);
+
+        doReturn(4096L).when(reporter).getBufferSize();
+        doReturn(1L).when(reporter).getKeptTransactions();
+        doReturn(3L).when(reporter).getDiscardedTransactions();
+        doReturn(2_000_000L).when(reporter).getDecisionNanos();
+        doReturn(5L).when(reporter).getDroppedSpans();
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+                .containsEntry("agent.tail_sampling.buffer.bytes", 4096.0)
+                .containsEntry("agent.tail_sampling.buffer.limit.bytes", 1024.0 * 1024)
+                .containsEntry("agent.tail_sampling.decision.time.sum.us", 2000.0)
+                .containsEntry("agent.tail_sampling.keep_rate", 0.25)
+                .containsEntry("agent.tail_sampling.spans.dropped", 5.0);
+            assertThat(metrics.get(KEEP).getRawMetrics()).containsEntry("agent.tail_sampling.decisions", 1.0);
+            assertThat(metrics.get(DISCARD).getRawMetrics()).containsEntry("agent.tail_sampling.decisions", 3.0);
+        });
+
+        doReturn(2L).when(reporter).getKeptTransactions();
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+                .containsEntry("agent.tail_sampling.decision.time.sum.us", 0.0)
+                .containsEntry("agent.tail_sampling.keep_rate", 1.0)
+                .containsEntry("agent.tail_sampling.spans.dropped", 0.0);
+            assertThat(metrics.get(KEEP).getRawMetrics()).containsEntry("agent.tail_sampling.decisions", 1.0);
+            assertThat(metrics.get(DISCARD).getRawMetrics()).containsEntry("agent.tail_sampling.decisions", 0.0);
+        });
+    }
+
+    @Test
+    void testKeepRateNotReportedWithoutDecisions() {
+        new TailSamplingMetrics().bindTo(metricRegistry, reporter);
+
+        reportAndCheckMetrics(metrics -> assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+            .containsKey("agent.tail_sampling.buffer.bytes")
+            .doesNotContainKey("agent.tail_sampling.keep_rate"));
+    }
+
+    private void reportAndCheckMetrics(Consumer<Map<Labels, MetricSet>> assertions) {
+        metricRegistry.flipPhaseAndReport(metrics -> assertions.accept(new HashMap<>(metrics)));
+    }
+}
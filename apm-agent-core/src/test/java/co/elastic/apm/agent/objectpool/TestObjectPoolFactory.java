@@ -46,7 +46,15 @@ public class TestObjectPoolFactory extends ObjectPoolFactoryImpl {
 
     @Override
     public <T extends Recyclable> ObservableObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        ObservableObjectPool<T> pool = super.createRecyclableObjectPool(maxCapacity, allocator);
+        return track(super.createRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    @Override
+    public <T extends Recyclable> ObservableObjectPool<T> createAdaptiveRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return track(super.createAdaptiveRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    private <T> BookkeeperObjectPool<T> track(ObservableObjectPool<T> pool) {
         BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
         createdPools.add(wrappedPool);
         return wrappedPool;
@@ -0,0 +1,172 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MagazineObjectPoolTest {
+
+    private static final int MAGAZINE_SIZE = 4;
+
+    private MagazineObjectPool<TestRecyclable> pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new MagazineObjectPool<>(16, MAGAZINE_SIZE, TestRecyclable::new, TestRecyclable::resetState);
+    }
+
+    @Test
+    void testRecycledObjectIsReused() {
+        TestRecyclable instance = pool.createInstance();
+        assertThat(pool.getAllocations()).isEqualTo(1);
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+
+        pool.recycle(instance);
+        assertThat(pool.getObjectsInPool()).isEqualTo(1);
+
+        assertThat(pool.createInstance()).isSameAs(instance);
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+        assertThat(pool.getAllocations()).isEqualTo(1);
+        assertThat(pool.getGarbageCreated()).isEqualTo(0);
+    }
+
+    @Test
+    void testRecycledObjectsAreReset() {
+        TestRecyclable instance = pool.createInstance();
+        instance.setState(42);
+        pool.recycle(instance);
+        assertThat(pool.createInstance().getState()).isEqualTo(0);
+    }
+
+    @Test
+    void testObjectsExceedingCapacityAreDiscarded() {
+        List<TestRecyclable> instances = createInstances(20);
+        for (TestRecyclable instance : instances) {
+            pool.recycle(instance);
+        }
+        // two magazines are cached by the current thread, the depot initially retains a single magazine
+        assertThat(pool.getCapacity()).isEqualTo(MAGAZINE_SIZE);
+        assertThat(pool.getObjectsInPool()).isEqualTo(3 * MAGAZINE_SIZE);
+        assertThat(pool.getGarbageCreated()).isEqualTo(20 - 3 * MAGAZINE_SIZE);
+    }
+
+    @Test
+    void testObjectsRecycledOnOtherThreadAreHandedOverViaDepot() throws Exception {
+        List<TestRecyclable> instances = createInstances(3 * MAGAZINE_SIZE);
+        Thread recycler = new Thread(() -> {
+            for (TestRecyclable instance : instances) {
+                pool.recycle(instance);
+            }
+        });
+        recycler.start();
+        recycler.join();
+
+        // the current thread's magazines are empty, so only the depot's objects are counted
+        assertThat(pool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+        for (int i = 0; i < MAGAZINE_SIZE; i++) {
+            assertThat(instances).contains(pool.createInstance());
+        }
+        assertThat(pool.getAllocations()).isEqualTo(3 * MAGAZINE_SIZE);
+
+        assertThat(instances).doesNotContain(pool.createInstance());
+        assertThat(pool.getAllocations()).isEqualTo(3 * MAGAZINE_SIZE + 1);
+    }
+
+    @Test
+    void testClear() {
+        for (TestRecyclable instance : createInstances(3 * MAGAZINE_SIZE)) {
+            pool.recycle(instance);
+        }
+        pool.clear();
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testObjectsCachedByOtherThreadsAreCountedAndCleared() throws Exception {
+        List<TestRecyclable> instances = createInstances(2 * MAGAZINE_SIZE);
+        CountDownLatch recycled = new CountDownLatch(1);
+        CountDownLatch cleared = new CountDownLatch(1);
+        AtomicReference<TestRecyclable> acquiredAfterClear = new AtomicReference<>();
+        Thread worker = new Thread(() -> {
+            for (TestRecyclable instance : instances) {
+                pool.recycle(instance);
+            }
+            recycled.countDown();
+            try {
+                cleared.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            acquiredAfterClear.set(pool.createInstance());
+        });
+        worker.start();
+        recycled.await();
+
+        // the worker's magazines are not handed over to the depot, but they are retained by the pool
+        assertThat(pool.getObjectsInPool()).isEqualTo(2 * MAGAZINE_SIZE);
+
+        pool.clear();
+        assertThat(pool.getObjectsInPool()).isEqualTo(0);
+        cleared.countDown();
+        worker.join();
+        assertThat(instances).doesNotContain(acquiredAfterClear.get());
+    }
+
+    @Test
+    void testCapacityGrowsWhenObjectsAreAllocatedAndDiscarded() {
+        assertThat(MagazineObjectPool.computeCapacity(1, 1, 8, 16, 40, 20, 0, false)).isEqualTo(3);
+        assertThat(MagazineObjectPool.computeCapacity(1, 1, 8, 16, 1, 1, 0, false)).isEqualTo(2);
+        assertThat(MagazineObjectPool.computeCapacity(6, 1, 8, 16, 1000, 1000, 0, false)).isEqualTo(8);
+    }
+
+    @Test
+    void testCapacityDoesNotGrowUnderGcPressure() {
+        assertThat(MagazineObjectPool.computeCapacity(4, 1, 8, 16, 40, 20, 0, true)).isEqualTo(4);
+    }
+
+    @Test
+    void testCapacityIsUnchangedWhenPoolIsSizedRight() {
+        assertThat(MagazineObjectPool.computeCapacity(4, 1, 8, 16, 40, 0, 0, false)).isEqualTo(4);
+        assertThat(MagazineObjectPool.computeCapacity(4, 1, 8, 16, 0, 20, 0, false)).isEqualTo(4);
+    }
+
+    @Test
+    void testIdleMagazinesAreReleased() {
+        assertThat(MagazineObjectPool.computeCapacity(4, 1, 8, 16, 0, 0, 3, false)).isEqualTo(2);
+        assertThat(MagazineObjectPool.computeCapacity(4, 1, 8, 16, 0, 0, 3, true)).isEqualTo(1);
+        assertThat(MagazineObjectPool.computeCapacity(4, 2, 8, 16, 0, 0, 4, true)).isEqualTo(2);
+    }
+
+    private List<TestRecyclable> createInstances(int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(pool.createInstance());
+        }
+        return instances;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.lmax.disruptor.dsl.Disruptor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class ApmServerReporterTest {
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private final ReporterMonitor monitor = Mockito.mock(ReporterMonitor.class);
+    private final BlockedReportingEventHandler handler = new BlockedReportingEventHandler();
+    private ApmServerReporter reporter;
+
+    @AfterEach
+    void tearDown() {
+        handler.unblock.countDown();
+        reporter.close();
+    }
+
+    @Test
+    void testTailDropRejectsEventsOnceQueueIsFull() {
+        startReporter(ReporterConfigurationImpl.QueueSheddingPolicy.TAIL_DROP);
+
+        for (int i = 0; i < 16; i++) {
+            reporter.report(new SpanImpl(tracer));
+        }
+        reporter.report(new TransactionImpl(tracer));
+
+        assertThat(reporter.getDropped(ReportingEvent.ReportingEventType.SPAN)).isZero();
+        assertThat(reporter.getDropped(ReportingEvent.ReportingEventType.TRANSACTION)).isEqualTo(1);
+        verify(monitor, never()).eventShed(Mockito.any(), Mockito.anyLong());
+    }
+
+    @Test
+    void testPriorityReservesCapacityForTransactions() {
+        startReporter(ReporterConfigurationImpl.QueueSheddingPolicy.PRIORITY);
+
+        // a quarter of the queue is reserved, so spans are accepted until 12 slots are taken
+        for (int i = 0; i < 16; i++) {
+            reporter.report(new SpanImpl(tracer));
+        }
+        for (int i = 0; i < 4; i++) {
+            reporter.report(new TransactionImpl(tracer));
+        }
+
+        assertThat(reporter.getDropped(ReportingEvent.ReportingEventType.SPAN)).isEqualTo(3);
+        assertThat(reporter.getDropped(ReportingEvent.ReportingEventType.TRANSACTION)).isEqualTo(1);
+        assertThat(reporter.getDropped()).isEqualTo(4);
+        verify(monitor, times(3)).eventShed(eq(ReportingEvent.ReportingEventType.SPAN), eq(16L));
+        verify(monitor).eventDroppedBeforeQueue(eq(ReportingEvent.ReportingEventType.TRANSACTION), eq(16L));
+    }
+
+    private void startReporter(ReporterConfigurationImpl.QueueSheddingPolicy sheddingPolicy) {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        doReturn(16).when(reporterConfiguration).getMaxQueueSize();
+        doReturn(sheddingPolicy).when(reporterConfiguration).getQueueSheddingPolicy();
+
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+        reporter = new ApmServerReporter(true, reporterConfiguration, coreConfiguration, handler, monitor,
+            apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        reporter.start();
+    }
+
+    /**
+     * Does not handle any event until {@link #unblock} is counted down, so that the reporter's queue fills up
+     */
+    private static class BlockedReportingEventHandler implements ReportingEventHandler {
+
+        private final CountDownLatch unblock = new CountDownLatch(1);
+        private final AtomicLong processed = new AtomicLong(-1);
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
+            unblock.await();
+            event.end();
+            event.resetState();
+            processed.set(sequence);
+        }
+
+        @Override
+        public void init(ApmServerReporter reporter) {
+        }
+
+        @Override
+        public void registerWith(Disruptor<ReportingEvent> disruptor) {
+            disruptor.handleEventsWith(this);
+        }
+
+        @Override
+        public long getReported() {
+            return 0;
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public boolean isProcessed(long sequence) {
+            return processed.get() >= sequence;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ByteRingBufferTest {
+
+    private final List<String> records = new ArrayList<>();
+    private final ByteRingBuffer.RecordHandler recordCollector = (type, buffer, offset, length) ->
+        records.add(type + ":" + new String(buffer, offset, length, StandardCharsets.UTF_8));
+
+    @Test
+    void testRecordsAreReadInOrder() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(1024);
+        offer(ringBuffer, 1, "foo");
+        offer(ringBuffer, 2, "bar");
+
+        assertThat(ringBuffer.read(recordCollector)).isEqualTo(2);
+        assertThat(records).containsExactly("1:foo", "2:bar");
+        assertThat(ringBuffer.size()).isZero();
+        assertThat(ringBuffer.read(recordCollector)).isZero();
+    }
+
+    @Test
+    void testReadIsLimitedToMaxBytes() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(1024);
+        // each record takes up 8 bytes, including the type and the alignment
+        offer(ringBuffer, 1, "foo");
+        offer(ringBuffer, 2, "bar");
+        offer(ringBuffer, 3, "baz");
+
+        assertThat(ringBuffer.read(recordCollector, 9)).isEqualTo(2);
+        assertThat(records).containsExactly("1:foo", "2:bar");
+        assertThat(ringBuffer.size()).isEqualTo(8);
+        assertThat(ringBuffer.read(recordCollector, 1)).isEqualTo(1);
+        assertThat(records).containsExactly("1:foo", "2:bar", "3:baz");
+    }
+
+    @Test
+    void testCapacityIsRoundedDownToPowerOfTwo() {
+        assertThat(new ByteRingBuffer(1000).capacity()).isEqualTo(512);
+        assertThat(new ByteRingBuffer(1024).capacity()).isEqualTo(1024);
+    }
+
+    @Test
+    void testOfferFailsIfFull() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(64);
+        // each record takes up 24 bytes, including the type and the alignment
+        assertThat(offer(ringBuffer, 0, "a".repeat(20))).isTrue();
+        assertThat(offer(ringBuffer, 0, "b".repeat(20))).isTrue();
+        assertThat(offer(ringBuffer, 0, "c".repeat(20))).isFalse();
+        assertThat(ringBuffer.size()).isEqualTo(48);
+
+        ringBuffer.read(recordCollector);
+        assertThat(offer(ringBuffer, 0, "c".repeat(20))).isTrue();
+    }
+
+    @Test
+    void testRecordLargerThanCapacityIsRejected() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(64);
+        assertThat(offer(ringBuffer, 0, "a".repeat(64))).isFalse();
+        assertThat(offer(ringBuffer, 0, "")).isFalse();
+        assertThat(ringBuffer.size()).isZero();
+    }
+
+    @Test
+    void testRecordsWrapAround() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(64);
+        for (int i = 0; i < 10; i++) {
+            String record = Integer.toString(i).repeat(20);
+            assertThat(offer(ringBuffer, i, record)).isTrue();
+            assertThat(offer(ringBuffer, i, record)).isTrue();
+            records.clear();
+            assertThat(ringBuffer.read(recordCollector)).isEqualTo(2);
+            assertThat(records).containsExactly(i + ":" + record, i + ":" + record);
+        }
+        assertThat(ringBuffer.size()).isZero();
+    }
+
+    @Test
+    void testWakeupIsRequestedOncePerRead() {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(1024);
+        offer(ringBuffer, 0, "foo");
+        assertThat(ringBuffer.requestWakeup()).isTrue();
+        offer(ringBuffer, 0, "bar");
+        assertThat(ringBuffer.requestWakeup()).isFalse();
+
+        ringBuffer.read(recordCollector);
+        offer(ringBuffer, 0, "baz");
+        assertThat(ringBuffer.requestWakeup()).isTrue();
+    }
+
+    @Test
+    void testConcurrentWriters() throws Exception {
+        ByteRingBuffer ringBuffer = new ByteRingBuffer(4096);
+        int writers = 4;
+        int recordsPerWriter = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            byte writer = (byte) w;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < recordsPerWriter; i++) {
+                    // records of different lengths, so that they wrap around at different positions
+                    byte[] record = (i + ":" + "x".repeat(i % 100)).getBytes(StandardCharsets.UTF_8);
+                    while (!ringBuffer.offer(writer, record, 0, record.length)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        int[] nextRecord = new int[writers];
+        start.countDown();
+        int read = 0;
+        while (read < writers * recordsPerWriter) {
+            read += ringBuffer.read((type, buffer, offset, length) -> {
+                String record = new String(buffer, offset, length, StandardCharsets.UTF_8);
+                int i = nextRecord[type]++;
+                assertThat(record).isEqualTo(i + ":" + "x".repeat(i % 100));
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(nextRecord).containsOnly(recordsPerWriter);
+        assertThat(ringBuffer.size()).isZero();
+    }
+
+    private static boolean offer(ByteRingBuffer ringBuffer, int type, String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        // the record is copied, so that later changes to the source don't affect it
+        boolean offered = ringBuffer.offer((byte) type, bytes, 0, bytes.length);
+        Arrays.fill(bytes, (byte) 0);
+        return offered;
+    }
+}
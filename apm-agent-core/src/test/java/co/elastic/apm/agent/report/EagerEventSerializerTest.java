@@ -0,0 +1,181 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+
+class EagerEventSerializerTest {
+
+    private static Undertow server;
+    private static int port;
+    private static final AtomicInteger receivedLines = new AtomicInteger();
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private ApmServerReporter reporter;
+    private EagerEventSerializer eagerSerializer;
+
+    @BeforeAll
+    static void startServer() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                if (exchange.getRequestPath().equals("/intake/v2/events")) {
+                    try (InputStream in = exchange.getInputStream()) {
+                        for (int n = 0; -1 != n; n = in.read()) {
+                            if (n == '\n') {
+                                receivedLines.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                exchange.setStatusCode(200).endExchange();
+            }))
+            .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @AfterEach
+    void tearDown() {
+        reporter.close();
+        receivedLines.set(0);
+    }
+
+    @Test
+    void testEventsAreSerializedByReportingThread() throws Exception {
+        startReporter(1, 1024 * 1024);
+
+        for (int i = 0; i < 10; i++) {
+            TransactionImpl transaction = new TransactionImpl(tracer);
+            transaction.incrementReferences();
+            reporter.report(transaction);
+            // the transaction is recycled right away, without waiting for the reporter thread
+            assertThat(transaction.getReferenceCount()).isZero();
+
+            SpanImpl span = new SpanImpl(tracer);
+            span.incrementReferences();
+            reporter.report(span);
+            assertThat(span.getReferenceCount()).isZero();
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getReported()).isEqualTo(20);
+        assertThat(reporter.getDropped()).isZero();
+        assertThat(eagerSerializer.getSize()).isZero();
+        // the events are preceded by a metadata line
+        assertThat(receivedLines.get()).isEqualTo(21);
+    }
+
+    @Test
+    void testEventsAreDistributedAcrossWorkers() throws Exception {
+        startReporter(4, 16 * 1024 * 1024);
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    reporter.report(new TransactionImpl(tracer));
+                    reporter.report(new SpanImpl(tracer));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getReported()).isEqualTo(1600);
+        assertThat(reporter.getDropped()).isZero();
+        assertThat(eagerSerializer.getSize()).isZero();
+    }
+
+    @Test
+    void testEventsAreDroppedIfBufferIsFull() throws Exception {
+        // too small for even a single span
+        startReporter(1, 64);
+
+        reporter.report(new SpanImpl(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getDropped()).isEqualTo(1);
+        assertThat(reporter.getReported()).isZero();
+    }
+
+    private void startReporter(int intakeWorkers, int queueSizeInBytes) throws Exception {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        SerializationConstants.init(coreConfiguration);
+        doReturn(TimeDuration.of("60m")).when(reporterConfiguration).getApiRequestTime();
+        doReturn(intakeWorkers).when(reporterConfiguration).getIntakeWorkers();
+        doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        await().atMost(Duration.ofSeconds(10)).until(apmServerClient::isServerVersionReady);
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+        ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(config);
+        eagerSerializer = new EagerEventSerializer(payloadSerializer, processorEventHandler, apmServerClient, intakeWorkers, queueSizeInBytes);
+        ReportingEventHandler handler;
+        if (intakeWorkers > 1) {
+            handler = new ParallelReportingEventHandler(intakeWorkers, reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, null, eagerSerializer);
+        } else {
+            handler = new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, 0, 1, null, eagerSerializer);
+        }
+        reporter = new ApmServerReporter(true, reporterConfiguration, coreConfiguration, handler, ReporterMonitor.NOOP,
+            apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl(), eagerSerializer);
+        reporter.start();
+    }
+}
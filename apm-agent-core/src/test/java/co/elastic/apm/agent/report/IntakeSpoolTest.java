@@ -0,0 +1,235 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.report.spool.DiskSpool;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+
+class IntakeSpoolTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @TempDir
+    File spoolDir;
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private final AtomicInteger receivedIntakeApiCalls = new AtomicInteger();
+    private final AtomicInteger receivedEvents = new AtomicInteger();
+    private Undertow server;
+    private int port;
+    private ConfigurationRegistry config;
+    private ApmServerClient apmServerClient;
+    private DslJsonSerializer payloadSerializer;
+    private ApmServerReporter reporter;
+    private IntakeSpool spool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        startServer(0);
+        config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        SerializationConstants.init(config.getConfig(CoreConfigurationImpl.class));
+        doReturn(TimeDuration.of("60m")).when(reporterConfiguration).getApiRequestTime();
+        doReturn(256).when(reporterConfiguration).getMaxQueueSize();
+        doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+
+        apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (reporter != null) {
+            reporter.close();
+        }
+        if (spool != null) {
+            // closing is idempotent
+            spool.close();
+        }
+        server.stop();
+    }
+
+    @Test
+    void testEventsAreSpooledWhileServerIsDown() throws Exception {
+        startReporter(1024 * 1024);
+
+        reportTransactions(5);
+        assertThat(receivedEvents.get()).isEqualTo(5);
+        assertThat(spool.isServerAvailable()).isTrue();
+
+        server.stop();
+        // the request which discovers the outage is lost
+        reportTransactions(1);
+        assertThat(spool.isServerAvailable()).isFalse();
+
+        reportTransactions(10);
+        reportTransactions(10);
+        assertThat(spool.getDiskSpool().getPendingBatches()).isEqualTo(2);
+        assertThat(receivedEvents.get()).isEqualTo(5);
+        // only the event of the request which discovered the outage
+        assertThat(reporter.getDropped()).isEqualTo(1);
+
+        startServer(port);
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            assertThat(spool.getDiskSpool().isEmpty()).isTrue();
+            assertThat(receivedEvents.get()).isEqualTo(25);
+        });
+        assertThat(spool.getReplayedBatches()).isEqualTo(2);
+        assertThat(spool.isServerAvailable()).isTrue();
+
+        // new events are sent to the server directly
+        int callsBefore = receivedIntakeApiCalls.get();
+        reportTransactions(3);
+        assertThat(receivedEvents.get()).isEqualTo(28);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(callsBefore + 1);
+        assertThat(spool.getDiskSpool().getAppendedBatches()).isEqualTo(2);
+    }
+
+    @Test
+    void testEventsWhichCanNotBeSpooledAreDropped() throws Exception {
+        startReporter(1024 * 1024);
+        server.stop();
+        reportTransactions(1);
+        assertThat(spool.isServerAvailable()).isFalse();
+        long droppedBefore = reporter.getDropped();
+
+        // rejects all batches
+        spool.getDiskSpool().close();
+        reportTransactions(3);
+
+        assertThat(spool.getDiskSpool().getRejectedBatches()).isEqualTo(1);
+        assertThat(reporter.getDropped()).isEqualTo(droppedBefore + 3);
+    }
+
+    @Test
+    void testReplayIsRateLimited() throws Exception {
+        byte[] body = "{\"metadata\":{}}\n{\"transaction\":{}}\n".getBytes(StandardCharsets.UTF_8);
+        try (DiskSpool diskSpool = new DiskSpool(spoolDir, 1024 * 1024, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++) {
+                diskSpool.append("", body, 0, body.length);
+            }
+        }
+
+        // allows to replay one batch per second
+        startReporter(body.length);
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> spool.getReplayedBatches() == 1);
+        Thread.sleep(300);
+        assertThat(spool.getReplayedBatches()).isEqualTo(1);
+        await().atMost(Duration.ofSeconds(10)).until(() -> spool.getReplayedBatches() == 3);
+        assertThat(receivedEvents.get()).isEqualTo(3);
+    }
+
+    @Test
+    void testSpooledEventsOfPreviousRunAreReplayed() throws Exception {
+        startReporter(1024 * 1024);
+        server.stop();
+        reportTransactions(1);
+        reportTransactions(4);
+        assertThat(spool.getDiskSpool().getPendingBatches()).isEqualTo(1);
+        reporter.close();
+        spool.close();
+
+        startServer(port);
+        startReporter(1024 * 1024);
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            assertThat(spool.getDiskSpool().isEmpty()).isTrue();
+            assertThat(receivedEvents.get()).isEqualTo(4);
+        });
+    }
+
+    private void startReporter(long replayBytesPerSecond) throws Exception {
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        spool = new IntakeSpool(new DiskSpool(spoolDir, 1024 * 1024, SEGMENT_SIZE), apmServerClient, replayBytesPerSecond, 50);
+        IntakeV2ReportingEventHandler handler = new IntakeV2ReportingEventHandler(reporterConfiguration,
+            ProcessorEventHandler.loadProcessors(config), payloadSerializer, apmServerClient, 0, 1, spool, null);
+        reporter = new ApmServerReporter(false, reporterConfiguration, coreConfiguration, handler, ReporterMonitor.NOOP,
+            apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        reporter.start();
+    }
+
+    private void reportTransactions(int count) {
+        for (int i = 0; i < count; i++) {
+            reporter.report(new TransactionImpl(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+    }
+
+    private void startServer(int listenPort) {
+        server = Undertow.builder()
+            .addHttpListener(listenPort, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                if (exchange.getRequestPath().equals("/intake/v2/events")) {
+                    receivedIntakeApiCalls.incrementAndGet();
+                    InputStream in = exchange.getInputStream();
+                    if ("deflate".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                        in = new InflaterInputStream(in);
+                    }
+                    try (InputStream body = in) {
+                        // every line except for the metadata line of each request is an event
+                        int lines = -1;
+                        for (int n = 0; -1 != n; n = body.read()) {
+                            if (n == '\n') {
+                                lines++;
+                            }
+                        }
+                        receivedEvents.addAndGet(Math.max(0, lines));
+                    }
+                }
+                exchange.setStatusCode(200).endExchange();
+            }))
+            .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+
+class LogEventQueueTest {
+
+    private static Undertow server;
+    private static int port;
+    private static final List<String> receivedLines = new CopyOnWriteArrayList<>();
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private ApmServerReporter reporter;
+
+    @BeforeAll
+    static void startServer() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                if (exchange.getRequestPath().equals("/")) {
+                    // logs are only sent to APM Servers which support them
+                    exchange.getResponseSender().send("{\"version\":\"8.10.0\"}");
+                    return;
+                }
+                if (exchange.getRequestPath().equals("/intake/v2/events")) {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getInputStream(), StandardCharsets.UTF_8))) {
+                        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                            receivedLines.add(line);
+                        }
+                    }
+                }
+                exchange.setStatusCode(200).endExchange();
+            }))
+            .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (reporter != null) {
+            reporter.close();
+        }
+        receivedLines.clear();
+    }
+
+    @Test
+    void testLogsAreDroppedAtRandomOnceHalfFull() {
+        LogEventQueue logQueue = new LogEventQueue(1024);
+        // each log takes up 64 bytes, including the type and the alignment
+        byte[] log = new byte[63];
+
+        // no log is dropped until the queue is half full
+        for (int i = 0; i < 8; i++) {
+            assertThat(logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log)).isTrue();
+        }
+        while (logQueue.getSize() < 768) {
+            logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log);
+        }
+
+        // half of the logs are dropped if the queue is three quarters full
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log)) {
+                accepted++;
+                // keeps the size of the queue constant
+                assertThat(logQueue.drain((type, buffer, offset, length) -> {
+                }, 1)).isOne();
+            }
+        }
+        assertThat(accepted).isBetween(350, 650);
+
+        while (logQueue.getSize() < logQueue.getCapacity()) {
+            logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log);
+        }
+        assertThat(logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log)).isFalse();
+    }
+
+    @Test
+    void testLogsAreDrainedInQuanta() {
+        LogEventQueue logQueue = new LogEventQueue(1024);
+        byte[] log = new byte[63];
+        for (int i = 0; i < 4; i++) {
+            assertThat(logQueue.offer(ReportingEvent.ReportingEventType.BYTES_LOG, log)).isTrue();
+        }
+
+        assertThat(logQueue.drain((type, buffer, offset, length) -> assertThat(length).isEqualTo(63), 128)).isEqualTo(2);
+        assertThat(logQueue.getSize()).isEqualTo(128);
+        assertThat(logQueue.drain((type, buffer, offset, length) -> {
+        }, Integer.MAX_VALUE)).isEqualTo(2);
+        assertThat(logQueue.getSize()).isZero();
+    }
+
+    @Test
+    void testLogsAreSentAlongWithOtherEvents() throws Exception {
+        startReporter(1024 * 1024);
+
+        for (int i = 0; i < 100; i++) {
+            reporter.reportLog("{\"message\":\"string " + i + "\"}\n");
+            reporter.reportLog(("{\"message\":\"bytes " + i + "\"}").getBytes(StandardCharsets.UTF_8));
+            reporter.report(new TransactionImpl(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getReported()).isEqualTo(300);
+        assertThat(reporter.getDropped()).isZero();
+        assertThat(reporter.getLogQueue().getSize()).isZero();
+        assertThat(receivedLines.stream().filter(line -> line.startsWith("{\"log\":"))).hasSize(200);
+        assertThat(receivedLines).contains("{\"log\":{\"message\":\"string 0\"}}", "{\"log\":{\"message\":\"bytes 99\"}}");
+        assertThat(receivedLines.stream().filter(line -> line.startsWith("{\"transaction\":"))).hasSize(100);
+    }
+
+    @Test
+    void testLogsAreDroppedIfQueueIsFull() throws Exception {
+        startReporter(64);
+
+        reporter.reportLog(new byte[128]);
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getDropped()).isEqualTo(1);
+        assertThat(reporter.getReported()).isZero();
+    }
+
+    private void startReporter(int logQueueSizeInBytes) throws Exception {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        SerializationConstants.init(coreConfiguration);
+        doReturn(TimeDuration.of("60m")).when(reporterConfiguration).getApiRequestTime();
+        doReturn((long) logQueueSizeInBytes).when(reporterConfiguration).getLogSendingQueueSize();
+        doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        await().atMost(Duration.ofSeconds(10)).until(apmServerClient::isServerVersionReady);
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+        ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(config);
+        ReportingEventHandler handler = new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+        reporter = new ApmServerReporter(true, reporterConfiguration, coreConfiguration, handler, ReporterMonitor.NOOP,
+            apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        reporter.start();
+    }
+}
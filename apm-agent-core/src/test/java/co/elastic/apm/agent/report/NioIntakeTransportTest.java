@@ -0,0 +1,297 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.util.IOUtils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class NioIntakeTransportTest {
+
+    private static final byte[] LINE = "{\"foo\":\"bar\"}\n".getBytes(StandardCharsets.UTF_8);
+
+    private static Undertow server;
+    private static int port;
+    private static final AtomicLong receivedBytes = new AtomicLong();
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private ApmServerClient apmServerClient;
+    private IntakeTransport fallback;
+    private NioIntakeTransport transport;
+
+    @BeforeAll
+    static void startServer() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                try (InputStream in = exchange.getInputStream()) {
+                    byte[] buffer = new byte[1024];
+                    for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                        receivedBytes.addAndGet(n);
+                    }
+                }
+                if (exchange.getRequestPath().equals("/error")) {
+                    exchange.setStatusCode(503).getResponseSender().send("{\"error\":\"queue is full\"}");
+                } else {
+                    exchange.setStatusCode(202).endExchange();
+                }
+            }))
+            .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+        apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        fallback = mock(IntakeTransport.class);
+        transport = new NioIntakeTransport(apmServerClient, fallback);
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        receivedBytes.set(0);
+    }
+
+    @Test
+    void testConnectionIsReusedAcrossRequests() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertThat(sendRequest("/intake/v2/events", 1000)).isEqualTo(202);
+        }
+
+        assertThat(transport.getConnectionCount()).isEqualTo(1);
+        assertThat(receivedBytes.get()).isEqualTo(10L * 1000 * LINE.length);
+        verifyNoInteractions(fallback);
+    }
+
+    @Test
+    void testErrorResponse() throws Exception {
+        IntakeRequest request = transport.startRequest("/error");
+        assertThat(request).isNotNull();
+        request.getOutputStream().close();
+
+        assertThat(request.finish()).isEqualTo(503);
+        assertThat(request.getResponseCode()).isEqualTo(503);
+        assertThat(IOUtils.toString(request.getResponseBody())).isEqualTo("{\"error\":\"queue is full\"}");
+        request.close();
+
+        // the connection is still usable after an error response
+        assertThat(sendRequest("/intake/v2/events", 1)).isEqualTo(202);
+        assertThat(transport.getConnectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testReconnectAfterAbort() throws Exception {
+        IntakeRequest request = transport.startRequest("/intake/v2/events");
+        assertThat(request).isNotNull();
+        request.getOutputStream().write(LINE);
+        request.abort();
+
+        assertThat(sendRequest("/intake/v2/events", 1)).isEqualTo(202);
+        assertThat(transport.getConnectionCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testHttpsIsDelegatedToFallback() throws Exception {
+        ApmServerClient httpsClient = new ApmServerClient(tracer.getConfigurationRegistry());
+        httpsClient.start(Collections.singletonList(new URL("https://localhost:" + port)));
+        transport = new NioIntakeTransport(httpsClient, fallback);
+
+        transport.startRequest("/intake/v2/events");
+
+        verify(fallback).startRequest("/intake/v2/events");
+        assertThat(transport.getConnectionCount()).isEqualTo(0);
+    }
+
+    @Test
+    void testProxySelectedByDefaultProxySelectorIsDelegatedToFallback() throws Exception {
+        ProxySelector defaultProxySelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("proxy", 3128)));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        });
+        try {
+            transport.startRequest("/intake/v2/events");
+        } finally {
+            ProxySelector.setDefault(defaultProxySelector);
+        }
+
+        verify(fallback).startRequest("/intake/v2/events");
+        assertThat(transport.getConnectionCount()).isEqualTo(0);
+    }
+
+    @Test
+    void testMalformedContentLength() throws Exception {
+        assertThat(respondWith("HTTP/1.1 202 Accepted\r\nContent-Length: abc\r\n\r\n"))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Content-Length");
+    }
+
+    @Test
+    void testMalformedChunkSize() throws Exception {
+        assertThat(respondWith("HTTP/1.1 202 Accepted\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n"))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("chunk size");
+    }
+
+    /**
+     * Sends a request to a server that responds with the provided raw response and returns the exception thrown by {@link IntakeRequest#finish()}
+     */
+    @Nullable
+    private Throwable respondWith(String rawResponse) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            Thread responder = new Thread(() -> {
+                try {
+                    // the health check of the ApmServerClient may connect before the intake request
+                    for (boolean intakeRequest = false; !intakeRequest; ) {
+                        try (Socket socket = serverSocket.accept()) {
+                            intakeRequest = readRequest(socket.getInputStream()).startsWith("POST ");
+                            if (intakeRequest) {
+                                socket.getOutputStream().write(rawResponse.getBytes(StandardCharsets.ISO_8859_1));
+                                socket.getOutputStream().flush();
+                            }
+                        }
+                    }
+                } catch (IOException ignore) {
+                }
+            });
+            responder.start();
+            ApmServerClient rawClient = new ApmServerClient(tracer.getConfigurationRegistry());
+            rawClient.start(Collections.singletonList(new URL("http://127.0.0.1:" + serverSocket.getLocalPort())));
+            transport = new NioIntakeTransport(rawClient, fallback);
+            IntakeRequest request = transport.startRequest("/intake/v2/events");
+            assertThat(request).isNotNull();
+            try (OutputStream os = request.getOutputStream()) {
+                os.write(LINE);
+            }
+            try {
+                request.finish();
+                return null;
+            } catch (Throwable t) {
+                return t;
+            } finally {
+                request.close();
+                responder.join();
+            }
+        }
+    }
+
+    /**
+     * Reads the head and the chunked body of a request, so that the response is only sent once the whole request has been received
+     *
+     * @return the request line
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        boolean chunked = false;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            chunked |= header.equalsIgnoreCase("Transfer-Encoding: chunked");
+        }
+        if (chunked) {
+            for (int chunkSize = Integer.parseInt(readLine(in), 16); chunkSize > 0; chunkSize = Integer.parseInt(readLine(in), 16)) {
+                for (int i = 0; i < chunkSize; i++) {
+                    if (in.read() == -1) {
+                        throw new IOException("Unexpected end of chunk");
+                    }
+                }
+                readLine(in);
+            }
+            // the empty line after the last chunk
+            readLine(in);
+        }
+        return requestLine;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new IOException("Unexpected end of request");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private int sendRequest(String endpoint, int lines) throws Exception {
+        IntakeRequest request = transport.startRequest(endpoint);
+        assertThat(request).isNotNull();
+        request.setHeader("Content-Type", "application/x-ndjson");
+        try (OutputStream os = request.getOutputStream()) {
+            for (int i = 0; i < lines; i++) {
+                os.write(LINE);
+            }
+        }
+        try {
+            return request.finish();
+        } finally {
+            request.close();
+        }
+    }
+}
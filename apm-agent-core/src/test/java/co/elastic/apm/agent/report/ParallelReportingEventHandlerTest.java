@@ -0,0 +1,151 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class ParallelReportingEventHandlerTest {
+
+    private static final int WORKERS = 4;
+
+    private static Undertow server;
+    private static int port;
+    private static final AtomicInteger receivedIntakeApiCalls = new AtomicInteger();
+    private static final AtomicInteger receivedIntakeApiCallsWithFlushParam = new AtomicInteger();
+    private static final AtomicInteger receivedLines = new AtomicInteger();
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private ApmServerReporter reporter;
+    private ParallelReportingEventHandler handler;
+
+    @BeforeAll
+    static void startServer() {
+        server = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(new BlockingHandler(exchange -> {
+                if (exchange.getRequestPath().equals("/intake/v2/events")) {
+                    receivedIntakeApiCalls.incrementAndGet();
+                    if (exchange.getQueryParameters().containsKey("flushed")) {
+                        receivedIntakeApiCallsWithFlushParam.incrementAndGet();
+                    }
+                    try (InputStream in = exchange.getInputStream()) {
+                        for (int n = 0; -1 != n; n = in.read()) {
+                            if (n == '\n') {
+                                receivedLines.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                exchange.setStatusCode(200).endExchange();
+            }))
+            .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        SerializationConstants.init(coreConfiguration);
+        doReturn(TimeDuration.of("60m")).when(reporterConfiguration).getApiRequestTime();
+        doReturn(256).when(reporterConfiguration).getMaxQueueSize();
+        doReturn(WORKERS).when(reporterConfiguration).getIntakeWorkers();
+        doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start();
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+        handler = new ParallelReportingEventHandler(WORKERS, reporterConfiguration, ProcessorEventHandler.loadProcessors(config), payloadSerializer, apmServerClient);
+        reporter = new ApmServerReporter(false, reporterConfiguration, coreConfiguration, handler, ReporterMonitor.NOOP, apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        reporter.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        reporter.close();
+        receivedIntakeApiCalls.set(0);
+        receivedIntakeApiCallsWithFlushParam.set(0);
+        receivedLines.set(0);
+    }
+
+    @Test
+    void testEventsAreDistributedAcrossWorkers() {
+        for (int i = 0; i < 100; i++) {
+            reporter.report(new TransactionImpl(tracer));
+            reporter.report(new SpanImpl(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(handler.getWorkerCount()).isEqualTo(WORKERS);
+        assertThat(reporter.getReported()).isEqualTo(200);
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        // every worker sends its own request
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(WORKERS);
+        // each request starts with a metadata line
+        assertThat(receivedLines.get()).isEqualTo(200 + WORKERS);
+    }
+
+    @Test
+    void testFlushRequestIsHandledByAllWorkers() {
+        for (int i = 0; i < WORKERS; i++) {
+            reporter.report(new TransactionImpl(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, true)).isTrue();
+
+        assertThat(reporter.getReported()).isEqualTo(WORKERS);
+        assertThat(receivedIntakeApiCallsWithFlushParam.get()).isEqualTo(WORKERS);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(2 * WORKERS);
+    }
+}
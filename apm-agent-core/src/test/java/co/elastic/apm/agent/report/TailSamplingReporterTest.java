@@ -0,0 +1,269 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import co.elastic.apm.agent.tracer.Outcome;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class TailSamplingReporterTest {
+
+    private ConfigurationRegistry config;
+    private MockReporter mockReporter;
+    private TestObjectPoolFactory objectPoolFactory;
+    private ReporterConfigurationImpl reporterConfiguration;
+    private TailSamplingReporter reporter;
+    private ElasticApmTracer tracer;
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig();
+        reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        doReturn(1024L * 1024).when(reporterConfiguration).getTailSamplingBufferSize();
+        doReturn(TimeDuration.of("100ms")).when(reporterConfiguration).getTailSamplingDurationThreshold();
+        doReturn(0d).when(reporterConfiguration).getTailSamplingKeepRate();
+        doReturn(List.of(WildcardMatcher.valueOf("keep *"))).when(reporterConfiguration).getTailSamplingKeepTransactions();
+    }
+
+    private void startTracer() {
+        mockReporter = new MockReporter();
+        mockReporter.disableCheckStrictSpanType();
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new TailSamplingReporter(mockReporter, reporterConfiguration);
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .buildAndStart();
+    }
+
+    @AfterEach
+    void tearDown() {
+        assertThat(reporter.getBufferSize()).isZero();
+        mockReporter.reset();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+        tracer.stop();
+    }
+
+    @Test
+    void testDiscardFastTransactionAndRecycleSpans() {
+        startTracer();
+        TransactionImpl transaction = startTransaction("fast");
+        endSpans(transaction, 3, Outcome.SUCCESS);
+        assertThat(reporter.getBufferSize()).isEqualTo(3 * TailSamplingReporter.ESTIMATED_SPAN_SIZE);
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).isEmpty();
+        assertThat(mockReporter.getSpans()).isEmpty();
+        assertThat(reporter.getDiscardedTransactions()).isEqualTo(1);
+        assertThat(reporter.getKeptTransactions()).isZero();
+    }
+
+    @Test
+    void testKeepSlowTransaction() {
+        startTracer();
+        TransactionImpl transaction = startTransaction("slow");
+        endSpans(transaction, 3, Outcome.SUCCESS);
+        transaction.end(transaction.getTimestamp() + TimeUnit.MILLISECONDS.toMicros(100));
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(3);
+        assertThat(reporter.getKeptTransactions()).isEqualTo(1);
+    }
+
+    @Test
+    void testKeepTransactionWithFailedSpan() {
+        startTracer();
+        TransactionImpl transaction = startTransaction("fast");
+        endSpans(transaction, 2, Outcome.SUCCESS);
+        endSpans(transaction, 1, Outcome.FAILURE);
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(3);
+    }
+
+    @Test
+    void testKeepTransactionWithCapturedException() {
+        startTracer();
+        TransactionImpl transaction = startTransaction("fast");
+        transaction.captureException(new IllegalStateException());
+        transaction.withOutcome(Outcome.SUCCESS).end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getErrors()).hasSize(1);
+    }
+
+    @Test
+    void testKeepTransactionMatchingName() {
+        startTracer();
+        TransactionImpl transaction = startTransaction("keep me");
+        endSpans(transaction, 1, Outcome.SUCCESS);
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testKeepRate() {
+        doReturn(1d).when(reporterConfiguration).getTailSamplingKeepRate();
+        startTracer();
+        TransactionImpl transaction = startTransaction("fast");
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(transaction.getTailSamplingKeepRate()).isEqualTo(1d);
+    }
+
+    @Test
+    void testRandomlyKeptTransactionsRecordKeepRate() {
+        doReturn(0.999999d).when(reporterConfiguration).getTailSamplingKeepRate();
+        startTracer();
+        TransactionImpl randomlyKept = startTransaction("fast");
+        randomlyKept.end(randomlyKept.getTimestamp() + 1000);
+        TransactionImpl failed = startTransaction("fast");
+        failed.withOutcome(Outcome.FAILURE).end(failed.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(randomlyKept, failed);
+        assertThat(randomlyKept.getTailSamplingKeepRate()).isEqualTo(0.999999d);
+        // failed transactions are always kept
+        assertThat(failed.getTailSamplingKeepRate()).isEqualTo(1d);
+    }
+
+    @Test
+    void testUnsampledTransactionsAreNotAffected() {
+        startTracer();
+        TransactionImpl transaction = tracer.startRootTransaction(ConstantSampler.of(false), -1, null).withName("fast").withType("request");
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(reporter.getKeptTransactions()).isZero();
+        assertThat(reporter.getDiscardedTransactions()).isZero();
+    }
+
+    @Test
+    void testSpansEndingAfterDecision() {
+        startTracer();
+        TransactionImpl kept = startTransaction("keep me");
+        SpanImpl keptSpan = kept.createSpan().withName("span").withType("custom");
+        kept.end(kept.getTimestamp() + 1000);
+        keptSpan.end();
+
+        TransactionImpl discarded = startTransaction("fast");
+        SpanImpl discardedSpan = discarded.createSpan().withName("span").withType("custom");
+        discarded.end(discarded.getTimestamp() + 1000);
+        discardedSpan.end();
+
+        assertThat(mockReporter.getTransactions()).containsExactly(kept);
+        assertThat(mockReporter.getSpans()).containsExactly(keptSpan);
+    }
+
+    @Test
+    void testDropSpansIfBufferIsFull() {
+        doReturn(2L * TailSamplingReporter.ESTIMATED_SPAN_SIZE).when(reporterConfiguration).getTailSamplingBufferSize();
+        startTracer();
+
+        TransactionImpl transaction = startTransaction("keep me");
+        endSpans(transaction, 3, Outcome.SUCCESS);
+        assertThat(reporter.getBufferSize()).isEqualTo(2 * TailSamplingReporter.ESTIMATED_SPAN_SIZE);
+        transaction.end(transaction.getTimestamp() + 1000);
+
+        assertThat(mockReporter.getSpans()).hasSize(2);
+        assertThat(reporter.getDroppedSpans()).isEqualTo(1);
+        assertThat(transaction.getSpanCount().getReported().get()).isEqualTo(2);
+        assertThat(transaction.getSpanCount().getDropped().get()).isEqualTo(1);
+    }
+
+    @Test
+    void testConcurrentTransactionsAndSpans() throws Exception {
+        startTracer();
+        int threads = 8;
+        int transactionsPerThread = 500;
+        int spansPerTransaction = 4;
+        ExecutorService transactionThreads = Executors.newFixedThreadPool(threads);
+        ExecutorService spanThreads = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(transactionThreads.submit(() -> {
+                    List<Future<?>> spanFutures = new ArrayList<>();
+                    for (int i = 0; i < transactionsPerThread; i++) {
+                        TransactionImpl transaction = startTransaction(i % 10 == 0 ? "keep me" : "fast");
+                        for (int s = 0; s < spansPerTransaction; s++) {
+                            SpanImpl span = transaction.createSpan().withName("span").withType("custom");
+                            // spans end concurrently with each other and with their transaction, some of them after the decision
+                            spanFutures.add(spanThreads.submit(() -> span.end()));
+                        }
+                        transaction.end(transaction.getTimestamp() + 1000);
+                    }
+                    for (Future<?> spanFuture : spanFutures) {
+                        spanFuture.get();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            transactionThreads.shutdown();
+            spanThreads.shutdown();
+        }
+
+        int keptTransactions = threads * transactionsPerThread / 10;
+        assertThat(reporter.getKeptTransactions()).isEqualTo(keptTransactions);
+        assertThat(reporter.getDiscardedTransactions()).isEqualTo(threads * transactionsPerThread - keptTransactions);
+        assertThat(mockReporter.getTransactions()).hasSize(keptTransactions);
+        assertThat(mockReporter.getSpans()).hasSize(keptTransactions * spansPerTransaction);
+        assertThat(mockReporter.getSpans()).allSatisfy(span -> assertThat(span.getTransaction().getNameAsString()).isEqualTo("keep me"));
+    }
+
+    private TransactionImpl startTransaction(String name) {
+        return tracer.startRootTransaction(null).withName(name).withType("request");
+    }
+
+    private static void endSpans(TransactionImpl transaction, int count, Outcome outcome) {
+        for (int i = 0; i < count; i++) {
+            transaction.createSpan().withName("span").withType("custom").withOutcome(outcome).end();
+        }
+    }
+}
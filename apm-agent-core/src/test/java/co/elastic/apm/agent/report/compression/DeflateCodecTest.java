@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeflateCodecTest {
+
+    private static final String PAYLOAD = "{\"metadata\":{}}\n{\"transaction\":{\"name\":\"GET /\"}}\n";
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 6, 9})
+    void testDeflateRoundTrip(int level) throws IOException {
+        DeflateCodec codec = DeflateCodec.deflate(level);
+        assertThat(codec.getContentEncoding()).isEqualTo("deflate");
+
+        byte[] compressed = compress(codec, PAYLOAD);
+
+        assertThat(decompress(new InflaterInputStream(new ByteArrayInputStream(compressed)))).isEqualTo(PAYLOAD);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 6, 9})
+    void testGzipRoundTrip(int level) throws IOException {
+        DeflateCodec codec = DeflateCodec.gzip(level);
+        assertThat(codec.getContentEncoding()).isEqualTo("gzip");
+
+        byte[] compressed = compress(codec, PAYLOAD);
+
+        // GZIPInputStream validates the CRC and size in the trailer
+        assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(compressed)))).isEqualTo(PAYLOAD);
+    }
+
+    @Test
+    void testPooledDeflaterIsResetBetweenStreams() throws IOException {
+        DeflateCodec codec = DeflateCodec.gzip(1);
+        for (int i = 0; i < 10; i++) {
+            String payload = PAYLOAD + i;
+            assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(compress(codec, payload))))).isEqualTo(payload);
+        }
+    }
+
+    @Test
+    void testFlushedDataCanBeDecompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream os = DeflateCodec.deflate(1).compress(out);
+        os.write(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        os.flush();
+
+        byte[] flushed = new byte[PAYLOAD.length()];
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()));
+        int read = 0;
+        while (read < flushed.length) {
+            read += in.read(flushed, read, flushed.length - read);
+        }
+        assertThat(new String(flushed, StandardCharsets.UTF_8)).isEqualTo(PAYLOAD);
+        os.close();
+    }
+
+    private static byte[] compress(CompressionCodec codec, String payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream os = codec.compress(out)) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static String decompress(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
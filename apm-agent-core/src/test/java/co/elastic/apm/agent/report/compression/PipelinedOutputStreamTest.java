@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PipelinedOutputStreamTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testAllDataIsWrittenInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipelinedOutputStream os = new PipelinedOutputStream(out, executor, 2, 16);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = ("line " + i + "\n").getBytes();
+            os.write(bytes);
+            os.write('#');
+            expected.write(bytes);
+            expected.write('#');
+            if (i % 100 == 0) {
+                os.flush();
+            }
+        }
+        os.close();
+
+        assertThat(out.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    void testCloseClosesUnderlyingStream() throws IOException {
+        CloseTrackingOutputStream out = new CloseTrackingOutputStream();
+        PipelinedOutputStream os = new PipelinedOutputStream(out, executor, 2, 16);
+        os.write(new byte[100]);
+        os.close();
+
+        assertThat(out.closed).isTrue();
+        assertThat(out.size()).isEqualTo(100);
+        assertThatThrownBy(() -> os.write(1)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testFailureIsPropagatedToWriter() throws IOException {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        PipelinedOutputStream os = new PipelinedOutputStream(failing, executor, 2, 16);
+        os.write(new byte[32]);
+
+        assertThatThrownBy(os::close).isInstanceOf(IOException.class).hasMessage("broken pipe");
+    }
+
+    @Test
+    void testUnderlyingStreamIsClosedAfterFailure() throws IOException {
+        CloseTrackingOutputStream out = new CloseTrackingOutputStream();
+        PipelinedOutputStream os = new PipelinedOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        }, executor, 2, 16);
+        os.write(new byte[32]);
+
+        assertThatThrownBy(os::close).isInstanceOf(IOException.class).hasMessage("broken pipe");
+        assertThat(out.closed).isTrue();
+    }
+
+    private static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+        private volatile boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -82,6 +82,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
@@ -218,6 +219,40 @@ class DslJsonSerializerTest {
         assertThat(stacktrace).hasSizeGreaterThan(15);
     }
 
+    @Test
+    void testStackTraceCacheDoesNotAlterStackTrace() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        StacktraceConfigurationImpl stacktraceConfiguration = config.getConfig(StacktraceConfigurationImpl.class);
+        doReturn(0L).when(stacktraceConfiguration).getStackTraceCacheSizeBytes();
+        doReturn(15).when(stacktraceConfiguration).getStackTraceLimit();
+        DslJsonSerializer.Writer uncachedWriter = new DslJsonSerializer(config, apmServerClient, metaData).newWriter();
+
+        ErrorCaptureImpl error = new ErrorCaptureImpl(tracer).withTimestamp(5000);
+        error.setException(new Exception("test", new IllegalStateException("cause")));
+
+        String uncached = uncachedWriter.toJsonString(error);
+        // the first serialization populates the cache, the second one is served from it
+        assertThat(writer.toJsonString(error)).isEqualTo(uncached);
+        assertThat(writer.toJsonString(error)).isEqualTo(uncached);
+    }
+
+    @Test
+    void testStackTraceCacheIsClearedWhenApplicationPackagesChange() {
+        ErrorCaptureImpl error = new ErrorCaptureImpl(tracer).withTimestamp(5000);
+        error.setException(new Exception("test"));
+
+        JsonNode stacktrace = readJsonString(writer.toJsonString(error)).get("exception").get("stacktrace");
+        assertThat(stacktrace.get(0).get("library_frame").booleanValue()).isTrue();
+
+        // the top most frames of this test class are skipped, the first frame is the one which invokes the test
+        String className = stacktrace.get(0).get("classname").textValue();
+        StacktraceConfigurationImpl stacktraceConfiguration = tracer.getConfig(StacktraceConfigurationImpl.class);
+        doReturn(Collections.singletonList(className)).when(stacktraceConfiguration).getApplicationPackages();
+
+        stacktrace = readJsonString(writer.toJsonString(error)).get("exception").get("stacktrace");
+        assertThat(stacktrace.get(0).get("library_frame").booleanValue()).isFalse();
+    }
+
     @Test
     void testErrorSerializationWithEmptyTraceId() {
         TransactionImpl transaction = new TransactionImpl(tracer);
@@ -636,6 +671,27 @@ class DslJsonSerializerTest {
         assertThat(transactionJson.get("context").get("service").get("framework")).isNull();
     }
 
+    @Test
+    void testServiceFragmentsOfDifferentServices() {
+        for (int i = 0; i < 2; i++) {
+            for (String serviceName : List.of("service-a", "service-b")) {
+                TransactionImpl transaction = new TransactionImpl(tracer);
+                transaction.getTraceContext().setServiceInfo(serviceName, serviceName + "-version");
+                transaction.setFrameworkName(serviceName + "-framework");
+                JsonNode service = readJsonString(writer.toJsonString(transaction)).get("context").get("service");
+                assertThat(service.get("name").textValue()).isEqualTo(serviceName);
+                assertThat(service.get("version").textValue()).isEqualTo(serviceName + "-version");
+                assertThat(service.get("framework").get("name").textValue()).isEqualTo(serviceName + "-framework");
+
+                SpanImpl span = new SpanImpl(tracer);
+                span.getTraceContext().setServiceInfo(serviceName, null);
+                service = readJsonString(writer.toJsonString(span)).get("context").get("service");
+                assertThat(service.get("name").textValue()).isEqualTo(serviceName);
+                assertThat(service.get("version")).isNull();
+            }
+        }
+    }
+
     @Test
     void testSpanInvalidDestinationSerialization() {
         SpanImpl span = new SpanImpl(tracer);
@@ -1541,6 +1597,20 @@ class DslJsonSerializerTest {
         assertThat(jsonSpan.get("sample_rate").asDouble()).isEqualTo(0.42d);
     }
 
+    @Test
+    void testSampleRateIncludesTailSamplingKeepRate() {
+        Sampler sampler = mock(Sampler.class);
+        doReturn(true).when(sampler).isSampled(any(IdImpl.class));
+        doReturn(0.5d).when(sampler).getSampleRate();
+
+        TransactionImpl transaction = createRootTransaction(sampler);
+        SpanImpl span = transaction.createSpan();
+        transaction.setTailSamplingKeepRate(0.25d);
+
+        assertThat(readJsonString(writer.toJsonString(transaction)).get("sample_rate").asDouble()).isEqualTo(0.125d);
+        assertThat(readJsonString(writer.toJsonString(span)).get("sample_rate").asDouble()).isEqualTo(0.125d);
+    }
+
     @Test
     void testNonSampledTransaction() {
         Sampler sampler = mock(Sampler.class);
@@ -200,6 +200,31 @@ class MetricSetSerializationTest {
     }
 
 
+    @Test
+    void testSerializeHistogram() throws Exception {
+        registry.updateHistogram("foo", Labels.EMPTY, 3);
+        registry.updateHistogram("foo", Labels.EMPTY, 3);
+        registry.updateHistogram("foo", Labels.EMPTY, 100);
+
+        JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        JsonNode histogram = jsonNode.get("metricset").get("samples").get("foo.histogram");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(3.0);
+        assertThat(histogram.get("values").get(1).doubleValue()).isEqualTo(99.5);
+        assertThat(histogram.get("counts")).hasSize(2);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+    }
+
+    @Test
+    void testHistogramReset() throws Exception {
+        registry.updateHistogram("foo", Labels.EMPTY, 1);
+        assertThat(reportAsJson()).isNotNull();
+        assertThat(reportAsJson()).isNull();
+    }
+
     @Test
     void testRawMetricReset() throws Exception {
 
@@ -0,0 +1,217 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DiskSpoolTest {
+
+    @TempDir
+    File directory;
+
+    private DiskSpool spool;
+
+    @AfterEach
+    void tearDown() {
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    @Test
+    void testBatchesAreReturnedInOrder() throws IOException {
+        spool = new DiskSpool(directory, 1024, 256);
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(append("deflate", "batch " + i)).isTrue();
+        }
+        assertThat(spool.isEmpty()).isFalse();
+        assertThat(spool.getPendingBatches()).isEqualTo(10);
+
+        for (int i = 0; i < 10; i++) {
+            DiskSpool.Batch batch = spool.peek();
+            assertThat(batch).isNotNull();
+            assertThat(batch.getContentEncoding()).isEqualTo("deflate");
+            assertThat(new String(batch.getBody(), UTF_8)).isEqualTo("batch " + i);
+            spool.remove(batch);
+        }
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getAppendedBatches()).isEqualTo(10);
+        assertThat(spool.getConsumedBatches()).isEqualTo(10);
+    }
+
+    @Test
+    void testFullyConsumedSegmentsAreReused() throws IOException {
+        spool = new DiskSpool(directory, 1024, 64);
+        String padding = new String(new byte[40], UTF_8);
+        for (int i = 0; i < 3; i++) {
+            append("", i + padding);
+        }
+        assertThat(segmentFiles()).hasSize(3);
+
+        spool.remove(spool.peek());
+        spool.remove(spool.peek());
+        append("", 3 + padding);
+        append("", 4 + padding);
+
+        assertThat(segmentFiles()).hasSize(3);
+        assertThat(spool.getSizeInBytes()).isEqualTo(3 * 64);
+        for (int i = 2; i < 5; i++) {
+            DiskSpool.Batch batch = spool.peek();
+            assertThat(new String(batch.getBody(), UTF_8)).isEqualTo(i + padding);
+            spool.remove(batch);
+        }
+    }
+
+    @Test
+    void testReusedSegmentsAreOrderedAcrossRestarts() throws IOException {
+        spool = new DiskSpool(directory, 1024, 64);
+        String padding = new String(new byte[40], UTF_8);
+        append("", 0 + padding);
+        append("", 1 + padding);
+        spool.remove(spool.peek());
+        // reuses the file of the first segment
+        append("", 2 + padding);
+        spool.close();
+
+        spool = new DiskSpool(directory, 1024, 64);
+        assertThat(spool.getPendingBatches()).isEqualTo(2);
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo(1 + padding);
+        spool.remove(spool.peek());
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo(2 + padding);
+    }
+
+    @Test
+    void testBatchesArePersistedAcrossRestarts() throws IOException {
+        spool = new DiskSpool(directory, 1024, 128);
+        for (int i = 0; i < 5; i++) {
+            append("gzip", "batch " + i);
+        }
+        spool.remove(spool.peek());
+        spool.close();
+
+        spool = new DiskSpool(directory, 1024, 128);
+        assertThat(spool.getPendingBatches()).isEqualTo(4);
+        DiskSpool.Batch batch = spool.peek();
+        assertThat(batch).isNotNull();
+        assertThat(batch.getContentEncoding()).isEqualTo("gzip");
+        assertThat(new String(batch.getBody(), UTF_8)).isEqualTo("batch 1");
+
+        // new batches are appended after the existing ones
+        append("gzip", "batch 5");
+        assertThat(spool.getPendingBatches()).isEqualTo(5);
+    }
+
+    @Test
+    void testOldestSegmentIsEvictedWhenFull() throws IOException {
+        // every segment can only hold a single batch
+        spool = new DiskSpool(directory, 128, 64);
+        String padding = new String(new byte[40], UTF_8);
+        append("", "1" + padding);
+        append("", "2" + padding);
+        append("", "3" + padding);
+
+        assertThat(spool.getEvictedBatches()).isEqualTo(1);
+        assertThat(spool.getPendingBatches()).isEqualTo(2);
+        assertThat(spool.getSizeInBytes()).isEqualTo(128);
+        assertThat(segmentFiles()).hasSize(2);
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo("2" + padding);
+
+        // the evicted batches are not visible after a restart
+        spool.close();
+        spool = new DiskSpool(directory, 128, 64);
+        assertThat(spool.getPendingBatches()).isEqualTo(2);
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo("2" + padding);
+    }
+
+    @Test
+    void testSegmentsExceedingMaxSizeAreDroppedOnStartup() throws IOException {
+        spool = new DiskSpool(directory, 192, 64);
+        String padding = new String(new byte[40], UTF_8);
+        for (int i = 0; i < 3; i++) {
+            append("", i + padding);
+        }
+        spool.close();
+
+        spool = new DiskSpool(directory, 128, 64);
+        assertThat(segmentFiles()).hasSize(2);
+        assertThat(spool.getPendingBatches()).isEqualTo(2);
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo(1 + padding);
+    }
+
+    @Test
+    void testRemovingEvictedBatchHasNoEffect() throws IOException {
+        spool = new DiskSpool(directory, 128, 64);
+        String padding = new String(new byte[40], UTF_8);
+        append("", "1" + padding);
+        DiskSpool.Batch evicted = spool.peek();
+        append("", "2" + padding);
+        append("", "3" + padding);
+
+        spool.remove(evicted);
+
+        assertThat(spool.getPendingBatches()).isEqualTo(2);
+        assertThat(new String(spool.peek().getBody(), UTF_8)).isEqualTo("2" + padding);
+    }
+
+    @Test
+    void testBatchExceedingSegmentSizeIsRejected() throws IOException {
+        spool = new DiskSpool(directory, 1024, 64);
+        assertThat(append("", new String(new byte[64], UTF_8))).isFalse();
+        assertThat(spool.getRejectedBatches()).isEqualTo(1);
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testDirectoryCanOnlyBeUsedByOneSpool() throws IOException {
+        spool = new DiskSpool(directory, 1024, 64);
+        assertThatThrownBy(() -> new DiskSpool(directory, 1024, 64)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testCorruptSegmentsAreDeleted() throws IOException {
+        assertThat(new File(directory, "spool-0000000000000000000.seg").createNewFile()).isTrue();
+
+        spool = new DiskSpool(directory, 1024, 64);
+
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(segmentFiles()).isEmpty();
+    }
+
+    private boolean append(String contentEncoding, String body) {
+        byte[] bytes = body.getBytes(UTF_8);
+        return spool.append(contentEncoding, bytes, 0, bytes.length);
+    }
+
+    private File[] segmentFiles() {
+        return directory.listFiles((dir, name) -> name.endsWith(".seg"));
+    }
+}
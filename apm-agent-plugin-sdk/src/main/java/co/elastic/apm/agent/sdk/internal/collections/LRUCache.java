@@ -21,6 +21,7 @@ package co.elastic.apm.agent.sdk.internal.collections;
 import co.elastic.apm.agent.sdk.internal.InternalUtil;
 import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 
 public class LRUCache {
@@ -41,4 +42,26 @@ public class LRUCache {
     public static <K,V> Map<K,V> createCache(int capacity) {
         return factory.createCache(capacity);
     }
+
+    /**
+     * Creates a bounded LRU-cache whose capacity is defined by the total weight of its entries, rather than by the number of entries.
+     * This allows to bound the memory footprint of caches whose entries vary in size.
+     * Keys and values are strongly referenced.
+     * The returned map is guaranteed to be thread-safe.
+     *
+     * @param maxWeight        the maximum total weight of all entries, for example in bytes
+     * @param weigher          determines the weight of an entry, must be at least {@code 1}
+     * @param evictionListener notified when an entry has been evicted, may be {@code null}
+     */
+    public static <K, V> Map<K, V> createWeightedCache(long maxWeight, Weigher<? super K, ? super V> weigher, @Nullable EvictionListener<? super K, ? super V> evictionListener) {
+        return factory.createWeightedCache(maxWeight, weigher, evictionListener);
+    }
+
+    public interface Weigher<K, V> {
+        int weightOf(K key, V value);
+    }
+
+    public interface EvictionListener<K, V> {
+        void onEviction(K key, V value);
+    }
 }
@@ -18,9 +18,12 @@
  */
 package co.elastic.apm.agent.sdk.internal.collections;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 
 public interface LRUCacheFactory {
 
     <K,V> Map<K,V> createCache(int capacity);
+
+    <K, V> Map<K, V> createWeightedCache(long maxWeight, LRUCache.Weigher<? super K, ? super V> weigher, @Nullable LRUCache.EvictionListener<? super K, ? super V> evictionListener);
 }
@@ -0,0 +1,366 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.sdk.internal.db.signature;
+
+import javax.annotation.Nullable;
+
+/**
+ * Computes the key under which the signature of a query is cached.
+ * <p>
+ * Queries which only differ in their literals, such as {@code WHERE id = 1} and {@code WHERE id = 2},
+ * or in the number of literals in a list, such as {@code IN (1, 2)} and {@code IN (1, 2, 3)}, have the same signature.
+ * The fingerprint replaces string and numeric literals with marker characters and collapses lists of literals,
+ * so that all these variants share a single cache entry.
+ * </p>
+ * <p>
+ * The fingerprint is computed in a single pass which mirrors how the {@link Scanner} tokenizes literals, comments and quoted identifiers.
+ * This guarantees that only the text of tokens which never contribute to the signature is replaced.
+ * If the query contains a construct where this can't be guaranteed, for example dollar-quoted strings or unterminated literals,
+ * the query itself (prefixed with an escape character) is used as the key.
+ * If the query does not contain any literals, the query itself is returned, which does not allocate.
+ * </p>
+ */
+class QueryFingerprint {
+
+    /**
+     * Prefixes queries which can't be fingerprinted.
+     * A fingerprint never starts with a marker as literals in the first word are never replaced.
+     */
+    static final char ESCAPE = '\u0000';
+    static final char NUMBER = '\u0001';
+    static final char STRING = '\u0002';
+    /**
+     * A collapsed list which contains an even number of string literals.
+     * The parity is retained as the {@code JdbcFilter} toggles its state for each string literal.
+     */
+    static final char LIST_EVEN = '\u0003';
+    static final char LIST_ODD = '\u0004';
+    private static final char MAX_MARKER = LIST_ODD;
+
+    private static final int UNSUPPORTED = -1;
+
+    private QueryFingerprint() {
+    }
+
+    static String of(String query) {
+        final int length = query.length();
+        // the signature of unknown statements is the first word of the query, literals within it must be retained
+        final int firstWordEnd = firstWordEnd(query);
+        StringBuilder fingerprint = null;
+        // the index up to which the query has been copied to the fingerprint
+        int copied = 0;
+        int i = 0;
+        while (i < length) {
+            final int tokenStart = i;
+            final char c = query.charAt(i++);
+            if (c <= MAX_MARKER) {
+                return ESCAPE + query;
+            } else if (c == '_' || Character.isLetter(c)) {
+                i = skipIdentifier(query, i);
+            } else if (Character.isDigit(c)) {
+                i = skipNumber(query, i);
+                if (tokenStart > firstWordEnd) {
+                    fingerprint = appendReplacement(fingerprint, query, copied, tokenStart, NUMBER);
+                    copied = i;
+                }
+            } else {
+                switch (c) {
+                    case '\'':
+                        i = skipString(query, i);
+                        if (i == UNSUPPORTED) {
+                            return ESCAPE + query;
+                        }
+                        if (tokenStart > firstWordEnd) {
+                            fingerprint = appendReplacement(fingerprint, query, copied, tokenStart, STRING);
+                            copied = i;
+                        }
+                        break;
+                    case '"':
+                    case '`':
+                        i = skipQuotedIdentifier(query, i, c);
+                        break;
+                    case '[':
+                        i = skipQuotedIdentifier(query, i, ']');
+                        break;
+                    case '-':
+                        if (isChar(query, i, '-')) {
+                            i = skipSimpleComment(query, i + 1);
+                        }
+                        break;
+                    case '/':
+                        if (isChar(query, i, '*')) {
+                            i = skipBracketedComment(query, i + 1);
+                        } else if (isChar(query, i, '/')) {
+                            i = skipSimpleComment(query, i + 1);
+                        }
+                        break;
+                    case '$':
+                        if (i < length) {
+                            char next = query.charAt(i);
+                            if (Character.isDigit(next)) {
+                                // positional parameter, like $1
+                                i = skipDigits(query, i);
+                            } else if (next == '$' || next == '_' || Character.isLetter(next)) {
+                                // dollar-quoted string literal
+                                return ESCAPE + query;
+                            }
+                        }
+                        break;
+                    case '(':
+                        if (tokenStart > firstWordEnd) {
+                            int listEnd = skipLiteralList(query, i);
+                            if (listEnd > 0) {
+                                fingerprint = appendReplacement(fingerprint, query, copied, i, listMarker(query, i, listEnd));
+                                copied = listEnd - 1;
+                                i = listEnd;
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                if (i == UNSUPPORTED) {
+                    return ESCAPE + query;
+                }
+            }
+        }
+        if (fingerprint == null) {
+            return query;
+        }
+        return fingerprint.append(query, copied, length).toString();
+    }
+
+    private static StringBuilder appendReplacement(@Nullable StringBuilder fingerprint, String query, int copied, int replacementStart, char marker) {
+        if (fingerprint == null) {
+            fingerprint = new StringBuilder(query.length());
+        }
+        return fingerprint.append(query, copied, replacementStart).append(marker);
+    }
+
+    /**
+     * Mirrors {@link String#trim()} and {@link String#indexOf(int)} as used by {@link SignatureParser} for unknown statements.
+     */
+    private static int firstWordEnd(String query) {
+        int i = 0;
+        while (i < query.length() && query.charAt(i) <= ' ') {
+            i++;
+        }
+        int space = query.indexOf(' ', i);
+        return space >= 0 ? space : query.length();
+    }
+
+    private static boolean isChar(String query, int i, char c) {
+        return i < query.length() && query.charAt(i) == c;
+    }
+
+    private static int skipIdentifier(String query, int i) {
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isDigit(c) || c == '_' || c == '$' || Character.isLetter(c)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int skipDigits(String query, int i) {
+        while (i < query.length() && Character.isDigit(query.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Mirrors {@link Scanner}{@code #scanNumericLiteral()}
+     */
+    private static int skipNumber(String query, int i) {
+        boolean hasPeriod = false;
+        boolean hasExponent = false;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isDigit(c)) {
+                i++;
+                continue;
+            }
+            switch (c) {
+                case '.':
+                    if (hasPeriod) {
+                        return i;
+                    }
+                    i++;
+                    hasPeriod = true;
+                    break;
+                case 'e':
+                case 'E':
+                    if (hasExponent) {
+                        return i;
+                    }
+                    i++;
+                    hasExponent = true;
+                    if (isChar(query, i, '+') || isChar(query, i, '-')) {
+                        i++;
+                    }
+                    break;
+                default:
+                    return i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Mirrors {@link Scanner}{@code #scanStringLiteral()}
+     */
+    private static int skipString(String query, int i) {
+        while (i < query.length()) {
+            char c = query.charAt(i++);
+            if (c == '\\' && i < query.length()) {
+                i++;
+            } else if (c == '\'') {
+                if (isChar(query, i, '\'')) {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * Mirrors {@link Scanner}{@code #scanQuotedIdentifier(char)}
+     */
+    private static int skipQuotedIdentifier(String query, int i, char delimiter) {
+        while (i < query.length()) {
+            char c = query.charAt(i++);
+            if (c <= MAX_MARKER) {
+                return UNSUPPORTED;
+            }
+            if (c == delimiter) {
+                if (delimiter == '"' && isChar(query, i, '"')) {
+                    i++;
+                    continue;
+                }
+                return i;
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * Mirrors {@link Scanner}{@code #scanSimpleComment()}
+     */
+    private static int skipSimpleComment(String query, int i) {
+        while (i < query.length()) {
+            char c = query.charAt(i++);
+            if (c <= MAX_MARKER) {
+                return UNSUPPORTED;
+            }
+            if (c == '\n') {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Mirrors {@link Scanner}{@code #scanBracketedComment()}
+     */
+    private static int skipBracketedComment(String query, int i) {
+        int nesting = 1;
+        while (i < query.length()) {
+            char c = query.charAt(i++);
+            if (c <= MAX_MARKER) {
+                return UNSUPPORTED;
+            }
+            switch (c) {
+                case '/':
+                    if (isChar(query, i, '*')) {
+                        i++;
+                        nesting++;
+                    }
+                    // fall through, just like the Scanner does
+                case '*':
+                    if (isChar(query, i, '/')) {
+                        i++;
+                        nesting--;
+                        if (nesting == 0) {
+                            return i;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * Checks whether the parenthesis at {@code i - 1} opens a list which only consists of literals and bind parameters,
+     * like {@code (1, 2, 3)}, {@code ('a', 'b')} or {@code (?, ?)}.
+     *
+     * @return the index after the closing parenthesis, or {@link #UNSUPPORTED} if this is not a list of literals
+     */
+    private static int skipLiteralList(String query, int i) {
+        boolean hasElements = false;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == ')') {
+                return hasElements ? i + 1 : UNSUPPORTED;
+            } else if (c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                i++;
+            } else if (c == '?') {
+                hasElements = true;
+                i++;
+            } else if ((c == '-' || c == '+') && i + 1 < query.length() && Character.isDigit(query.charAt(i + 1))) {
+                i++;
+            } else if (Character.isDigit(c)) {
+                hasElements = true;
+                i = skipNumber(query, i + 1);
+            } else if (c == '\'') {
+                hasElements = true;
+                i = skipString(query, i + 1);
+                if (i == UNSUPPORTED) {
+                    return UNSUPPORTED;
+                }
+            } else {
+                return UNSUPPORTED;
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    private static char listMarker(String query, int listStart, int listEnd) {
+        int strings = 0;
+        int i = listStart;
+        while (i < listEnd) {
+            char c = query.charAt(i);
+            if (c == '\'') {
+                strings++;
+                i = skipString(query, i + 1);
+            } else {
+                i++;
+            }
+        }
+        return strings % 2 == 0 ? LIST_EVEN : LIST_ODD;
+    }
+}
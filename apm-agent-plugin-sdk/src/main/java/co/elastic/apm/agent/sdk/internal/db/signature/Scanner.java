@@ -18,6 +18,16 @@
  */
 package co.elastic.apm.agent.sdk.internal.db.signature;
 
+/**
+ * Tokenizes SQL queries in order to determine their signature.
+ * <p>
+ * The scanner does not allocate.
+ * String literals, quoted identifiers and comments are skipped in bulk via {@link String#indexOf(int, int)},
+ * which is intrinsified by the JVM, rather than char by char.
+ * Together with {@link SignatureParser} stopping to scan as soon as the signature is determined,
+ * this keeps the overhead low even for the multi-kilobyte queries generated by ORMs.
+ * </p>
+ */
 public class Scanner {
 
     private String input = "";
@@ -25,6 +35,12 @@ public class Scanner {
     private int end; // text end char offset
     private int pos; // read position char offset
     private int inputLength;
+    /**
+     * The index of the next backslash at or after {@link #pos}, {@link Integer#MAX_VALUE} if there is none,
+     * or a negative value if it has not been looked up yet.
+     * Caching it avoids searching for a backslash to the end of the input for every string literal.
+     */
+    private int nextBackslash;
     private final ScannerFilter filter;
 
     public Scanner() {
@@ -42,6 +58,7 @@ public class Scanner {
         start = 0;
         end = 0;
         pos = 0;
+        nextBackslash = -1;
     }
 
     public Token scanWhile(Token token) {
@@ -154,11 +171,11 @@ public class Scanner {
                         c = next();
                         if (c == '$') {
                             // This marks the end of the initial $foo$.
-                            final String text = text();
-                            int i = input.indexOf(text, pos);
+                            final int tagLength = textLength();
+                            int i = indexOfCurrentTokenText(pos);
                             if (i >= 0) {
-                                end = i + text.length();
-                                pos = i + text.length();
+                                end = i + tagLength;
+                                pos = i + tagLength;
                                 return Token.STRING;
                             }
                             return Token.OTHER;
@@ -178,15 +195,18 @@ public class Scanner {
     }
 
     private Token scanKeywordOrIdentifier(boolean maybeKeyword) {
-        while (hasNext()) {
-            char c = peek();
+        int i = pos;
+        while (i < inputLength) {
+            char c = input.charAt(i);
             if (Character.isDigit(c) || c == '_' || c == '$') {
                 maybeKeyword = false;
             } else if (!Character.isLetter(c)) {
                 break;
             }
-            next();
+            i++;
         }
+        pos = i;
+        end = i;
         if (!maybeKeyword) {
             return Token.IDENT;
         }
@@ -235,76 +255,117 @@ public class Scanner {
 
     private Token scanStringLiteral() {
         while (hasNext()) {
-            char c = next();
-            if (c == '\\' && hasNext()) {
+            int quote = input.indexOf('\'', pos);
+            if (quote < 0) {
+                skipToEnd();
+                return Token.EOF;
+            }
+            int backslash = nextBackslash();
+            if (backslash < quote) {
                 // skip escaped character
                 // example: 'what\'s up?'
-                next();
-            } else if (c == '\'') {
-                if (isNextChar('\'')) {
-                    // skip escaped single quote
-                    // example: 'what''s up?'
-                    next();
-                } else {
-                    // end of string
-                    return Token.STRING;
-                }
+                skipTo(Math.min(backslash + 2, inputLength));
+            } else if (quote + 1 < inputLength && input.charAt(quote + 1) == '\'') {
+                // skip escaped single quote
+                // example: 'what''s up?'
+                skipTo(quote + 2);
+            } else {
+                // end of string
+                skipTo(quote + 1);
+                return Token.STRING;
             }
         }
         return Token.EOF;
     }
 
+    private int nextBackslash() {
+        if (nextBackslash < pos) {
+            int i = input.indexOf('\\', pos);
+            nextBackslash = i >= 0 ? i : Integer.MAX_VALUE;
+        }
+        return nextBackslash;
+    }
+
     private Token scanQuotedIdentifier(char delimiter) {
         while (hasNext()) {
-            char c = next();
-            if (c == delimiter) {
-                if (delimiter == '"' && isNextChar('"')) {
-                    // skip escaped double quote
-                    // example: "He said ""great"""
-                    next();
-                    continue;
-                }
-                // remove quotes from identifier
-                start++;
-                end--;
-                return Token.IDENT;
+            int i = input.indexOf(delimiter, pos);
+            if (i < 0) {
+                skipToEnd();
+                return Token.EOF;
             }
+            skipTo(i + 1);
+            if (delimiter == '"' && isNextChar('"')) {
+                // skip escaped double quote
+                // example: "He said ""great"""
+                next();
+                continue;
+            }
+            // remove quotes from identifier
+            start++;
+            end--;
+            return Token.IDENT;
         }
         return Token.EOF;
     }
 
     private Token scanSimpleComment() {
-        while (hasNext()) {
-            if (next() == '\n') {
-                return Token.COMMENT;
-            }
+        int newLine = input.indexOf('\n', pos);
+        if (newLine < 0) {
+            skipToEnd();
+        } else {
+            skipTo(newLine + 1);
         }
         return Token.COMMENT;
     }
 
     private Token scanBracketedComment() {
         int nesting = 1;
-        while (hasNext()) {
-            char c = next();
-            switch (c) {
+        // only slashes and asterisks are relevant, everything in between is skipped without updating the scanner state
+        for (int i = pos; i < inputLength; i++) {
+            switch (input.charAt(i)) {
                 case '/':
-                    if (isNextChar('*')) {
-                        next();
+                    if (i + 1 < inputLength && input.charAt(i + 1) == '*') {
+                        i++;
                         nesting++;
                     }
                 case '*':
-                    if (isNextChar('/')) {
-                        next();
+                    if (i + 1 < inputLength && input.charAt(i + 1) == '/') {
+                        i++;
                         nesting--;
                         if (nesting == 0) {
+                            skipTo(i + 1);
                             return Token.COMMENT;
                         }
                     }
             }
         }
+        skipToEnd();
         return Token.EOF;
     }
 
+    private void skipTo(int newPos) {
+        pos = newPos;
+        end = newPos;
+    }
+
+    private void skipToEnd() {
+        skipTo(inputLength);
+    }
+
+    /**
+     * Returns the index of the next occurrence of the most recently scanned token's text, without allocating a {@link String}.
+     */
+    private int indexOfCurrentTokenText(int fromIndex) {
+        final int length = textLength();
+        final char first = input.charAt(start);
+        for (int i = input.indexOf(first, fromIndex); i >= 0 && i + length <= inputLength; i = input.indexOf(first, i + 1)) {
+            if (input.regionMatches(i, input, start, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private char peek() {
         return input.charAt(pos);
     }
@@ -351,6 +412,17 @@ public class Scanner {
         return end - start;
     }
 
+    /**
+     * Checks whether the text of the most recently scanned token consists of the provided char only,
+     * without allocating like {@link #text()} does.
+     *
+     * @param c the char to compare the token text to
+     * @return {@code true} if the text of the most recently scanned token is exactly {@code c}
+     */
+    public boolean isTextEqualTo(char c) {
+        return end - start == 1 && input.charAt(start) == c;
+    }
+
     private boolean isNextChar(char c) {
         return hasNext() && peek() == c;
     }
@@ -31,7 +31,44 @@ public class SignatureParser {
 
     private final ObjectPool<? extends ObjectHandle<Scanner>> scannerPool;
 
-    private final Map<String, String[]> signatureCache = LRUCache.createCache(1000);
+    /**
+     * The default maximum size of the signature cache, roughly 1 MiB
+     */
+    public static final long DEFAULT_CACHE_SIZE_BYTES = 1024 * 1024;
+
+    /**
+     * Queries longer than this are not cached.
+     * Computing and comparing the cache key of a long query requires multiple passes over it,
+     * which costs more than parsing it, as parsing stops as soon as the signature is determined.
+     * Besides, long queries would quickly evict lots of shorter ones from the cache.
+     */
+    static final int MAX_CACHED_QUERY_LENGTH = 2048;
+
+    /**
+     * The estimated memory overhead of a cache entry, excluding the characters of the key and the signature
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final LRUCache.Weigher<String, String[]> ENTRY_WEIGHER = new LRUCache.Weigher<String, String[]>() {
+        @Override
+        public int weightOf(String fingerprint, String[] signature) {
+            return ENTRY_OVERHEAD_BYTES + 2 * (fingerprint.length() + signature[0].length() + signature[1].length());
+        }
+    };
+
+    private static final LRUCache.EvictionListener<String, String[]> EVICTION_LISTENER = new LRUCache.EvictionListener<String, String[]>() {
+        @Override
+        public void onEviction(String fingerprint, String[] signature) {
+            SignatureCacheStatistics.recordEviction();
+        }
+    };
+
+    /**
+     * Maps the {@link QueryFingerprint} of a query to its signature and db link.
+     * The cache is bounded by the estimated memory consumption of its entries rather than by the number of entries,
+     * so that very long queries can't blow up the memory footprint.
+     */
+    private final Map<String, String[]> signatureCache;
 
     public SignatureParser() {
         this(new Callable<Scanner>() {
@@ -43,7 +80,12 @@ public class SignatureParser {
     }
 
     public SignatureParser(final Callable<Scanner> scannerAllocator) {
+        this(scannerAllocator, DEFAULT_CACHE_SIZE_BYTES);
+    }
+
+    public SignatureParser(final Callable<Scanner> scannerAllocator, long maxCacheSizeBytes) {
         scannerPool = ObjectPooling.createWithDefaultFactory(scannerAllocator);
+        signatureCache = LRUCache.createWeightedCache(maxCacheSizeBytes, ENTRY_WEIGHER, EVICTION_LISTENER);
     }
 
     public void querySignature(String query, StringBuilder signature, boolean preparedStatement) {
@@ -51,21 +93,32 @@ public class SignatureParser {
     }
 
     public void querySignature(String query, StringBuilder signature, @Nullable StringBuilder dbLink, boolean preparedStatement) {
+        if (query.length() > MAX_CACHED_QUERY_LENGTH) {
+            parse(query, signature, dbLink);
+            return;
+        }
 
-        final String[] cachedSignature = signatureCache.get(query);
+        // queries which only differ in their literals share the same cache entry
+        final String fingerprint = QueryFingerprint.of(query);
+        final String[] cachedSignature = signatureCache.get(fingerprint);
         if (cachedSignature != null) {
+            SignatureCacheStatistics.recordHit();
             signature.append(cachedSignature[0]);
             if (dbLink != null) {
                 dbLink.append(cachedSignature[1]);
             }
             return;
         }
+        SignatureCacheStatistics.recordMiss();
+        parse(query, signature, dbLink);
+        signatureCache.put(fingerprint, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
+    }
+
+    private void parse(String query, StringBuilder signature, @Nullable StringBuilder dbLink) {
         try (ObjectHandle<Scanner> pooledScanner = scannerPool.createInstance()) {
             Scanner scanner = pooledScanner.get();
             scanner.setQuery(query);
             parse(scanner, query, signature, dbLink);
-
-            signatureCache.put(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
         }
     }
 
@@ -103,12 +156,12 @@ public class SignatureParser {
                         level--;
                     } else if (t == Scanner.Token.FROM) {
                         if (level == 0) {
+                            // the signature is determined by the first top-level FROM, no need to scan the rest of the query
                             if (scanner.scanToken(Scanner.Token.IDENT)) {
                                 signature.append(" FROM");
                                 appendIdentifiers(scanner, signature, dbLink);
-                            } else {
-                                return;
                             }
+                            return;
                         }
                     }
                 }
@@ -148,7 +201,7 @@ public class SignatureParser {
                                 signature.append('.');
                                 break;
                             default:
-                                if ("@".equals(scanner.text())) {
+                                if (scanner.isTextEqualTo('@')) {
                                     isDbLink = true;
                                     break;
                                 } else {
@@ -166,9 +219,17 @@ public class SignatureParser {
                 }
                 return;
             default:
-                query = query.trim();
-                final int indexOfWhitespace = query.indexOf(' ');
-                signature.append(query, 0, indexOfWhitespace > 0 ? indexOfWhitespace : query.length());
+                // append the first word, without allocating a trimmed copy of the query
+                int start = 0;
+                int end = query.length();
+                while (start < end && query.charAt(start) <= ' ') {
+                    start++;
+                }
+                while (end > start && query.charAt(end - 1) <= ' ') {
+                    end--;
+                }
+                final int indexOfWhitespace = query.indexOf(' ', start);
+                signature.append(query, start, indexOfWhitespace >= 0 && indexOfWhitespace < end ? indexOfWhitespace : end);
         }
     }
 
@@ -199,7 +260,7 @@ public class SignatureParser {
                 case USING:
                     return;
                 default:
-                    if ("@".equals(scanner.text())) {
+                    if (scanner.isTextEqualTo('@')) {
                         isDbLink = true;
                     }
                     break;
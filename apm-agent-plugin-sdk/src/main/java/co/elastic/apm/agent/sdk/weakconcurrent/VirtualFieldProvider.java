@@ -0,0 +1,40 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.sdk.weakconcurrent;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Declares the virtual fields a plugin uses to store its state in the objects of library types,
+ * see {@link WeakConcurrent.WeakMapBuilder#withVirtualField(String)}.
+ * <p>
+ * The fields have to be known before the library types are defined, so implementations are loaded when the agent starts.
+ * They are registered in {@code META-INF/services/co.elastic.apm.agent.sdk.weakconcurrent.VirtualFieldProvider}
+ * and must not depend on library types.
+ * </p>
+ */
+public interface VirtualFieldProvider {
+
+    /**
+     * @return the names of the virtual fields, mapped to the names of the types whose non-serializable subclasses and
+     * implementations get the field
+     */
+    Map<String, Collection<String>> getVirtualFields();
+}
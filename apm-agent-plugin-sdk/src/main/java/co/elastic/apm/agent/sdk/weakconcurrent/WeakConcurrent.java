@@ -78,6 +78,22 @@ public final class WeakConcurrent {
 
         WeakMapBuilder<K, V> withDefaultValueSupplier(@Nullable WeakMap.DefaultValueSupplier<K, V> defaultValueSupplier);
 
+        /**
+         * Stores the values in a field which the agent adds to the keys' classes when they are defined,
+         * instead of a map entry with a weak reference to the key.
+         * This avoids hashing the keys and allocating weak references, which matters for maps with many short-lived keys.
+         * <p>
+         * The field has to be declared by a {@link VirtualFieldProvider}.
+         * If the agent has not added the field, for example because it has been attached at runtime,
+         * or the classes have been loaded before the agent, the values are stored in a regular weak map.
+         * The values of keys with a virtual field are not included in the iteration, in {@link WeakMap#approximateSize()}
+         * and are not removed by {@link WeakMap#clear()}. They can be collected together with their keys.
+         * </p>
+         *
+         * @param fieldName the name of the virtual field, as declared by {@link VirtualFieldProvider#getVirtualFields()}
+         */
+        WeakMapBuilder<K, V> withVirtualField(String fieldName);
+
         WeakMap<K, V> build();
     }
 
@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.sdk.internal.collections;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -26,4 +27,9 @@ public class NonEvictingCacheFactory implements LRUCacheFactory{
     public <K, V> Map<K, V> createCache(int capacity) {
         return new ConcurrentHashMap<>();
     }
+
+    @Override
+    public <K, V> Map<K, V> createWeightedCache(long maxWeight, LRUCache.Weigher<? super K, ? super V> weigher, @Nullable LRUCache.EvictionListener<? super K, ? super V> evictionListener) {
+        return new ConcurrentHashMap<>();
+    }
 }
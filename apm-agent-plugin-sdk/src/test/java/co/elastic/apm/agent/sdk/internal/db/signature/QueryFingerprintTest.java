@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.sdk.internal.db.signature;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryFingerprintTest {
+
+    @Test
+    void testQueryWithoutLiteralsIsNotCopied() {
+        String query = "SELECT * FROM foo WHERE bar = ?";
+        assertThat(QueryFingerprint.of(query)).isSameAs(query);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', quoteCharacter = '~', value = {
+        "SELECT * FROM foo WHERE id = 1            | SELECT * FROM foo WHERE id = 42",
+        "SELECT * FROM foo WHERE id = 1.5e-3       | SELECT * FROM foo WHERE id = 7",
+        "SELECT * FROM foo WHERE name = 'bar'      | SELECT * FROM foo WHERE name = 'it''s \\' quoted'",
+        "SELECT * FROM foo WHERE id IN (1, 2, 3)   | SELECT * FROM foo WHERE id IN (4)",
+        "SELECT * FROM foo WHERE id IN (?, ?)      | SELECT * FROM foo WHERE id IN (-1, +2.0, ?)",
+        "SELECT * FROM foo WHERE id IN ('a', 'b')  | SELECT * FROM foo WHERE id IN ('c', 'd', 'e', 'f')",
+        "INSERT INTO foo VALUES (1, 'a')           | INSERT INTO foo VALUES (2, 'b')",
+    })
+    void testLiteralVariantsHaveSameFingerprint(String query, String variant) {
+        assertThat(QueryFingerprint.of(variant)).isEqualTo(QueryFingerprint.of(query));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', quoteCharacter = '~', value = {
+        "SELECT * FROM foo1 WHERE id = 1              | SELECT * FROM foo2 WHERE id = 1",
+        "SELECT * FROM \"foo 1\"                      | SELECT * FROM \"foo 2\"",
+        "SELECT * FROM foo /* 1 */                    | SELECT * FROM foo /* 2 */",
+        "SELECT * FROM foo WHERE id IN ('a')          | SELECT * FROM foo WHERE id IN ('a', 'b')",
+        "SELECT * FROM foo WHERE id IN (1, bar)       | SELECT * FROM foo WHERE id IN (1, baz)",
+        "1 foo                                        | 2 foo",
+    })
+    void testSignificantDifferencesAreRetained(String query, String variant) {
+        assertThat(QueryFingerprint.of(variant)).isNotEqualTo(QueryFingerprint.of(query));
+    }
+
+    @Test
+    void testLiteralsInFirstWordAreRetained() {
+        // the signature of unknown statements is the first word of the query
+        assertThat(QueryFingerprint.of("1 2")).isEqualTo("1 " + QueryFingerprint.NUMBER);
+        assertThat(QueryFingerprint.of("foo'1' 2")).isEqualTo("foo'1' " + QueryFingerprint.NUMBER);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "SELECT $$ 1 $$",
+        "SELECT $tag$ 1 $tag$",
+        "SELECT 'unterminated",
+        "SELECT \"unterminated",
+        "SELECT 1 /* unterminated",
+        "SELECT \u0001, 1",
+    })
+    void testUnsupportedQueriesAreEscaped(String query) {
+        assertThat(QueryFingerprint.of(query)).isEqualTo(QueryFingerprint.ESCAPE + query);
+    }
+
+    @Test
+    void testPositionalParametersAreRetained() {
+        String query = "SELECT * FROM foo WHERE a = $1 AND b = $2";
+        assertThat(QueryFingerprint.of(query)).isSameAs(query);
+    }
+}
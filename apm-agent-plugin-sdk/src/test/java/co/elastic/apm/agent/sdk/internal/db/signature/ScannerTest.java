@@ -20,6 +20,7 @@ package co.elastic.apm.agent.sdk.internal.db.signature;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 import specs.TestJsonSpec;
@@ -70,6 +71,37 @@ class ScannerTest {
 
     }
 
+    @Test
+    void testLiteralsAndCommentsAreSkippedInBulk() {
+        scanner.setQuery("'it\\'s' /* a /* nested */ comment */ 'it''s' \"quoted \"\" identifier\" -- comment\n'a\\\\' x");
+
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.STRING);
+        assertThat(scanner.text()).isEqualTo("'it\\'s'");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.COMMENT);
+        assertThat(scanner.text()).isEqualTo("/* a /* nested */ comment */");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.STRING);
+        assertThat(scanner.text()).isEqualTo("'it''s'");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.IDENT);
+        assertThat(scanner.text()).isEqualTo("quoted \"\" identifier");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.COMMENT);
+        assertThat(scanner.text()).isEqualTo("-- comment\n");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.STRING);
+        assertThat(scanner.text()).isEqualTo("'a\\\\'");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.IDENT);
+        assertThat(scanner.isTextEqualTo('x')).isTrue();
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.EOF);
+    }
+
+    @Test
+    void testDollarQuotedString() {
+        scanner.setQuery("$tag$ it's $tag $tag$ x");
+
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.STRING);
+        assertThat(scanner.text()).isEqualTo("$tag$ it's $tag $tag$");
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.IDENT);
+        assertThat(scanner.scan()).isEqualTo(Scanner.Token.EOF);
+    }
+
     private static Stream<JsonNode> getTestCases() {
         Iterator<JsonNode> json = TestJsonSpec.getJson("sql_token_examples.json").iterator();
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(json, Spliterator.ORDERED), false);
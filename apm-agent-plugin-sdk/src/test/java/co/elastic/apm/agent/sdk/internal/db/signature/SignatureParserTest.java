@@ -75,6 +75,61 @@ public class SignatureParserTest {
             });
     }
 
+    @ParameterizedTest
+    @MethodSource("getTestSignatures_shared")
+    void testSignature_cached(String input, String output, String comment) {
+        testSignature_shared(input, output, comment);
+        testSignature_shared(input, output, comment);
+    }
+
+    @Test
+    void testLiteralVariantsShareCacheEntry() {
+        SignatureCacheStatistics.enable();
+        long hits = SignatureCacheStatistics.getHits();
+        long misses = SignatureCacheStatistics.getMisses();
+
+        final StringBuilder sb = new StringBuilder();
+        signatureParser.querySignature("SELECT * FROM foo WHERE id IN (1, 2) AND name = 'bar'", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+        sb.setLength(0);
+        signatureParser.querySignature("SELECT * FROM foo WHERE id IN (3, 4, 5) AND name = 'baz'", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+        sb.setLength(0);
+        signatureParser.querySignature("SELECT * FROM bar WHERE id = 1", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM bar");
+
+        assertThat(SignatureCacheStatistics.getHits() - hits).isEqualTo(1);
+        assertThat(SignatureCacheStatistics.getMisses() - misses).isEqualTo(2);
+    }
+
+    @Test
+    void testSignatureIsDeterminedByFirstTopLevelFrom() {
+        final StringBuilder sb = new StringBuilder();
+        signatureParser.querySignature("SELECT a FROM foo UNION SELECT b FROM bar", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+    }
+
+    @Test
+    void testLongQueriesAreNotCached() {
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (int i = 0; select.length() <= SignatureParser.MAX_CACHED_QUERY_LENGTH; i++) {
+            select.append("t.column").append(i).append(" AS c").append(i).append(", ");
+        }
+        String query = select.append("t.id FROM foo t WHERE t.name = 'bar'").toString();
+        SignatureCacheStatistics.enable();
+        long hits = SignatureCacheStatistics.getHits();
+        long misses = SignatureCacheStatistics.getMisses();
+
+        for (int i = 0; i < 2; i++) {
+            final StringBuilder sb = new StringBuilder();
+            signatureParser.querySignature(query, sb, false);
+            assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+        }
+
+        assertThat(SignatureCacheStatistics.getHits()).isEqualTo(hits);
+        assertThat(SignatureCacheStatistics.getMisses()).isEqualTo(misses);
+    }
+
     @Test
     void testDbLinkForUpdate() {
         final StringBuilder sb = new StringBuilder();
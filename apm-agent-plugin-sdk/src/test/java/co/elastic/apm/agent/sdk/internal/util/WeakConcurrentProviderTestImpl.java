@@ -51,6 +51,11 @@ public class WeakConcurrentProviderTestImpl implements WeakConcurrent.WeakConcur
                 return this;
             }
 
+            @Override
+            public WeakConcurrent.WeakMapBuilder<K, V> withVirtualField(String fieldName) {
+                return this;
+            }
+
             @Override
             public WeakMap<K, V> build() {
                 return new NonWeakMap<>(defaultValueSupplier);
@@ -28,6 +28,8 @@ public final class ElasticsearchEndpointMap {
 
     private static final Map<String, ElasticsearchEndpointDefinition> routesMap;
 
+    private static final ElasticsearchRouteTrie routeTrie;
+
     static {
         Map<String, ElasticsearchEndpointDefinition> routes = new HashMap<>(415);
         initEndpoint(routes, "async_search.status", false, "/_async_search/status/{id}");
@@ -870,6 +872,7 @@ public final class ElasticsearchEndpointMap {
             "/_security/service/{namespace}/{service}/credential/token/{name}/_clear_cache");
         initEndpoint(routes, "search_mvt", false, "/{index}/_mvt/{field}/{zoom}/{x}/{y}");
         routesMap = Collections.unmodifiableMap(routes);
+        routeTrie = ElasticsearchRouteTrie.build(routes.values());
     }
 
     private ElasticsearchEndpointMap() {
@@ -898,4 +901,8 @@ public final class ElasticsearchEndpointMap {
     public static Collection<ElasticsearchEndpointDefinition> getAllEndpoints() {
         return routesMap.values();
     }
+
+    static ElasticsearchRouteTrie getRouteTrie() {
+        return routeTrie;
+    }
 }
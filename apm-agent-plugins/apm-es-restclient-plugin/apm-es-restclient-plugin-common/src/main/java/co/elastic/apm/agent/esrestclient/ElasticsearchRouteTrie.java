@@ -0,0 +1,281 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.esrestclient;
+
+import co.elastic.apm.agent.tracer.Span;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A trie of the path segments of all parameterized routes of the Elasticsearch endpoints.
+ * <p>
+ * A path segment either matches a literal segment of a route, or any non-empty segment if the route has a parameter at this position,
+ * which is equivalent to the {@code [^/]+} capture group a regular expression would use.
+ * Matching a URL path walks the trie segment by segment, without allocating memory.
+ * Only the values of the path parameters of the matching route are extracted as substrings of the URL path.
+ * </p>
+ * <p>
+ * As multiple routes may match the same URL path, the routes of the endpoint which was determined by the client take precedence,
+ * in the order they are defined in.
+ * </p>
+ */
+final class ElasticsearchRouteTrie {
+
+    private static final String OTEL_PATH_PARTS_ATTRIBUTE_PREFIX = "db.elasticsearch.path_parts.";
+
+    private final Node root;
+
+    private ElasticsearchRouteTrie(Node root) {
+        this.root = root;
+    }
+
+    static ElasticsearchRouteTrie build(Collection<ElasticsearchEndpointDefinition> endpoints) {
+        // the endpoint map contains every endpoint twice, with and without the 'es/' prefix
+        Set<ElasticsearchEndpointDefinition> distinctEndpoints = Collections.newSetFromMap(new IdentityHashMap<ElasticsearchEndpointDefinition, Boolean>());
+        Node root = new Node();
+        for (ElasticsearchEndpointDefinition endpoint : endpoints) {
+            if (!distinctEndpoints.add(endpoint)) {
+                continue;
+            }
+            List<ElasticsearchEndpointDefinition.Route> routes = endpoint.getRoutes();
+            for (int i = 0; i < routes.size(); i++) {
+                ElasticsearchEndpointDefinition.Route route = routes.get(i);
+                if (route.hasParameters()) {
+                    root.add(new RouteTarget(endpoint, i, route.getName()));
+                }
+            }
+        }
+        root.freeze();
+        return new ElasticsearchRouteTrie(root);
+    }
+
+    /**
+     * Adds the path parameters of the first route of the provided endpoint which matches the URL path as attributes to the span.
+     *
+     * @return whether a route of the endpoint has matched the URL path
+     */
+    boolean addPathPartAttributes(String urlPath, ElasticsearchEndpointDefinition endpoint, Span<?> spanToEnrich) {
+        RouteTarget target = findRoute(urlPath, endpoint);
+        if (target == null) {
+            return false;
+        }
+        target.addPathPartAttributes(urlPath, spanToEnrich);
+        return true;
+    }
+
+    @Nullable
+    RouteTarget findRoute(String urlPath, ElasticsearchEndpointDefinition endpoint) {
+        if (urlPath.isEmpty() || urlPath.charAt(0) != '/') {
+            return null;
+        }
+        return find(root, urlPath, 1, endpoint, null);
+    }
+
+    @Nullable
+    private static RouteTarget find(Node node, String urlPath, int segmentStart, ElasticsearchEndpointDefinition endpoint, @Nullable RouteTarget bestMatch) {
+        int segmentEnd = urlPath.indexOf('/', segmentStart);
+        boolean lastSegment = segmentEnd < 0;
+        if (lastSegment) {
+            segmentEnd = urlPath.length();
+        }
+        Node literalChild = node.getLiteralChild(urlPath, segmentStart, segmentEnd);
+        if (literalChild != null) {
+            bestMatch = lastSegment
+                ? literalChild.selectTarget(endpoint, bestMatch)
+                : find(literalChild, urlPath, segmentEnd + 1, endpoint, bestMatch);
+        }
+        Node parameterChild = node.parameterChild;
+        if (parameterChild != null && segmentEnd > segmentStart) {
+            bestMatch = lastSegment
+                ? parameterChild.selectTarget(endpoint, bestMatch)
+                : find(parameterChild, urlPath, segmentEnd + 1, endpoint, bestMatch);
+        }
+        return bestMatch;
+    }
+
+    static final class RouteTarget {
+        private final ElasticsearchEndpointDefinition endpoint;
+        private final int routeIndex;
+        /**
+         * The indices of the path segments which are parameters, in ascending order
+         */
+        private final int[] parameterSegments;
+        private final String[] attributeNames;
+        private final String[] segments;
+
+        private RouteTarget(ElasticsearchEndpointDefinition endpoint, int routeIndex, String route) {
+            this.endpoint = endpoint;
+            this.routeIndex = routeIndex;
+            segments = route.substring(1).split("/", -1);
+            List<Integer> parameterSegmentList = new ArrayList<>();
+            List<String> attributeNameList = new ArrayList<>();
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (isParameter(segment)) {
+                    parameterSegmentList.add(i);
+                    attributeNameList.add(OTEL_PATH_PARTS_ATTRIBUTE_PREFIX + segment.substring(1, segment.length() - 1));
+                }
+            }
+            parameterSegments = new int[parameterSegmentList.size()];
+            for (int i = 0; i < parameterSegments.length; i++) {
+                parameterSegments[i] = parameterSegmentList.get(i);
+            }
+            attributeNames = attributeNameList.toArray(new String[0]);
+        }
+
+        private static boolean isParameter(String segment) {
+            return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+        }
+
+        private void addPathPartAttributes(String urlPath, Span<?> spanToEnrich) {
+            int segmentStart = 1;
+            int segment = 0;
+            for (int i = 0; i < parameterSegments.length; i++) {
+                int parameterSegment = parameterSegments[i];
+                for (; segment < parameterSegment; segment++) {
+                    segmentStart = urlPath.indexOf('/', segmentStart) + 1;
+                }
+                int segmentEnd = urlPath.indexOf('/', segmentStart);
+                if (segmentEnd < 0) {
+                    segmentEnd = urlPath.length();
+                }
+                spanToEnrich.withOtelAttribute(attributeNames[i], urlPath.substring(segmentStart, segmentEnd));
+            }
+        }
+
+        ElasticsearchEndpointDefinition getEndpoint() {
+            return endpoint;
+        }
+
+        int getRouteIndex() {
+            return routeIndex;
+        }
+    }
+
+    private static final class Node {
+
+        /**
+         * The children for literal segments, only used while building the trie
+         */
+        @Nullable
+        private Map<String, Node> literalChildMap = new LinkedHashMap<>();
+        /**
+         * Open addressing hash table of the literal segments, indexed by {@link #hash(String, int, int)}
+         */
+        private String[] literalKeys = new String[0];
+        private Node[] literalChildren = new Node[0];
+        private int mask;
+        @Nullable
+        private Node parameterChild;
+        private RouteTarget[] targets = new RouteTarget[0];
+        @Nullable
+        private List<RouteTarget> targetList = new ArrayList<>();
+
+        private void add(RouteTarget target) {
+            Node node = this;
+            for (String segment : target.segments) {
+                node = node.getOrCreateChild(segment);
+            }
+            node.targetList.add(target);
+        }
+
+        private Node getOrCreateChild(String segment) {
+            if (RouteTarget.isParameter(segment)) {
+                if (parameterChild == null) {
+                    parameterChild = new Node();
+                }
+                return parameterChild;
+            }
+            Node child = literalChildMap.get(segment);
+            if (child == null) {
+                child = new Node();
+                literalChildMap.put(segment, child);
+            }
+            return child;
+        }
+
+        private void freeze() {
+            targets = targetList.toArray(new RouteTarget[0]);
+            targetList = null;
+            if (!literalChildMap.isEmpty()) {
+                int size = Integer.highestOneBit(literalChildMap.size() * 2 - 1) << 1;
+                mask = size - 1;
+                literalKeys = new String[size];
+                literalChildren = new Node[size];
+                for (Map.Entry<String, Node> entry : literalChildMap.entrySet()) {
+                    String key = entry.getKey();
+                    int slot = hash(key, 0, key.length()) & mask;
+                    while (literalKeys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    literalKeys[slot] = key;
+                    literalChildren[slot] = entry.getValue();
+                    entry.getValue().freeze();
+                }
+            }
+            literalChildMap = null;
+            if (parameterChild != null) {
+                parameterChild.freeze();
+            }
+        }
+
+        @Nullable
+        private Node getLiteralChild(String urlPath, int start, int end) {
+            if (literalKeys.length == 0) {
+                return null;
+            }
+            int length = end - start;
+            for (int slot = hash(urlPath, start, end) & mask; ; slot = (slot + 1) & mask) {
+                String key = literalKeys[slot];
+                if (key == null) {
+                    return null;
+                }
+                if (key.length() == length && urlPath.regionMatches(start, key, 0, length)) {
+                    return literalChildren[slot];
+                }
+            }
+        }
+
+        @Nullable
+        private RouteTarget selectTarget(ElasticsearchEndpointDefinition endpoint, @Nullable RouteTarget bestMatch) {
+            for (RouteTarget target : targets) {
+                if (target.endpoint == endpoint && (bestMatch == null || target.routeIndex < bestMatch.routeIndex)) {
+                    bestMatch = target;
+                }
+            }
+            return bestMatch;
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -33,6 +33,8 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 
@@ -121,30 +123,66 @@ public class ElasticsearchEndpointMapTest {
     }
 
     @Test
-    public void testBuildRegexPattern() {
-        Pattern pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_nodes/{node_id}/shutdown");
-        assertEquals("^/_nodes/(?<node0id>[^/]+)/shutdown$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_snapshot/{repository}/{snapshot}/_mount");
-        assertEquals("^/_snapshot/(?<repository>[^/]+)/(?<snapshot>[^/]+)/_mount$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_security/profile/_suggest");
-        assertEquals("^/_security/profile/_suggest$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_application/search_application/{name}");
-        assertEquals("^/_application/search_application/(?<name>[^/]+)$", pattern.pattern());
-
-        pattern = ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern("/");
-        assertEquals("^/$", pattern.pattern());
+    public void testMalformedPaths() {
+        ElasticsearchEndpointDefinition esEndpoint = ElasticsearchEndpointMap.get("get");
+
+        Map<String, String> observedParams = new HashMap<>();
+        Span<?> dummy = Mockito.mock(Span.class);
+        doAnswer((invoc) -> observedParams.put(invoc.getArgument(0), invoc.getArgument(1)))
+            .when(dummy).withOtelAttribute(any(), any());
+
+        esEndpoint.addPathPartAttributes("/my-index/_doc/", dummy);
+        esEndpoint.addPathPartAttributes("my-index/_doc/1", dummy);
+        esEndpoint.addPathPartAttributes("/my-index//_doc/1", dummy);
+        assertTrue(observedParams.isEmpty());
+
+        esEndpoint.addPathPartAttributes("/my-index/_doc/1", dummy);
+        assertEquals("my-index", observedParams.get("db.elasticsearch.path_parts.index"));
+        assertEquals("1", observedParams.get("db.elasticsearch.path_parts.id"));
     }
 
+    /**
+     * Compares the route trie with matching the routes of an endpoint in turn against regular expressions,
+     * for the URL paths of all routes and all endpoints.
+     */
+    @Test
+    public void testRouteTrieMatchesRegularExpressions() {
+        Set<ElasticsearchEndpointDefinition> endpoints = new HashSet<>(ElasticsearchEndpointMap.getAllEndpoints());
+        Map<ElasticsearchEndpointDefinition, List<Pattern>> patterns = new HashMap<>();
+        Set<String> urlPaths = new HashSet<>(Arrays.asList("", "/", "//", "/_search", "/my-index/_search/", "//_search"));
+        for (ElasticsearchEndpointDefinition endpoint : endpoints) {
+            List<Pattern> endpointPatterns = new ArrayList<>();
+            for (ElasticsearchEndpointDefinition.Route route : endpoint.getRoutes()) {
+                endpointPatterns.add(route.hasParameters() ? buildRegexPattern(route.getName()) : null);
+                for (String value : Arrays.asList("x", "_all", "_search", "my-index,other-index", "a.b")) {
+                    urlPaths.add(route.getName().replaceAll("\\{[^}]+}", value));
+                }
+            }
+            patterns.put(endpoint, endpointPatterns);
+        }
 
+        ElasticsearchRouteTrie routeTrie = ElasticsearchEndpointMap.getRouteTrie();
+        for (ElasticsearchEndpointDefinition endpoint : endpoints) {
+            List<Pattern> endpointPatterns = patterns.get(endpoint);
+            for (String urlPath : urlPaths) {
+                int expectedRouteIndex = -1;
+                for (int i = 0; i < endpointPatterns.size() && expectedRouteIndex < 0; i++) {
+                    Pattern pattern = endpointPatterns.get(i);
+                    if (pattern != null && pattern.matcher(urlPath).find()) {
+                        expectedRouteIndex = i;
+                    }
+                }
+                ElasticsearchRouteTrie.RouteTarget target = routeTrie.findRoute(urlPath, endpoint);
+                assertEquals(expectedRouteIndex, target != null ? target.getRouteIndex() : -1,
+                    endpoint.getEndpointName() + " " + urlPath);
+                if (target != null) {
+                    assertSame(endpoint, target.getEndpoint());
+                }
+            }
+        }
+    }
+
+    private static Pattern buildRegexPattern(String route) {
+        return Pattern.compile("^" + route.replaceAll("\\{[^}]+}", "[^/]+") + "$");
+    }
 }
@@ -27,8 +27,15 @@ import java.sql.Connection;
 @GlobalState
 public class JdbcGlobalState {
 
-    public static final WeakMap<Object, String> statementSqlMap = WeakConcurrent.buildMap();
-    public static final WeakMap<Connection, ConnectionMetaData> metaDataMap = WeakConcurrent.buildMap();
+    public static final String STATEMENT_SQL_FIELD = "jdbc-statement-sql";
+    public static final String CONNECTION_META_DATA_FIELD = "jdbc-connection-meta-data";
+
+    public static final WeakMap<Object, String> statementSqlMap = WeakConcurrent.<Object, String>weakMapBuilder()
+        .withVirtualField(STATEMENT_SQL_FIELD)
+        .build();
+    public static final WeakMap<Connection, ConnectionMetaData> metaDataMap = WeakConcurrent.<Connection, ConnectionMetaData>weakMapBuilder()
+        .withVirtualField(CONNECTION_META_DATA_FIELD)
+        .build();
     public static final WeakMap<Class<?>, Boolean> metadataSupported = WeakConcurrent.buildMap();
     public static final WeakMap<Class<?>, Boolean> catalogSupported = WeakConcurrent.buildMap();
     public static final WeakMap<Class<?>, Boolean> connectionSupported = WeakConcurrent.buildMap();
@@ -0,0 +1,41 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.jdbc.helper;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.VirtualFieldProvider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the SQL of statements and the meta data of connections in fields of the JDBC driver's classes if possible,
+ * as applications may create and close a large number of statements.
+ */
+public class JdbcVirtualFields implements VirtualFieldProvider {
+
+    @Override
+    public Map<String, Collection<String>> getVirtualFields() {
+        Map<String, Collection<String>> virtualFields = new HashMap<>();
+        virtualFields.put(JdbcGlobalState.STATEMENT_SQL_FIELD, Collections.singletonList("java.sql.Statement"));
+        virtualFields.put(JdbcGlobalState.CONNECTION_META_DATA_FIELD, Collections.singletonList("java.sql.Connection"));
+        return virtualFields;
+    }
+}
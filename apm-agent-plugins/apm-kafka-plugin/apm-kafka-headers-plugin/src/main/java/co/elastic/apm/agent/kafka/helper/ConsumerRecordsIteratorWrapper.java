@@ -42,12 +42,16 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord<?, ?>> {
     private final Tracer tracer;
     private final CoreConfiguration coreConfiguration;
     private final MessagingConfiguration messagingConfiguration;
+    private final KafkaConsumerTopics topics;
+    private final ClassLoader classLoader;
 
     public ConsumerRecordsIteratorWrapper(Iterator<ConsumerRecord<?, ?>> delegate, Tracer tracer) {
         this.delegate = delegate;
         this.tracer = tracer;
         coreConfiguration = tracer.getConfig(CoreConfiguration.class);
         messagingConfiguration = tracer.getConfig(MessagingConfiguration.class);
+        topics = KafkaConsumerTopics.get();
+        classLoader = PrivilegedActionUtils.getClassLoader(ConsumerRecordsIteratorWrapper.class);
     }
 
     @Override
@@ -74,15 +78,27 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord<?, ?>> {
         try {
             String topic = record.topic();
             if (!WildcardMatcher.isAnyMatch(messagingConfiguration.getIgnoreMessageQueues(), topic)) {
-                Transaction<?> transaction = tracer.startChildTransaction(record, KafkaRecordHeaderAccessor.instance(), PrivilegedActionUtils.getClassLoader(ConsumerRecordsIteratorWrapper.class));
+                KafkaConsumerTopics.Topic consumerTopic = topics.getTopic(topic);
+                boolean hasCreateTime = record.timestampType() == TimestampType.CREATE_TIME;
+                long age = hasCreateTime ? System.currentTimeMillis() - record.timestamp() : 0;
+                Transaction<?> transaction;
+                if (messagingConfiguration.getKafkaRecordTracingStrategy() == MessagingConfiguration.KafkaRecordTracingStrategy.SAMPLED) {
+                    if (consumerTopic != null) {
+                        consumerTopic.recordConsumed(tracer, record.partition(), hasCreateTime ? Math.max(0, age) : -1);
+                    }
+                    transaction = tracer.startSampledChildTransaction(record, KafkaRecordHeaderAccessor.instance(), classLoader);
+                } else {
+                    transaction = tracer.startChildTransaction(record, KafkaRecordHeaderAccessor.instance(), classLoader);
+                }
                 if (transaction != null) {
-                    transaction.withType("messaging").withName("Kafka record from " + topic).activate();
+                    String transactionName = consumerTopic != null ? consumerTopic.getTransactionName() : KafkaConsumerTopics.getTransactionName(topic);
+                    transaction.withType("messaging").withName(transactionName).activate();
                     transaction.setFrameworkName(FRAMEWORK_NAME);
 
                     Message message = transaction.getContext().getMessage();
                     message.withQueue(topic);
-                    if (record.timestampType() == TimestampType.CREATE_TIME) {
-                        message.withAge(System.currentTimeMillis() - record.timestamp());
+                    if (hasCreateTime) {
+                        message.withAge(age);
                     }
 
                     if (transaction.isSampled() && coreConfiguration.isCaptureHeaders()) {
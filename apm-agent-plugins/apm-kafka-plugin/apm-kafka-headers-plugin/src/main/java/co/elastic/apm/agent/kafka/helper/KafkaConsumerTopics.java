@@ -0,0 +1,130 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the transaction name and the metric labels per topic records are consumed from,
+ * so that they don't have to be created for every record.
+ */
+class KafkaConsumerTopics {
+
+    static final String RECORDS_METRIC = "kafka.consumer.records";
+    static final String RECORD_AGE_METRIC = "kafka.consumer.record.age";
+
+    /**
+     * Limits the memory used by the cache, in case topics are created dynamically
+     */
+    private static final int MAX_TOPICS = 1000;
+    private static final int MAX_PARTITIONS = 1024;
+
+    private static final KafkaConsumerTopics INSTANCE = new KafkaConsumerTopics();
+
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    static KafkaConsumerTopics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the cached topic, or {@code null} if too many topics have been cached already
+     */
+    @Nullable
+    Topic getTopic(String name) {
+        Topic topic = topics.get(name);
+        if (topic == null && topics.size() < MAX_TOPICS) {
+            topic = new Topic(name);
+            Topic previous = topics.putIfAbsent(name, topic);
+            if (previous != null) {
+                topic = previous;
+            }
+        }
+        return topic;
+    }
+
+    static String getTransactionName(String topic) {
+        return "Kafka record from " + topic;
+    }
+
+    static final class Topic {
+
+        private final String name;
+        private final String transactionName;
+        private final Labels.Immutable labels;
+        /**
+         * Indexed by partition, copied on write
+         */
+        private volatile Labels.Immutable[] partitionLabels = new Labels.Immutable[0];
+
+        private Topic(String name) {
+            this.name = name;
+            transactionName = KafkaConsumerTopics.getTransactionName(name);
+            labels = Labels.Mutable.of("topic", name).immutableCopy();
+        }
+
+        String getTransactionName() {
+            return transactionName;
+        }
+
+        /**
+         * Counts a consumed record and records its age, without creating a transaction for it.
+         *
+         * @param partition the partition the record has been consumed from
+         * @param ageMs     the time in milliseconds since the record has been created, or a negative value if unknown
+         */
+        void recordConsumed(Tracer tracer, int partition, long ageMs) {
+            tracer.addToCounter(RECORDS_METRIC, getPartitionLabels(partition), 1);
+            if (ageMs >= 0) {
+                tracer.updateHistogram(RECORD_AGE_METRIC, labels, ageMs);
+            }
+        }
+
+        Labels.Immutable getPartitionLabels(int partition) {
+            Labels.Immutable[] partitionLabels = this.partitionLabels;
+            if (partition >= 0 && partition < partitionLabels.length) {
+                Labels.Immutable labels = partitionLabels[partition];
+                if (labels != null) {
+                    return labels;
+                }
+            }
+            return createPartitionLabels(partition);
+        }
+
+        private synchronized Labels.Immutable createPartitionLabels(int partition) {
+            Labels.Immutable labels = Labels.Mutable.of("topic", name).add("partition", Integer.toString(partition)).immutableCopy();
+            if (partition >= 0 && partition < MAX_PARTITIONS) {
+                Labels.Immutable[] partitionLabels = this.partitionLabels;
+                if (partition < partitionLabels.length && partitionLabels[partition] != null) {
+                    return partitionLabels[partition];
+                }
+                partitionLabels = Arrays.copyOf(partitionLabels, Math.max(partition + 1, partitionLabels.length));
+                partitionLabels[partition] = labels;
+                this.partitionLabels = partitionLabels;
+            }
+            return labels;
+        }
+    }
+}
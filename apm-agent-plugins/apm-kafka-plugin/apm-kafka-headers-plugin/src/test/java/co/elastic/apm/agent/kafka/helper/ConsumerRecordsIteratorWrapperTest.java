@@ -0,0 +1,155 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.tracer.configuration.MessagingConfiguration;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class ConsumerRecordsIteratorWrapperTest extends AbstractInstrumentationTest {
+
+    private static final String SAMPLED_TRACEPARENT = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01";
+    private static final String UNSAMPLED_TRACEPARENT = "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-00";
+
+    @BeforeEach
+    void setUp() throws Exception {
+        doReturn(MessagingConfiguration.KafkaRecordTracingStrategy.SAMPLED).when(config.getConfig(MessagingConfiguration.class)).getKafkaRecordTracingStrategy();
+        config.getConfig(CoreConfigurationImpl.class).getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+        // discard metrics recorded by other tests
+        tracer.getMetricRegistry().flipPhaseAndReport(null);
+    }
+
+    @Test
+    void testOnlySampledRecordsCreateTransactions() {
+        List<ConsumerRecord<?, ?>> records = new ArrayList<>();
+        records.add(createRecord("test-topic", 0, SAMPLED_TRACEPARENT));
+        records.add(createRecord("test-topic", 0, UNSAMPLED_TRACEPARENT));
+        records.add(createRecord("test-topic", 1, null));
+        records.add(createRecord("test-topic", 1, SAMPLED_TRACEPARENT));
+
+        consume(records);
+
+        assertThat(reporter.getTransactions()).hasSize(2);
+        for (TransactionImpl transaction : reporter.getTransactions()) {
+            assertThat(transaction.getNameAsString()).isEqualTo("Kafka record from test-topic");
+            assertThat(transaction.isSampled()).isTrue();
+            assertThat(transaction.getTraceContext().getTraceId().toString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        }
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            MetricSet partition0 = metricSets.get(Labels.Mutable.of("topic", "test-topic").add("partition", "0"));
+            MetricSet partition1 = metricSets.get(Labels.Mutable.of("topic", "test-topic").add("partition", "1"));
+            assertThat(partition0.getCounters().get(KafkaConsumerTopics.RECORDS_METRIC).get()).isEqualTo(2);
+            assertThat(partition1.getCounters().get(KafkaConsumerTopics.RECORDS_METRIC).get()).isEqualTo(2);
+            MetricSet topic = metricSets.get(Labels.Mutable.of("topic", "test-topic"));
+            assertThat(topic.getHistograms().get(KafkaConsumerTopics.RECORD_AGE_METRIC).hasContent()).isTrue();
+        });
+    }
+
+    @Test
+    void testUnsampledRecordsPropagateTheUpstreamContext() {
+        List<ConsumerRecord<?, ?>> records = new ArrayList<>();
+        records.add(createRecord("test-topic", 0, UNSAMPLED_TRACEPARENT));
+        records.add(createRecord("test-topic", 0, null));
+        ConsumerRecordsIteratorWrapper iterator = new ConsumerRecordsIteratorWrapper(records.iterator(), tracer);
+
+        iterator.next();
+        TransactionImpl transaction = tracer.currentTransaction();
+        assertThat(transaction).isNotNull();
+        assertThat(transaction.isSampled()).isFalse();
+        assertThat(transaction.getTraceContext().getTraceId().toString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(transaction.getTraceContext().getParentId().toString()).isEqualTo("b9c7c989f97918e1");
+
+        // there is no upstream context to propagate
+        iterator.next();
+        assertThat(tracer.currentTransaction()).isNull();
+        iterator.endCurrentTransaction();
+
+        assertThat(reporter.getTransactions()).isEmpty();
+    }
+
+    @Test
+    void testAllRecordsCreateTransactionsByDefault() {
+        doReturn(MessagingConfiguration.KafkaRecordTracingStrategy.ALL).when(config.getConfig(MessagingConfiguration.class)).getKafkaRecordTracingStrategy();
+        List<ConsumerRecord<?, ?>> records = new ArrayList<>();
+        records.add(createRecord("test-topic", 0, SAMPLED_TRACEPARENT));
+        records.add(createRecord("test-topic", 0, UNSAMPLED_TRACEPARENT));
+        records.add(createRecord("test-topic", 1, null));
+        ConsumerRecordsIteratorWrapper iterator = new ConsumerRecordsIteratorWrapper(records.iterator(), tracer);
+
+        while (iterator.hasNext()) {
+            ConsumerRecord<?, ?> record = iterator.next();
+            assertThat(tracer.currentTransaction()).describedAs("transaction for %s", record).isNotNull();
+        }
+        iterator.endCurrentTransaction();
+
+        // unsampled transactions are not reported to APM servers that don't keep them
+        assertThat(reporter.getTransactions()).hasSize(1);
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            // metric sets of previous tests are reset but not removed
+            MetricSet partition0 = metricSets.get(Labels.Mutable.of("topic", "test-topic").add("partition", "0"));
+            assertThat(partition0 == null || !partition0.hasContent()).isTrue();
+        });
+    }
+
+    @Test
+    void testPartitionLabelsAreCached() {
+        KafkaConsumerTopics.Topic topic = KafkaConsumerTopics.get().getTopic("cached-topic");
+        assertThat(topic).isNotNull();
+        assertThat(KafkaConsumerTopics.get().getTopic("cached-topic")).isSameAs(topic);
+        assertThat(topic.getPartitionLabels(3)).isSameAs(topic.getPartitionLabels(3));
+        assertThat(topic.getPartitionLabels(3).getValues()).containsExactly("cached-topic", "3");
+        assertThat(topic.getPartitionLabels(-1)).isNotSameAs(topic.getPartitionLabels(-1));
+    }
+
+    private void consume(List<ConsumerRecord<?, ?>> records) {
+        ConsumerRecordsIteratorWrapper iterator = new ConsumerRecordsIteratorWrapper(records.iterator(), tracer);
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        iterator.endCurrentTransaction();
+    }
+
+    private static ConsumerRecord<?, ?> createRecord(String topic, int partition, String traceparent) {
+        RecordHeaders headers = new RecordHeaders();
+        if (traceparent != null) {
+            headers.add("traceparent", traceparent.getBytes(StandardCharsets.UTF_8));
+        }
+        return new ConsumerRecord<>(topic, partition, 0, System.currentTimeMillis(), TimestampType.CREATE_TIME,
+            3, 5, "key", "value", headers, Optional.<Integer>empty());
+    }
+}
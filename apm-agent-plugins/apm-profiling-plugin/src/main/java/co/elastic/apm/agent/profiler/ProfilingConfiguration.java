@@ -176,6 +176,39 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.15.0]", "internal")
         .buildWithDefault(TimeDuration.of("5s"));
 
+    private final ConfigurationOption<Integer> processingThreads = ConfigurationOption.<Integer>integerOption()
+        .key("profiling_inferred_spans_processing_threads")
+        .description("The max number of threads which process the stack traces and activation events of a profiling session.\n" +
+            "The call trees of different application threads are built in parallel.\n" +
+            "Set to 1 to process everything on the profiler thread.")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .addValidator(isInRange(1, 16))
+        .tags("added[1.56.0]", "internal")
+        .buildWithDefault(2);
+
+    private final ConfigurationOption<Boolean> rotatingSessions = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_inferred_spans_rotating_sessions")
+        .description("Profiles continuously by alternating between two sets of files.\n" +
+            "While a session is recorded to one set of files, the previous session is processed in the background.\n" +
+            "This avoids losing stack traces and activation events while a session is processed.\n" +
+            "When enabled, `profiling_inferred_spans_interval` is ignored.")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .tags("added[1.56.0]", "internal")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> maxActivationEventsPerSession = ConfigurationOption.<Integer>integerOption()
+        .key("profiling_inferred_spans_max_activation_events")
+        .description("The max number of activation events which are recorded within a profiling session.\n" +
+            "This bounds the size of the activation events file.\n" +
+            "When rotating sessions, there are two such files.")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .addValidator(isInRange(1_000, 10_000_000))
+        .tags("added[1.56.0]", "internal")
+        .buildWithDefault(1_000_000);
+
     private final ConfigurationOption<String> profilerLibDirectory = ConfigurationOption.<String>stringOption()
         .key("profiling_inferred_spans_lib_directory")
         .description("Profiling requires that the https://github.com/jvm-profiling-tools/async-profiler[async-profiler] shared library " +
@@ -237,7 +270,19 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         return profilerLibDirectory.isDefault() ? System.getProperty("java.io.tmpdir") : profilerLibDirectory.get();
     }
 
+    public int getProcessingThreads() {
+        return processingThreads.get();
+    }
+
     public boolean isPostProcessingEnabled() {
         return postProcessingEnabled.get();
     }
+
+    public boolean isRotatingSessions() {
+        return rotatingSessions.get();
+    }
+
+    public int getMaxActivationEventsPerSession() {
+        return maxActivationEventsPerSession.get();
+    }
 }
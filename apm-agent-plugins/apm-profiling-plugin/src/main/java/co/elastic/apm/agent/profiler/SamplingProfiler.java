@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.profiler;
 
+import co.elastic.apm.agent.common.ThreadUtils;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
@@ -26,7 +27,9 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.profiler.asyncprofiler.AsyncProfiler;
 import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+import co.elastic.apm.agent.profiler.collections.LongHashSet;
 import co.elastic.apm.agent.sdk.internal.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
@@ -48,6 +51,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
@@ -55,13 +59,20 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 
 import static java.nio.file.StandardOpenOption.READ;
@@ -80,10 +91,10 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * which register an {@link ActivationEvent} to a {@linkplain #eventBuffer ring buffer} whenever a {@link SpanImpl}
  * gets {@link SpanImpl#activate()}d or {@link SpanImpl#deactivate()}d while a {@linkplain #profilingSessionOngoing profiling session is ongoing}.
  * A background thread consumes the {@link ActivationEvent}s and writes them to a {@linkplain #activationEventsBuffer direct buffer}
- * which is flushed to a {@linkplain #activationEventsFileChannel file}.
+ * which is flushed to a {@linkplain SessionFiles#activationEventsFileChannel file}.
  * That is necessary because within a profiling session (which lasts 10s by default) there may be many more {@link ActivationEvent}s
  * than the ring buffer {@link #RING_BUFFER_SIZE can hold}.
- * The file can hold {@link #ACTIVATION_EVENTS_IN_FILE} events and each is {@link ActivationEvent#SERIALIZED_SIZE} in size.
+ * The file can hold {@link ProfilingConfiguration#getMaxActivationEventsPerSession()} events and each is {@link ActivationEvent#SERIALIZED_SIZE} in size.
  * This process is completely garbage free thanks to the {@link RingBuffer} acting as an object pool for {@link ActivationEvent}s.
  * </p>
  * <p>
@@ -96,6 +107,14 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * by async-profiler with {@link JfrParser}.
  * </p>
  * <p>
+ * When {@linkplain ProfilingConfiguration#isRotatingSessions() rotating sessions}, there are two sets of {@link SessionFiles}.
+ * At the end of a session, async-profiler is immediately re-started with the other set of files
+ * and the {@link ActivationEvent}s are written to the other activation events file,
+ * while the files of the session that just ended are processed on a separate thread.
+ * The {@link CallTree.Root}s are carried over from one session to the next, as the sessions are processed in order.
+ * That way, the profiler records continuously and memory and disk usage are bounded by two sessions.
+ * </p>
+ * <p>
  * Correlating {@link ActivationEvent}s with the traces recorded by {@link AsyncProfiler}:
  * </p>
  * <p>
@@ -104,7 +123,10 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * The result of this correlation, performed by {@link #processTraces},
  * are {@link CallTree}s which are created for each thread which has seen an {@linkplain SpanImpl#activate() activation}
  * and at least one stack trace.
- * Once {@linkplain ActivationEvent#handleDeactivationEvent(SamplingProfiler) handling the deactivation event} of the root span in a thread
+ * As the events of one thread never affect the {@link CallTree} of another thread,
+ * the activation events and the {@link StackTraceEvents} are grouped by thread
+ * and the threads are processed independently of each other on up to {@link ProfilingConfiguration#getProcessingThreads()} threads.
+ * Once {@linkplain ActivationEvent#handleDeactivationEvent handling the deactivation event} of the root span in a thread
  * (after which {@link ElasticApmTracer#getActive()} would return {@code null}),
  * the {@link CallTree} is {@linkplain CallTree#spanify(CallTree.Root, TraceContextImpl, TraceContextImpl) converted into regular spans}.
  * </p>
@@ -113,17 +135,15 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * {@link ProfilingConfiguration#getProfilingInterval()} and {@link ProfilingConfiguration#getSamplingInterval()}.
  * Having said that, there are some optimizations so that the JFR file is not processed at all if there have not been any
  * {@link ActivationEvent} in a given profiling session.
- * Also, only if there's a {@link CallTree.Root} for a {@link StackTraceEvent},
- * we will {@link JfrParser#resolveStackTrace(long, boolean, List, int) resolve the full stack trace}.
+ * Also, only stack traces of threads which had an activation or which have a {@link CallTree.Root} are
+ * {@linkplain JfrParser#resolveStackTrace(long, boolean, List, int) resolved}, and each distinct stack trace is resolved only once.
  * </p>
  */
 public class SamplingProfiler extends AbstractLifecycleListener implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(SamplingProfiler.class);
-    private static final int ACTIVATION_EVENTS_IN_FILE = 1_000_000;
     private static final int MAX_STACK_DEPTH = 256;
     private static final int PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB = 10;
-    private static final int MAX_ACTIVATION_EVENTS_FILE_SIZE = ACTIVATION_EVENTS_IN_FILE * ActivationEvent.SERIALIZED_SIZE;
     private static final int ACTIVATION_EVENTS_BUFFER_SIZE = ActivationEvent.SERIALIZED_SIZE * 4 * 1024;
     private final EventTranslatorTwoArg<ActivationEvent, TraceContextImpl, TraceContextImpl> ACTIVATION_EVENT_TRANSLATOR =
         new EventTranslatorTwoArg<ActivationEvent, TraceContextImpl, TraceContextImpl>() {
@@ -141,6 +161,10 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         };
     // sizeof(ActivationEvent) is 176B so the ring buffer should be around 880KiB
     static final int RING_BUFFER_SIZE = 4 * 1024;
+    /**
+     * How long to consume activation events at a time while waiting for the processing of the previous session
+     */
+    private static final TimeDuration SESSION_PROCESSING_POLL_INTERVAL = TimeDuration.of("10ms");
 
     private final ProfilingConfiguration config;
     private final CoreConfiguration coreConfig;
@@ -154,26 +178,51 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private final ObjectPool<CallTree.Root> rootPool;
     private final ThreadMatcher threadMatcher = new ThreadMatcher();
     private final EventPoller<ActivationEvent> poller;
+    /**
+     * The files the current session is recorded to
+     */
+    private SessionFiles sessionFiles;
+    /**
+     * The files of the previous session which may still be processed, only used when {@linkplain ProfilingConfiguration#isRotatingSessions() rotating sessions}
+     */
     @Nullable
-    private File jfrFile;
-    private boolean canDeleteJfrFile;
+    private SessionFiles standbySessionFiles;
+    /**
+     * The threads which have an active root span according to the {@link ActivationEvent}s which have been written to the activation events file.
+     * In contrast to {@link #profiledThreads}, this is known before the session is processed.
+     */
+    private final LongHashSet activeRootThreads = new LongHashSet();
+    private boolean asyncProfilerRunning;
+    @Nullable
+    private ExecutorService sessionProcessor;
+    @Nullable
+    private Future<?> sessionProcessing;
     private final WriteActivationEventToFileHandler writeActivationEventToFileHandler = new WriteActivationEventToFileHandler();
     @Nullable
     private JfrParser jfrParser;
     private volatile int profilingSessions;
 
     private final ByteBuffer activationEventsBuffer;
-    /**
-     * Used to efficiently write {@link #activationEventsBuffer} via {@link FileChannel#write(ByteBuffer)}
-     */
-    @Nullable
-    private File activationEventsFile;
-    private boolean canDeleteActivationEventsFile;
-
-    @Nullable
-    private FileChannel activationEventsFileChannel;
     private final ObjectPool<CallTree> callTreePool;
     private final TraceContextImpl contextForLogging;
+    @Nullable
+    private ExecutorService processingPool;
+
+    // state of the current processTraces invocation, reused across profiling sessions
+    private final StackTraceEvents stackTraceEvents = new StackTraceEvents();
+    private final AddStackTraceEventHandler addStackTraceEventHandler = new AddStackTraceEventHandler();
+    private final Long2LongHashMap threadIdToIndex = new Long2LongHashMap(-1);
+    private long[] processedThreadIds = new long[16];
+    private CallTree.Root[] processedRoots = new CallTree.Root[16];
+    /**
+     * The indices of the activation events, grouped by thread.
+     * The events of the thread with the index {@code i} are in the range {@code [activationEventOffsets[i], activationEventOffsets[i + 1])}.
+     */
+    private int[] activationEventsByThread = new int[1024];
+    private int[] activationEventThreadIndices = new int[1024];
+    private int[] activationEventOffsets = new int[17];
+    private final Long2ObjectHashMap<List<StackFrame>> resolvedStackTraces = new Long2ObjectHashMap<>();
+    private final AtomicInteger nextThreadToProcess = new AtomicInteger();
 
     private boolean previouslyEnabled = false;
 
@@ -222,9 +271,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 return new CallTree.Root(tracer);
             }
         });
-        this.jfrFile = jfrFile;
         activationEventsBuffer = ByteBuffer.allocateDirect(ACTIVATION_EVENTS_BUFFER_SIZE);
-        this.activationEventsFile = activationEventsFile;
+        this.sessionFiles = new SessionFiles(activationEventsFile, jfrFile);
     }
 
     /**
@@ -239,26 +287,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     private synchronized void createFilesIfRequired() throws IOException {
-        if (jfrFile == null || !jfrFile.exists()) {
-            jfrFile = File.createTempFile("apm-traces-", ".jfr");
-            jfrFile.deleteOnExit();
-            canDeleteJfrFile = true;
-        }
-        if (activationEventsFile == null || !activationEventsFile.exists()) {
-            activationEventsFile = File.createTempFile("apm-activation-events-", ".bin");
-            activationEventsFile.deleteOnExit();
-            canDeleteActivationEventsFile = true;
-        }
-        if (activationEventsFileChannel == null || !activationEventsFileChannel.isOpen()) {
-            activationEventsFileChannel = FileChannel.open(activationEventsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
-        }
-        if (activationEventsFileChannel.size() == 0) {
-            preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
-        }
+        sessionFiles.createIfRequired();
     }
 
     // visible for benchmarks
     public void skipToEndOfActivationEventsFile() throws IOException {
+        FileChannel activationEventsFileChannel = sessionFiles.activationEventsFileChannel;
         activationEventsFileChannel.position(activationEventsFileChannel.size());
     }
 
@@ -345,6 +379,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         previouslyEnabled = enabled;
 
         if (!enabled) {
+            if (asyncProfilerRunning) {
+                abortProfilingSession();
+            }
             if (jfrParser != null) {
                 jfrParser = null;
             }
@@ -375,8 +412,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
         TimeDuration profilingDuration = config.getProfilingDuration();
         boolean postProcessingEnabled = config.isPostProcessingEnabled();
+        boolean rotatingSessions = postProcessingEnabled && config.isRotatingSessions();
 
-        setProfilingSessionOngoing(postProcessingEnabled);
+        // when rotating sessions, the profiling session is still ongoing and the previous session may still be processed
+        if (!asyncProfilerRunning) {
+            setProfilingSessionOngoing(postProcessingEnabled);
+        }
 
         if (postProcessingEnabled) {
             logger.debug("Start full profiling session (async-profiler and agent processing)");
@@ -384,32 +425,35 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             logger.debug("Start async-profiler profiling session");
         }
         try {
-            profile(profilingDuration);
+            profile(profilingDuration, rotatingSessions);
         } catch (Throwable t) {
-            setProfilingSessionOngoing(false);
+            abortProfilingSession();
             logger.error("Stopping profiler", t);
             return;
         }
         logger.debug("End profiling session");
 
         boolean interrupted = Thread.currentThread().isInterrupted();
-        boolean continueProfilingSession = config.isNonStopProfiling() && !interrupted && config.isProfilingEnabled() && postProcessingEnabled;
+        if (interrupted && asyncProfilerRunning) {
+            abortProfilingSession();
+        }
+        boolean continueProfilingSession = asyncProfilerRunning ||
+            config.isNonStopProfiling() && !interrupted && config.isProfilingEnabled() && postProcessingEnabled;
         setProfilingSessionOngoing(continueProfilingSession);
 
         if (!interrupted && !scheduler.isShutdown()) {
-            long delay = config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
+            // async-profiler is still running when rotating sessions, the next session has already started
+            long delay = asyncProfilerRunning ? 0 : config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
             scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
         }
     }
 
-    private void profile(TimeDuration profilingDuration) throws Exception {
+    private void profile(TimeDuration profilingDuration, boolean rotatingSessions) throws Exception {
         AsyncProfiler asyncProfiler = AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode());
         try {
-            String startCommand = createStartCommand();
-            String startMessage = asyncProfiler.execute(startCommand);
-            logger.debug(startMessage);
-            if (!profiledThreads.isEmpty()) {
-                restoreFilterState(asyncProfiler);
+            if (!asyncProfilerRunning) {
+                resetActivationEventBuffer();
+                startAsyncProfiler(asyncProfiler);
             }
             // Doesn't need to be atomic as this field is being updated only by a single thread
             //noinspection NonAtomicOperationOnVolatileField
@@ -420,25 +464,148 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             // residual activation events if post-processing is disabled dynamically
             consumeActivationEventsFromRingBufferAndWriteToFile(profilingDuration);
 
-            String stopMessage = asyncProfiler.execute("stop");
-            logger.debug(stopMessage);
+            if (rotatingSessions && config.isProfilingEnabled() && !Thread.currentThread().isInterrupted()) {
+                awaitSessionProcessingWhileRecording();
+                rotateSession(asyncProfiler);
+            } else {
+                stopAsyncProfiler(asyncProfiler);
+                // the call tree roots are only consistent after the previous session has been processed
+                awaitSessionProcessing();
 
-            // When post-processing is disabled, jfr file will not be parsed and the heavy processing will not occur
-            // as this method aborts when no activation events are buffered
-            processTraces();
+                // When post-processing is disabled, jfr file will not be parsed and the heavy processing will not occur
+                // as this method aborts when no activation events are buffered
+                processTraces();
+            }
         } catch (InterruptedException | ClosedByInterruptException e) {
             try {
                 asyncProfiler.stop();
             } catch (IllegalStateException ignore) {
             }
+            asyncProfilerRunning = false;
+            awaitSessionProcessing();
             Thread.currentThread().interrupt();
         }
     }
 
+    private void startAsyncProfiler(AsyncProfiler asyncProfiler) throws IOException {
+        String startMessage = asyncProfiler.execute(createStartCommand());
+        logger.debug(startMessage);
+        asyncProfilerRunning = true;
+        if (!activeRootThreads.isEmpty()) {
+            restoreFilterState(asyncProfiler);
+        }
+    }
+
+    private void stopAsyncProfiler(AsyncProfiler asyncProfiler) throws IOException {
+        String stopMessage = asyncProfiler.execute("stop");
+        logger.debug(stopMessage);
+        asyncProfilerRunning = false;
+    }
+
+    /**
+     * Ends the current session without a gap in the recording of {@link ActivationEvent}s.
+     * async-profiler is immediately re-started with the standby files,
+     * while the files of the session that just ended are processed on the {@link #sessionProcessor}.
+     * <p>
+     * The previous session has to be processed before, see {@link #awaitSessionProcessingWhileRecording()},
+     * so that async-profiler is not stopped while waiting for it.
+     * </p>
+     */
+    private void rotateSession(AsyncProfiler asyncProfiler) throws Exception {
+        stopAsyncProfiler(asyncProfiler);
+        SessionFiles recordedSessionFiles = rotateSessionFiles();
+        startAsyncProfiler(asyncProfiler);
+        processSessionAsync(new ProcessSessionTask(recordedSessionFiles));
+    }
+
+    // visible for testing
+    void processSessionAsync(Runnable task) {
+        sessionProcessing = getSessionProcessor().submit(task);
+    }
+
+    /**
+     * Keeps recording the current session until the previous session has been processed.
+     * If the processing takes longer than {@code profiling_duration}, the current session is extended accordingly,
+     * instead of pausing async-profiler until the standby files can be used again.
+     */
+    void awaitSessionProcessingWhileRecording() throws Exception {
+        Future<?> sessionProcessing = this.sessionProcessing;
+        while (sessionProcessing != null && !sessionProcessing.isDone() && !Thread.currentThread().isInterrupted()) {
+            consumeActivationEventsFromRingBufferAndWriteToFile(SESSION_PROCESSING_POLL_INTERVAL);
+        }
+        awaitSessionProcessing();
+    }
+
+    /**
+     * Switches the recording to the standby files.
+     *
+     * @return the files of the session that just ended
+     */
+    SessionFiles rotateSessionFiles() throws Exception {
+        createFilesIfRequired();
+        // so that the stack traces of the session that just ended can be correlated with all activations before async-profiler has been stopped
+        // the activation events which don't fit into the file anymore are written to the file of the next session
+        while (!isActivationEventsFileFull() && poller.poll(writeActivationEventToFileHandler) == EventPoller.PollState.PROCESSING) {
+            // the ring buffer may contain more events than a single poll consumes
+        }
+        flushActivationEvents();
+        SessionFiles recordedSessionFiles = sessionFiles;
+        recordedSessionFiles.eof = recordedSessionFiles.activationEventsFileChannel.position();
+        // the standby files are still read while the previous session is processed,
+        // which usually has already been awaited while async-profiler was still recording
+        awaitSessionProcessing();
+        synchronized (this) {
+            if (standbySessionFiles == null) {
+                standbySessionFiles = new SessionFiles(null, null);
+            }
+            sessionFiles = standbySessionFiles;
+            standbySessionFiles = recordedSessionFiles;
+            sessionFiles.createIfRequired();
+        }
+        resetActivationEventBuffer();
+        return recordedSessionFiles;
+    }
+
+    /**
+     * Stops async-profiler if it's still running, which is the case when rotating sessions, and discards the current session.
+     */
+    private void abortProfilingSession() {
+        if (asyncProfilerRunning) {
+            try {
+                AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).stop();
+            } catch (IllegalStateException ignore) {
+            }
+            asyncProfilerRunning = false;
+        }
+        awaitSessionProcessing();
+        setProfilingSessionOngoing(false);
+    }
+
+    /**
+     * Waits until the processing of the previous session has finished,
+     * as the processing modifies the {@link #profiledThreads} and reads the {@link #standbySessionFiles}.
+     */
+    private void awaitSessionProcessing() {
+        Future<?> sessionProcessing = this.sessionProcessing;
+        if (sessionProcessing != null) {
+            this.sessionProcessing = null;
+            if (awaitUninterruptibly(sessionProcessing)) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized ExecutorService getSessionProcessor() {
+        if (sessionProcessor == null) {
+            sessionProcessor = ExecutorUtils.createSingleThreadSchedulingDaemonPool("sampling-profiler-session-processor");
+        }
+        return sessionProcessor;
+    }
+
     String createStartCommand() {
         StringBuilder startCommand = new StringBuilder("start,jfr,event=wall,cstack=n,interval=")
             .append(config.getSamplingInterval().getMillis()).append("ms,filter,file=")
-            .append(jfrFile)
+            .append(sessionFiles.jfrFile)
             .append(",safemode=").append(config.getAsyncProfilerSafeMode());
         if (!config.isProfilingLoggingEnabled()) {
             startCommand.append(",log=none");
@@ -452,13 +619,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      */
     private void restoreFilterState(AsyncProfiler asyncProfiler) {
         threadMatcher.forEachThread(
-            new ThreadMatcher.NonCapturingPredicate<Thread, Long2ObjectHashMap<?>.KeySet>() {
+            new ThreadMatcher.NonCapturingPredicate<Thread, LongHashSet>() {
                 @Override
-                public boolean test(Thread thread, Long2ObjectHashMap<?>.KeySet profiledThreads) {
-                    return profiledThreads.contains(thread.getId());
+                public boolean test(Thread thread, LongHashSet activeRootThreads) {
+                    return activeRootThreads.contains(thread.getId());
                 }
             },
-            profiledThreads.keySet(),
+            activeRootThreads,
             new ThreadMatcher.NonCapturingConsumer<Thread, AsyncProfiler>() {
                 @Override
                 public void accept(Thread thread, AsyncProfiler asyncProfiler) {
@@ -470,13 +637,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     private void consumeActivationEventsFromRingBufferAndWriteToFile(TimeDuration profilingDuration) throws Exception {
-        resetActivationEventBuffer();
         long threshold = System.currentTimeMillis() + profilingDuration.getMillis();
         long initialSleep = 100_000;
         long maxSleep = 10_000_000;
         long sleep = initialSleep;
         while (System.currentTimeMillis() < threshold && !Thread.currentThread().isInterrupted()) {
-            if (activationEventsFileChannel.position() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
+            if (!isActivationEventsFileFull()) {
                 EventPoller.PollState poll = consumeActivationEventsFromRingBufferAndWriteToFile();
                 if (poll == EventPoller.PollState.PROCESSING) {
                     sleep = initialSleep;
@@ -500,17 +666,31 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return poller.poll(writeActivationEventToFileHandler);
     }
 
+    private boolean isActivationEventsFileFull() throws IOException {
+        long maxSize = (long) config.getMaxActivationEventsPerSession() * ActivationEvent.SERIALIZED_SIZE;
+        return sessionFiles.activationEventsFileChannel.position() + activationEventsBuffer.position() >= maxSize;
+    }
+
     public void processTraces() throws IOException {
-        if (jfrParser == null) {
-            jfrParser = new JfrParser();
-        }
         if (Thread.currentThread().isInterrupted()) {
             return;
         }
         createFilesIfRequired();
 
         long eof = startProcessingActivationEventsFile();
-        if (eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
+        try {
+            // if the activation events fit into the buffer, they haven't been written to the file
+            processTraces(sessionFiles.jfrFile, eof > 0 ? sessionFiles.getActivationEvents(eof) : activationEventsBuffer.duplicate());
+        } finally {
+            resetActivationEventBuffer();
+        }
+    }
+
+    private void processTraces(File jfrFile, ByteBuffer activationEvents) throws IOException {
+        if (jfrParser == null) {
+            jfrParser = new JfrParser();
+        }
+        if (!activationEvents.hasRemaining() && profiledThreads.isEmpty()) {
             logger.debug("No activation events during this period. Skip processing stack traces.");
             return;
         }
@@ -518,92 +698,238 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         List<WildcardMatcher> excludedClasses = config.getExcludedClasses();
         List<WildcardMatcher> includedClasses = config.getIncludedClasses();
         if (config.isBackupDiagnosticFiles()) {
-            backupDiagnosticFiles(eof);
+            backupDiagnosticFiles(jfrFile, activationEvents);
         }
         try {
             jfrParser.parse(jfrFile, excludedClasses, includedClasses);
-            final List<StackTraceEvent> stackTraceEvents = getSortedStackTraceEvents(jfrParser);
+            int threadCount = groupActivationEventsByThread(activationEvents);
+            jfrParser.consumeStackTraces(addStackTraceEventHandler);
+            stackTraceEvents.sort(threadCount);
+            resolveStackTraces(jfrParser);
             if (logger.isDebugEnabled()) {
-                logger.debug("Processing {} stack traces", stackTraceEvents.size());
-            }
-            List<StackFrame> stackFrames = new ArrayList<>();
-            ElasticApmTracer tracer = this.tracer;
-            ActivationEvent event = new ActivationEvent();
-            long inferredSpansMinDuration = getInferredSpansMinDurationNs();
-            for (StackTraceEvent stackTrace : stackTraceEvents) {
-                processActivationEventsUpTo(stackTrace.nanoTime, event, eof);
-                CallTree.Root root = profiledThreads.get(stackTrace.threadId);
-                if (root != null) {
-                    jfrParser.resolveStackTrace(stackTrace.stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
-                    if (stackFrames.size() == MAX_STACK_DEPTH) {
-                        logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
-                    }
-                    // stack frames may not contain any Java frames
-                    // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
-                    if (!stackFrames.isEmpty()) {
-                        try {
-                            root.addStackTrace(tracer, stackFrames, stackTrace.nanoTime, callTreePool, inferredSpansMinDuration);
-                        } catch (Exception e) {
-                            logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
-                                stackTrace.threadId, e.getClass(), e.getMessage());
-                            logger.debug(e.getMessage(), e);
-                            profiledThreads.remove(stackTrace.threadId);
-                        }
-                    }
-                }
-                stackFrames.clear();
+                logger.debug("Processing {} stack traces of {} threads", stackTraceEvents.size(), threadCount);
             }
-            // process all activation events that happened after the last stack trace event
-            // otherwise we may miss root deactivations
-            processActivationEventsUpTo(System.nanoTime(), event, eof);
+            processThreads(activationEvents, threadCount);
         } finally {
             if (logger.isDebugEnabled()) {
                 logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
             }
             jfrParser.resetState();
-            resetActivationEventBuffer();
+            stackTraceEvents.resetState();
+            resolvedStackTraces.clear();
+            threadIdToIndex.clear();
         }
     }
 
-    private void backupDiagnosticFiles(long eof) throws IOException {
-        String now = String.format("%tFT%<tT.%<tL", new Date());
-        Path profilerDir = Paths.get(System.getProperty("java.io.tmpdir"), "profiler");
-        profilerDir.toFile().mkdir();
+    /**
+     * Assigns an index to each thread that either has a {@link CallTree.Root} or at least one activation event,
+     * and groups the activation events by thread, maintaining their order.
+     *
+     * @return the number of threads
+     */
+    private int groupActivationEventsByThread(ByteBuffer activationEvents) {
+        Long2ObjectHashMap<CallTree.Root>.KeyIterator profiledThreadIds = profiledThreads.keySet().iterator();
+        while (profiledThreadIds.hasNext()) {
+            getOrCreateThreadIndex(profiledThreadIds.nextLong());
+        }
+        int eventCount = activationEvents.limit() / ActivationEvent.SERIALIZED_SIZE;
+        if (activationEventsByThread.length < eventCount) {
+            activationEventsByThread = new int[eventCount];
+            activationEventThreadIndices = new int[eventCount];
+        }
+        int[] threadIndices = this.activationEventThreadIndices;
+        for (int i = 0; i < eventCount; i++) {
+            threadIndices[i] = getOrCreateThreadIndex(activationEvents.getLong(i * ActivationEvent.SERIALIZED_SIZE + ActivationEvent.THREAD_ID_OFFSET));
+        }
+        int threadCount = threadIdToIndex.size();
+        if (activationEventOffsets.length < threadCount + 1) {
+            activationEventOffsets = new int[threadCount + 1];
+        }
+        int[] offsets = this.activationEventOffsets;
+        Arrays.fill(offsets, 0, threadCount + 1, 0);
+        for (int i = 0; i < eventCount; i++) {
+            offsets[threadIndices[i] + 1]++;
+        }
+        for (int i = 1; i <= threadCount; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        for (int i = 0; i < eventCount; i++) {
+            activationEventsByThread[offsets[threadIndices[i]]++] = i;
+        }
+        // the insertion points have been advanced to the start of the next thread
+        System.arraycopy(offsets, 0, offsets, 1, threadCount);
+        offsets[0] = 0;
+        for (int i = 0; i < threadCount; i++) {
+            processedRoots[i] = profiledThreads.get(processedThreadIds[i]);
+        }
+        return threadCount;
+    }
 
-        try (FileChannel activationsFile = FileChannel.open(profilerDir.resolve(now + "-activations.dat"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            if (eof > 0) {
-                activationEventsFileChannel.transferTo(0, eof, activationsFile);
+    private int getOrCreateThreadIndex(long threadId) {
+        int index = (int) threadIdToIndex.get(threadId);
+        if (index == -1) {
+            index = threadIdToIndex.size();
+            threadIdToIndex.put(threadId, index);
+            if (index == processedThreadIds.length) {
+                processedThreadIds = Arrays.copyOf(processedThreadIds, index * 2);
+                processedRoots = Arrays.copyOf(processedRoots, index * 2);
+            }
+            processedThreadIds[index] = threadId;
+        }
+        return index;
+    }
+
+    /**
+     * Resolves each distinct stack trace once, before the threads are processed concurrently,
+     * as {@link JfrParser} is not thread-safe.
+     */
+    private void resolveStackTraces(JfrParser jfrParser) throws IOException {
+        for (int i = 0, size = stackTraceEvents.size(); i < size; i++) {
+            long stackTraceId = stackTraceEvents.getStackTraceId(i);
+            if (!resolvedStackTraces.containsKey(stackTraceId)) {
+                List<StackFrame> stackFrames = new ArrayList<>();
+                jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+                if (stackFrames.size() == MAX_STACK_DEPTH) {
+                    logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
+                }
+                resolvedStackTraces.put(stackTraceId, stackFrames);
+            }
+        }
+    }
+
+    private void processThreads(ByteBuffer activationEvents, int threadCount) {
+        nextThreadToProcess.set(0);
+        int workers = Math.min(config.getProcessingThreads(), threadCount);
+        List<Future<?>> futures = Collections.emptyList();
+        if (workers > 1) {
+            ExecutorService processingPool = getProcessingPool();
+            futures = new ArrayList<>(workers - 1);
+            for (int i = 1; i < workers; i++) {
+                futures.add(processingPool.submit(new ThreadsProcessor(activationEvents, threadCount)));
+            }
+        }
+        // the calling thread participates in processing instead of idly waiting for the pool
+        new ThreadsProcessor(activationEvents, threadCount).run();
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            // the processing threads are still using the state of this session
+            interrupted |= awaitUninterruptibly(future);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            long threadId = processedThreadIds[i];
+            CallTree.Root root = processedRoots[i];
+            if (root != null) {
+                profiledThreads.put(threadId, root);
             } else {
-                int position = activationEventsBuffer.position();
-                activationsFile.write(activationEventsBuffer);
-                activationEventsBuffer.position(position);
+                profiledThreads.remove(threadId);
             }
+            processedRoots[i] = null;
         }
-        Files.copy(jfrFile.toPath(), profilerDir.resolve(now + "-traces.jfr"));
     }
 
-    private long getInferredSpansMinDurationNs() {
-        return Math.max(config.getInferredSpansMinDuration().getMillis(), coreConfig.getSpanMinDuration().getMillis()) * 1_000_000;
+    private synchronized ExecutorService getProcessingPool() {
+        if (processingPool == null) {
+            // the thread that processes the session is one of the processing threads
+            processingPool = new ProcessingPool(config.getProcessingThreads() - 1);
+        }
+        return processingPool;
     }
 
     /**
-     * Returns stack trace events of relevant threads sorted by timestamp.
-     * The events in the JFR file are not in order.
-     * Even for the same thread, a more recent event might come before an older event.
-     * In order to be able to correlate stack trace events and activation events, both need to be in order.
-     * <p>
-     * Returns only events for threads where at least one activation happened (because only those are profiled by async-profiler)
+     * Waits until the future is done, even if the current thread gets interrupted.
+     *
+     * @return {@code true}, if the current thread has been interrupted while waiting
      */
-    private List<StackTraceEvent> getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
-        final List<StackTraceEvent> stackTraceEvents = new ArrayList<>();
-        jfrParser.consumeStackTraces(new JfrParser.StackTraceConsumer() {
-            @Override
-            public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
-                stackTraceEvents.add(new StackTraceEvent(nanoTime, stackTraceId, threadId));
+    private static boolean awaitUninterruptibly(Future<?> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                logger.error("Error while processing traces", e.getCause());
+                return interrupted;
             }
-        });
-        Collections.sort(stackTraceEvents);
-        return stackTraceEvents;
+        }
+    }
+
+    /**
+     * Replays the activation events and the stack trace events of a single thread in the order of their timestamps.
+     *
+     * @return the call tree root of the thread after processing all of its events
+     */
+    @Nullable
+    private CallTree.Root processThread(int threadIndex, @Nullable CallTree.Root root, ByteBuffer activationEvents, ActivationEvent event) {
+        long threadId = processedThreadIds[threadIndex];
+        int activation = activationEventOffsets[threadIndex];
+        int activationEnd = activationEventOffsets[threadIndex + 1];
+        ElasticApmTracer tracer = this.tracer;
+        long inferredSpansMinDuration = getInferredSpansMinDurationNs();
+        for (int i = stackTraceEvents.getStart(threadIndex), end = stackTraceEvents.getEnd(threadIndex); i < end; i++) {
+            long nanoTime = stackTraceEvents.getNanoTime(i);
+            for (; activation < activationEnd && getActivationEventTimestamp(activationEvents, activation) <= nanoTime; activation++) {
+                root = handleActivationEvent(activationEvents, activation, event, root);
+            }
+            if (root != null) {
+                List<StackFrame> stackFrames = resolvedStackTraces.get(stackTraceEvents.getStackTraceId(i));
+                // stack frames may not contain any Java frames
+                // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
+                if (!stackFrames.isEmpty()) {
+                    try {
+                        root.addStackTrace(tracer, stackFrames, nanoTime, callTreePool, inferredSpansMinDuration);
+                    } catch (Exception e) {
+                        logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
+                            threadId, e.getClass(), e.getMessage());
+                        logger.debug(e.getMessage(), e);
+                        root = null;
+                    }
+                }
+            }
+        }
+        // process all activation events that happened after the last stack trace event
+        // otherwise we may miss root deactivations
+        for (; activation < activationEnd; activation++) {
+            root = handleActivationEvent(activationEvents, activation, event, root);
+        }
+        return root;
+    }
+
+    private long getActivationEventTimestamp(ByteBuffer activationEvents, int activation) {
+        return activationEvents.getLong(activationEventsByThread[activation] * ActivationEvent.SERIALIZED_SIZE);
+    }
+
+    @Nullable
+    private CallTree.Root handleActivationEvent(ByteBuffer activationEvents, int activation, ActivationEvent event, @Nullable CallTree.Root root) {
+        ((Buffer) activationEvents).position(activationEventsByThread[activation] * ActivationEvent.SERIALIZED_SIZE);
+        event.deserialize(activationEvents);
+        try {
+            return event.handle(this, root);
+        } catch (Exception e) {
+            logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
+                event.threadId, e.getClass(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void backupDiagnosticFiles(File jfrFile, ByteBuffer activationEvents) throws IOException {
+        String now = String.format("%tFT%<tT.%<tL", new Date());
+        Path profilerDir = Paths.get(System.getProperty("java.io.tmpdir"), "profiler");
+        profilerDir.toFile().mkdir();
+
+        try (FileChannel activationsFile = FileChannel.open(profilerDir.resolve(now + "-activations.dat"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            activationsFile.write(activationEvents.duplicate());
+        }
+        Files.copy(jfrFile.toPath(), profilerDir.resolve(now + "-traces.jfr"));
+    }
+
+    private long getInferredSpansMinDurationNs() {
+        return Math.max(config.getInferredSpansMinDuration().getMillis(), coreConfig.getSpanMinDuration().getMillis()) * 1_000_000;
     }
 
     void processActivationEventsUpTo(long timestamp, long eof) throws IOException {
@@ -611,7 +937,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     public void processActivationEventsUpTo(long timestamp, ActivationEvent event, long eof) throws IOException {
-        FileChannel activationEventsFileChannel = this.activationEventsFileChannel;
+        FileChannel activationEventsFileChannel = sessionFiles.activationEventsFileChannel;
         ByteBuffer buf = activationEventsBuffer;
         long previousTimestamp = 0;
         while (buf.hasRemaining() || activationEventsFileChannel.position() < eof) {
@@ -626,7 +952,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (eventTimestamp <= timestamp) {
                 event.deserialize(buf);
                 try {
-                    event.handle(this);
+                    CallTree.Root root = profiledThreads.get(event.threadId);
+                    CallTree.Root newRoot = event.handle(this, root);
+                    if (newRoot == null) {
+                        profiledThreads.remove(event.threadId);
+                    } else if (newRoot != root) {
+                        profiledThreads.put(event.threadId, newRoot);
+                    }
                 } catch (Exception e) {
                     logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
                         event.threadId, e.getClass(), e.getMessage());
@@ -661,6 +993,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     public void resetActivationEventBuffer() throws IOException {
         ((Buffer) activationEventsBuffer).clear();
+        FileChannel activationEventsFileChannel = sessionFiles.activationEventsFileChannel;
         if (activationEventsFileChannel != null && activationEventsFileChannel.isOpen()) {
             activationEventsFileChannel.position(0L);
         }
@@ -669,13 +1002,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private void flushActivationEvents() throws IOException {
         if (activationEventsBuffer.position() > 0) {
             ((Buffer) activationEventsBuffer).flip();
-            activationEventsFileChannel.write(activationEventsBuffer);
+            sessionFiles.activationEventsFileChannel.write(activationEventsBuffer);
             ((Buffer) activationEventsBuffer).clear();
         }
     }
 
     long startProcessingActivationEventsFile() throws IOException {
         Buffer activationEventsBuffer = this.activationEventsBuffer;
+        FileChannel activationEventsFileChannel = sessionFiles.activationEventsFileChannel;
         if (activationEventsFileChannel.position() > 0) {
             flushActivationEvents();
             activationEventsBuffer.limit(0);
@@ -690,11 +1024,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     void copyFromFiles(Path activationEvents, Path traces) throws IOException {
         createFilesIfRequired();
 
+        FileChannel activationEventsFileChannel = sessionFiles.activationEventsFileChannel;
         FileChannel otherActivationsChannel = FileChannel.open(activationEvents, READ);
         activationEventsFileChannel.transferFrom(otherActivationsChannel, 0, otherActivationsChannel.size());
         activationEventsFileChannel.position(otherActivationsChannel.size());
         FileChannel otherTracesChannel = FileChannel.open(traces, READ);
-        FileChannel.open(jfrFile.toPath(), WRITE).transferFrom(otherTracesChannel, 0, otherTracesChannel.size());
+        FileChannel.open(sessionFiles.jfrFile.toPath(), WRITE).transferFrom(otherTracesChannel, 0, otherTracesChannel.size());
     }
 
     @Override
@@ -707,16 +1042,17 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         // cancels/interrupts the profiling thread
         // implicitly clears profiled threads
         ExecutorUtils.shutdownAndWaitTermination(scheduler);
-
-        if (activationEventsFileChannel != null) {
-            activationEventsFileChannel.close();
-        }
-
-        if (jfrFile != null && canDeleteJfrFile) {
-            jfrFile.delete();
-        }
-        if (activationEventsFile != null && canDeleteActivationEventsFile) {
-            activationEventsFile.delete();
+        synchronized (this) {
+            if (sessionProcessor != null) {
+                ExecutorUtils.shutdownAndWaitTermination(sessionProcessor);
+            }
+            if (processingPool != null) {
+                ExecutorUtils.shutdownAndWaitTermination(processingPool);
+            }
+            sessionFiles.close();
+            if (standbySessionFiles != null) {
+                standbySessionFiles.close();
+            }
         }
     }
 
@@ -734,6 +1070,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             root.recycle(callTreePool, rootPool);
         }
         profiledThreads.clear();
+        activeRootThreads.clear();
     }
 
     // for testing
@@ -756,6 +1093,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
         resetActivationEventBuffer();
         profiledThreads.clear();
+        activeRootThreads.clear();
         callTreePool.clear();
         rootPool.clear();
     }
@@ -765,36 +1103,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
     // --
 
-    public static class StackTraceEvent implements Comparable<StackTraceEvent> {
-        private final long nanoTime;
-        private final long stackTraceId;
-        private final long threadId;
-
-        private StackTraceEvent(long nanoTime, long stackTraceId, long threadId) {
-            this.nanoTime = nanoTime;
-            this.stackTraceId = stackTraceId;
-            this.threadId = threadId;
-        }
-
-        public long getThreadId() {
-            return threadId;
-        }
-
-        public long getNanoTime() {
-            return nanoTime;
-        }
-
-        public long getStackTraceId() {
-            return stackTraceId;
-        }
-
-        @Override
-        public int compareTo(StackTraceEvent o) {
-            return Long.compare(nanoTime, o.nanoTime);
-        }
-    }
-
-    private static class ActivationEvent {
+    static class ActivationEvent {
         public static final int SERIALIZED_SIZE =
             Long.SIZE / Byte.SIZE + // timestamp
                 Short.SIZE / Byte.SIZE + // serviceName index
@@ -804,12 +1113,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 1 + // rootContext
                 Long.SIZE / Byte.SIZE + // threadId
                 1; // activation
+        static final int THREAD_ID_OFFSET = SERIALIZED_SIZE - Long.SIZE / Byte.SIZE - 1;
 
         private static final Map<String, Short> serviceNameMap = new HashMap<>();
-        private static final Map<Short, String> serviceNameBackMap = new HashMap<>();
-
         private static final Map<String, Short> serviceVersionMap = new HashMap<>();
-        private static final Map<Short, String> serviceVersionBackMap = new HashMap<>();
+        // the back maps are read by the session processor while new entries are added to the maps by the profiler thread
+        private static volatile String[] serviceNameBackMap = new String[0];
+        private static volatile String[] serviceVersionBackMap = new String[0];
 
         private long timestamp;
         @Nullable
@@ -845,22 +1155,32 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             this.timestamp = nanoTime;
         }
 
-        public void handle(SamplingProfiler samplingProfiler) {
+        /**
+         * Handles this event for the thread it has been recorded for.
+         * <p>
+         * This method is called concurrently for events of different threads, it must not modify state that is shared across threads.
+         * </p>
+         *
+         * @param root the call tree root of the thread this event has been recorded for
+         * @return the call tree root of the thread after handling the event
+         */
+        @Nullable
+        public CallTree.Root handle(SamplingProfiler samplingProfiler, @Nullable CallTree.Root root) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Handling event timestamp={} root={} threadId={} activation={}", timestamp, rootContext, threadId, activation);
             }
             if (activation) {
-                handleActivationEvent(samplingProfiler);
+                return handleActivationEvent(samplingProfiler, root);
             } else {
-                handleDeactivationEvent(samplingProfiler);
+                return handleDeactivationEvent(samplingProfiler, root);
             }
         }
 
-        private void handleActivationEvent(SamplingProfiler samplingProfiler) {
+        @Nullable
+        private CallTree.Root handleActivationEvent(SamplingProfiler samplingProfiler, @Nullable CallTree.Root root) {
             if (rootContext) {
-                startProfiling(samplingProfiler);
+                return startProfiling(samplingProfiler, root);
             } else {
-                CallTree.Root root = samplingProfiler.profiledThreads.get(threadId);
                 if (root != null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Handling activation for thread {}", threadId);
@@ -869,34 +1189,38 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 } else if (logger.isDebugEnabled()) {
                     logger.debug("Illegal state when handling activation event for thread {}: no root found for this thread", threadId);
                 }
+                return root;
             }
         }
 
-        private void startProfiling(SamplingProfiler samplingProfiler) {
+        private CallTree.Root startProfiling(SamplingProfiler samplingProfiler, @Nullable CallTree.Root orphaned) {
             CallTree.Root root = CallTree.createRoot(samplingProfiler.rootPool, traceContextBuffer, serviceName, serviceVersion, timestamp);
             if (logger.isDebugEnabled()) {
                 logger.debug("Create call tree ({}) for thread {}", deserialize(samplingProfiler, traceContextBuffer), threadId);
             }
 
-            CallTree.Root orphaned = samplingProfiler.profiledThreads.put(threadId, root);
             if (orphaned != null) {
                 if (logger.isDebugEnabled()) {
                     logger.warn("Illegal state when stopping profiling for thread {}: orphaned root", threadId);
                 }
                 orphaned.recycle(samplingProfiler.callTreePool, samplingProfiler.rootPool);
             }
+            return root;
         }
 
-        private TraceContextImpl deserialize(SamplingProfiler samplingProfiler, byte[] traceContextBuffer) {
-            samplingProfiler.contextForLogging.deserialize(traceContextBuffer, null, null);
-            return samplingProfiler.contextForLogging;
+        private String deserialize(SamplingProfiler samplingProfiler, byte[] traceContextBuffer) {
+            // the context for logging is shared by all threads processing activation events
+            synchronized (samplingProfiler.contextForLogging) {
+                samplingProfiler.contextForLogging.deserialize(traceContextBuffer, null, null);
+                return samplingProfiler.contextForLogging.toString();
+            }
         }
 
-        private void handleDeactivationEvent(SamplingProfiler samplingProfiler) {
+        @Nullable
+        private CallTree.Root handleDeactivationEvent(SamplingProfiler samplingProfiler, @Nullable CallTree.Root root) {
             if (rootContext) {
-                stopProfiling(samplingProfiler);
+                return stopProfiling(samplingProfiler, root);
             } else {
-                CallTree.Root root = samplingProfiler.profiledThreads.get(threadId);
                 if (root != null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Handling deactivation for thread {}", threadId);
@@ -905,16 +1229,16 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 } else if (logger.isDebugEnabled()) {
                     logger.debug("Illegal state when handling deactivation event for thread {}: no root found for this thread", threadId);
                 }
+                return root;
             }
         }
 
-        private void stopProfiling(SamplingProfiler samplingProfiler) {
-            CallTree.Root callTree = samplingProfiler.profiledThreads.get(threadId);
+        @Nullable
+        private CallTree.Root stopProfiling(SamplingProfiler samplingProfiler, @Nullable CallTree.Root callTree) {
             if (callTree != null && callTree.getRootContext().traceIdAndIdEquals(traceContextBuffer)) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("End call tree ({}) for thread {}", deserialize(samplingProfiler, traceContextBuffer), threadId);
                 }
-                samplingProfiler.profiledThreads.remove(threadId);
                 try {
                     callTree.end(samplingProfiler.callTreePool, samplingProfiler.getInferredSpansMinDurationNs());
                     int createdSpans = callTree.spanify();
@@ -928,7 +1252,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 } finally {
                      callTree.recycle(samplingProfiler.callTreePool, samplingProfiler.rootPool);
                 }
+                return null;
             }
+            return callTree;
         }
 
         public void serialize(ByteBuffer buf) {
@@ -944,8 +1270,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
         public void deserialize(ByteBuffer buf) {
             timestamp = buf.getLong();
-            serviceName = serviceNameBackMap.get(buf.getShort());
-            serviceVersion = serviceVersionBackMap.get(buf.getShort());
+            serviceName = get(serviceNameBackMap, buf.getShort());
+            serviceVersion = get(serviceVersionBackMap, buf.getShort());
             buf.get(traceContextBuffer);
             buf.get(previousContextBuffer);
             rootContext = buf.get() == 1;
@@ -958,7 +1284,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (index == null) {
                 index = (short) serviceNameMap.size();
                 serviceNameMap.put(serviceName, index);
-                serviceNameBackMap.put(index, serviceName);
+                serviceNameBackMap = add(serviceNameBackMap, serviceName);
             }
             return index;
         }
@@ -968,10 +1294,22 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (index == null) {
                 index = (short) serviceVersionMap.size();
                 serviceVersionMap.put(serviceVersion, index);
-                serviceVersionBackMap.put(index, serviceVersion);
+                serviceVersionBackMap = add(serviceVersionBackMap, serviceVersion);
             }
             return index;
         }
+
+        private static String[] add(String[] backMap, @Nullable String value) {
+            String[] copy = Arrays.copyOf(backMap, backMap.length + 1);
+            copy[backMap.length] = value;
+            return copy;
+        }
+
+        @Nullable
+        private static String get(String[] backMap, short index) {
+            // the index may be unknown when replaying files from another process
+            return index >= 0 && index < backMap.length ? backMap[index] : null;
+        }
     }
 
     /**
@@ -998,7 +1336,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (endOfBatch) {
                 SamplingProfiler.this.sequence.set(sequence);
             }
-            if (activationEventsFileChannel.size() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
+            if (event.rootContext) {
+                if (event.activation) {
+                    activeRootThreads.add(event.threadId);
+                } else {
+                    activeRootThreads.remove(event.threadId);
+                }
+            }
+            if (!isActivationEventsFileFull()) {
                 event.serialize(activationEventsBuffer);
                 if (!activationEventsBuffer.hasRemaining()) {
                     flushActivationEvents();
@@ -1008,4 +1353,160 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             return false;
         }
     }
+
+    private class AddStackTraceEventHandler implements JfrParser.StackTraceConsumer {
+        @Override
+        public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
+            // only threads which had an activation or which have a call tree root are relevant,
+            // async-profiler only profiles those threads anyway
+            int threadIndex = (int) threadIdToIndex.get(threadId);
+            if (threadIndex != -1) {
+                stackTraceEvents.add(threadIndex, stackTraceId, nanoTime);
+            }
+        }
+    }
+
+    private class ProcessSessionTask implements Runnable {
+
+        private final SessionFiles recordedSessionFiles;
+
+        private ProcessSessionTask(SessionFiles recordedSessionFiles) {
+            this.recordedSessionFiles = recordedSessionFiles;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processTraces(recordedSessionFiles.jfrFile, recordedSessionFiles.getActivationEvents(recordedSessionFiles.eof));
+            } catch (Exception e) {
+                logger.error("Error while processing traces", e);
+            }
+        }
+    }
+
+    /**
+     * Processes threads until all threads of the current session have been processed.
+     * Multiple instances work on the same session, each claiming one thread at a time.
+     */
+    private class ThreadsProcessor implements Runnable {
+
+        private final ByteBuffer activationEvents;
+        private final int threadCount;
+        private final ActivationEvent event = new ActivationEvent();
+
+        private ThreadsProcessor(ByteBuffer activationEvents, int threadCount) {
+            // each processor needs its own position in the activation events
+            this.activationEvents = activationEvents.duplicate();
+            this.threadCount = threadCount;
+        }
+
+        @Override
+        public void run() {
+            for (int i = nextThreadToProcess.getAndIncrement(); i < threadCount; i = nextThreadToProcess.getAndIncrement()) {
+                processedRoots[i] = processThread(i, processedRoots[i], activationEvents, event);
+            }
+        }
+    }
+
+    /**
+     * A bounded pool for processing the threads of a profiling session in parallel.
+     * Being in the {@code co.elastic.apm} package makes sure that tasks submitted to this pool are not instrumented.
+     */
+    private static class ProcessingPool extends ForkJoinPool {
+
+        private ProcessingPool(int parallelism) {
+            super(parallelism, new ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(ThreadUtils.addElasticApmThreadPrefix("sampling-profiler-processing-" + thread.getPoolIndex()));
+                    return thread;
+                }
+            }, null, false);
+        }
+    }
+
+    /**
+     * The files a profiling session is recorded to:
+     * the JFR file written by async-profiler and the file the {@link ActivationEvent}s are written to.
+     */
+    static class SessionFiles {
+        @Nullable
+        private File jfrFile;
+        private boolean canDeleteJfrFile;
+        @Nullable
+        private File activationEventsFile;
+        private boolean canDeleteActivationEventsFile;
+        /**
+         * Used to efficiently write {@link SamplingProfiler#activationEventsBuffer} via {@link FileChannel#write(ByteBuffer)}
+         */
+        @Nullable
+        private FileChannel activationEventsFileChannel;
+        /**
+         * Read-only mapping of the {@link #activationEventsFile}, which lets the processing threads read the activation events
+         * of different threads concurrently.
+         * The file is only re-mapped if it's grown beyond the mapped size.
+         */
+        @Nullable
+        private MappedByteBuffer activationEventsMapping;
+        /**
+         * The end of the activation events of the last session which has been recorded to these files
+         */
+        long eof;
+
+        private SessionFiles(@Nullable File activationEventsFile, @Nullable File jfrFile) {
+            this.activationEventsFile = activationEventsFile;
+            this.jfrFile = jfrFile;
+        }
+
+        private void createIfRequired() throws IOException {
+            if (jfrFile == null || !jfrFile.exists()) {
+                jfrFile = File.createTempFile("apm-traces-", ".jfr");
+                jfrFile.deleteOnExit();
+                canDeleteJfrFile = true;
+            }
+            if (activationEventsFile == null || !activationEventsFile.exists()) {
+                activationEventsFile = File.createTempFile("apm-activation-events-", ".bin");
+                activationEventsFile.deleteOnExit();
+                canDeleteActivationEventsFile = true;
+            }
+            if (activationEventsFileChannel == null || !activationEventsFileChannel.isOpen()) {
+                activationEventsFileChannel = FileChannel.open(activationEventsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                activationEventsMapping = null;
+            }
+            if (activationEventsFileChannel.size() == 0) {
+                preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
+            }
+        }
+
+        /**
+         * Returns the activation events up to {@code eof}, read from a mapping of the {@link #activationEventsFile}.
+         * <p>
+         * In contrast to the JFR file which is read via {@link JfrParser}'s {@code BufferedFile} to not increase time-to-safepoint,
+         * the activation events file has just been written by the profiler thread so that its pages are still in the page cache.
+         * </p>
+         */
+        ByteBuffer getActivationEvents(long eof) throws IOException {
+            FileChannel activationEventsFileChannel = this.activationEventsFileChannel;
+            if (activationEventsMapping == null || activationEventsMapping.capacity() < eof) {
+                activationEventsMapping = activationEventsFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, activationEventsFileChannel.size());
+            }
+            ByteBuffer activationEvents = activationEventsMapping.duplicate();
+            ((Buffer) activationEvents).limit((int) eof);
+            ((Buffer) activationEvents).position(0);
+            return activationEvents;
+        }
+
+        private void close() throws IOException {
+            if (activationEventsFileChannel != null) {
+                activationEventsFileChannel.close();
+            }
+            if (jfrFile != null && canDeleteJfrFile) {
+                jfrFile.delete();
+            }
+            if (activationEventsFile != null && canDeleteActivationEventsFile) {
+                activationEventsFile.delete();
+            }
+        }
+    }
 }
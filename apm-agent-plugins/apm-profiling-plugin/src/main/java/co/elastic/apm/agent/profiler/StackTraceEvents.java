@@ -0,0 +1,200 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import java.util.Arrays;
+
+/**
+ * Holds the stack trace events of a profiling session in primitive columns instead of one object per event.
+ * <p>
+ * The events in the JFR file are not in order.
+ * Even for the same thread, a more recent event might come before an older event.
+ * {@link #sort(int)} groups the events by thread and orders them by timestamp within each thread,
+ * using an LSD radix sort which does not allocate once the columns have grown to the size of a typical session.
+ * </p>
+ */
+class StackTraceEvents implements Recyclable {
+
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int RADIX_MASK = RADIX - 1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] nanoTimes = new long[INITIAL_CAPACITY];
+    private long[] stackTraceIds = new long[INITIAL_CAPACITY];
+    private int[] threadIndices = new int[INITIAL_CAPACITY];
+    private long[] nanoTimesScratch = new long[INITIAL_CAPACITY];
+    private long[] stackTraceIdsScratch = new long[INITIAL_CAPACITY];
+    private int[] threadIndicesScratch = new int[INITIAL_CAPACITY];
+    private final int[] digitCounts = new int[RADIX];
+    /**
+     * After {@link #sort(int)}, the events of the thread with index {@code i} are in the range
+     * {@code [threadOffsets[i], threadOffsets[i + 1])}
+     */
+    private int[] threadOffsets = new int[2];
+    private int size;
+
+    /**
+     * @param threadIndex  a dense index (starting at 0) of the thread the event has been recorded for
+     * @param stackTraceId the id of the stack trace in the JFR file
+     * @param nanoTime     the timestamp of the event
+     */
+    void add(int threadIndex, long stackTraceId, long nanoTime) {
+        if (size == nanoTimes.length) {
+            int newCapacity = size * 2;
+            nanoTimes = Arrays.copyOf(nanoTimes, newCapacity);
+            stackTraceIds = Arrays.copyOf(stackTraceIds, newCapacity);
+            threadIndices = Arrays.copyOf(threadIndices, newCapacity);
+            nanoTimesScratch = new long[newCapacity];
+            stackTraceIdsScratch = new long[newCapacity];
+            threadIndicesScratch = new int[newCapacity];
+        }
+        nanoTimes[size] = nanoTime;
+        stackTraceIds[size] = stackTraceId;
+        threadIndices[size] = threadIndex;
+        size++;
+    }
+
+    /**
+     * Sorts the events by thread index and, for events of the same thread, by timestamp.
+     *
+     * @param threadCount the number of distinct thread indices, all indices passed to {@link #add} have to be smaller than that
+     */
+    void sort(int threadCount) {
+        if (size > 0) {
+            long minNanoTime = Long.MAX_VALUE;
+            long maxNanoTime = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                minNanoTime = Math.min(minNanoTime, nanoTimes[i]);
+                maxNanoTime = Math.max(maxNanoTime, nanoTimes[i]);
+            }
+            // sorting by the offset to the min timestamp instead of the timestamp itself
+            // usually saves two passes and makes negative nanoTime values sort correctly
+            long maxKey = maxNanoTime - minNanoTime;
+            for (int shift = 0; shift < Long.SIZE && (maxKey >>> shift) != 0; shift += RADIX_BITS) {
+                sortByTimestampDigit(minNanoTime, shift);
+            }
+        }
+        // as the radix sort is stable, the last pass by thread index keeps the events of a thread ordered by timestamp
+        sortByThreadIndex(threadCount);
+    }
+
+    private void sortByTimestampDigit(long minNanoTime, int shift) {
+        int[] counts = this.digitCounts;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < size; i++) {
+            counts[digit(nanoTimes[i], minNanoTime, shift)]++;
+        }
+        toOffsets(counts, RADIX);
+        for (int i = 0; i < size; i++) {
+            moveToScratch(i, counts[digit(nanoTimes[i], minNanoTime, shift)]++);
+        }
+        swapScratch();
+    }
+
+    private static int digit(long nanoTime, long minNanoTime, int shift) {
+        return (int) (((nanoTime - minNanoTime) >>> shift) & RADIX_MASK);
+    }
+
+    private void sortByThreadIndex(int threadCount) {
+        if (threadOffsets.length < threadCount + 1) {
+            threadOffsets = new int[threadCount + 1];
+        }
+        int[] offsets = this.threadOffsets;
+        Arrays.fill(offsets, 0, threadCount + 1, 0);
+        for (int i = 0; i < size; i++) {
+            offsets[threadIndices[i] + 1]++;
+        }
+        for (int i = 1; i <= threadCount; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        for (int i = 0; i < size; i++) {
+            // uses offsets[threadIndex] as the insertion point which advances it to the start of the next thread
+            moveToScratch(i, offsets[threadIndices[i]]++);
+        }
+        // restore the start offsets which have been advanced by one thread
+        System.arraycopy(offsets, 0, offsets, 1, threadCount);
+        offsets[0] = 0;
+        swapScratch();
+    }
+
+    private static void toOffsets(int[] counts, int length) {
+        int offset = 0;
+        for (int i = 0; i < length; i++) {
+            int count = counts[i];
+            counts[i] = offset;
+            offset += count;
+        }
+    }
+
+    private void moveToScratch(int from, int to) {
+        nanoTimesScratch[to] = nanoTimes[from];
+        stackTraceIdsScratch[to] = stackTraceIds[from];
+        threadIndicesScratch[to] = threadIndices[from];
+    }
+
+    private void swapScratch() {
+        long[] tmpLongs = nanoTimes;
+        nanoTimes = nanoTimesScratch;
+        nanoTimesScratch = tmpLongs;
+        tmpLongs = stackTraceIds;
+        stackTraceIds = stackTraceIdsScratch;
+        stackTraceIdsScratch = tmpLongs;
+        int[] tmpInts = threadIndices;
+        threadIndices = threadIndicesScratch;
+        threadIndicesScratch = tmpInts;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Only valid after {@link #sort(int)}
+     */
+    int getStart(int threadIndex) {
+        return threadOffsets[threadIndex];
+    }
+
+    /**
+     * Only valid after {@link #sort(int)}
+     */
+    int getEnd(int threadIndex) {
+        return threadOffsets[threadIndex + 1];
+    }
+
+    long getNanoTime(int i) {
+        return nanoTimes[i];
+    }
+
+    long getStackTraceId(int i) {
+        return stackTraceIds[i];
+    }
+
+    int getThreadIndex(int i) {
+        return threadIndices[i];
+    }
+
+    @Override
+    public void resetState() {
+        size = 0;
+    }
+}
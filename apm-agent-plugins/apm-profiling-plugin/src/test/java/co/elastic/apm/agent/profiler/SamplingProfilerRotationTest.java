@@ -0,0 +1,164 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import com.lmax.disruptor.EventPoller;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.when;
+
+class SamplingProfilerRotationTest {
+
+    private static final int EVENT_SIZE = SamplingProfiler.ActivationEvent.SERIALIZED_SIZE;
+
+    private ElasticApmTracer tracer;
+    private FixedNanoClock nanoClock;
+    private SamplingProfiler profiler;
+    private TraceContextImpl traceContext;
+    private TraceContextImpl previouslyActive;
+    private long timestamp;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.create();
+        when(tracer.getObjectPoolFactory()).thenReturn(new ObjectPoolFactoryImpl());
+        nanoClock = new FixedNanoClock();
+        profiler = new SamplingProfiler(tracer, nanoClock);
+        profiler.setProfilingSessionOngoing(true);
+        traceContext = TraceContextImpl.with64BitId(tracer);
+        // activations of non-root spans don't enable async-profiler for the current thread
+        previouslyActive = TraceContextImpl.with64BitId(tracer);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        profiler.stop();
+    }
+
+    @Test
+    void testNoActivationEventsLostAcrossRotations() throws Exception {
+        SamplingProfiler.SessionFiles previousSessionFiles = null;
+        SamplingProfiler.SessionFiles sessionFilesBeforePrevious = null;
+        for (int session = 0; session < 6; session++) {
+            long firstTimestamp = timestamp + 1;
+            int events = 1000 + session * 500;
+            for (int i = 0; i < events; i++) {
+                activate();
+                if (i == events / 2) {
+                    profiler.consumeActivationEventsFromRingBufferAndWriteToFile();
+                }
+            }
+            // the second half of the events is still in the ring buffer when rotating
+
+            SamplingProfiler.SessionFiles sessionFiles = profiler.rotateSessionFiles();
+
+            assertTimestamps(sessionFiles, firstTimestamp, events);
+            // the sessions alternate between two sets of files
+            assertThat(sessionFiles).isNotSameAs(previousSessionFiles);
+            if (sessionFilesBeforePrevious != null) {
+                assertThat(sessionFiles).isSameAs(sessionFilesBeforePrevious);
+            }
+            sessionFilesBeforePrevious = previousSessionFiles;
+            previousSessionFiles = sessionFiles;
+        }
+    }
+
+    @Test
+    void testRotateEmptySessions() throws Exception {
+        assertTimestamps(profiler.rotateSessionFiles(), 1, 0);
+
+        activate();
+        activate();
+        profiler.consumeActivationEventsFromRingBufferAndWriteToFile();
+
+        assertTimestamps(profiler.rotateSessionFiles(), 1, 2);
+        assertTimestamps(profiler.rotateSessionFiles(), 3, 0);
+    }
+
+    @Test
+    void testActivationEventsPerSessionAreBounded() throws Exception {
+        ProfilingConfiguration profilingConfiguration = tracer.getConfig(ProfilingConfiguration.class);
+        doReturn(1000).when(profilingConfiguration).getMaxActivationEventsPerSession();
+
+        for (int i = 0; i < 1500; i++) {
+            activate();
+        }
+        while (profiler.consumeActivationEventsFromRingBufferAndWriteToFile() == EventPoller.PollState.PROCESSING) {
+            // consume until the ring buffer is empty
+        }
+        assertTimestamps(profiler.rotateSessionFiles(), 1, 1000);
+
+        // the limit applies to each session
+        long firstTimestamp = timestamp + 1;
+        for (int i = 0; i < 10; i++) {
+            activate();
+        }
+        assertTimestamps(profiler.rotateSessionFiles(), firstTimestamp, 10);
+    }
+
+    @Test
+    void testSessionIsExtendedWhileProcessingIsSlowerThanSession() throws Exception {
+        int batches = 3;
+        int eventsPerBatch = SamplingProfiler.RING_BUFFER_SIZE / 2;
+        // creates the files of the current session
+        profiler.consumeActivationEventsFromRingBufferAndWriteToFile();
+        // the application keeps activating spans while the previous session is processed,
+        // which produces more events than fit into the ring buffer
+        profiler.processSessionAsync(() -> {
+            for (int batch = 0; batch < batches; batch++) {
+                for (int i = 0; i < eventsPerBatch; i++) {
+                    activate();
+                }
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        profiler.awaitSessionProcessingWhileRecording();
+
+        // the events recorded while waiting for the processing belong to the current session
+        assertTimestamps(profiler.rotateSessionFiles(), 1, batches * eventsPerBatch);
+    }
+
+    private void activate() {
+        nanoClock.setNanoTime(++timestamp);
+        assertThat(profiler.onActivation(traceContext, previouslyActive)).isTrue();
+    }
+
+    private static void assertTimestamps(SamplingProfiler.SessionFiles sessionFiles, long firstTimestamp, int events) throws Exception {
+        assertThat(sessionFiles.eof).isEqualTo((long) events * EVENT_SIZE);
+        ByteBuffer activationEvents = sessionFiles.getActivationEvents(sessionFiles.eof);
+        for (int i = 0; i < events; i++) {
+            assertThat(activationEvents.getLong(i * EVENT_SIZE)).isEqualTo(firstTimestamp + i);
+        }
+    }
+}
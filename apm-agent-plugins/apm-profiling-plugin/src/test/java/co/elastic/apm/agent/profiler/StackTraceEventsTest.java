@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceEventsTest {
+
+    private final StackTraceEvents stackTraceEvents = new StackTraceEvents();
+
+    @Test
+    void testSortByThreadAndTimestamp() {
+        stackTraceEvents.add(1, 10, 300);
+        stackTraceEvents.add(0, 11, 200);
+        stackTraceEvents.add(1, 12, 100);
+        stackTraceEvents.add(0, 13, 100);
+        stackTraceEvents.add(2, 14, 50);
+
+        stackTraceEvents.sort(3);
+
+        assertThat(stackTraceEvents.getStart(0)).isEqualTo(0);
+        assertThat(stackTraceEvents.getEnd(0)).isEqualTo(2);
+        assertThat(stackTraceEvents.getStart(1)).isEqualTo(2);
+        assertThat(stackTraceEvents.getEnd(1)).isEqualTo(4);
+        assertThat(stackTraceEvents.getStart(2)).isEqualTo(4);
+        assertThat(stackTraceEvents.getEnd(2)).isEqualTo(5);
+        assertThat(getStackTraceIds()).containsExactly(13L, 11L, 12L, 10L, 14L);
+    }
+
+    @Test
+    void testThreadWithoutEvents() {
+        stackTraceEvents.add(2, 1, 100);
+
+        stackTraceEvents.sort(3);
+
+        assertThat(stackTraceEvents.getStart(0)).isEqualTo(stackTraceEvents.getEnd(0));
+        assertThat(stackTraceEvents.getStart(1)).isEqualTo(stackTraceEvents.getEnd(1));
+        assertThat(stackTraceEvents.getStart(2)).isEqualTo(0);
+        assertThat(stackTraceEvents.getEnd(2)).isEqualTo(1);
+    }
+
+    @Test
+    void testNegativeTimestampsAndEqualTimestampsKeepInsertionOrder() {
+        stackTraceEvents.add(0, 1, 5);
+        stackTraceEvents.add(0, 2, -5);
+        stackTraceEvents.add(0, 3, Long.MIN_VALUE / 2);
+        stackTraceEvents.add(0, 4, -5);
+
+        stackTraceEvents.sort(1);
+
+        assertThat(getStackTraceIds()).containsExactly(3L, 2L, 4L, 1L);
+    }
+
+    @Test
+    void testRandomEventsAcrossMultipleRadixPasses() {
+        Random random = new Random(42);
+        List<long[]> expected = new ArrayList<>();
+        long base = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            int threadIndex = random.nextInt(16);
+            long nanoTime = base + (long) (random.nextDouble() * 30_000_000_000L);
+            stackTraceEvents.add(threadIndex, i, nanoTime);
+            expected.add(new long[]{threadIndex, nanoTime, i});
+        }
+        expected.sort(Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]).thenComparingLong(e -> e[2]));
+
+        stackTraceEvents.sort(16);
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(stackTraceEvents.getThreadIndex(i)).isEqualTo(expected.get(i)[0]);
+            assertThat(stackTraceEvents.getNanoTime(i)).isEqualTo(expected.get(i)[1]);
+            assertThat(stackTraceEvents.getStackTraceId(i)).isEqualTo(expected.get(i)[2]);
+        }
+    }
+
+    @Test
+    void testReuseAfterReset() {
+        stackTraceEvents.add(0, 1, 100);
+        stackTraceEvents.sort(1);
+        stackTraceEvents.resetState();
+
+        assertThat(stackTraceEvents.size()).isZero();
+        stackTraceEvents.add(1, 2, 100);
+        stackTraceEvents.sort(2);
+        assertThat(stackTraceEvents.getStart(1)).isEqualTo(0);
+        assertThat(getStackTraceIds()).containsExactly(2L);
+    }
+
+    private List<Long> getStackTraceIds() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < stackTraceEvents.size(); i++) {
+            ids.add(stackTraceEvents.getStackTraceId(i));
+        }
+        return ids;
+    }
+}
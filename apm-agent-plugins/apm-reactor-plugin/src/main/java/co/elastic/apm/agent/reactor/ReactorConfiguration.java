@@ -0,0 +1,69 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.reactor;
+
+import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+
+public class ReactorConfiguration extends ConfigurationOptionProvider {
+
+    private final ConfigurationOption<ContextPropagation> contextPropagation = ConfigurationOption.enumOption(ContextPropagation.class)
+        .key("reactor_context_propagation")
+        .configurationCategory("Core")
+        .description("Determines which Project Reactor operators propagate the active transaction or span to the threads they signal on.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "\n" +
+            "* *all_operators*: The default. Every operator of a `Flux` or `Mono` which is subscribed to while a transaction or span is active\n" +
+            "is wrapped, and the transaction or span is activated for each signal.\n" +
+            "* *thread_hops*: Only operators which may signal or request on a different thread than the one they have been subscribed on,\n" +
+            "such as `publishOn`, `subscribeOn`, timed operators, `create` and sources which are not part of Reactor, are wrapped.\n" +
+            "Operators which are subscribed to on another thread, like the ones upstream of `subscribeOn`, are wrapped as well.\n" +
+            "The operators in between are executed while the transaction or span is still active,\n" +
+            "which reduces the overhead for long pipelines.\n" +
+            "\n" +
+            "This option is case-insensitive.")
+        .dynamic(true)
+        .tags("added[1.56.0]", "experimental")
+        .buildWithDefault(ContextPropagation.ALL_OPERATORS);
+
+    public ContextPropagation getContextPropagation() {
+        return contextPropagation.get();
+    }
+
+    /**
+     * As opposed to this class, the {@link ContextPropagation} enum is loaded by the plugin class loader,
+     * which is why it must not be referenced outside of this class.
+     *
+     * @return {@literal true} if only the operators that hop threads should propagate the context
+     */
+    public boolean isThreadHopsPropagation() {
+        return getContextPropagation() == ContextPropagation.THREAD_HOPS;
+    }
+
+    public enum ContextPropagation {
+        ALL_OPERATORS,
+        THREAD_HOPS;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.reactor;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import reactor.core.Scannable;
+
+/**
+ * Tells which operators may signal their subscriber, or request from their source, on another thread than the one they
+ * have been subscribed on.
+ * Used when {@link ReactorConfiguration.ContextPropagation#THREAD_HOPS} is configured, so that only those operators need
+ * to be wrapped in a {@link TracedSubscriber}.
+ * <p>
+ * Operators are identified by their class name, as most of them are package-private and differ across Reactor versions.
+ * When in doubt, an operator is considered to be a thread hop, as wrapping it is always safe.
+ * </p>
+ */
+class ThreadHopOperators {
+
+    private static final String REACTOR_PACKAGE = "reactor.core.publisher.";
+
+    private static final String ASSEMBLY_SUBSCRIBER_PREFIX = REACTOR_PACKAGE + "FluxOnAssembly$";
+
+    /**
+     * Prefixes of the {@code reactor.core.publisher} operators which signal or request on a scheduler, a timer, on the
+     * thread of a sink or of a source which is not part of Reactor, or which multicast the signals of another subscription.
+     * Also matches the subscribers of these operators, which are nested classes.
+     */
+    private static final String[] THREAD_HOP_PREFIXES = {
+        "FluxPublishOn",
+        "MonoPublishOn",
+        "FluxSubscribeOn",
+        "MonoSubscribeOn",
+        "ParallelRunOn",
+        "FluxInterval",
+        "FluxDelay",
+        "MonoDelay",
+        "FluxCreate",
+        "MonoCreate",
+        "MonoCompletionStage",
+        "FluxSource",
+        "MonoSource",
+        "MonoFromPublisher",
+        "FluxSample",
+        "FluxPublish",
+        "FluxReplay",
+        "FluxRefCount",
+        "FluxAutoConnect",
+        "MonoCacheTime"
+    };
+
+    private static final WeakMap<Class<?>, Boolean> threadHopTypes = WeakConcurrent.buildMap();
+
+    private ThreadHopOperators() {
+    }
+
+    /**
+     * @param publisher operator or source
+     * @return {@literal true} if the publisher may signal its subscribers on another thread
+     */
+    static boolean isThreadHop(Publisher<?> publisher) {
+        if (publisher instanceof Processor) {
+            return true;
+        }
+        Class<?> type = publisher.getClass();
+        if (publisher instanceof Scannable && isAssemblyPublisher(type.getName())) {
+            // checkpoints and debug mode wrap the operators, and the hook is applied to the wrapper, look through them
+            Object parent = ((Scannable) publisher).scanUnsafe(Scannable.Attr.PARENT);
+            if (parent instanceof Publisher) {
+                return isThreadHop((Publisher<?>) parent);
+            }
+        }
+        return isThreadHop(type);
+    }
+
+    /**
+     * @param className publisher class name
+     * @return {@literal true} for the publishers which capture the assembly information, such as {@code FluxOnAssembly}
+     * or {@code MonoCallableOnAssembly}
+     */
+    static boolean isAssemblyPublisher(String className) {
+        return className.startsWith(REACTOR_PACKAGE)
+            && className.indexOf('.', REACTOR_PACKAGE.length()) < 0
+            && className.indexOf('$', REACTOR_PACKAGE.length()) < 0
+            && className.endsWith("OnAssembly");
+    }
+
+    /**
+     * @param subscriber subscriber of an operator
+     * @return {@literal true} if the subscriber may request from its subscription on another thread, which makes
+     * synchronous sources emit on that thread
+     */
+    static boolean isThreadHop(Subscriber<?> subscriber) {
+        if (subscriber instanceof TracedSubscriber) {
+            return false;
+        }
+        Class<?> type = subscriber.getClass();
+        if (subscriber instanceof Scannable && type.getName().startsWith(ASSEMBLY_SUBSCRIBER_PREFIX)) {
+            // checkpoints and debug mode add subscribers which are not lifted, look through them
+            Object actual = ((Scannable) subscriber).scanUnsafe(Scannable.Attr.ACTUAL);
+            if (actual instanceof Subscriber) {
+                return isThreadHop((Subscriber<?>) actual);
+            }
+        }
+        return isThreadHop(type);
+    }
+
+    private static boolean isThreadHop(Class<?> type) {
+        Boolean threadHop = threadHopTypes.get(type);
+        if (threadHop == null) {
+            threadHop = isThreadHop(type.getName());
+            threadHopTypes.put(type, threadHop);
+        }
+        return threadHop;
+    }
+
+    static boolean isThreadHop(String className) {
+        if (!className.startsWith(REACTOR_PACKAGE) || className.indexOf('.', REACTOR_PACKAGE.length()) >= 0) {
+            // other libraries, like reactor-netty, usually signal and request on their own threads
+            return true;
+        }
+        int nestedIndex = className.indexOf('$', REACTOR_PACKAGE.length());
+        String operatorName = className.substring(REACTOR_PACKAGE.length(), nestedIndex < 0 ? className.length() : nestedIndex);
+        if (operatorName.endsWith("Timeout")) {
+            return true;
+        }
+        for (String prefix : THREAD_HOP_PREFIXES) {
+            if (operatorName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -37,6 +37,8 @@ import reactor.core.publisher.Operators;
 import reactor.util.context.Context;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -57,9 +59,19 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
 
     private final Context context;
 
+    private final boolean tracedRequests;
+
     TracedSubscriber(CoreSubscriber<? super T> subscriber, Tracer tracer, TraceState<?> context) {
+        this(subscriber, tracer, context, false);
+    }
+
+    /**
+     * @param tracedRequests {@literal true} to also activate the context when the subscriber requests from its subscription
+     */
+    TracedSubscriber(CoreSubscriber<? super T> subscriber, Tracer tracer, TraceState<?> context, boolean tracedRequests) {
         this.subscriber = subscriber;
         this.tracer = tracer;
+        this.tracedRequests = tracedRequests;
         contextMap.put(this, context);
 
         // store our span/transaction into reactor context for later lookup without relying on active tracer state
@@ -82,7 +94,7 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
         boolean hasActivated = doEnter("onSubscribe", context);
         Throwable thrown = null;
         try {
-            subscriber.onSubscribe(s);
+            subscriber.onSubscribe(tracedRequests ? tracedSubscription(s) : s);
         } catch (Throwable e) {
             thrown = e;
             throw e;
@@ -145,6 +157,162 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private Subscription tracedSubscription(Subscription s) {
+        if (s instanceof Fuseable.QueueSubscription) {
+            // hiding the queue subscription would prevent the downstream operator from fusing with the upstream one
+            return new TracedQueueSubscription((Fuseable.QueueSubscription<T>) s);
+        }
+        return new TracedSubscription(s);
+    }
+
+    /**
+     * Activates the context of the enclosing subscriber while requesting, as synchronous sources emit on the requesting thread.
+     */
+    private class TracedSubscription implements Subscription {
+
+        private final Subscription subscription;
+
+        private TracedSubscription(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void request(long n) {
+            TraceState<?> context = getContext();
+            boolean hasActivated = doEnter("request", context);
+            try {
+                subscription.request(n);
+            } finally {
+                doExit(hasActivated, "request", context);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * When fused, the downstream operator polls the values instead of receiving them in {@link #onNext(Object)},
+     * which executes the upstream operators on the polling thread. Therefore, the context is also activated while polling.
+     */
+    private class TracedQueueSubscription extends TracedSubscription implements Fuseable.QueueSubscription<T> {
+
+        private final Fuseable.QueueSubscription<T> queueSubscription;
+
+        private TracedQueueSubscription(Fuseable.QueueSubscription<T> queueSubscription) {
+            super(queueSubscription);
+            this.queueSubscription = queueSubscription;
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return queueSubscription.requestFusion(requestedMode);
+        }
+
+        @Nullable
+        @Override
+        public T poll() {
+            TraceState<?> context = getContext();
+            boolean hasActivated = doEnter("poll", context);
+            try {
+                return queueSubscription.poll();
+            } finally {
+                doExit(hasActivated, "poll", context);
+            }
+        }
+
+        @Override
+        public int size() {
+            return queueSubscription.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queueSubscription.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            queueSubscription.clear();
+        }
+
+        // the remaining queue methods are not supported by queue subscriptions,
+        // but have to be implemented as default methods are not available when compiling for Java 7
+
+        @Override
+        public T peek() {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean add(T t) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean offer(T t) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public T remove() {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public T element() {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public Object[] toArray() {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public <T1> T1[] toArray(T1[] a) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends T> c) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            throw new UnsupportedOperationException(NOT_SUPPORTED_MESSAGE);
+        }
+    }
+
     /**
      * Wrapped method entry
      *
@@ -218,7 +386,7 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
         if (isRegistered.getAndSet(true)) {
             return;
         }
-        Hooks.onEachOperator(HOOK_KEY, wrapOperators(tracer));
+        Hooks.onEachOperator(HOOK_KEY, wrapOperators(tracer, tracer.getConfig(ReactorConfiguration.class)));
     }
 
     /**
@@ -238,7 +406,7 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
         return isRegistered.get();
     }
 
-    private static <X> Function<? super Publisher<X>, ? extends Publisher<X>> wrapOperators(final Tracer tracer) {
+    private static <X> Function<? super Publisher<X>, ? extends Publisher<X>> wrapOperators(final Tracer tracer, final ReactorConfiguration config) {
         //noinspection Convert2Lambda,rawtypes,Convert2Diamond
         return Operators.liftPublisher(new BiFunction<Publisher, CoreSubscriber<? super X>, CoreSubscriber<? super X>>() {
             @Override
@@ -254,9 +422,20 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
                 // use active span/transaction if directly active
                 TraceState<?> active = tracer.currentContext();
 
-                // fallback to using context-stored span/transaction if not already active
+                boolean tracedRequests = false;
                 if (active.isEmpty()) {
+                    // fallback to using context-stored span/transaction if not already active
                     active = subscriber.currentContext().getOrDefault(TraceState.class, null);
+                } else if (config.isThreadHopsPropagation()) {
+                    // subscribed on the thread of the active span/transaction, which will still be active when this operator
+                    // signals, unless it signals or requests on another thread
+                    tracedRequests = ThreadHopOperators.isThreadHop(subscriber);
+                    if (!tracedRequests && !ThreadHopOperators.isThreadHop(publisher)) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("skip wrapping {}, no thread hop", safeToString(subscriber));
+                        }
+                        return subscriber;
+                    }
                 }
 
                 if (active == null || active.isEmpty()) {
@@ -268,7 +447,7 @@ public class TracedSubscriber<T> implements CoreSubscriber<T> {
                     log.trace("wrapping subscriber {} publisher {} with active span/transaction {}", safeToString(subscriber), publisher, active);
                 }
 
-                return new TracedSubscriber<>(subscriber, tracer, active);
+                return new TracedSubscriber<>(subscriber, tracer, active, tracedRequests);
             }
         });
     }
@@ -27,6 +27,9 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.Fuseable;
+import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Hooks;
 import reactor.core.publisher.Mono;
@@ -35,9 +38,12 @@ import reactor.core.scheduler.Schedulers;
 import reactor.test.StepVerifier;
 
 import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
 
 class TracedSubscriberTest extends AbstractInstrumentationTest {
 
@@ -235,6 +241,146 @@ class TracedSubscriberTest extends AbstractInstrumentationTest {
             .verifyComplete();
     }
 
+    @Test
+    void contextPropagation_ThreadHops_DifferentThreads() {
+        useThreadHopsPropagation();
+
+        contextPropagation_DifferentThreads();
+    }
+
+    @Test
+    void contextPropagation_ThreadHops_Flux_Map_Zip() {
+        useThreadHopsPropagation();
+
+        contextPropagation_Flux_Map_Zip();
+    }
+
+    @Test
+    void contextPropagation_ThreadHops_Flux_error() {
+        useThreadHopsPropagation();
+
+        contextPropagation_Flux_error();
+    }
+
+    @Test
+    void contextPropagation_ThreadHops_RequestFromOtherThread() {
+        useThreadHopsPropagation();
+
+        transaction = startTestRootTransaction("root");
+
+        // with a small prefetch, publishOn requests the next items from its worker thread, on which range emits them
+        Flux<TestObservation> flux = Flux.range(1, 20)
+            .map(TestObservation::capture)
+            .checkpoint("before publishOn")
+            .publishOn(PUBLISH_SCHEDULER, 2);
+
+        StepVerifier.create(flux)
+            .thenConsumeWhile(observation -> {
+                observation.checkActiveContext(transaction);
+                return true;
+            })
+            .verifyComplete();
+    }
+
+    @Test
+    void tracedRequests_PreserveFusion() {
+        transaction = startTestRootTransaction("root");
+        AtomicReference<Subscription> subscription = new AtomicReference<>();
+        TracedSubscriber<TestObservation> subscriber = new TracedSubscriber<>(new BaseSubscriber<TestObservation>() {
+            @Override
+            protected void hookOnSubscribe(Subscription s) {
+                subscription.set(s);
+            }
+        }, tracer, transaction, true);
+        transaction.deactivate();
+
+        subscriber.onSubscribe(new Fuseable.QueueSubscription<TestObservation>() {
+            private int value;
+
+            @Override
+            public int requestFusion(int requestedMode) {
+                return requestedMode & Fuseable.SYNC;
+            }
+
+            @Override
+            public TestObservation poll() {
+                // executes the upstream operators when fused
+                return TestObservation.capture(++value);
+            }
+
+            @Override
+            public int size() {
+                return 0;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return false;
+            }
+
+            @Override
+            public void clear() {
+            }
+
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+
+        assertThat(subscription.get()).isInstanceOf(Fuseable.QueueSubscription.class);
+        @SuppressWarnings("unchecked")
+        Fuseable.QueueSubscription<TestObservation> queueSubscription = (Fuseable.QueueSubscription<TestObservation>) subscription.get();
+        assertThat(queueSubscription.requestFusion(Fuseable.ANY)).isEqualTo(Fuseable.SYNC);
+        TestObservation observation = queueSubscription.poll();
+        assertThat(observation).isNotNull();
+        observation.checkThread(true)
+            .checkActiveContext(transaction)
+            .checkValue(1);
+        assertThat(tracer.currentContext().isEmpty()).isTrue();
+
+        transaction.activate();
+    }
+
+    @Test
+    void contextPropagation_ThreadHops_Timer() {
+        useThreadHopsPropagation();
+
+        transaction = startTestRootTransaction("root");
+
+        Mono<TestObservation> mono = Mono.delay(Duration.ofMillis(10))
+            .map(i -> TestObservation.capture(i.intValue()));
+
+        StepVerifier.create(mono)
+            .expectNextMatches(inOtherThread(transaction, 0))
+            .verifyComplete();
+    }
+
+    @Test
+    void threadHopOperators() {
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxPublishOn")).isTrue();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxPublishOn$PublishOnSubscriber")).isTrue();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.MonoSubscribeOnCallable")).isTrue();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxTimeout")).isTrue();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.netty.channel.FluxReceive")).isTrue();
+
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxMap")).isFalse();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxMap$MapSubscriber")).isFalse();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.MonoFlatMap")).isFalse();
+        assertThat(ThreadHopOperators.isThreadHop("reactor.core.publisher.FluxRange")).isFalse();
+
+        assertThat(ThreadHopOperators.isAssemblyPublisher("reactor.core.publisher.FluxOnAssembly")).isTrue();
+        assertThat(ThreadHopOperators.isAssemblyPublisher("reactor.core.publisher.MonoCallableOnAssembly")).isTrue();
+        assertThat(ThreadHopOperators.isAssemblyPublisher("reactor.core.publisher.FluxOnAssembly$OnAssemblySubscriber")).isFalse();
+    }
+
+    private static void useThreadHopsPropagation() {
+        doReturn(ReactorConfiguration.ContextPropagation.THREAD_HOPS).when(config.getConfig(ReactorConfiguration.class)).getContextPropagation();
+    }
+
     private static long currentThreadId() {
         return Thread.currentThread().getId();
     }
@@ -134,6 +134,12 @@ public class GlobalTracer implements Tracer {
         return tracer.startChildTransaction(headerCarrier, headerGetter, initiatingClassLoader);
     }
 
+    @Nullable
+    @Override
+    public <T, C> Transaction<?> startSampledChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter, @Nullable ClassLoader initiatingClassLoader) {
+        return tracer.startSampledChildTransaction(headerCarrier, headerGetter, initiatingClassLoader);
+    }
+
     @Nullable
     @Override
     public ErrorCapture captureException(@Nullable Throwable e, @Nullable ClassLoader initiatingClassLoader) {
@@ -182,6 +188,16 @@ public class GlobalTracer implements Tracer {
         tracer.addGauge(name, labels, supplier);
     }
 
+    @Override
+    public void addToCounter(String name, Labels.Immutable labels, long count) {
+        tracer.addToCounter(name, labels, count);
+    }
+
+    @Override
+    public void updateHistogram(String name, Labels.Immutable labels, long value) {
+        tracer.updateHistogram(name, labels, value);
+    }
+
     @Override
     public void submit(Runnable job) {
         tracer.submit(job);
@@ -111,6 +111,12 @@ class NoopTracer implements Tracer {
         return null;
     }
 
+    @Nullable
+    @Override
+    public <T, C> Transaction<?> startSampledChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter, @Nullable ClassLoader initiatingClassLoader) {
+        return null;
+    }
+
     @Nullable
     @Override
     public ErrorCapture captureException(@Nullable Throwable e, @Nullable ClassLoader initiatingClassLoader) {
@@ -153,6 +159,14 @@ class NoopTracer implements Tracer {
     public void removeGauge(String name, Labels.Immutable labels) {
     }
 
+    @Override
+    public void addToCounter(String name, Labels.Immutable labels, long count) {
+    }
+
+    @Override
+    public void updateHistogram(String name, Labels.Immutable labels, long value) {
+    }
+
     @Override
     public void submit(Runnable job) {
     }
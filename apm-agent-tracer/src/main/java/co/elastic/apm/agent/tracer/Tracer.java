@@ -84,6 +84,28 @@ public interface Tracer {
     @Nullable
     <T, C> Transaction<?> startChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter, @Nullable ClassLoader initiatingClassLoader);
 
+    /**
+     * Like {@link #startChildTransaction(Object, HeaderGetter, ClassLoader)}, but only starts a recording transaction if it is sampled.
+     * If the context headers contain a parent, its sampling decision is used. Otherwise, the decision is made according to the
+     * configured sample rate.
+     * <p>
+     * As opposed to starting a transaction and checking whether it {@linkplain Transaction#isSampled() is sampled},
+     * no transaction is created for unsampled events without context headers.
+     * Unsampled events with context headers get an unsampled transaction which is {@linkplain Transaction#ignoreTransaction() ignored},
+     * so that the upstream trace context and baggage are still propagated to downstream services.
+     * This is meant for instrumentations of high-volume events which record metrics for all events instead.
+     * </p>
+     *
+     * @param headerCarrier         the Object from which context headers can be obtained, typically a request or a message
+     * @param headerGetter          provides the trace context headers required in order to create a child transaction
+     * @param initiatingClassLoader the class loader corresponding to the service which initiated the creation of the transaction.
+     *                              Used to determine the service name.
+     * @return a sampled transaction if the agent is currently RUNNING and the transaction is sampled,
+     * an unsampled transaction which is not reported if it is not sampled but the carrier contains context headers; null otherwise
+     */
+    @Nullable
+    <T, C> Transaction<?> startSampledChildTransaction(@Nullable C headerCarrier, HeaderGetter<T, C> headerGetter, @Nullable ClassLoader initiatingClassLoader);
+
     @Nullable
     ErrorCapture captureException(@Nullable Throwable e, @Nullable ClassLoader initiatingClassLoader);
 
@@ -101,6 +123,17 @@ public interface Tracer {
 
     void addGauge(String name, Labels.Immutable labels, DoubleSupplier supplier);
 
+    /**
+     * Adds to a counter which is reset after each time metrics are reported.
+     */
+    void addToCounter(String name, Labels.Immutable labels, long count);
+
+    /**
+     * Records a value in a histogram which is reset after each time metrics are reported.
+     * The serialized metric name has the {@code .histogram} suffix.
+     */
+    void updateHistogram(String name, Labels.Immutable labels, long value);
+
     void submit(Runnable job);
 
     void schedule(Runnable job, long interval, TimeUnit timeUnit);
@@ -21,7 +21,6 @@ package co.elastic.apm.agent.tracer.configuration;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -66,7 +65,7 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Boolean.TRUE);
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreMessageQueues = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_message_queues")
         .configurationCategory(MESSAGING_CATEGORY)
         .description("Used to filter out specific messaging queues/topics from being traced. \n" +
@@ -118,6 +117,25 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.46.0]")
         .buildWithDefault(RabbitMQNamingMode.EXCHANGE);
 
+    private final ConfigurationOption<KafkaRecordTracingStrategy> kafkaRecordTracingStrategy = ConfigurationOption.enumOption(KafkaRecordTracingStrategy.class)
+        .key("kafka_record_tracing_strategy")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .description("Determines for which Kafka records a transaction is created when iterating over the records returned by a poll.\n" +
+            "Valid options are `ALL` and `SAMPLED`.\n" +
+            "\n" +
+            "With `ALL`, a transaction is created for every record, even if it is not sampled.\n" +
+            "With `SAMPLED`, a transaction is only created for records which are sampled, either according to the `traceparent` header\n" +
+            "of the record or, if the record doesn't have one, according to `transaction_sample_rate`.\n" +
+            "Instead, the number of records per topic and partition (`kafka.consumer.records`) and a histogram of the age of the records\n" +
+            "per topic in milliseconds (`kafka.consumer.record.age.histogram`) are recorded as metrics for all records.\n" +
+            "Unsampled records with a `traceparent` or `baggage` header get an unsampled transaction which is not reported,\n" +
+            "so that their trace context and baggage are still propagated to downstream services.\n" +
+            "This reduces the overhead for consumers with a high throughput, but the transaction metrics don't include unsampled records\n" +
+            "without such headers.")
+        .dynamic(true)
+        .tags("added[1.56.0]", "experimental")
+        .buildWithDefault(KafkaRecordTracingStrategy.ALL);
+
     public JmsStrategy getMessagePollingTransactionStrategy() {
         return messagePollingTransactionStrategy.get();
     }
@@ -146,6 +164,10 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         return rabbitMQNamingMode.get();
     }
 
+    public KafkaRecordTracingStrategy getKafkaRecordTracingStrategy() {
+        return kafkaRecordTracingStrategy.get();
+    }
+
     public enum JmsStrategy {
         /**
          * Create a transaction capturing JMS {@code receive} invocations
@@ -192,4 +214,15 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
          */
         ROUTING_KEY
     }
+
+    public enum KafkaRecordTracingStrategy {
+        /**
+         * Create a transaction for each record
+         */
+        ALL,
+        /**
+         * Only create a transaction for sampled records and record metrics for all records
+         */
+        SAMPLED
+    }
 }
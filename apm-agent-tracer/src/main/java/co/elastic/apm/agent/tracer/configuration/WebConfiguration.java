@@ -21,7 +21,6 @@ package co.elastic.apm.agent.tracer.configuration;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -34,7 +33,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
     private static final String HTTP_CATEGORY = "HTTP";
 
     private final ConfigurationOption<List<WildcardMatcher>> captureContentTypes = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("capture_body_content_types")
         .configurationCategory(HTTP_CATEGORY)
         .tags("added[1.5.0]", "performance")
@@ -52,7 +51,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
         ));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUrls = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("transaction_ignore_urls")
         .aliasKeys("ignore_urls")
         .configurationCategory(HTTP_CATEGORY)
@@ -63,7 +62,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("/VAADIN/*"),
             WildcardMatcher.valueOf("/heartbeat*"),
             WildcardMatcher.valueOf("/favicon.ico"),
@@ -77,9 +76,9 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("*.svg"),
             WildcardMatcher.valueOf("*.woff"),
             WildcardMatcher.valueOf("*.woff2")
-        ));
+        )));
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUserAgents = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("transaction_ignore_user_agents")
         .aliasKeys("ignore_user_agents")
         .tags("added[1.22.0]")
@@ -109,7 +108,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> urlGroups = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("url_groups")
         .tags("deprecated")
         .configurationCategory(HTTP_CATEGORY)